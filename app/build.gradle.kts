@@ -26,6 +26,10 @@ android {
         sourceCompatibility = JavaVersion.VERSION_1_8
         targetCompatibility = JavaVersion.VERSION_1_8
     }
+    testOptions {
+        // JVM单元测试里Log等android方法返回默认值，发送流程的类可以直接在PC上运行
+        unitTests.isReturnDefaultValues = true
+    }
 }
 
 dependencies {
@@ -3,6 +3,8 @@ package com.example.mycam;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Bundle;
 import android.util.Log;
 
 import java.io.IOException;
@@ -13,8 +15,44 @@ public class AvcEncoder {
 	private static final String MIME_TYPE = "video/avc";
 	private MediaCodec mMediaCodec;
 	private byte[] mInfo = null;
+	private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+	private final FramePool mFramePool;
+	// 输出帧的EncodedFrame.streamId，多路相机时区分视频流
+	private final int mStreamId;
+	// 每隔STATS_INTERVAL_FRAMES帧输出一次帧大小统计
+	private static final int STATS_INTERVAL_FRAMES = 300;
+	private final FrameSizeStats mFrameSizeStats = new FrameSizeStats();
+	// 不为null时由它决定在哪些帧前插入SEI元数据，只在编码线程中访问
+	private volatile SeiProvider mSeiProvider;
+	private final SeiMessage mSeiMessage = new SeiMessage();
+	private final byte[] mSeiBuffer = new byte[SeiMessage.MAX_SIZE];
+	// 插入SEI的累计耗时，与帧大小统计一起输出
+	private long mSeiNanos = 0;
+	private int mSeiFrames = 0;
+	// 实际启用了帧内刷新时的刷新周期（帧数），每个周期的第一帧标记为恢复点，0表示没有帧内刷新
+	private int mIntraRefreshPeriod = 0;
+	private int mFramesSinceKeyFrame = 0;
+	private final int mWidth;
+	private final int mHeight;
 
 	public AvcEncoder(int width, int height, int framerate, int qp, int bitrate) {
+		this(width, height, framerate, qp, bitrate, new GopConfig());
+	}
+
+	public AvcEncoder(int width, int height, int framerate, int qp, int bitrate, GopConfig gop) {
+		// 编码后的帧一般远小于原始帧，缓冲按需扩容；池的大小能放下一个GOP缓存加上发送队列
+		this(width, height, framerate, qp, bitrate, gop, new FramePool(width * height / 32, 64), 0);
+	}
+
+	/**
+	 * @param pool     输出帧使用的缓冲池，多个编码器可以共用一个，使总内存有上限
+	 * @param streamId 写入每个输出帧的EncodedFrame.streamId
+	 */
+	public AvcEncoder(int width, int height, int framerate, int qp, int bitrate, GopConfig gop, FramePool pool, int streamId) {
+		mFramePool = pool;
+		mStreamId = streamId;
+		mWidth = width;
+		mHeight = height;
 		try {
 			mMediaCodec = MediaCodec.createEncoderByType(MIME_TYPE);
 			MediaFormat mediaFormat = MediaFormat.createVideoFormat(MIME_TYPE, width, height);
@@ -25,7 +63,7 @@ public class AvcEncoder {
 			mediaFormat.setInteger(MediaFormat.KEY_BITRATE_MODE, MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR);
 			mediaFormat.setInteger(MediaFormat.KEY_FRAME_RATE, framerate);
 			mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar);
-			mediaFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+			configureGop(mediaFormat, gop);
 			mMediaCodec.configure(mediaFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
 			mMediaCodec.start();
 		} catch (IOException e) {
@@ -33,70 +71,190 @@ public class AvcEncoder {
 		}
 	}
 
-	public int offerEncoder(byte[] input, byte[] output) {
-		Log.i(TAG, "offerEncoder input length = " + input.length + "; output length = " + output.length);
-		int pos = 0;
+	private void configureGop(MediaFormat mediaFormat, GopConfig gop) {
+		Log.i(TAG, "configureGop " + gop);
+		boolean intraRefresh = false;
+		if (gop.intraRefreshPeriod > 0) {
+			MediaCodecInfo.CodecCapabilities capabilities = mMediaCodec.getCodecInfo().getCapabilitiesForType(MIME_TYPE);
+			if (capabilities.isFeatureSupported(MediaCodecInfo.CodecCapabilities.FEATURE_IntraRefresh)) {
+				mediaFormat.setInteger(MediaFormat.KEY_INTRA_REFRESH_PERIOD, gop.intraRefreshPeriod);
+				intraRefresh = true;
+			} else {
+				Log.w(TAG, "intra refresh is not supported by " + mMediaCodec.getCodecInfo().getName() + ", use periodic IDR");
+			}
+		}
+		mIntraRefreshPeriod = intraRefresh ? gop.intraRefreshPeriod : 0;
+		if (intraRefresh) {
+			//只有第一帧是IDR，之后的关键帧通过requestKeyFrame()按需产生
+			mediaFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL,
+					Build.VERSION.SDK_INT >= Build.VERSION_CODES.N_MR1 ? -1 : Integer.MAX_VALUE);
+		} else {
+			mediaFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, gop.keyFrameIntervalSec);
+		}
+		if (gop.maxBFrames > 0) {
+			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+				mediaFormat.setInteger(MediaFormat.KEY_MAX_B_FRAMES, gop.maxBFrames);
+			} else {
+				Log.w(TAG, "B frames need Android 10, ignored");
+			}
+		}
+	}
+
+	/**
+	 * 送入一帧NV12数据，并取出编码器当前所有的输出帧。
+	 * 编码输出只从MediaCodec的缓冲复制一次到缓冲池的帧中，关键帧的SPS/PPS通过EncodedFrame.prefix引用，不再复制。
+	 *
+	 * @param ptsUs    输入帧的显示时间戳（微秒），一般为Image.getTimestamp() / 1000
+	 * @param listener 每输出一帧回调一次，回调拿到一个引用，用完后需要release()
+	 * @return 输出的帧数
+	 */
+	public int offerEncoder(byte[] input, long ptsUs, FrameListener listener) {
+		Log.i(TAG, "offerEncoder input length = " + input.length);
+		int frames = 0;
 		try {
-	        ByteBuffer[] inputBuffers = mMediaCodec.getInputBuffers();
-	        ByteBuffer[] outputBuffers = mMediaCodec.getOutputBuffers();
-	        int inputBufferIndex = mMediaCodec.dequeueInputBuffer(-1);
-	        if (inputBufferIndex >= 0) {
-				//ByteBuffer x = mMediaCodec.getInputBuffer(inputBufferIndex);
-				ByteBuffer inputBuffer = inputBuffers[inputBufferIndex];
+			int inputBufferIndex = mMediaCodec.dequeueInputBuffer(-1);
+			if (inputBufferIndex >= 0) {
+				ByteBuffer inputBuffer = mMediaCodec.getInputBuffer(inputBufferIndex);
 				Log.i(TAG, "inputBufferIndex-->" + inputBufferIndex + " inputBuffer size-->" + inputBuffer.capacity());
 				inputBuffer.clear();
 				inputBuffer.put(input);
-				mMediaCodec.queueInputBuffer(inputBufferIndex, 0, input.length, 0, 0);
-	        }
+				mMediaCodec.queueInputBuffer(inputBufferIndex, 0, input.length, ptsUs, 0);
+			}
 
-	        MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
-	        int outputBufferIndex = mMediaCodec.dequeueOutputBuffer(bufferInfo,0);
-	        while (outputBufferIndex >= 0) {
+			MediaCodec.BufferInfo bufferInfo = mBufferInfo;
+			int outputBufferIndex = mMediaCodec.dequeueOutputBuffer(bufferInfo, 0);
+			while (outputBufferIndex >= 0) {
 				Log.i(TAG, "outputBufferIndex-->" + outputBufferIndex);
-	            ByteBuffer outputBuffer = outputBuffers[outputBufferIndex];
-	            byte[] outData = new byte[bufferInfo.size];
-				outputBuffer.get(outData);
-
-				/**if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) { // sps pps
-					//Log.i(TAG, "sps = " + Arrays.toString(outData));
-					System.arraycopy(outData, 0,  output, pos, outData.length);
-					pos += outData.length;
-				} else if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0){ // frame
-					//Log.i(TAG, "frame = " + Arrays.toString(outData));
-					System.arraycopy(outData, 0,  output, pos, outData.length);
-					pos += outData.length;
+				ByteBuffer outputBuffer = mMediaCodec.getOutputBuffer(outputBufferIndex);
+				outputBuffer.limit(bufferInfo.offset + bufferInfo.size);
+				outputBuffer.position(bufferInfo.offset);
+				if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+					//Save pps sps, they are prepended to every key frame
+					mInfo = new byte[bufferInfo.size];
+					outputBuffer.get(mInfo);
 				} else {
-					//Log.i(TAG, "else = " + Arrays.toString(outData));
-					System.arraycopy(outData, 0,  output, pos, outData.length);
-					pos += outData.length;
-				}*/
-				if(mInfo != null){
-	            	System.arraycopy(outData, 0,  output, pos, outData.length);
-	 	            pos += outData.length;
-	            }else{		//Save pps sps only in the first frame, save it for later use
-					ByteBuffer spsPpsBuffer = ByteBuffer.wrap(outData);
-					if (spsPpsBuffer.getInt() == 0x00000001) {
-						mInfo = new byte[outData.length];
-						System.arraycopy(outData, 0, mInfo, 0, outData.length);
-					}else {
-						return -1;
+					// 插入SEI时在帧数据前面预留空间，SEI直接写在slice前面，不需要移动或重新分配帧数据
+					SeiProvider seiProvider = mSeiProvider;
+					int headroom = seiProvider != null ? SeiMessage.MAX_SIZE : 0;
+					EncodedFrame frame = mFramePool.acquire(headroom + bufferInfo.size);
+					outputBuffer.get(frame.data, headroom, bufferInfo.size);
+					frame.offset = headroom;
+					frame.length = bufferInfo.size;
+					frame.streamId = mStreamId;
+					frame.ptsUs = bufferInfo.presentationTimeUs;
+					// PTS = Image.getTimestamp() / 1000
+					frame.captureTimeNs = bufferInfo.presentationTimeUs * 1000;
+					if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) {
+						//key frame When the encoder generates the key frame, there is only 00 00 00 01 65 without pps sps.
+						frame.flags |= FrameHeader.FLAG_KEY_FRAME;
+						if (mInfo != null) {
+							frame.prefix = mInfo;
+							frame.flags |= FrameHeader.FLAG_CODEC_CONFIG;
+						}
+						mFramesSinceKeyFrame = 0;
+					} else if (mIntraRefreshPeriod > 0 && ++mFramesSinceKeyFrame % mIntraRefreshPeriod == 0 && mInfo != null) {
+						// 帧内刷新没有周期性的IDR，新的接收端和GOP缓存从刷新周期的开头开始，同样带上SPS/PPS
+						frame.prefix = mInfo;
+						frame.flags |= FrameHeader.FLAG_CODEC_CONFIG | FrameHeader.FLAG_RECOVERY_POINT;
 					}
-	            }
-				Log.v(TAG, " 0:" + output[0] + " 1:" + output[1] + " 2:" + output[2] + " 3:" + output[3] + " 4:" + output[4]);	//数组元素0-3为间隔0001 元素4为nalu类型
-	            if(output[4] == 0x65) {
-					//key frame When the encoder generates the key frame, there is only 00 00 00 01 65 without pps sps.
-					Log.v(TAG, "mInfo.length is " + mInfo.length);
-					System.arraycopy(mInfo, 0,  output, 0, mInfo.length);	//每秒有一个关键帧，在关键帧前加上pps sps
-	                System.arraycopy(outData, 0,  output, mInfo.length, outData.length);
-		        }
-	            mMediaCodec.releaseOutputBuffer(outputBufferIndex, false);
-	            outputBufferIndex = mMediaCodec.dequeueOutputBuffer(bufferInfo, 0);
-	        }
-	    } catch (Throwable t) {
-	        t.printStackTrace();
-	    }
-		Log.i(TAG, "offerEncoder pos = " + pos);
-	    return pos;
+					if (seiProvider != null) {
+						insertSei(frame, seiProvider);
+					}
+					mFrameSizeStats.record(bufferInfo.size, frame.isKeyFrame());
+					if (mFrameSizeStats.getCount() >= STATS_INTERVAL_FRAMES) {
+						Log.i(TAG, "frame size stats: " + mFrameSizeStats);
+						mFrameSizeStats.reset();
+						if (mSeiFrames > 0) {
+							Log.i(TAG, "sei: " + mSeiFrames + " frames, " + mSeiNanos / mSeiFrames + " ns/frame");
+							mSeiNanos = 0;
+							mSeiFrames = 0;
+						}
+					}
+					listener.onEncodedFrame(frame);
+					frames++;
+				}
+				mMediaCodec.releaseOutputBuffer(outputBufferIndex, false);
+				outputBufferIndex = mMediaCodec.dequeueOutputBuffer(bufferInfo, 0);
+			}
+		} catch (Throwable t) {
+			t.printStackTrace();
+		}
+		return frames;
+	}
+
+	/**
+	 * 把SEI写在帧数据前预留的空间中，frame.offset前移
+	 */
+	private void insertSei(EncodedFrame frame, SeiProvider provider) {
+		long start = System.nanoTime();
+		if (provider.onSei(frame, mSeiMessage)) {
+			int length = mSeiMessage.write(mSeiBuffer, 0);
+			frame.offset -= length;
+			System.arraycopy(mSeiBuffer, 0, frame.data, frame.offset, length);
+			frame.length += length;
+		}
+		mSeiNanos += System.nanoTime() - start;
+		mSeiFrames++;
+	}
+
+	/**
+	 * 设置每帧的SEI元数据，null表示不插入；下一个输出帧开始生效
+	 */
+	public void setSeiProvider(SeiProvider provider) {
+		mSeiProvider = provider;
+	}
+
+	/**
+	 * 运行中修改目标码率，不需要重启编码器
+	 */
+	public void setBitrate(int bitrate) {
+		try {
+			Bundle params = new Bundle();
+			params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
+			mMediaCodec.setParameters(params);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * 让编码器尽快输出一个IDR帧（例如有新的接收端连接时）
+	 */
+	public void requestKeyFrame() {
+		try {
+			Bundle params = new Bundle();
+			params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+			mMediaCodec.setParameters(params);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * 当前统计周期内的帧大小统计（平均值、p95/p99、峰值）
+	 */
+	public FrameSizeStats getFrameSizeStats() {
+		return mFrameSizeStats;
+	}
+
+	public interface FrameListener {
+		void onEncodedFrame(EncodedFrame frame);
+	}
+
+	public interface SeiProvider {
+		/**
+		 * 在编码线程中为一个输出帧填写元数据（message会被复用，只需要修改变化的字段）
+		 *
+		 * @return 是否在这一帧前插入SEI
+		 */
+		boolean onSei(EncodedFrame frame, SeiMessage message);
+	}
+
+	/**
+	 * 输入的NV12帧必须与编码器的尺寸相同，否则画面错位或者输入缓冲不够大
+	 */
+	public boolean matchesSize(int width, int height) {
+		return width == mWidth && height == mHeight;
 	}
 
 	public void close() {
@@ -5,7 +5,9 @@ import android.app.Activity;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.graphics.ImageFormat;
+import android.graphics.Rect;
 import android.graphics.SurfaceTexture;
+import android.graphics.YuvImage;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
 import android.hardware.camera2.CameraCharacteristics;
@@ -27,32 +29,75 @@ import androidx.annotation.NonNull;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Semaphore;
 
 /**
  * @Author bright
  * @Date 2023/4/2 10:58 AM
  * @ClassName Camera2Wrapper
- * Camera2 两路预览：
- * 1、使用TextureView预览，直接输出。
- * 2、使用ImageReader获取数据，输出格式为ImageFormat.YUV_420_888，java端转化为NV21，然后发送给Python端。
+ * Camera2 两路输出：
+ * 1、使用ImageReader获取数据，输出格式为ImageFormat.YUV_420_888，java端转化为NV12后编码发送，尺寸从YUV_420_888支持的尺寸中选择。
+ * 2、可选的TextureView预览，使用自己的（较低的）分辨率和帧率；没有预览时（例如在后台服务中）只输出ImageReader。
  */
 public class Camera2Wrapper {
     private static final String TAG = "Camera2Wrapper";
-    private final Activity mContext;
+    private final Context mContext;
     private ImageReader mImageReader;
-    private TextureView mTextureView;
     private final Handler mCameraHandler;
     private CameraDevice mCameraDevice;
+    // 只输出到ImageReader的请求
+    private CaptureRequest.Builder mStreamRequestBuilder;
+    // 同时输出到ImageReader和预览的请求，没有预览时为null
     private CaptureRequest.Builder mPreviewRequestBuilder;
+    // 预览的SurfaceTexture，只在相机线程中访问
+    private SurfaceTexture mPreviewTexture;
+    private Surface mPreviewSurface;
+    // 预览的目标尺寸和帧率，与发送的尺寸和帧率无关
+    private Size mPreviewTargetSize = new Size(640, 360);
+    private Size mPreviewSize = mPreviewTargetSize;
+    private int mPreviewFrameRate = 10;
     private ImageDataListener mImageDataListener;
     private String mCameraId = String.valueOf(CameraCharacteristics.LENS_FACING_FRONT);
     private final Semaphore mCameraLock = new Semaphore(1);
     private final ArrayList<Range<Integer>> mFpsRanges = new ArrayList<>();
-    private Size mPreviewSize = new Size(1280, 720);
+    private Size mStreamSize = new Size(1280, 720);
+    // 最近一次回调的帧的尺寸，在相机的回调线程中写
+    private volatile int mFrameWidth = 0;
+    private volatile int mFrameHeight = 0;
     private Range<Integer> mFrameRate = new Range<>(30, 30);
+    private CameraCaptureSession mCaptureSession;
+    // 最近一帧Image转换为NV12的耗时
+    private volatile long mConvertNanos = 0;
+    // 最近mLookBackFrames帧转换后的NV12数据，用于按时间戳回取静态图
+    private int mLookBackFrames = 8;
+    private FrameRing mFrameRing;
+    // 静态图在单独的线程中编码，不占用相机线程
+    private final ExecutorService mStillExecutor = Executors.newSingleThreadExecutor();
+    private byte[] mStillBuffer;
+    // NV12静态图直接从回看缓冲复制到池中的帧里，发送完release()后复用
+    private final FramePool mStillPool = new FramePool(0, 2);
+    private final ByteArrayOutputStream mJpegStream = new ByteArrayOutputStream();
+    // 不为null时把转换后的每一帧记录到trace文件，只在相机线程中访问
+    private volatile TraceRecorder mTraceRecorder;
+    // 正在重放的trace，重放期间相机关闭
+    private volatile TraceReplayer mReplayer;
+    private volatile boolean mReleased = false;
+    // 下游是否需要帧，没有时Image取出后直接关闭，不做转换
+    private volatile boolean mDemand = true;
+    // 输出帧率低于相机帧率时在转换之前抽帧
+    private final FrameDecimator mDecimator = new FrameDecimator();
+    // 没有转换就丢弃的帧数，只在相机线程中修改
+    private long mSkippedFrames = 0;
+    // 传感器时间戳是否为elapsedRealtimeNanos()，否则为nanoTime()（UNKNOWN），时钟同步时需要用同一个时钟
+    private volatile boolean mTimestampRealtime = false;
 
     //相机被打开时的回调
     private final CameraDevice.StateCallback mCameraDeviceStateCallback = new CameraDevice.StateCallback() {
@@ -86,24 +131,14 @@ public class Camera2Wrapper {
             if (null == mCameraDevice) {
                 return;
             }
-            mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_ON);
-            mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
-            //mPreviewRequestBuilder.set(CaptureRequest.JPEG_ORIENTATION, 90);
-            //mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, mFpsRanges.get(0));
-            mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, mFrameRate);
-            CaptureRequest request = mPreviewRequestBuilder.build();
-            try {
-                // Finally, we start displaying the camera preview.
-                session.setRepeatingRequest(request, new CameraCaptureSession.CaptureCallback() {
-                    @Override
-                    public void onCaptureStarted(@NonNull CameraCaptureSession session,
-                                                 @NonNull CaptureRequest request, long timestamp, long frameNumber) {
-                        super.onCaptureStarted(session, request, timestamp, frameNumber);
-                    }
-                }, mCameraHandler);
-            } catch (CameraAccessException e) {
-                e.printStackTrace();
+            mCaptureSession = session;
+            for (CaptureRequest.Builder builder : new CaptureRequest.Builder[]{mStreamRequestBuilder, mPreviewRequestBuilder}) {
+                if (builder != null) {
+                    builder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_ON);
+                    builder.set(CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+                }
             }
+            startRepeatingRequest(session);
         }
 
         @Override
@@ -112,10 +147,52 @@ public class Camera2Wrapper {
         }
     };
 
+    /**
+     * 按当前的帧率下发请求，帧率变化时不需要重新创建会话。
+     * 有预览时使用repeating burst：每N帧中只有一帧输出到预览，其余只输出到ImageReader，
+     * 预览帧率约为发送帧率的1/N，不占用额外的传感器带宽。
+     */
+    private void startRepeatingRequest(CameraCaptureSession session) {
+        Range<Integer> fpsRange = chooseFpsRange(mFrameRate.getUpper());
+        mStreamRequestBuilder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, fpsRange);
+        CaptureRequest streamRequest = mStreamRequestBuilder.build();
+        try {
+            if (mPreviewRequestBuilder == null) {
+                session.setRepeatingRequest(streamRequest, null, mCameraHandler);
+                return;
+            }
+            mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, fpsRange);
+            int interval = Math.max(1, Math.round((float) mFrameRate.getUpper() / Math.max(1, mPreviewFrameRate)));
+            ArrayList<CaptureRequest> burst = new ArrayList<>();
+            burst.add(mPreviewRequestBuilder.build());
+            for (int i = 1; i < interval; i++) {
+                burst.add(streamRequest);
+            }
+            Log.i(TAG, "startRepeatingRequest: preview every " + interval + " frames");
+            session.setRepeatingBurst(burst, null, mCameraHandler);
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+        }
+    }
+
+    //从相机支持的帧率范围中选择上限等于frameRate的，优先选择固定帧率
+    private Range<Integer> chooseFpsRange(int frameRate) {
+        Range<Integer> best = null;
+        for (Range<Integer> range : mFpsRanges) {
+            if (range.getUpper() != frameRate) {
+                continue;
+            }
+            if (best == null || range.getLower() > best.getLower()) {
+                best = range;
+            }
+        }
+        return best != null ? best : new Range<>(frameRate, frameRate);
+    }
+
     /**
      * Camera2Wrapper构造函数
      */
-    public Camera2Wrapper(Activity context) {
+    public Camera2Wrapper(Context context) {
         this.mContext = context;
         //创建了一个Thread来供Camera运行使用，使用HandlerThread而不使用Thread是因为HandlerThread给我们创建了Looper，不用我们自己创建了。
         HandlerThread mCameraThread = new HandlerThread("camera");
@@ -124,37 +201,79 @@ public class Camera2Wrapper {
     }
 
     /**
-     * 设置预览view
+     * 设置预览view，surface可用时加入预览输出，销毁时去掉预览，相机和发送不受影响
      *
      * @param textureView 需要预览的TextureView
      */
     public void initTexture(@NonNull TextureView textureView) {
-        mTextureView = textureView;
         textureView.setSurfaceTextureListener(new TextureView.SurfaceTextureListener() {
             @Override
             public void onSurfaceTextureAvailable(SurfaceTexture surface, int width, int height) {
                 Log.i(TAG, "onSurfaceTextureAvailable surfaceSize->" + width + "x" + height);
-                openCamera();
+                setPreviewTexture(surface);
             }
             @Override
             public void onSurfaceTextureSizeChanged(SurfaceTexture surface, int width, int height) {}
             @Override
-            public boolean onSurfaceTextureDestroyed(SurfaceTexture surface) {return false;}
+            public boolean onSurfaceTextureDestroyed(SurfaceTexture surface) {
+                setPreviewTexture(null);
+                return true;
+            }
             @Override
             public void onSurfaceTextureUpdated(SurfaceTexture surface) {}
         });
+        if (textureView.isAvailable()) {
+            setPreviewTexture(textureView.getSurfaceTexture());
+        }
     }
 
     /**
-     * surface ready的时候开启Camera
-     *
+     * 去掉预览，例如Activity退到后台时
+     */
+    public void detachPreview() {
+        setPreviewTexture(null);
+    }
+
+    /**
+     * 设置预览的尺寸和帧率，下次加入预览时生效
+     */
+    public void setPreviewConfig(int width, int height, int frameRate) {
+        mPreviewTargetSize = new Size(width, height);
+        mPreviewFrameRate = frameRate;
+    }
+
+    private void setPreviewTexture(final SurfaceTexture texture) {
+        mCameraHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (texture == mPreviewTexture) {
+                    return;
+                }
+                mPreviewTexture = texture;
+                if (mPreviewSurface != null) {
+                    mPreviewSurface.release();
+                    mPreviewSurface = null;
+                }
+                // 相机已经打开时重新创建会话，没有打开时等onOpened
+                if (mCameraDevice != null) {
+                    createCameraPreviewSession();
+                }
+            }
+        });
+    }
+
+    /**
+     * 打开相机，不需要预览surface
      */
     public void openCamera() {
         Log.i(TAG, "openCamera start");
         setCameraConfig();
         CameraManager cameraManager = (CameraManager) mContext.getSystemService(Context.CAMERA_SERVICE);
-        mImageReader = ImageReader.newInstance(mPreviewSize.getWidth(), mPreviewSize.getHeight(),
+        mImageReader = ImageReader.newInstance(mStreamSize.getWidth(), mStreamSize.getHeight(),
                 ImageFormat.YUV_420_888, 2);
+        if (mFrameRing == null || !mFrameRing.matches(mLookBackFrames, mStreamSize.getWidth(), mStreamSize.getHeight())) {
+            mFrameRing = new FrameRing(mLookBackFrames, mStreamSize.getWidth(), mStreamSize.getHeight());
+        }
 /*        mImageReader.setOnImageAvailableListener(new ImageReader.OnImageAvailableListener() {
             @Override
             public void onImageAvailable(ImageReader reader) {
@@ -168,9 +287,13 @@ public class Camera2Wrapper {
         }, mCameraHandler);*/
         mImageReader.setOnImageAvailableListener(new RTPOnImageAvailableListener(), mCameraHandler);
         String[] permission = new String[]{Manifest.permission.CAMERA};
-        // Android 6.0相机动态权限检查
+        // Android 6.0相机动态权限检查，在服务中没有权限时只能等Activity申请
         if (ContextCompat.checkSelfPermission(mContext, Manifest.permission.CAMERA) != PackageManager.PERMISSION_GRANTED) {
-            ActivityCompat.requestPermissions(mContext, permission, 1);
+            if (mContext instanceof Activity) {
+                ActivityCompat.requestPermissions((Activity) mContext, permission, 1);
+            }
+            Log.w(TAG, "openCamera: no camera permission");
+            return;
         }
         try {
             cameraManager.openCamera(mCameraId, mCameraDeviceStateCallback, mCameraHandler);
@@ -190,21 +313,35 @@ public class Camera2Wrapper {
             CameraCharacteristics characteristics = cameraManager.getCameraCharacteristics(mCameraId);
             StreamConfigurationMap map = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
             if (map != null) {
-                Size[] sizeMap = map.getOutputSizes(SurfaceTexture.class);
-                Size optimalSize = getOptimalSize(sizeMap, mPreviewSize.getWidth(), mPreviewSize.getHeight());
+                // 发送的尺寸从ImageReader实际支持的YUV_420_888尺寸中选择
+                Size[] sizeMap = map.getOutputSizes(ImageFormat.YUV_420_888);
+                Size optimalSize = getOptimalSize(sizeMap, mStreamSize.getWidth(), mStreamSize.getHeight());
                 if (optimalSize != null && optimalSize.getWidth() > 0 && optimalSize.getHeight() > 0) {
-                    mPreviewSize = optimalSize;
+                    mStreamSize = optimalSize;
                 }
                 StringBuilder sizes = new StringBuilder();
                 for (Size size : sizeMap) {
                     sizes.append(size.getWidth()).append("x").append(size.getHeight()).append("  ");
                 }
                 Log.i(TAG, "setCameraConfig size->" + sizes);
+                Log.i(TAG, "setCameraConfig stream->" + mStreamSize.toString());
+                // 预览使用较小的尺寸，宽高比与发送的尺寸相同
+                Size previewSize = getOptimalSize(map.getOutputSizes(SurfaceTexture.class),
+                        mPreviewTargetSize.getHeight() * mStreamSize.getWidth() / mStreamSize.getHeight(),
+                        mPreviewTargetSize.getHeight());
+                if (previewSize != null) {
+                    mPreviewSize = previewSize;
+                }
                 Log.i(TAG, "setCameraConfig preview->" + mPreviewSize.toString());
             }
             Range<Integer>[] fpsRanges = characteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
             Log.i(TAG, "setCameraConfig fpsRanges->" + Arrays.toString(fpsRanges));
+            mFpsRanges.clear();
             mFpsRanges.addAll(Arrays.asList(fpsRanges));
+            Integer timestampSource = characteristics.get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+            mTimestampRealtime = timestampSource != null
+                    && timestampSource == CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME;
+            Log.i(TAG, "setCameraConfig timestamp realtime->" + mTimestampRealtime);
         } catch (CameraAccessException e) {
             e.printStackTrace();
         }
@@ -249,6 +386,9 @@ public class Camera2Wrapper {
      */
     public void closeCamera() {
         Log.i(TAG, "closeCamera");
+        mCaptureSession = null;
+        mStreamRequestBuilder = null;
+        mPreviewRequestBuilder = null;
 
         if (mCameraDevice != null) {
             mCameraDevice.close();
@@ -262,22 +402,54 @@ public class Camera2Wrapper {
     }
 
     /**
-     * Creates a new {@link CameraCaptureSession} for camera preview.
+     * 关闭相机并结束相机线程和静态图线程，之后不能再使用，在Service销毁时调用
+     */
+    public void release() {
+        mReleased = true;
+        stopReplay();
+        // 在相机线程中关闭，不会与正在执行的图像回调同时访问ImageReader
+        mCameraHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                closeCamera();
+            }
+        });
+        mStillExecutor.shutdownNow();
+        mCameraHandler.getLooper().quitSafely();
+    }
+
+    /**
+     * 在相机线程中执行，与{@link ImageDataListener}的回调串行，用于在两帧之间重新配置相机和编码器
+     */
+    public void runOnCameraThread(Runnable runnable) {
+        mCameraHandler.post(runnable);
+    }
+
+    /**
+     * Creates a new {@link CameraCaptureSession}: ImageReader，以及有预览时的预览surface。
+     * 只在相机线程中调用。
      */
     private void createCameraPreviewSession() {
         try {
-            SurfaceTexture surfaceTexture = mTextureView.getSurfaceTexture();
-            surfaceTexture.setDefaultBufferSize(mPreviewSize.getWidth(), mPreviewSize.getHeight());
-            Surface previewSurface = new Surface(surfaceTexture);
             Surface imageSurface = mImageReader.getSurface();
-            // We set up a CaptureRequest.Builder with the output Surface.
-            mPreviewRequestBuilder = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
-            //如果需要多个surface可以add多个
-            mPreviewRequestBuilder.addTarget(imageSurface);
-            mPreviewRequestBuilder.addTarget(previewSurface);
-
-            mCameraDevice.createCaptureSession(Arrays.asList(previewSurface, imageSurface),
-                    mCaptureSessionStateCallback, mCameraHandler);
+            ArrayList<Surface> outputs = new ArrayList<>();
+            outputs.add(imageSurface);
+            mStreamRequestBuilder = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+            mStreamRequestBuilder.addTarget(imageSurface);
+            mPreviewRequestBuilder = null;
+            if (mPreviewTexture != null) {
+                if (mPreviewSurface == null) {
+                    mPreviewTexture.setDefaultBufferSize(mPreviewSize.getWidth(), mPreviewSize.getHeight());
+                    mPreviewSurface = new Surface(mPreviewTexture);
+                }
+                outputs.add(mPreviewSurface);
+                mPreviewRequestBuilder = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+                mPreviewRequestBuilder.addTarget(imageSurface);
+                mPreviewRequestBuilder.addTarget(mPreviewSurface);
+            }
+            Log.i(TAG, "createCameraPreviewSession: stream " + mStreamSize
+                    + (mPreviewTexture != null ? " preview " + mPreviewSize + "@" + mPreviewFrameRate : " no preview"));
+            mCameraDevice.createCaptureSession(outputs, mCaptureSessionStateCallback, mCameraHandler);
         } catch (CameraAccessException e) {
             e.printStackTrace();
         }
@@ -314,13 +486,273 @@ public class Camera2Wrapper {
 
     /**
      * 改变相机的参数
+     *
+     * @return 相机正在运行并且分辨率不变时，新的帧率立即生效并返回true；
+     * 否则返回false，需要调用者closeCamera()/openCamera()
      */
-    public void SetCameraParams(int width, int height, int frameRate){
-        mPreviewSize = new Size(width, height);
+    public boolean SetCameraParams(int width, int height, int frameRate){
+        final boolean sameSize = mStreamSize.getWidth() == width && mStreamSize.getHeight() == height;
+        mStreamSize = new Size(width, height);
         mFrameRate = new Range<>(frameRate, frameRate);
+        final CameraCaptureSession session = mCaptureSession;
+        if (!sameSize || session == null) {
+            return false;
+        }
+        mCameraHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (session == mCaptureSession) {
+                    startRepeatingRequest(session);
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * 开始把转换后的NV12帧和时间戳记录到trace文件，用{@link TraceReplayer}重放
+     *
+     * @param maxBytes 文件大小上限，到达后不再记录
+     */
+    public void startTrace(final File file, final long maxBytes) {
+        mCameraHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                closeTrace();
+                // 按回看缓冲（即ImageReader）的实际尺寸录制，与每一帧的数据一致
+                FrameRing ring = mFrameRing;
+                int width = ring != null ? ring.getWidth() : mStreamSize.getWidth();
+                int height = ring != null ? ring.getHeight() : mStreamSize.getHeight();
+                try {
+                    mTraceRecorder = new TraceRecorder(file, width, height, maxBytes);
+                    Log.i(TAG, "startTrace: " + file + " " + width + "x" + height);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    public void stopTrace() {
+        mCameraHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                closeTrace();
+            }
+        });
+    }
+
+    public boolean isTracing() {
+        return mTraceRecorder != null;
+    }
+
+    /**
+     * 在设备上重放trace：关闭相机，在相机线程中把trace的帧按原来的间隔交给{@link ImageDataListener}，
+     * 与相机回调的线程、数据和尺寸相同，之后的转换、编码和发送不变，用于可重复的性能测试。
+     * 循环loops次或者stopReplay()后重新打开相机。时间戳是录制时的传感器时间戳
+     */
+    public void startReplay(final File file, final int loops) {
+        mCameraHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mReplayer != null || mReleased) {
+                    return;
+                }
+                TraceReader reader;
+                try {
+                    reader = new TraceReader(file);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return;
+                }
+                TraceReplayer replayer = new TraceReplayer(reader);
+                mReplayer = replayer;
+                closeCamera();
+                mFrameWidth = reader.getWidth();
+                mFrameHeight = reader.getHeight();
+                Log.i(TAG, "startReplay: " + file + " " + reader.getWidth() + "x" + reader.getHeight()
+                        + ", " + reader.getFrameCount() + " frames");
+                try {
+                    replayer.replay(mImageDataListener, TraceReplayer.MODE_REALTIME, 1.0f, loops);
+                } catch (IOException | InterruptedException e) {
+                    e.printStackTrace();
+                } finally {
+                    Log.i(TAG, "stopReplay: " + replayer);
+                    mReplayer = null;
+                    try {
+                        reader.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    if (!mReleased) {
+                        openCamera();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * 可以在任意线程调用，相机在相机线程中重新打开
+     */
+    public void stopReplay() {
+        TraceReplayer replayer = mReplayer;
+        if (replayer != null) {
+            replayer.stop();
+        }
+    }
+
+    public boolean isReplaying() {
+        return mReplayer != null;
+    }
+
+    private void closeTrace() {
+        TraceRecorder recorder = mTraceRecorder;
+        mTraceRecorder = null;
+        if (recorder == null) {
+            return;
+        }
+        try {
+            recorder.close();
+            Log.i(TAG, "stopTrace: " + recorder.getFrameCount() + " frames, dropped " + recorder.getDroppedFrames());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 设置下游是否需要帧，例如有没有接收端。没有需求时相机照常运行（预览不受影响），但不再转换和回调
+     */
+    public void setDemand(boolean demand) {
+        mDemand = demand;
+    }
+
+    /**
+     * 设置回调的帧率，低于相机帧率时按时间戳均匀抽帧，0表示与相机帧率相同
+     */
+    public void setOutputFrameRate(int frameRate) {
+        mDecimator.setFrameRate(frameRate);
+    }
+
+    public long getSkippedFrames() {
+        return mSkippedFrames;
+    }
+
+    /**
+     * @return 帧的时间戳是否与SystemClock.elapsedRealtimeNanos()同一个时钟，否则与System.nanoTime()相同
+     */
+    public boolean isTimestampRealtime() {
+        return mTimestampRealtime;
+    }
+
+    public String getCameraId() {
+        return mCameraId;
+    }
+
+    public long getLastConvertNanos() {
+        return mConvertNanos;
     }
 
 
+    /**
+     * 设置回看缓冲的帧数，下次openCamera时生效
+     */
+    public void setLookBackFrames(int frames) {
+        mLookBackFrames = Math.max(1, frames);
+    }
+
+    /**
+     * 从回看缓冲中取出最接近timestamp（误差一帧以内）的帧，在静态图线程中编码为JPEG或裁剪为NV12后回调。
+     * NV12的结果以裁剪区域 x,y,width,height(各4字节)开头。
+     * 参数可能直接来自网络（{@link ControlChannel}），只在这里检查：不认识的格式和找不到帧一样回调null，质量限制在1-100。
+     *
+     * @param format  FrameHeader.TYPE_STILL_JPEG 或 FrameHeader.TYPE_STILL_NV12
+     * @param quality JPEG质量，超出1-100时取边界值
+     * @param crop    {x, y, width, height}，null表示整帧
+     */
+    public void requestStill(final long timestamp, final int format, final int quality, final int[] crop,
+                             final StillCallback callback) {
+        final FrameRing ring = mFrameRing;
+        final long toleranceNs = 1000000000L / Math.max(1, mFrameRate.getUpper());
+        if (format != FrameHeader.TYPE_STILL_JPEG && format != FrameHeader.TYPE_STILL_NV12) {
+            Log.w(TAG, "requestStill: unknown format " + format);
+            callback.onStill(FrameRing.INVALID_TIMESTAMP, null);
+            return;
+        }
+        final int jpegQuality = Math.max(1, Math.min(100, quality));
+        mStillExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // 静态图线程中未捕获的异常会结束整个进程，失败时回复找不到
+                try {
+                    encodeStill();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                    callback.onStill(FrameRing.INVALID_TIMESTAMP, null);
+                }
+            }
+
+            private void encodeStill() {
+                if (ring == null) {
+                    callback.onStill(FrameRing.INVALID_TIMESTAMP, null);
+                    return;
+                }
+                int frameSize = ring.getWidth() * ring.getHeight() * 3 / 2;
+                int[] rect = crop != null ? crop.clone() : null;
+                if (format == FrameHeader.TYPE_STILL_JPEG) {
+                    if (mStillBuffer == null || mStillBuffer.length < frameSize) {
+                        mStillBuffer = new byte[frameSize];
+                    }
+                    long ts = ring.copyFrame(timestamp, toleranceNs, rect, mStillBuffer, FrameRing.LAYOUT_NV21);
+                    if (ts == FrameRing.INVALID_TIMESTAMP) {
+                        notFound();
+                        return;
+                    }
+                    int width = rect != null ? rect[2] : ring.getWidth();
+                    int height = rect != null ? rect[3] : ring.getHeight();
+                    mJpegStream.reset();
+                    YuvImage yuvImage = new YuvImage(mStillBuffer, ImageFormat.NV21, width, height, null);
+                    yuvImage.compressToJpeg(new Rect(0, 0, width, height), jpegQuality, mJpegStream);
+                    byte[] jpeg = mJpegStream.toByteArray();
+                    callback.onStill(ts, new EncodedFrame(format, jpeg, jpeg.length, 0, ts, 0, 0));
+                } else {
+                    // 前16字节是裁剪区域，裁剪后的大小在复制前未知，按整帧申请
+                    EncodedFrame still = mStillPool.acquire(16 + frameSize);
+                    long ts = ring.copyFrame(timestamp, toleranceNs, rect, still.data, 16, FrameRing.LAYOUT_NV12);
+                    if (ts == FrameRing.INVALID_TIMESTAMP) {
+                        still.release();
+                        notFound();
+                        return;
+                    }
+                    int width = rect != null ? rect[2] : ring.getWidth();
+                    int height = rect != null ? rect[3] : ring.getHeight();
+                    ByteBuffer.wrap(still.data)
+                            .putInt(rect != null ? rect[0] : 0)
+                            .putInt(rect != null ? rect[1] : 0)
+                            .putInt(width)
+                            .putInt(height);
+                    still.type = format;
+                    still.length = 16 + width * height * 3 / 2;
+                    still.captureTimeNs = ts;
+                    callback.onStill(ts, still);
+                }
+            }
+
+            private void notFound() {
+                Log.w(TAG, "requestStill: frame " + timestamp + " is not in the look-back ring");
+                callback.onStill(FrameRing.INVALID_TIMESTAMP, null);
+            }
+        });
+    }
+
+    public interface StillCallback {
+        /**
+         * @param timestamp 实际取到的帧的时间戳，找不到时为FrameRing.INVALID_TIMESTAMP且still为null
+         * @param still     type为format、captureTimeNs为timestamp的静态图，回调接管它的引用，用完后release()
+         */
+        void onStill(long timestamp, EncodedFrame still);
+    }
+
     /**
      * 有图像数据可用时回调
      */
@@ -330,10 +762,39 @@ public class Camera2Wrapper {
         public void onImageAvailable(ImageReader reader) {
             //Log.d(TAG, "onImageAvailable");
             Image readImage = reader.acquireNextImage();
-            // 将Image转换成byte数组
-            byte[] data = ImageUtil.getBytesFromImageAsType(readImage, 1);
+            if (readImage == null) {
+                return;
+            }
+            // 传感器时间戳，作为编码器的PTS并随帧发送给接收端
+            long timestamp = readImage.getTimestamp();
+            // 没有接收端（也没有在录制trace）或者被抽掉的帧不转换，只归还Image
+            if ((!mDemand && mTraceRecorder == null) || !mDecimator.accept(timestamp)) {
+                readImage.close();
+                mSkippedFrames++;
+                return;
+            }
+            // 将Image直接转换到回看缓冲的槽位中，不再每帧分配byte数组
+            FrameRing ring = mFrameRing;
+            long start = System.nanoTime();
+            byte[] data = ring.beginWrite();
+            boolean converted = ImageUtil.getBytesFromImageAsType(readImage, ImageUtil.YUV420SP, data);
+            ring.endWrite(converted ? timestamp : FrameRing.INVALID_TIMESTAMP);
+            mConvertNanos = System.nanoTime() - start;
             readImage.close();
-            mImageDataListener.OnImageDataListener(data);
+            TraceRecorder trace = mTraceRecorder;
+            if (converted && trace != null && trace.matches(ring.getWidth(), ring.getHeight())) {
+                try {
+                    trace.record(data, timestamp);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    closeTrace();
+                }
+            }
+            if (converted) {
+                mFrameWidth = ring.getWidth();
+                mFrameHeight = ring.getHeight();
+                mImageDataListener.OnImageDataListener(data, timestamp);
+            }
         }
     }
 
@@ -341,7 +802,23 @@ public class Camera2Wrapper {
         this.mImageDataListener = listener;
     }
 
+    /**
+     * ImageReader实际输出的宽度，即最近一次回调的NV12数据的宽度；setCameraConfig()会把请求的尺寸换成相机支持的尺寸，
+     * 可能与SetCameraParams()的参数不同。在OnImageDataListener中调用时与这一帧的数据一致
+     */
+    public int getFrameWidth() {
+        return mFrameWidth;
+    }
+
+    public int getFrameHeight() {
+        return mFrameHeight;
+    }
+
     public interface ImageDataListener{
-        void OnImageDataListener(byte[] reader);
+        /**
+         * @param reader    NV12数据，属于回看缓冲，回调返回后可能被覆盖，不能保存引用
+         * @param timestamp Image.getTimestamp()，单位纳秒
+         */
+        void OnImageDataListener(byte[] reader, long timestamp);
     }
 }
@@ -0,0 +1,169 @@
+package com.example.mycam;
+
+import java.util.Arrays;
+
+/**
+ * NTP式的时钟偏差和漂移估计：每个样本是一次请求/回复的四个时间戳
+ * t0（手机发送）、t1（接收端收到）、t2（接收端回复）、t3（手机收到），
+ * 偏差 = ((t1 - t0) + (t2 - t3)) / 2，真实偏差一定在 偏差 ± RTT/2 之内。
+ * 只用最近WINDOW个样本中RTT接近最小值或者在最小的四分之一中的样本（排队延迟小，不对称误差也小），
+ * 样本跨度足够时用最小二乘拟合出漂移，把手机时钟（与传感器时间戳相同的时钟）映射到接收端时钟。
+ * 样本在同步线程中加入，映射在编码线程中调用，估计结果通过volatile发布，不加锁。
+ */
+public class ClockEstimator {
+    // 每秒一个样本时约两分钟，足够估计出几ppm的漂移
+    private static final int WINDOW = 128;
+    // 拟合漂移需要的最短样本跨度
+    private static final long MIN_DRIFT_SPAN_NS = 10000000000L;
+    // RTT不超过 最小RTT + max(最小RTT/2, 1ms) 的样本参与估计，抖动大时放宽到RTT最小的四分之一
+    private static final long MIN_RTT_SLACK_NS = 1000000L;
+    // 拟合漂移需要的最少样本数
+    private static final int MIN_DRIFT_SAMPLES = 4;
+
+    private static class Estimate {
+        final long refLocalNs;
+        final long offsetNs;
+        final double drift;
+        final long errorNs;
+
+        Estimate(long refLocalNs, long offsetNs, double drift, long errorNs) {
+            this.refLocalNs = refLocalNs;
+            this.offsetNs = offsetNs;
+            this.drift = drift;
+            this.errorNs = errorNs;
+        }
+    }
+
+    private final long[] mLocal = new long[WINDOW];
+    private final long[] mOffset = new long[WINDOW];
+    private final long[] mRtt = new long[WINDOW];
+    private final long[] mSortedRtt = new long[WINDOW];
+    private int mCount = 0;
+    private volatile Estimate mEstimate;
+
+    /**
+     * 加入一个样本，t0和t3是手机时钟，t1和t2是接收端时钟，单位纳秒
+     *
+     * @return 样本是否有效
+     */
+    public synchronized boolean addSample(long t0, long t1, long t2, long t3) {
+        long rtt = (t3 - t0) - (t2 - t1);
+        if (rtt < 0 || t3 < t0) {
+            return false;
+        }
+        int slot = mCount % WINDOW;
+        mLocal[slot] = t0 + (t3 - t0) / 2;
+        mOffset[slot] = ((t1 - t0) + (t2 - t3)) / 2;
+        mRtt[slot] = rtt;
+        mCount++;
+        update();
+        return true;
+    }
+
+    private void update() {
+        int n = Math.min(mCount, WINDOW);
+        int best = 0;
+        for (int i = 1; i < n; i++) {
+            if (mRtt[i] < mRtt[best]) {
+                best = i;
+            }
+        }
+        long minRtt = mRtt[best];
+        System.arraycopy(mRtt, 0, mSortedRtt, 0, n);
+        Arrays.sort(mSortedRtt, 0, n);
+        long threshold = Math.max(minRtt + Math.max(minRtt / 2, MIN_RTT_SLACK_NS),
+                mSortedRtt[Math.min(n - 1, Math.max(MIN_DRIFT_SAMPLES - 1, n / 4))]);
+        // 以最小RTT的样本为参考点，拟合 offset = offsetNs + drift * (local - refLocalNs)
+        long ref = mLocal[best];
+        double sumX = 0;
+        double sumY = 0;
+        double sumXX = 0;
+        double sumXY = 0;
+        int used = 0;
+        long minLocal = Long.MAX_VALUE;
+        long maxLocal = Long.MIN_VALUE;
+        for (int i = 0; i < n; i++) {
+            if (mRtt[i] > threshold) {
+                continue;
+            }
+            double x = mLocal[i] - ref;
+            double y = mOffset[i] - mOffset[best];
+            sumX += x;
+            sumY += y;
+            sumXX += x * x;
+            sumXY += x * y;
+            used++;
+            minLocal = Math.min(minLocal, mLocal[i]);
+            maxLocal = Math.max(maxLocal, mLocal[i]);
+        }
+        long offset = mOffset[best];
+        double drift = 0;
+        double denominator = used * sumXX - sumX * sumX;
+        if (used >= MIN_DRIFT_SAMPLES && maxLocal - minLocal >= MIN_DRIFT_SPAN_NS && denominator > 0) {
+            drift = (used * sumXY - sumX * sumY) / denominator;
+            offset += (long) ((sumY - drift * sumX) / used);
+        }
+        // 误差上限：最好的样本的RTT/2，加上参与拟合的样本偏离拟合线的最大值
+        long residual = 0;
+        for (int i = 0; i < n; i++) {
+            if (mRtt[i] <= threshold) {
+                long fitted = offset + (long) (drift * (mLocal[i] - ref));
+                residual = Math.max(residual, Math.abs(mOffset[i] - fitted));
+            }
+        }
+        mEstimate = new Estimate(ref, offset, drift, minRtt / 2 + residual);
+    }
+
+    public boolean isSynchronized() {
+        return mEstimate != null;
+    }
+
+    /**
+     * @param localNs 手机时钟的时间，例如传感器时间戳
+     * @return 接收端时钟的时间，还没有样本时返回0
+     */
+    public long toServerTime(long localNs) {
+        Estimate estimate = mEstimate;
+        if (estimate == null) {
+            return 0;
+        }
+        return localNs + estimate.offsetNs + (long) (estimate.drift * (localNs - estimate.refLocalNs));
+    }
+
+    /**
+     * @return 当前映射的误差上限（纳秒），还没有样本时返回-1
+     */
+    public long getErrorNs() {
+        Estimate estimate = mEstimate;
+        return estimate != null ? estimate.errorNs : -1;
+    }
+
+    /**
+     * @return 手机时钟相对接收端时钟的漂移，单位ppm
+     */
+    public double getDriftPpm() {
+        Estimate estimate = mEstimate;
+        return estimate != null ? estimate.drift * 1e6 : 0;
+    }
+
+    /**
+     * 把帧的采集时间映射到接收端时钟，写到frame.serverTimeNs和frame.clockErrorUs
+     */
+    public void stamp(EncodedFrame frame) {
+        Estimate estimate = mEstimate;
+        if (estimate == null) {
+            return;
+        }
+        long localNs = frame.captureTimeNs;
+        frame.serverTimeNs = localNs + estimate.offsetNs + (long) (estimate.drift * (localNs - estimate.refLocalNs));
+        frame.clockErrorUs = (int) Math.min(Integer.MAX_VALUE, estimate.errorNs / 1000);
+    }
+
+    /**
+     * 换了接收端时清空样本
+     */
+    public synchronized void reset() {
+        mCount = 0;
+        mEstimate = null;
+    }
+}
@@ -0,0 +1,146 @@
+package com.example.mycam;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+/**
+ * 通过一个单独的UDP端口与接收端同步时钟：周期性地发送请求，接收端立即回复自己收到和回复的时间，
+ * 样本交给{@link ClockEstimator}。不走视频的TCP连接，请求不会排在视频帧后面，RTT和不对称误差都小。
+ * 包格式（大端序，PACKET_SIZE字节）：
+ * <pre>
+ *  0  magic  int   'MCCK'
+ *  4  type   byte  TYPE_REQUEST/TYPE_RESPONSE，3字节保留
+ *  8  t0     long  手机发送时间
+ * 16  t1     long  接收端收到时间，请求中为0
+ * 24  t2     long  接收端回复时间，请求中为0
+ * </pre>
+ * 传感器时间戳的时钟源因相机而异（elapsedRealtimeNanos或nanoTime），每次交换同时读取两个时钟，
+ * 分别交给两个估计器，切换相机后按新相机的时钟源选择估计器即可，不需要重新同步。
+ */
+public class ClockSync {
+    private static final String TAG = "ClockSync";
+    public static final int MAGIC = 0x4D43434B;
+    public static final int PACKET_SIZE = 32;
+    public static final int TYPE_REQUEST = 0;
+    public static final int TYPE_RESPONSE = 1;
+    // 开始时快速收集样本，之后每秒一次
+    private static final int FAST_SAMPLES = 16;
+    private static final long FAST_INTERVAL_MS = 100;
+    private static final long INTERVAL_MS = 1000;
+    private static final int TIMEOUT_MS = 500;
+
+    private final String mHost;
+    private final int mPort;
+    private final ClockEstimator mRealtimeEstimator;
+    private final ClockEstimator mMonotonicEstimator;
+    private volatile boolean mRunning = false;
+    private DatagramSocket mSocket;
+    private Thread mThread;
+
+    /**
+     * @param realtime  映射elapsedRealtimeNanos()，用于SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME的相机
+     * @param monotonic 映射nanoTime()，用于其他相机
+     */
+    public ClockSync(String host, int port, ClockEstimator realtime, ClockEstimator monotonic) {
+        this.mHost = host;
+        this.mPort = port;
+        this.mRealtimeEstimator = realtime;
+        this.mMonotonicEstimator = monotonic;
+    }
+
+    public synchronized void start() {
+        if (mRunning) {
+            return;
+        }
+        mRunning = true;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runSync();
+            }
+        }, "ClockSync");
+        mThread.start();
+    }
+
+    public synchronized void stop() {
+        mRunning = false;
+        if (mSocket != null) {
+            mSocket.close();
+        }
+        if (mThread != null) {
+            mThread.interrupt();
+            mThread = null;
+        }
+    }
+
+    private void runSync() {
+        byte[] request = new byte[PACKET_SIZE];
+        byte[] response = new byte[PACKET_SIZE];
+        ByteBuffer requestBuffer = ByteBuffer.wrap(request);
+        ByteBuffer responseBuffer = ByteBuffer.wrap(response);
+        DatagramPacket responsePacket = new DatagramPacket(response, response.length);
+        int samples = 0;
+        try {
+            DatagramSocket socket = new DatagramSocket();
+            synchronized (this) {
+                mSocket = socket;
+            }
+            socket.connect(new InetSocketAddress(mHost, mPort));
+            socket.setSoTimeout(TIMEOUT_MS);
+            DatagramPacket requestPacket = new DatagramPacket(request, request.length);
+            while (mRunning) {
+                // 两个时钟在请求前后按相反的顺序读取，读取的间隔对两边的影响对称
+                long t0Realtime = SystemClock.elapsedRealtimeNanos();
+                long t0 = System.nanoTime();
+                requestBuffer.clear();
+                requestBuffer.putInt(MAGIC).put((byte) TYPE_REQUEST).put(new byte[3]).putLong(t0).putLong(0).putLong(0);
+                socket.send(requestPacket);
+                try {
+                    // 丢掉之前超时的请求迟到的回复
+                    do {
+                        // receive()把长度改成了上一个包的长度，不恢复的话一个短包之后就收不全回复
+                        responsePacket.setLength(response.length);
+                        socket.receive(responsePacket);
+                        responseBuffer.clear();
+                    } while (responsePacket.getLength() < PACKET_SIZE || responseBuffer.getInt() != MAGIC
+                            || responseBuffer.get() != TYPE_RESPONSE || responseBuffer.getLong(8) != t0);
+                    long t3 = System.nanoTime();
+                    long t3Realtime = SystemClock.elapsedRealtimeNanos();
+                    long t1 = responseBuffer.getLong(16);
+                    long t2 = responseBuffer.getLong(24);
+                    boolean added;
+                    synchronized (this) {
+                        // stop()之后不再加入样本，调用者可以在stop()返回后安全地reset()估计器
+                        if (!mRunning) {
+                            break;
+                        }
+                        added = mMonotonicEstimator.addSample(t0, t1, t2, t3);
+                        if (added) {
+                            mRealtimeEstimator.addSample(t0Realtime, t1, t2, t3Realtime);
+                        }
+                    }
+                    if (added && ++samples % 30 == 1) {
+                        Log.i(TAG, "rtt " + (t3 - t0) / 1000 + "us, error " + mMonotonicEstimator.getErrorNs() / 1000
+                                + "us, drift " + mMonotonicEstimator.getDriftPpm() + "ppm");
+                    }
+                } catch (SocketTimeoutException e) {
+                    Log.d(TAG, "no reply from " + mHost + ":" + mPort);
+                }
+                Thread.sleep(samples < FAST_SAMPLES ? FAST_INTERVAL_MS : INTERVAL_MS);
+            }
+        } catch (IOException e) {
+            if (mRunning) {
+                e.printStackTrace();
+            }
+        } catch (InterruptedException e) {
+            // stop()
+        }
+    }
+}
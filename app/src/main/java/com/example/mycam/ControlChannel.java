@@ -0,0 +1,70 @@
+package com.example.mycam;
+
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 读取接收端通过同一个TCP连接发回来的命令（只在协商出新协议时使用）。
+ * 每条命令以1字节命令号开头：
+ * <pre>
+ * CMD_STILL: requestId(int) timestampNs(long) format(byte) quality(byte) x(int) y(int) width(int) height(int)
+ *            format为FrameHeader.TYPE_STILL_JPEG或TYPE_STILL_NV12，width或height为0表示整帧；
+ *            格式和质量由{@link Camera2Wrapper#requestStill}检查，不认识的格式回复空的静态图
+ * CMD_KEY_FRAME: 无参数，请求尽快输出一个IDR帧
+ * </pre>
+ */
+public class ControlChannel implements Runnable {
+    private static final String TAG = "ControlChannel";
+    public static final int CMD_STILL = 1;
+    public static final int CMD_KEY_FRAME = 2;
+
+    private final DataInputStream mInput;
+    private final Listener mListener;
+
+    public ControlChannel(InputStream input, Listener listener) {
+        this.mInput = new DataInputStream(input);
+        this.mListener = listener;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                int command = mInput.readUnsignedByte();
+                switch (command) {
+                    case CMD_STILL: {
+                        int requestId = mInput.readInt();
+                        long timestamp = mInput.readLong();
+                        int format = mInput.readUnsignedByte();
+                        int quality = mInput.readUnsignedByte();
+                        int[] crop = new int[4];
+                        for (int i = 0; i < crop.length; i++) {
+                            crop[i] = mInput.readInt();
+                        }
+                        mListener.onStillRequest(requestId, timestamp, format, quality,
+                                crop[2] > 0 && crop[3] > 0 ? crop : null);
+                        break;
+                    }
+                    case CMD_KEY_FRAME:
+                        mListener.onKeyFrameRequest();
+                        break;
+                    default:
+                        // 命令长度未知，无法继续解析
+                        Log.e(TAG, "unknown command " + command);
+                        return;
+                }
+            }
+        } catch (IOException e) {
+            Log.i(TAG, "control channel closed: " + e.getMessage());
+        }
+    }
+
+    public interface Listener {
+        void onStillRequest(int requestId, long timestamp, int format, int quality, int[] crop);
+
+        void onKeyFrameRequest();
+    }
+}
@@ -0,0 +1,123 @@
+package com.example.mycam;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 编码器输出的一帧H264数据（或者一张静态图）以及它的元数据。
+ * 视频帧来自{@link FramePool}并带引用计数：每个消费者（socket、录像、分发）持有时retain()，
+ * 用完后release()，最后一个release()把缓冲还给缓冲池。
+ * 关键帧的SPS/PPS不复制到data中，而是通过prefix引用编码器缓存的那一份，发送时依次写出。
+ */
+public class EncodedFrame {
+    public int type;
+    public byte[] data;
+    /**
+     * 有效数据在data中的起始位置
+     */
+    public int offset;
+    public int length;
+    /**
+     * 需要写在data前面的数据（关键帧的SPS/PPS），没有时为null，不能修改
+     */
+    public byte[] prefix;
+    /**
+     * 所属视频流，单相机时为0
+     */
+    public int streamId;
+    public int sequence;
+    public long captureTimeNs;
+    public long ptsUs;
+    public int flags;
+    /**
+     * 映射到接收端时钟的采集时间和误差上限，还没有时钟同步时为0
+     */
+    public long serverTimeNs;
+    public int clockErrorUs;
+
+    private final FramePool mPool;
+    private final AtomicInteger mRefCount = new AtomicInteger(1);
+    private ByteBuffer mByteBuffer;
+
+    EncodedFrame(FramePool pool, int capacity) {
+        this.mPool = pool;
+        this.data = new byte[capacity];
+    }
+
+    /**
+     * 不属于缓冲池的帧，release()不做任何事
+     */
+    public EncodedFrame(int type, byte[] data, int length, int sequence, long captureTimeNs, long ptsUs, int flags) {
+        this.mPool = null;
+        this.type = type;
+        this.data = data;
+        this.length = length;
+        this.sequence = sequence;
+        this.captureTimeNs = captureTimeNs;
+        this.ptsUs = ptsUs;
+        this.flags = flags;
+    }
+
+    public boolean isKeyFrame() {
+        return (flags & FrameHeader.FLAG_KEY_FRAME) != 0;
+    }
+
+    /**
+     * 帧内刷新时可以开始解码的P帧，见{@link FrameHeader#FLAG_RECOVERY_POINT}
+     */
+    public boolean isRecoveryPoint() {
+        return (flags & FrameHeader.FLAG_RECOVERY_POINT) != 0;
+    }
+
+    /**
+     * prefix和data的总长度，即发送时的payload长度
+     */
+    public int getPayloadLength() {
+        return (prefix != null ? prefix.length : 0) + length;
+    }
+
+    /**
+     * 包装整个data数组的ByteBuffer，每个缓冲只创建一次；position/limit由使用者自己设置
+     */
+    public ByteBuffer byteBuffer() {
+        if (mByteBuffer == null || mByteBuffer.array() != data) {
+            mByteBuffer = ByteBuffer.wrap(data);
+        }
+        mByteBuffer.clear();
+        return mByteBuffer;
+    }
+
+    public EncodedFrame retain() {
+        if (mRefCount.getAndIncrement() <= 0) {
+            throw new IllegalStateException("retain a released frame");
+        }
+        return this;
+    }
+
+    public void release() {
+        int refCount = mRefCount.decrementAndGet();
+        if (refCount == 0 && mPool != null) {
+            mPool.recycle(this);
+        } else if (refCount < 0) {
+            throw new IllegalStateException("frame released too many times");
+        }
+    }
+
+    void reset(int capacity) {
+        if (data.length < capacity) {
+            data = new byte[capacity + capacity / 4];
+        }
+        type = FrameHeader.TYPE_VIDEO;
+        offset = 0;
+        length = 0;
+        prefix = null;
+        streamId = 0;
+        sequence = 0;
+        captureTimeNs = 0;
+        ptsUs = 0;
+        flags = 0;
+        serverTimeNs = 0;
+        clockErrorUs = 0;
+        mRefCount.set(1);
+    }
+}
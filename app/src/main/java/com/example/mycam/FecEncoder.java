@@ -0,0 +1,190 @@
+package com.example.mycam;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * UDP传输的前向纠错（XOR奇偶校验）：每groupSize个媒体包之后发送一个奇偶校验包，
+ * 接收端（receiver模块的FecDecoder）在一组中丢失任意一个包时都可以恢复出来。
+ * 分组不跨帧：一帧结束时（{@link #endFrame}）不满的一组立即发送校验包，校验包的groupSize是实际的包数，
+ * 帧尾丢的包不用等下一帧的包凑满一组才能恢复。
+ * groupSize根据接收端反馈的丢包率调整（{@link #groupSizeForLoss}），丢包越多分组越小、冗余越大。
+ * 包和校验缓冲在构造时分配，发送时不按包分配内存。
+ * <p>
+ * 包头（大端序，HEADER_SIZE字节）：
+ * <pre>
+ *  0  type        byte  TYPE_*
+ *  1  groupSize   byte  这一组的媒体包个数，提前结束的组中媒体包是计划的个数，校验包是实际的个数
+ *  2  index       byte  在组中的位置，校验包为groupSize
+ *  3  flags       byte  FLAG_*，校验包为各媒体包flags的异或
+ *  4  sequence    int   媒体包序号，校验包为这一组第一个包的序号
+ *  8  groupBase   int   这一组第一个包的序号
+ * 12  length      short 负载长度，校验包为各媒体包长度的异或
+ * 14  reserved    short
+ * </pre>
+ * 接收端发回的反馈包（TYPE_FEEDBACK，FEEDBACK_SIZE字节）在包头后面是累计的 期望包数、收到包数、恢复包数、丢失包数（各4字节）。
+ */
+public class FecEncoder {
+    public static final int HEADER_SIZE = 16;
+    public static final int MAX_PACKET_SIZE = 1400;
+    public static final int MAX_PAYLOAD = MAX_PACKET_SIZE - HEADER_SIZE;
+    public static final int MAX_GROUP_SIZE = 20;
+
+    public static final int TYPE_MEDIA = 0;
+    public static final int TYPE_PARITY = 1;
+    public static final int TYPE_FEEDBACK = 2;
+    public static final int FEEDBACK_SIZE = HEADER_SIZE + 16;
+    /**
+     * 一帧数据（FrameHeader开头）的第一个包
+     */
+    public static final int FLAG_FRAME_START = 0x01;
+
+    public interface PacketSink {
+        /**
+         * packet在回调返回后会被复用
+         */
+        void onPacket(byte[] packet, int length) throws IOException;
+    }
+
+    private final PacketSink mSink;
+    private final byte[] mPacket = new byte[MAX_PACKET_SIZE];
+    private final byte[] mParity = new byte[MAX_PACKET_SIZE];
+    private volatile int mNextGroupSize;
+    private int mGroupSize;
+    private int mGroupBase;
+    private int mIndex = 0;
+    private int mSequence = 0;
+    private int mParityLength = 0;
+    private int mLengthXor = 0;
+    private int mFlagsXor = 0;
+    private long mMediaPackets = 0;
+    private long mParityPackets = 0;
+
+    /**
+     * @param groupSize 初始分组大小，0表示不发送校验包
+     */
+    public FecEncoder(PacketSink sink, int groupSize) {
+        this.mSink = sink;
+        setGroupSize(groupSize);
+    }
+
+    /**
+     * 修改分组大小，从下一组开始生效，可以在任意线程调用
+     */
+    public void setGroupSize(int groupSize) {
+        mNextGroupSize = Math.max(0, Math.min(groupSize, MAX_GROUP_SIZE));
+    }
+
+    public int getGroupSize() {
+        return mNextGroupSize;
+    }
+
+    /**
+     * 根据丢包率选择分组大小：冗余(1/groupSize)大约是丢包率的3到5倍，一组内同时丢两个包的概率很小
+     */
+    public static int groupSizeForLoss(float lossRate) {
+        if (lossRate < 0.01f) {
+            return 20;
+        } else if (lossRate < 0.02f) {
+            return 10;
+        } else if (lossRate < 0.05f) {
+            return 6;
+        } else if (lossRate < 0.10f) {
+            return 4;
+        }
+        return 2;
+    }
+
+    /**
+     * 发送一个媒体包，凑满一组后接着发送校验包
+     *
+     * @param length 不超过MAX_PAYLOAD
+     */
+    public void send(byte[] payload, int offset, int length, int flags) throws IOException {
+        if (mIndex == 0) {
+            mGroupSize = mNextGroupSize;
+            mGroupBase = mSequence;
+            Arrays.fill(mParity, HEADER_SIZE, HEADER_SIZE + mParityLength, (byte) 0);
+            mParityLength = 0;
+            mLengthXor = 0;
+            mFlagsXor = 0;
+        }
+        int groupSize = Math.max(1, mGroupSize);
+        writeHeader(mPacket, TYPE_MEDIA, groupSize, mIndex, flags, mSequence, mGroupBase, length);
+        System.arraycopy(payload, offset, mPacket, HEADER_SIZE, length);
+        mSink.onPacket(mPacket, HEADER_SIZE + length);
+        mMediaPackets++;
+        mSequence++;
+        mIndex++;
+        if (mGroupSize == 0) {
+            mIndex = 0;
+            return;
+        }
+        for (int i = 0; i < length; i++) {
+            mParity[HEADER_SIZE + i] ^= payload[offset + i];
+        }
+        mParityLength = Math.max(mParityLength, length);
+        mLengthXor ^= length;
+        mFlagsXor ^= flags;
+        if (mIndex == mGroupSize) {
+            sendParity();
+        }
+    }
+
+    /**
+     * 一帧的包发送完了，提前结束当前的组：用实际的包数发送校验包
+     */
+    public void endFrame() throws IOException {
+        if (mIndex > 0 && mGroupSize > 0) {
+            sendParity();
+        }
+    }
+
+    private void sendParity() throws IOException {
+        writeHeader(mParity, TYPE_PARITY, mIndex, mIndex, mFlagsXor, mGroupBase, mGroupBase, mLengthXor);
+        mSink.onPacket(mParity, HEADER_SIZE + mParityLength);
+        mParityPackets++;
+        mIndex = 0;
+    }
+
+    static void writeHeader(byte[] packet, int type, int groupSize, int index, int flags, int sequence,
+                            int groupBase, int length) {
+        packet[0] = (byte) type;
+        packet[1] = (byte) groupSize;
+        packet[2] = (byte) index;
+        packet[3] = (byte) flags;
+        putInt(packet, 4, sequence);
+        putInt(packet, 8, groupBase);
+        packet[12] = (byte) (length >> 8);
+        packet[13] = (byte) length;
+        packet[14] = 0;
+        packet[15] = 0;
+    }
+
+    static void putInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >> 24);
+        data[offset + 1] = (byte) (value >> 16);
+        data[offset + 2] = (byte) (value >> 8);
+        data[offset + 3] = (byte) value;
+    }
+
+    static int getInt(byte[] data, int offset) {
+        return (data[offset] & 0xFF) << 24 | (data[offset + 1] & 0xFF) << 16
+                | (data[offset + 2] & 0xFF) << 8 | (data[offset + 3] & 0xFF);
+    }
+
+    public long getMediaPackets() {
+        return mMediaPackets;
+    }
+
+    public long getParityPackets() {
+        return mParityPackets;
+    }
+
+    /**
+     * @return 校验包占媒体包的比例
+     */
+    public float getOverhead() {
+        return mMediaPackets > 0 ? (float) mParityPackets / mMediaPackets : 0;
+    }
+}
@@ -0,0 +1,416 @@
+package com.example.mycam;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 把{@link AvcEncoder}输出的Annex-B帧封装为fragmented MP4：
+ * 一个init segment（ftyp + moov，SPS/PPS转换为avcC），之后每一帧或每一个GOP一个 moof + mdat。
+ * 所有的中间缓冲都会复用，封装时不按帧分配内存；输出写入调用者提供的ByteBuffer（一般来自{@link FramePool}）。
+ * 时间单位为微秒，与帧的PTS一致；不支持B帧（没有写composition time offset），播放期间编码器的GopConfig.maxBFrames必须为0，
+ * 万一收到PTS倒退的帧（B帧）就丢弃它，从下一个IDR重新开始。
+ */
+public class Fmp4Muxer {
+    public static final int MODE_FRAME = 0;
+    public static final int MODE_GOP = 1;
+
+    private static final int TIMESCALE = 1000000;
+    private static final int TRACK_ID = 1;
+    private static final long DEFAULT_DURATION_US = 1000000 / 30;
+    private static final int SAMPLE_FLAGS_KEY = 0x02000000;
+    private static final int SAMPLE_FLAGS_NON_KEY = 0x01010000;
+    private static final int MOOF_FIXED_SIZE = 8 + 16 + 8 + 16 + 20 + 20;
+    private static final int TRUN_ENTRY_SIZE = 12;
+    private static final byte[] MDAT = fourcc("mdat");
+
+    private final int mMode;
+    private byte[] mConfig;
+    private byte[] mSps;
+    private byte[] mPps;
+    private int mWidth;
+    private int mHeight;
+
+    // 当前fragment中还没有输出的样本，数据已经转换为4字节长度前缀的AVCC格式
+    private ByteBuffer mStaging = ByteBuffer.allocate(256 * 1024);
+    private long[] mSamplePts = new long[64];
+    private int[] mSampleSizes = new int[64];
+    private int[] mSampleFlags = new int[64];
+    private int mSampleCount = 0;
+
+    private int mFragmentSequence = 1;
+    private long mBasePtsUs = -1;
+    private long mLastPtsUs = -1;
+    // 收到了B帧，等下一个IDR
+    private boolean mWaitKeyFrame = false;
+    private long mLastDurationUs = DEFAULT_DURATION_US;
+    // 最近写出的fragment是否以同步样本（IDR）开头，新的播放端只能从这样的fragment开始
+    private boolean mLastFragmentSync = false;
+
+    private final H264Util.NalVisitor mConfigVisitor = new H264Util.NalVisitor() {
+        @Override
+        public void onNal(byte[] data, int offset, int length, int type) {
+            if (type == H264Util.NAL_SPS) {
+                mSps = Arrays.copyOfRange(data, offset, offset + length);
+            } else if (type == H264Util.NAL_PPS) {
+                mPps = Arrays.copyOfRange(data, offset, offset + length);
+            }
+        }
+    };
+
+    private final H264Util.NalVisitor mSampleVisitor = new H264Util.NalVisitor() {
+        @Override
+        public void onNal(byte[] data, int offset, int length, int type) {
+            // 参数集已经在avcC中
+            if (type == H264Util.NAL_SPS || type == H264Util.NAL_PPS || type == H264Util.NAL_AUD) {
+                return;
+            }
+            mStaging.putInt(length);
+            mStaging.put(data, offset, length);
+        }
+    };
+
+    public Fmp4Muxer(int mode) {
+        this.mMode = mode;
+    }
+
+    /**
+     * 用关键帧的prefix（Annex-B格式的SPS/PPS）配置muxer
+     *
+     * @return SPS/PPS发生变化，需要重新发送init segment
+     */
+    public boolean configure(byte[] config) {
+        if (config == null || isSameConfig(config)) {
+            return false;
+        }
+        mSps = null;
+        mPps = null;
+        H264Util.forEachNal(config, 0, config.length, mConfigVisitor);
+        if (mSps == null || mPps == null) {
+            return false;
+        }
+        mConfig = config;
+        int[] size = H264Util.parseSpsSize(mSps, 0, mSps.length);
+        mWidth = size[0];
+        mHeight = size[1];
+        return true;
+    }
+
+    public boolean isSameConfig(byte[] config) {
+        return config == mConfig || Arrays.equals(config, mConfig);
+    }
+
+    public boolean isConfigured() {
+        return mConfig != null;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @return 给MediaSource.isTypeSupported()/addSourceBuffer()用的codecs参数，例如avc1.42e01f
+     */
+    public String getCodecString() {
+        if (mSps == null) {
+            return "avc1.42e01f";
+        }
+        return String.format("avc1.%02x%02x%02x", mSps[1] & 0xFF, mSps[2] & 0xFF, mSps[3] & 0xFF);
+    }
+
+    public int getInitSegmentSize() {
+        return 768 + mSps.length + mPps.length;
+    }
+
+    public void writeInitSegment(ByteBuffer out) {
+        int ftyp = beginBox(out, "ftyp");
+        out.put(fourcc("isom"));
+        out.putInt(0x200);
+        out.put(fourcc("isom"));
+        out.put(fourcc("iso5"));
+        out.put(fourcc("avc1"));
+        out.put(fourcc("mp41"));
+        endBox(out, ftyp);
+
+        int moov = beginBox(out, "moov");
+        int mvhd = beginFullBox(out, "mvhd", 0, 0);
+        out.putInt(0); // creation_time
+        out.putInt(0); // modification_time
+        out.putInt(TIMESCALE);
+        out.putInt(0); // duration
+        out.putInt(0x00010000); // rate 1.0
+        out.putShort((short) 0x0100); // volume 1.0
+        out.put(new byte[10]);
+        writeMatrix(out);
+        out.put(new byte[24]); // pre_defined
+        out.putInt(TRACK_ID + 1); // next_track_ID
+        endBox(out, mvhd);
+
+        int trak = beginBox(out, "trak");
+        int tkhd = beginFullBox(out, "tkhd", 0, 3);
+        out.putInt(0);
+        out.putInt(0);
+        out.putInt(TRACK_ID);
+        out.putInt(0);
+        out.putInt(0); // duration
+        out.put(new byte[8]);
+        out.putShort((short) 0); // layer
+        out.putShort((short) 0); // alternate_group
+        out.putShort((short) 0); // volume
+        out.putShort((short) 0);
+        writeMatrix(out);
+        out.putInt(mWidth << 16);
+        out.putInt(mHeight << 16);
+        endBox(out, tkhd);
+
+        int mdia = beginBox(out, "mdia");
+        int mdhd = beginFullBox(out, "mdhd", 0, 0);
+        out.putInt(0);
+        out.putInt(0);
+        out.putInt(TIMESCALE);
+        out.putInt(0);
+        out.putShort((short) 0x55C4); // language "und"
+        out.putShort((short) 0);
+        endBox(out, mdhd);
+        int hdlr = beginFullBox(out, "hdlr", 0, 0);
+        out.putInt(0);
+        out.put(fourcc("vide"));
+        out.put(new byte[12]);
+        out.put("VideoHandler".getBytes());
+        out.put((byte) 0);
+        endBox(out, hdlr);
+
+        int minf = beginBox(out, "minf");
+        int vmhd = beginFullBox(out, "vmhd", 0, 1);
+        out.put(new byte[8]);
+        endBox(out, vmhd);
+        int dinf = beginBox(out, "dinf");
+        int dref = beginFullBox(out, "dref", 0, 0);
+        out.putInt(1);
+        int url = beginFullBox(out, "url ", 0, 1);
+        endBox(out, url);
+        endBox(out, dref);
+        endBox(out, dinf);
+
+        int stbl = beginBox(out, "stbl");
+        int stsd = beginFullBox(out, "stsd", 0, 0);
+        out.putInt(1);
+        int avc1 = beginBox(out, "avc1");
+        out.put(new byte[6]);
+        out.putShort((short) 1); // data_reference_index
+        out.put(new byte[16]);
+        out.putShort((short) mWidth);
+        out.putShort((short) mHeight);
+        out.putInt(0x00480000); // 72 dpi
+        out.putInt(0x00480000);
+        out.putInt(0);
+        out.putShort((short) 1); // frame_count
+        out.put(new byte[32]); // compressorname
+        out.putShort((short) 0x0018); // depth
+        out.putShort((short) -1);
+        int avcC = beginBox(out, "avcC");
+        out.put((byte) 1);
+        out.put(mSps[1]); // profile
+        out.put(mSps[2]); // compatibility
+        out.put(mSps[3]); // level
+        out.put((byte) 0xFF); // 4字节长度前缀
+        out.put((byte) 0xE1); // 1个SPS
+        out.putShort((short) mSps.length);
+        out.put(mSps);
+        out.put((byte) 1); // 1个PPS
+        out.putShort((short) mPps.length);
+        out.put(mPps);
+        endBox(out, avcC);
+        endBox(out, avc1);
+        endBox(out, stsd);
+        for (String empty : new String[]{"stts", "stsc", "stco"}) {
+            int box = beginFullBox(out, empty, 0, 0);
+            out.putInt(0);
+            endBox(out, box);
+        }
+        int stsz = beginFullBox(out, "stsz", 0, 0);
+        out.putInt(0);
+        out.putInt(0);
+        endBox(out, stsz);
+        endBox(out, stbl);
+        endBox(out, minf);
+        endBox(out, mdia);
+        endBox(out, trak);
+
+        int mvex = beginBox(out, "mvex");
+        int trex = beginFullBox(out, "trex", 0, 0);
+        out.putInt(TRACK_ID);
+        out.putInt(1); // default_sample_description_index
+        out.putInt(0);
+        out.putInt(0);
+        out.putInt(0);
+        endBox(out, trex);
+        endBox(out, mvex);
+        endBox(out, moov);
+    }
+
+    /**
+     * @param frameLength 下一帧的长度，flush()时传0
+     * @return 加入这一帧后，addFrame()/flush()最多会写出的字节数
+     */
+    public int getMaxFragmentSize(int frameLength) {
+        return MOOF_FIXED_SIZE + (mSampleCount + 1) * TRUN_ENTRY_SIZE + 8 + mStaging.position()
+                + frameLength + frameLength / 3 + 64;
+    }
+
+    /**
+     * @return 最近一次addFrame()/flush()写出的fragment是否以IDR开头，可以作为新播放端的起点
+     */
+    public boolean isLastFragmentSync() {
+        return mLastFragmentSync;
+    }
+
+    /**
+     * 把还没有输出的样本写成一个fragment，例如MODE_GOP下SPS/PPS变化之前
+     *
+     * @return 写入out的字节数，0表示没有样本
+     */
+    public int flush(ByteBuffer out) {
+        return mSampleCount > 0 ? writeFragment(out) : 0;
+    }
+
+    /**
+     * 加入一帧。MODE_FRAME时每一帧都写出一个fragment；MODE_GOP时在下一个关键帧到来时写出上一个GOP。
+     * 在第一次configure()成功之前和第一个关键帧之前的帧会被丢弃。
+     * intra refresh的恢复点只是带SPS/PPS的P帧，不是同步样本：MODE_GOP在恢复点处分段以限制fragment的大小，
+     * 但播放只能从IDR开始。
+     *
+     * @param out 至少有getMaxFragmentSize(frame.length)字节的剩余空间
+     * @return 写入out的字节数，0表示这次没有输出
+     */
+    public int addFrame(EncodedFrame frame, ByteBuffer out) {
+        if (!isConfigured() || (mSampleCount == 0 && mLastPtsUs < 0 && !frame.isKeyFrame())) {
+            return 0;
+        }
+        if (mLastPtsUs >= 0 && frame.ptsUs <= mLastPtsUs) {
+            // 切换到不带B帧的编码器之前缓存的帧
+            mWaitKeyFrame = true;
+        }
+        if (mWaitKeyFrame) {
+            if (!frame.isKeyFrame() || frame.ptsUs <= mLastPtsUs) {
+                return 0;
+            }
+            mWaitKeyFrame = false;
+        }
+        int written = 0;
+        if (mMode == MODE_GOP && (frame.isKeyFrame() || frame.isRecoveryPoint()) && mSampleCount > 0) {
+            written = writeFragment(out);
+        }
+        if (mBasePtsUs < 0) {
+            mBasePtsUs = frame.ptsUs;
+        }
+        if (mLastPtsUs >= 0 && frame.ptsUs > mLastPtsUs) {
+            mLastDurationUs = frame.ptsUs - mLastPtsUs;
+        }
+        mLastPtsUs = frame.ptsUs;
+        stageSample(frame);
+        if (mMode == MODE_FRAME) {
+            written += writeFragment(out);
+        }
+        return written;
+    }
+
+    private void stageSample(EncodedFrame frame) {
+        if (mSampleCount == mSamplePts.length) {
+            mSamplePts = Arrays.copyOf(mSamplePts, mSampleCount * 2);
+            mSampleSizes = Arrays.copyOf(mSampleSizes, mSampleCount * 2);
+            mSampleFlags = Arrays.copyOf(mSampleFlags, mSampleCount * 2);
+        }
+        // 每个起始码(至少3字节)换成4字节长度，最多多出 length / 3 字节
+        int needed = frame.length + frame.length / 3 + 4;
+        if (mStaging.remaining() < needed) {
+            ByteBuffer bigger = ByteBuffer.allocate((mStaging.position() + needed) * 2);
+            mStaging.flip();
+            bigger.put(mStaging);
+            mStaging = bigger;
+        }
+        int start = mStaging.position();
+        H264Util.forEachNal(frame.data, frame.offset, frame.offset + frame.length, mSampleVisitor);
+        mSamplePts[mSampleCount] = frame.ptsUs;
+        mSampleSizes[mSampleCount] = mStaging.position() - start;
+        mSampleFlags[mSampleCount] = frame.isKeyFrame() ? SAMPLE_FLAGS_KEY : SAMPLE_FLAGS_NON_KEY;
+        mSampleCount++;
+    }
+
+    private int writeFragment(ByteBuffer out) {
+        int begin = out.position();
+        int moof = beginBox(out, "moof");
+        int mfhd = beginFullBox(out, "mfhd", 0, 0);
+        out.putInt(mFragmentSequence++);
+        endBox(out, mfhd);
+        int traf = beginBox(out, "traf");
+        int tfhd = beginFullBox(out, "tfhd", 0, 0x020000); // default-base-is-moof
+        out.putInt(TRACK_ID);
+        endBox(out, tfhd);
+        int tfdt = beginFullBox(out, "tfdt", 1, 0);
+        out.putLong(mSamplePts[0] - mBasePtsUs);
+        endBox(out, tfdt);
+        // data-offset, sample-duration, sample-size, sample-flags
+        int trun = beginFullBox(out, "trun", 0, 0x000701);
+        out.putInt(mSampleCount);
+        int dataOffsetPosition = out.position();
+        out.putInt(0);
+        for (int i = 0; i < mSampleCount; i++) {
+            long duration = i + 1 < mSampleCount ? mSamplePts[i + 1] - mSamplePts[i] : mLastDurationUs;
+            out.putInt((int) duration);
+            out.putInt(mSampleSizes[i]);
+            out.putInt(mSampleFlags[i]);
+        }
+        endBox(out, trun);
+        endBox(out, traf);
+        endBox(out, moof);
+        out.putInt(dataOffsetPosition, out.position() - moof + 8);
+
+        out.putInt(8 + mStaging.position());
+        out.put(MDAT);
+        mStaging.flip();
+        out.put(mStaging);
+        mStaging.clear();
+        mLastFragmentSync = mSampleFlags[0] == SAMPLE_FLAGS_KEY;
+        mSampleCount = 0;
+        return out.position() - begin;
+    }
+
+    private static void writeMatrix(ByteBuffer out) {
+        out.putInt(0x00010000);
+        out.putInt(0);
+        out.putInt(0);
+        out.putInt(0);
+        out.putInt(0x00010000);
+        out.putInt(0);
+        out.putInt(0);
+        out.putInt(0);
+        out.putInt(0x40000000);
+    }
+
+    private static byte[] fourcc(String type) {
+        return new byte[]{(byte) type.charAt(0), (byte) type.charAt(1), (byte) type.charAt(2), (byte) type.charAt(3)};
+    }
+
+    private static int beginBox(ByteBuffer out, String type) {
+        int start = out.position();
+        out.putInt(0);
+        for (int i = 0; i < 4; i++) {
+            out.put((byte) type.charAt(i));
+        }
+        return start;
+    }
+
+    private static int beginFullBox(ByteBuffer out, String type, int version, int flags) {
+        int start = beginBox(out, type);
+        out.putInt((version << 24) | flags);
+        return start;
+    }
+
+    private static void endBox(ByteBuffer out, int start) {
+        out.putInt(start, out.position() - start);
+    }
+}
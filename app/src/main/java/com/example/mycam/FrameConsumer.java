@@ -0,0 +1,23 @@
+package com.example.mycam;
+
+/**
+ * {@link FrameDispatcher}分发帧的对象，例如TCP连接的{@link FrameSubscriber}、HTTP服务器
+ */
+public interface FrameConsumer {
+    /**
+     * 接管frame的一个引用，用完后需要release()
+     *
+     * @param burst 是否是缓存GOP中的帧
+     */
+    void offer(EncodedFrame frame, boolean burst);
+
+    /**
+     * 还没有处理的帧数
+     */
+    int getQueueDepth();
+
+    /**
+     * 取消订阅后释放还没有处理的帧
+     */
+    void clear();
+}
@@ -0,0 +1,50 @@
+package com.example.mycam;
+
+/**
+ * 按目标帧率均匀抽帧：只比较传感器时间戳，在Image转换之前决定是否丢弃这一帧，丢弃的帧没有任何转换开销。
+ * {@link #accept}只在取帧线程中调用，{@link #setFrameRate}可以在任意线程调用。
+ */
+public class FrameDecimator {
+    private volatile long mIntervalNs = 0;
+    private long mCurrentIntervalNs = 0;
+    // 下一个输出帧的目标时间戳，0表示还没有输出过
+    private long mNextTimestamp = 0;
+
+    /**
+     * @param frameRate 目标帧率，0表示不抽帧
+     */
+    public void setFrameRate(int frameRate) {
+        mIntervalNs = frameRate > 0 ? 1000000000L / frameRate : 0;
+    }
+
+    public int getFrameRate() {
+        long interval = mIntervalNs;
+        return interval > 0 ? (int) Math.round(1e9 / interval) : 0;
+    }
+
+    /**
+     * @param timestamp 传感器时间戳，单位纳秒
+     * @return 这一帧是否输出
+     */
+    public boolean accept(long timestamp) {
+        long interval = mIntervalNs;
+        if (interval == 0) {
+            return true;
+        }
+        if (interval != mCurrentIntervalNs) {
+            mCurrentIntervalNs = interval;
+            mNextTimestamp = 0;
+        }
+        // 允许1/4个间隔的抖动，相机帧率接近目标帧率的整数倍时不会因为时间戳抖动多丢帧
+        if (mNextTimestamp != 0 && timestamp < mNextTimestamp - (interval >> 2)) {
+            return false;
+        }
+        // 按目标时间累加而不是按实际时间戳，长时间的平均帧率才准确；落后超过一个间隔（例如相机停过）时重新对齐
+        if (mNextTimestamp == 0 || timestamp - mNextTimestamp > interval) {
+            mNextTimestamp = timestamp + interval;
+        } else {
+            mNextTimestamp += interval;
+        }
+        return true;
+    }
+}
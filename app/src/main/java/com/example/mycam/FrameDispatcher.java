@@ -0,0 +1,171 @@
+package com.example.mycam;
+
+import android.util.Log;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 把编码后的帧分发给所有的接收端（{@link FrameConsumer}）。
+ * 新的接收端订阅时先拿到{@link GopCache}中缓存的当前GOP，再切换到实时帧，两者之间不会丢帧或重复。
+ * 多路相机时每一路视频流（EncodedFrame.streamId）有自己的GOP缓存和关键帧请求。
+ */
+public class FrameDispatcher {
+    private static final String TAG = "FrameDispatcher";
+    public static final int MAX_STREAMS = 4;
+    private final CopyOnWriteArrayList<FrameConsumer> mSubscribers = new CopyOnWriteArrayList<>();
+    private final GopCache[] mGopCaches = new GopCache[MAX_STREAMS];
+    private final Runnable[] mKeyFrameRequesters = new Runnable[MAX_STREAMS];
+    private int mMaxCachedFrames;
+    private int mMaxCachedBytes;
+    private DemandListener mDemandListener;
+
+    public interface DemandListener {
+        /**
+         * 第一个接收端订阅或者最后一个接收端退出时回调，在subscribe/unsubscribe的线程中
+         */
+        void onDemandChanged(boolean hasSubscribers);
+    }
+
+    /**
+     * @param keyFrameRequester 主相机（streamId为0）的缓存中没有关键帧时，用于让编码器尽快输出一个关键帧
+     */
+    public FrameDispatcher(int maxCachedFrames, int maxCachedBytes, Runnable keyFrameRequester) {
+        this.mMaxCachedFrames = maxCachedFrames;
+        this.mMaxCachedBytes = maxCachedBytes;
+        setKeyFrameRequester(0, keyFrameRequester);
+    }
+
+    /**
+     * 设置某一路视频流的关键帧请求，同时为它创建GOP缓存
+     */
+    public synchronized void setKeyFrameRequester(int streamId, Runnable keyFrameRequester) {
+        if (mGopCaches[streamId] != null) {
+            mGopCaches[streamId].clear();
+        }
+        mKeyFrameRequesters[streamId] = keyFrameRequester;
+        mGopCaches[streamId] = new GopCache(mMaxCachedFrames, mMaxCachedBytes, keyFrameRequester);
+    }
+
+    /**
+     * 修改每一路视频流GOP缓存的上限，例如GOP配置或帧率改变时。已经缓存的帧被释放
+     */
+    public synchronized void setCacheLimits(int maxCachedFrames, int maxCachedBytes) {
+        mMaxCachedFrames = maxCachedFrames;
+        mMaxCachedBytes = maxCachedBytes;
+        for (int i = 0; i < MAX_STREAMS; i++) {
+            if (mGopCaches[i] != null) {
+                mGopCaches[i].clear();
+                mGopCaches[i] = new GopCache(maxCachedFrames, maxCachedBytes, mKeyFrameRequesters[i]);
+            }
+        }
+    }
+
+    /**
+     * 设置需求变化的回调，并立即按当前状态回调一次
+     */
+    public synchronized void setDemandListener(DemandListener listener) {
+        mDemandListener = listener;
+        if (listener != null) {
+            listener.onDemandChanged(!mSubscribers.isEmpty());
+        }
+    }
+
+    /**
+     * 分发一帧，调用者仍然持有自己的引用
+     */
+    public synchronized void dispatch(EncodedFrame frame) {
+        GopCache cache = mGopCaches[frame.streamId];
+        if (cache == null) {
+            cache = mGopCaches[frame.streamId] = new GopCache(mMaxCachedFrames, mMaxCachedBytes, null);
+        }
+        cache.add(frame);
+        for (FrameConsumer subscriber : mSubscribers) {
+            subscriber.offer(frame.retain(), false);
+        }
+    }
+
+    /**
+     * 只发给一个接收端的帧，例如回复它请求的静态图，不进入GOP缓存；接收端已经取消订阅时不发送。
+     * 与取消订阅串行，不会在clear()之后再放入它的队列。调用者仍然持有自己的引用
+     *
+     * @return 是否发送
+     */
+    public synchronized boolean dispatchTo(FrameConsumer subscriber, EncodedFrame frame) {
+        if (!mSubscribers.contains(subscriber)) {
+            return false;
+        }
+        subscriber.offer(frame.retain(), false);
+        return true;
+    }
+
+    public synchronized void subscribe(FrameConsumer subscriber) {
+        // 先让采集开始转换，随后请求的关键帧才会有输入
+        if (mSubscribers.isEmpty() && mDemandListener != null) {
+            mDemandListener.onDemandChanged(true);
+        }
+        for (int i = 0; i < MAX_STREAMS; i++) {
+            GopCache cache = mGopCaches[i];
+            if (cache == null) {
+                continue;
+            }
+            int frames = cache.replay(subscriber);
+            Log.i(TAG, "subscribe " + subscriber + ": stream " + i + " burst " + frames + " frames, "
+                    + cache.getBytes() + " bytes");
+            if (frames == 0 && !cache.hasRecoveryPoints() && mKeyFrameRequesters[i] != null) {
+                mKeyFrameRequesters[i].run();
+            }
+        }
+        mSubscribers.add(subscriber);
+    }
+
+    /**
+     * 请求一路视频流尽快输出关键帧，例如订阅者自己的缓存溢出时
+     */
+    public synchronized void requestKeyFrame(int streamId) {
+        if (mKeyFrameRequesters[streamId] != null) {
+            mKeyFrameRequesters[streamId].run();
+        }
+    }
+
+    public synchronized void unsubscribe(FrameConsumer subscriber) {
+        if (mSubscribers.remove(subscriber) && mSubscribers.isEmpty() && mDemandListener != null) {
+            mDemandListener.onDemandChanged(false);
+        }
+        subscriber.clear();
+    }
+
+    public boolean hasSubscribers() {
+        return !mSubscribers.isEmpty();
+    }
+
+    /**
+     * 所有接收端中最长的发送队列
+     */
+    public int getMaxQueueDepth() {
+        int depth = 0;
+        for (FrameConsumer subscriber : mSubscribers) {
+            depth = Math.max(depth, subscriber.getQueueDepth());
+        }
+        return depth;
+    }
+
+    /**
+     * 释放所有视频流缓存的GOP，例如编码器被关闭时
+     */
+    public synchronized void clearCache() {
+        for (GopCache cache : mGopCaches) {
+            if (cache != null) {
+                cache.clear();
+            }
+        }
+    }
+
+    /**
+     * 释放一路视频流缓存的GOP，例如这一路相机被关闭时
+     */
+    public synchronized void clearCache(int streamId) {
+        if (mGopCaches[streamId] != null) {
+            mGopCaches[streamId].clear();
+        }
+    }
+}
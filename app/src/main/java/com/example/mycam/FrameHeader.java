@@ -0,0 +1,146 @@
+package com.example.mycam;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * 视频帧的二进制帧头（大端序），放在每个H264帧的前面：
+ * <pre>
+ *  0  magic            int   'MCAM'
+ *  4  version          byte
+ *  5  type             byte  FrameHeader.TYPE_*
+ *  6  flags            byte  FrameHeader.FLAG_*
+ *  7  streamId         byte  版本3起区分多路相机的视频流，主相机为0；版本1、2为保留字节，总是0
+ *  8  sequence         int   每一帧递增，用于检测丢帧
+ * 12  captureTimeNs    long  Image.getTimestamp()
+ * 20  ptsUs            long  送入编码器的PTS
+ * 28  payloadLength    int
+ * 32  checksum         int   CRC32(payload)，没有FLAG_CHECKSUM时为0
+ * 以下为版本2：
+ * 36  serverTimeNs     long  用{@link ClockSync}映射到接收端时钟的captureTimeNs，还没有同步时为0
+ * 44  clockErrorUs     int   serverTimeNs的误差上限（微秒）
+ * </pre>
+ * 静态图(TYPE_STILL_*)是对{@link ControlChannel}请求的回复，sequence为请求id，captureTimeNs为实际取到的帧，
+ * payloadLength为0表示该帧已经不在缓冲中；TYPE_STILL_NV12的payload以裁剪区域 x,y,width,height(各4字节)开头。
+ * 缩略图(TYPE_THUMBNAIL)由{@link ThumbnailTap}按固定帧率发送，sequence独立递增，payload以 width,height,format(各4字节)开头。
+ * 同一个连接上可以复用多路视频流（{@link MultiCameraCapture}），每一路的sequence独立递增。
+ * 多路视频流和TYPE_VIDEO以外的帧类型只发给协商到版本3（{@link #VERSION_STREAMS}）的接收端，
+ * 更早的接收端只收到主相机的视频帧。版本4的帧头与版本3相同，只是手机的hello后面多了设备标识。
+ * 旧的接收端不认识帧头，只能接收 4字节长度 + H264 的格式，是否使用帧头由{@link StreamHandshake}协商。
+ */
+public class FrameHeader {
+    public static final int MAGIC = 0x4D43414D;
+    public static final int VERSION = 4;
+    /**
+     * 从这个版本开始帧头的streamId有效，并且可以发送静态图、缩略图等非视频帧
+     */
+    public static final int VERSION_STREAMS = 3;
+    /**
+     * 从这个版本开始手机的hello后面带设备标识（{@link java.io.DataOutputStream#writeUTF}），接收端按它而不是IP区分相机
+     */
+    public static final int VERSION_DEVICE_ID = 4;
+    public static final int SIZE_V1 = 36;
+    /**
+     * 当前版本帧头的大小，也是最大的帧头
+     */
+    public static final int SIZE = 48;
+
+    public static final int TYPE_VIDEO = 0;
+    public static final int TYPE_STILL_JPEG = 1;
+    public static final int TYPE_STILL_NV12 = 2;
+    public static final int TYPE_THUMBNAIL = 3;
+
+    public static final int FLAG_KEY_FRAME = 0x01;
+    public static final int FLAG_CODEC_CONFIG = 0x02;
+    public static final int FLAG_CHECKSUM = 0x04;
+    /**
+     * 帧内刷新时每个刷新周期的第一帧（P帧，带SPS/PPS），从这里开始解码，一个周期后画面完全刷新
+     */
+    public static final int FLAG_RECOVERY_POINT = 0x08;
+
+    public int version = VERSION;
+    public int type = TYPE_VIDEO;
+    public int flags;
+    public int streamId;
+    public int sequence;
+    public long captureTimeNs;
+    public long ptsUs;
+    public int payloadLength;
+    public int checksum;
+    public long serverTimeNs;
+    public int clockErrorUs;
+
+    public boolean isKeyFrame() {
+        return (flags & FLAG_KEY_FRAME) != 0;
+    }
+
+    public boolean hasCodecConfig() {
+        return (flags & FLAG_CODEC_CONFIG) != 0;
+    }
+
+    public boolean hasChecksum() {
+        return (flags & FLAG_CHECKSUM) != 0;
+    }
+
+    public static int sizeOf(int version) {
+        return version >= 2 ? SIZE : SIZE_V1;
+    }
+
+    /**
+     * 按version写入帧头，buffer的position前进sizeOf(version)个字节
+     */
+    public void writeTo(ByteBuffer buffer) {
+        buffer.putInt(MAGIC);
+        buffer.put((byte) version);
+        buffer.put((byte) type);
+        buffer.put((byte) flags);
+        buffer.put((byte) (version >= VERSION_STREAMS ? streamId : 0));
+        buffer.putInt(sequence);
+        buffer.putLong(captureTimeNs);
+        buffer.putLong(ptsUs);
+        buffer.putInt(payloadLength);
+        buffer.putInt(checksum);
+        if (version >= 2) {
+            buffer.putLong(serverTimeNs);
+            buffer.putInt(clockErrorUs);
+        }
+    }
+
+    /**
+     * 从buffer读取帧头，magic不对或者版本不支持时返回false，此时buffer的position不确定
+     */
+    public boolean readFrom(ByteBuffer buffer) {
+        if (buffer.remaining() < SIZE_V1 || buffer.getInt() != MAGIC) {
+            return false;
+        }
+        version = buffer.get() & 0xFF;
+        if (version < 1 || version > VERSION || buffer.remaining() < sizeOf(version) - 5) {
+            return false;
+        }
+        type = buffer.get() & 0xFF;
+        flags = buffer.get() & 0xFF;
+        streamId = buffer.get() & 0xFF;
+        if (version < VERSION_STREAMS) {
+            streamId = 0;
+        }
+        sequence = buffer.getInt();
+        captureTimeNs = buffer.getLong();
+        ptsUs = buffer.getLong();
+        payloadLength = buffer.getInt();
+        checksum = buffer.getInt();
+        if (version >= 2) {
+            serverTimeNs = buffer.getLong();
+            clockErrorUs = buffer.getInt();
+        } else {
+            serverTimeNs = 0;
+            clockErrorUs = 0;
+        }
+        return true;
+    }
+
+    public static int crc32(byte[] data, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, offset, length);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,60 @@
+package com.example.mycam;
+
+import java.util.ArrayDeque;
+
+/**
+ * 可复用的{@link EncodedFrame}缓冲池。
+ * 池中最多保留maxPooled个空闲缓冲，不够时临时分配，超出部分release()后交给GC；
+ * 缓冲不够大时就地扩容，之后一直保留较大的容量。
+ */
+public class FramePool {
+    private final ArrayDeque<EncodedFrame> mFree = new ArrayDeque<>();
+    private final int mInitialCapacity;
+    private final int mMaxPooled;
+    private int mAllocated = 0;
+
+    public FramePool(int initialCapacity, int maxPooled) {
+        this.mInitialCapacity = initialCapacity;
+        this.mMaxPooled = maxPooled;
+    }
+
+    /**
+     * @return 引用计数为1、容量不小于size的帧
+     */
+    public EncodedFrame acquire(int size) {
+        EncodedFrame frame;
+        synchronized (mFree) {
+            frame = mFree.poll();
+            if (frame == null) {
+                mAllocated++;
+            }
+        }
+        if (frame == null) {
+            frame = new EncodedFrame(this, Math.max(size, mInitialCapacity));
+        }
+        frame.reset(size);
+        return frame;
+    }
+
+    void recycle(EncodedFrame frame) {
+        synchronized (mFree) {
+            if (mFree.size() < mMaxPooled) {
+                mFree.push(frame);
+            } else {
+                mAllocated--;
+            }
+        }
+    }
+
+    public int getFreeCount() {
+        synchronized (mFree) {
+            return mFree.size();
+        }
+    }
+
+    public int getAllocatedCount() {
+        synchronized (mFree) {
+            return mAllocated;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.example.mycam;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 最近N帧NV12(YUV420SP)原始图像的环形缓冲，按传感器时间戳索引。
+ * 所有缓冲在构造时一次性分配，采集线程用beginWrite()/endWrite()直接在槽位里做格式转换，
+ * 其他线程用copyFrame()按时间戳取出（可裁剪）某一帧，用于事后生成高质量的静态图。
+ */
+public class FrameRing {
+    public static final long INVALID_TIMESTAMP = -1;
+    public static final int LAYOUT_NV12 = 0;
+    public static final int LAYOUT_NV21 = 1;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final byte[][] mSlots;
+    private final long[] mTimestamps;
+    private final ReentrantLock[] mLocks;
+    private int mNext = 0;
+    private int mWriting = -1;
+
+    public FrameRing(int capacity, int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        mSlots = new byte[capacity][width * height * 3 / 2];
+        mTimestamps = new long[capacity];
+        mLocks = new ReentrantLock[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mTimestamps[i] = INVALID_TIMESTAMP;
+            mLocks[i] = new ReentrantLock();
+        }
+    }
+
+    public boolean matches(int capacity, int width, int height) {
+        return mSlots.length == capacity && mWidth == width && mHeight == height;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * 占用最旧的槽位并返回它的缓冲，只能由采集线程调用，之后必须调用endWrite()
+     */
+    public byte[] beginWrite() {
+        int slot = mNext;
+        mLocks[slot].lock();
+        mTimestamps[slot] = INVALID_TIMESTAMP;
+        mWriting = slot;
+        return mSlots[slot];
+    }
+
+    /**
+     * @param timestamp 写入帧的时间戳，转换失败时传INVALID_TIMESTAMP
+     */
+    public void endWrite(long timestamp) {
+        int slot = mWriting;
+        mTimestamps[slot] = timestamp;
+        mWriting = -1;
+        mNext = (slot + 1) % mSlots.length;
+        mLocks[slot].unlock();
+    }
+
+    /**
+     * 找到与timestamp最接近且误差不超过toleranceNs的帧，把裁剪区域复制到dst。
+     * 裁剪区域会对齐到偶数像素，dst至少需要 cropWidth * cropHeight * 3 / 2 字节。
+     *
+     * @param crop   {x, y, width, height}，null表示整帧；对齐、裁剪到图像范围后的值会写回这个数组
+     * @param layout LAYOUT_NV12 或 LAYOUT_NV21（YuvImage只支持NV21）
+     * @return 实际复制的帧的时间戳，找不到时返回INVALID_TIMESTAMP
+     */
+    public long copyFrame(long timestamp, long toleranceNs, int[] crop, byte[] dst, int layout) {
+        return copyFrame(timestamp, toleranceNs, crop, dst, 0, layout);
+    }
+
+    /**
+     * 同上，复制到dst从dstOffset开始的位置，例如前面留出帧头
+     */
+    public long copyFrame(long timestamp, long toleranceNs, int[] crop, byte[] dst, int dstOffset, int layout) {
+        int best = -1;
+        long bestTs = INVALID_TIMESTAMP;
+        long bestDiff = Long.MAX_VALUE;
+        for (int i = 0; i < mSlots.length; i++) {
+            long ts;
+            mLocks[i].lock();
+            try {
+                ts = mTimestamps[i];
+            } finally {
+                mLocks[i].unlock();
+            }
+            if (ts == INVALID_TIMESTAMP) {
+                continue;
+            }
+            long diff = Math.abs(ts - timestamp);
+            if (diff <= toleranceNs && diff < bestDiff) {
+                best = i;
+                bestTs = ts;
+                bestDiff = diff;
+            }
+        }
+        if (best < 0) {
+            return INVALID_TIMESTAMP;
+        }
+
+        int x = 0, y = 0, w = mWidth, h = mHeight;
+        if (crop != null) {
+            x = Math.max(0, Math.min(crop[0], mWidth)) & ~1;
+            y = Math.max(0, Math.min(crop[1], mHeight)) & ~1;
+            w = Math.min(crop[2], mWidth - x) & ~1;
+            h = Math.min(crop[3], mHeight - y) & ~1;
+            crop[0] = x;
+            crop[1] = y;
+            crop[2] = w;
+            crop[3] = h;
+        }
+        if (w <= 0 || h <= 0 || dst.length - dstOffset < w * h * 3 / 2) {
+            return INVALID_TIMESTAMP;
+        }
+
+        mLocks[best].lock();
+        try {
+            // 找的过程中这个槽位被新帧覆盖了
+            if (mTimestamps[best] != bestTs) {
+                return INVALID_TIMESTAMP;
+            }
+            byte[] src = mSlots[best];
+            int dstIndex = dstOffset;
+            for (int row = 0; row < h; row++) {
+                System.arraycopy(src, (y + row) * mWidth + x, dst, dstIndex, w);
+                dstIndex += w;
+            }
+            int uvBase = mWidth * mHeight;
+            for (int row = 0; row < h / 2; row++) {
+                int srcIndex = uvBase + (y / 2 + row) * mWidth + x;
+                if (layout == LAYOUT_NV12) {
+                    System.arraycopy(src, srcIndex, dst, dstIndex, w);
+                    dstIndex += w;
+                } else {
+                    for (int k = 0; k < w; k += 2) {
+                        dst[dstIndex++] = src[srcIndex + k + 1];
+                        dst[dstIndex++] = src[srcIndex + k];
+                    }
+                }
+            }
+            return bestTs;
+        } finally {
+            mLocks[best].unlock();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.example.mycam;
+
+/**
+ * 编码帧大小的统计：平均值、峰值以及按1KB分桶的直方图估算的百分位数，记录时不分配内存
+ */
+public class FrameSizeStats {
+    private static final int BUCKET_SIZE = 1024;
+    private static final int BUCKET_COUNT = 512;
+
+    private final int[] mBuckets = new int[BUCKET_COUNT];
+    private long mCount;
+    private long mTotal;
+    private int mPeak;
+    private int mKeyFrames;
+
+    public synchronized void record(int size, boolean keyFrame) {
+        mBuckets[Math.min(size / BUCKET_SIZE, BUCKET_COUNT - 1)]++;
+        mCount++;
+        mTotal += size;
+        if (size > mPeak) {
+            mPeak = size;
+        }
+        if (keyFrame) {
+            mKeyFrames++;
+        }
+    }
+
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    public synchronized int getPeak() {
+        return mPeak;
+    }
+
+    public synchronized int getMean() {
+        return mCount == 0 ? 0 : (int) (mTotal / mCount);
+    }
+
+    /**
+     * @param percentile 0-100
+     * @return 该百分位所在桶的上界（字节）
+     */
+    public synchronized int getPercentile(double percentile) {
+        long target = (long) Math.ceil(mCount * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mBuckets[i];
+            if (seen >= target && seen > 0) {
+                return i == BUCKET_COUNT - 1 ? mPeak : Math.min((i + 1) * BUCKET_SIZE, mPeak);
+            }
+        }
+        return 0;
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mBuckets[i] = 0;
+        }
+        mCount = 0;
+        mTotal = 0;
+        mPeak = 0;
+        mKeyFrames = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "frames=" + mCount + " key=" + mKeyFrames + " mean=" + getMean() + " p95=" + getPercentile(95)
+                + " p99=" + getPercentile(99) + " peak=" + mPeak
+                + " peak/mean=" + (mCount == 0 ? 0 : mPeak * 100 / Math.max(1, getMean()) / 100.0);
+    }
+}
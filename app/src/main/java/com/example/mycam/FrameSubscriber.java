@@ -0,0 +1,108 @@
+package com.example.mycam;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一个接收端的发送队列。订阅后先收到缓存的GOP（burst），之后是实时帧。
+ * burst部分可以不限速发送（burstSpeed <= 0），也可以按PTS以burstSpeed倍速发送。
+ * burst的帧在订阅时一次放入自己的队列，先于实时帧（以及静态图等只发给这个接收端的帧）发送。
+ * 同时统计从订阅到第一个关键帧发送完毕的时间（time-to-first-picture）。
+ */
+public class FrameSubscriber implements FrameConsumer {
+    private static final String TAG = "FrameSubscriber";
+    private final String mName;
+    private final FrameWriter mWriter;
+    private final float mBurstSpeed;
+    private final LinkedBlockingQueue<EncodedFrame> mQueue = new LinkedBlockingQueue<>();
+    private final LinkedBlockingQueue<EncodedFrame> mBurstQueue = new LinkedBlockingQueue<>();
+    private final long mSubscribeTime = System.nanoTime();
+    private long mLastBurstPtsUs = -1;
+    private volatile long mTimeToFirstPictureNs = -1;
+    // 已经发送过关键帧的视频流，每一位对应一个streamId
+    private int mKeyFrameStreams = 0;
+
+    public FrameSubscriber(String name, FrameWriter writer, float burstSpeed) {
+        this.mName = name;
+        this.mWriter = writer;
+        this.mBurstSpeed = burstSpeed;
+    }
+
+    @Override
+    public void offer(EncodedFrame frame, boolean burst) {
+        (burst ? mBurstQueue : mQueue).add(frame);
+    }
+
+    /**
+     * 发送一帧，最多等待timeoutMs毫秒
+     *
+     * @return 是否发送了一帧
+     */
+    public boolean sendNext(long timeoutMs) throws IOException, InterruptedException {
+        EncodedFrame frame = mBurstQueue.poll();
+        boolean burst = frame != null;
+        if (!burst) {
+            frame = mQueue.poll(timeoutMs, TimeUnit.MILLISECONDS);
+        }
+        if (frame == null) {
+            return false;
+        }
+        try {
+            if (burst && mBurstSpeed > 0 && mLastBurstPtsUs >= 0) {
+                long sleepMs = (long) ((frame.ptsUs - mLastBurstPtsUs) / 1000 / mBurstSpeed);
+                if (sleepMs > 0) {
+                    Thread.sleep(sleepMs);
+                }
+            }
+            mLastBurstPtsUs = burst ? frame.ptsUs : -1;
+            int streamBit = 1 << frame.streamId;
+            if (frame.type == FrameHeader.TYPE_VIDEO && (mKeyFrameStreams & streamBit) == 0) {
+                if (!frame.isKeyFrame() && !frame.isRecoveryPoint()) {
+                    // 缓存中没有GOP时，第一个关键帧（或帧内刷新的恢复点）之前的帧接收端无法解码，直接丢弃
+                    return true;
+                }
+                mKeyFrameStreams |= streamBit;
+            }
+            mWriter.write(frame);
+            if (mTimeToFirstPictureNs < 0 && frame.type == FrameHeader.TYPE_VIDEO) {
+                mTimeToFirstPictureNs = System.nanoTime() - mSubscribeTime;
+                Log.i(TAG, mName + " time to first picture: " + mTimeToFirstPictureNs / 1000000 + "ms"
+                        + (burst ? " (from GOP cache)" : " (live)"));
+            }
+            return true;
+        } finally {
+            frame.release();
+        }
+    }
+
+    /**
+     * @return 从订阅到第一个关键帧发送完毕的时间（纳秒），还没有发送时为-1
+     */
+    public long getTimeToFirstPictureNs() {
+        return mTimeToFirstPictureNs;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return mBurstQueue.size() + mQueue.size();
+    }
+
+    @Override
+    public void clear() {
+        EncodedFrame frame;
+        while ((frame = mBurstQueue.poll()) != null) {
+            frame.release();
+        }
+        while ((frame = mQueue.poll()) != null) {
+            frame.release();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return mName;
+    }
+}
@@ -0,0 +1,74 @@
+package com.example.mycam;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * 按照协商好的协议版本把{@link EncodedFrame}写到socket。
+ * 帧头、prefix(SPS/PPS)和data依次写出，不拼接成一个数组。
+ */
+public class FrameWriter {
+    private final DataOutputStream mOutput;
+    private final int mVersion;
+    private final boolean mChecksum;
+    private final FrameHeader mHeader = new FrameHeader();
+    private final byte[] mHeaderBytes = new byte[FrameHeader.SIZE];
+    private final ByteBuffer mHeaderBuffer = ByteBuffer.wrap(mHeaderBytes);
+    private final CRC32 mCrc = new CRC32();
+
+    /**
+     * @param version  {@link StreamHandshake#negotiate}的返回值
+     * @param checksum 是否在帧头中带上payload的CRC32，旧格式忽略
+     */
+    public FrameWriter(DataOutputStream output, int version, boolean checksum) {
+        this.mOutput = output;
+        this.mVersion = version;
+        this.mChecksum = checksum;
+    }
+
+    public void write(EncodedFrame frame) throws IOException {
+        // 版本3以前的接收端只认识主相机的视频帧
+        if (mVersion < FrameHeader.VERSION_STREAMS
+                && (frame.type != FrameHeader.TYPE_VIDEO || frame.streamId != 0)) {
+            return;
+        }
+        if (mVersion == StreamHandshake.LEGACY) {
+            mOutput.writeInt(frame.getPayloadLength());
+        } else {
+            mHeader.version = mVersion;
+            mHeader.type = frame.type;
+            mHeader.flags = frame.flags;
+            mHeader.streamId = frame.streamId;
+            mHeader.sequence = frame.sequence;
+            mHeader.captureTimeNs = frame.captureTimeNs;
+            mHeader.ptsUs = frame.ptsUs;
+            mHeader.payloadLength = frame.getPayloadLength();
+            mHeader.checksum = 0;
+            mHeader.serverTimeNs = frame.serverTimeNs;
+            mHeader.clockErrorUs = frame.clockErrorUs;
+            if (mChecksum) {
+                mHeader.flags |= FrameHeader.FLAG_CHECKSUM;
+                mCrc.reset();
+                if (frame.prefix != null) {
+                    mCrc.update(frame.prefix, 0, frame.prefix.length);
+                }
+                mCrc.update(frame.data, frame.offset, frame.length);
+                mHeader.checksum = (int) mCrc.getValue();
+            }
+            mHeaderBuffer.clear();
+            mHeader.writeTo(mHeaderBuffer);
+            mOutput.write(mHeaderBytes, 0, mHeaderBuffer.position());
+        }
+        if (frame.prefix != null) {
+            mOutput.write(frame.prefix);
+        }
+        mOutput.write(frame.data, frame.offset, frame.length);
+        mOutput.flush();
+    }
+
+    public int getVersion() {
+        return mVersion;
+    }
+}
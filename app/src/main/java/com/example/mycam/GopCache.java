@@ -0,0 +1,92 @@
+package com.example.mycam;
+
+import java.util.ArrayList;
+
+/**
+ * 缓存当前GOP：最近的一个关键帧（带SPS/PPS）以及它之后的所有帧，新的接收端先收到这些帧就能立即开始解码。
+ * 缓存持有每一帧的一个引用。超过maxFrames或maxBytes时清空缓存，并通过keyFrameRequester请求一个新的关键帧；
+ * 使用帧内刷新时GOP无限长，缓存改为从恢复点（{@link EncodedFrame#isRecoveryPoint}）开始，
+ * 超过上限时清空后等待下一个恢复点，不请求IDR，避免周期性的I帧码率尖峰。
+ */
+public class GopCache {
+    private final ArrayList<EncodedFrame> mFrames = new ArrayList<>();
+    private final int mMaxFrames;
+    private final int mMaxBytes;
+    private final Runnable mKeyFrameRequester;
+    private int mBytes = 0;
+    // 当前GOP中出现过恢复点，说明编码器在使用帧内刷新
+    private boolean mRecoveryPoints = false;
+
+    public GopCache(int maxFrames, int maxBytes, Runnable keyFrameRequester) {
+        this.mMaxFrames = maxFrames;
+        this.mMaxBytes = maxBytes;
+        this.mKeyFrameRequester = keyFrameRequester;
+    }
+
+    public synchronized void add(EncodedFrame frame) {
+        if (frame.type != FrameHeader.TYPE_VIDEO) {
+            return;
+        }
+        boolean full = mFrames.size() >= mMaxFrames || mBytes + frame.getPayloadLength() > mMaxBytes;
+        if (frame.isKeyFrame()) {
+            clear();
+            mRecoveryPoints = false;
+        } else if (frame.isRecoveryPoint()) {
+            mRecoveryPoints = true;
+            if (mFrames.isEmpty() || full) {
+                clear();
+            }
+        } else if (mFrames.isEmpty()) {
+            // 还没有关键帧或恢复点，这一帧无法单独解码
+            return;
+        } else if (full) {
+            clear();
+            if (!mRecoveryPoints && mKeyFrameRequester != null) {
+                mKeyFrameRequester.run();
+            }
+            return;
+        }
+        mFrames.add(frame.retain());
+        mBytes += frame.getPayloadLength();
+    }
+
+    /**
+     * @return 编码器在使用帧内刷新，缓存为空时等下一个恢复点即可，不需要请求关键帧
+     */
+    public synchronized boolean hasRecoveryPoints() {
+        return mRecoveryPoints;
+    }
+
+    /**
+     * @return 是否有以关键帧或恢复点开头的帧可以发送给新的接收端
+     */
+    public synchronized boolean hasKeyFrame() {
+        return !mFrames.isEmpty();
+    }
+
+    /**
+     * 把缓存的帧依次交给consumer，每一帧都先retain()，由consumer负责release()
+     */
+    public synchronized int replay(FrameConsumer consumer) {
+        for (int i = 0; i < mFrames.size(); i++) {
+            consumer.offer(mFrames.get(i).retain(), true);
+        }
+        return mFrames.size();
+    }
+
+    public synchronized int size() {
+        return mFrames.size();
+    }
+
+    public synchronized int getBytes() {
+        return mBytes;
+    }
+
+    public synchronized void clear() {
+        for (int i = 0; i < mFrames.size(); i++) {
+            mFrames.get(i).release();
+        }
+        mFrames.clear();
+        mBytes = 0;
+    }
+}
@@ -0,0 +1,48 @@
+package com.example.mycam;
+
+/**
+ * 编码器的GOP结构配置
+ */
+public class GopConfig {
+    /**
+     * 关键帧间隔（秒），intraRefreshPeriod大于0时不使用
+     */
+    public int keyFrameIntervalSec = 1;
+    /**
+     * 最多连续的B帧数量，0表示不使用B帧（需要Android 10以上）
+     */
+    public int maxBFrames = 0;
+    /**
+     * 帧内刷新周期（帧数），大于0时不再周期性地插入IDR，而是在这么多帧内逐条刷新帧内宏块，
+     * 只有第一帧和requestKeyFrame()时才输出IDR，编码器不支持时退回到keyFrameIntervalSec
+     */
+    public int intraRefreshPeriod = 0;
+    /**
+     * 为新的接收端缓存的最长时间（秒），超过时周期性IDR模式下请求关键帧，帧内刷新模式下等待下一个恢复点
+     */
+    public int maxCachedSeconds = 10;
+
+    public GopConfig() {
+    }
+
+    public GopConfig(int keyFrameIntervalSec, int maxBFrames, int intraRefreshPeriod) {
+        this.keyFrameIntervalSec = keyFrameIntervalSec;
+        this.maxBFrames = maxBFrames;
+        this.intraRefreshPeriod = intraRefreshPeriod;
+    }
+
+    /**
+     * 只修改B帧数量的副本
+     */
+    public GopConfig withMaxBFrames(int maxBFrames) {
+        GopConfig copy = new GopConfig(keyFrameIntervalSec, maxBFrames, intraRefreshPeriod);
+        copy.maxCachedSeconds = maxCachedSeconds;
+        return copy;
+    }
+
+    @Override
+    public String toString() {
+        return "GopConfig{keyFrameIntervalSec=" + keyFrameIntervalSec + ", maxBFrames=" + maxBFrames
+                + ", intraRefreshPeriod=" + intraRefreshPeriod + ", maxCachedSeconds=" + maxCachedSeconds + "}";
+    }
+}
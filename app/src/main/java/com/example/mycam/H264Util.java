@@ -0,0 +1,184 @@
+package com.example.mycam;
+
+/**
+ * Annex-B格式H264码流的一些工具：查找起始码、NAL类型、解析SPS中的图像尺寸
+ */
+public class H264Util {
+    public static final int NAL_SLICE = 1;
+    public static final int NAL_IDR = 5;
+    public static final int NAL_SEI = 6;
+    public static final int NAL_SPS = 7;
+    public static final int NAL_PPS = 8;
+    public static final int NAL_AUD = 9;
+
+    /**
+     * @return 从from开始第一个 00 00 01 起始码的位置，没有时返回end
+     */
+    public static int findStartCode(byte[] data, int from, int end) {
+        for (int i = from; i + 2 < end; i++) {
+            if ((data[i + 2] & 0xFF) > 1) {
+                // 第三个字节大于1时，i+1和i+2都不可能是起始码的开头
+                i += 2;
+            } else if (data[i] == 0 && data[i + 1] == 0 && data[i + 2] == 1) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * 遍历[offset, end)中的所有NAL单元（不含起始码，去掉了4字节起始码多出的0和结尾的0）
+     */
+    public static void forEachNal(byte[] data, int offset, int end, NalVisitor visitor) {
+        int start = findStartCode(data, offset, end);
+        while (start < end) {
+            int nalStart = start + 3;
+            int next = findStartCode(data, nalStart, end);
+            int nalEnd = next;
+            while (nalEnd > nalStart && data[nalEnd - 1] == 0) {
+                nalEnd--;
+            }
+            if (nalEnd > nalStart) {
+                visitor.onNal(data, nalStart, nalEnd - nalStart, data[nalStart] & 0x1F);
+            }
+            start = next;
+        }
+    }
+
+    public interface NalVisitor {
+        void onNal(byte[] data, int offset, int length, int type);
+    }
+
+    /**
+     * 从SPS（不含起始码，含NAL头）中解析出裁剪后的图像宽高
+     *
+     * @return {width, height}
+     */
+    public static int[] parseSpsSize(byte[] sps, int offset, int length) {
+        BitReader reader = new BitReader(sps, offset + 1, offset + length);
+        int profileIdc = reader.readBits(8);
+        reader.readBits(16); // constraint flags, level_idc
+        reader.readUE(); // seq_parameter_set_id
+        int chromaFormatIdc = 1;
+        if (profileIdc == 100 || profileIdc == 110 || profileIdc == 122 || profileIdc == 244 || profileIdc == 44
+                || profileIdc == 83 || profileIdc == 86 || profileIdc == 118 || profileIdc == 128
+                || profileIdc == 138 || profileIdc == 139 || profileIdc == 134 || profileIdc == 135) {
+            chromaFormatIdc = reader.readUE();
+            if (chromaFormatIdc == 3) {
+                reader.readBits(1); // separate_colour_plane_flag
+            }
+            reader.readUE(); // bit_depth_luma_minus8
+            reader.readUE(); // bit_depth_chroma_minus8
+            reader.readBits(1); // qpprime_y_zero_transform_bypass_flag
+            if (reader.readBits(1) == 1) { // seq_scaling_matrix_present_flag
+                for (int i = 0; i < (chromaFormatIdc != 3 ? 8 : 12); i++) {
+                    if (reader.readBits(1) == 1) {
+                        skipScalingList(reader, i < 6 ? 16 : 64);
+                    }
+                }
+            }
+        }
+        reader.readUE(); // log2_max_frame_num_minus4
+        int picOrderCntType = reader.readUE();
+        if (picOrderCntType == 0) {
+            reader.readUE(); // log2_max_pic_order_cnt_lsb_minus4
+        } else if (picOrderCntType == 1) {
+            reader.readBits(1); // delta_pic_order_always_zero_flag
+            reader.readSE(); // offset_for_non_ref_pic
+            reader.readSE(); // offset_for_top_to_bottom_field
+            int cycle = reader.readUE();
+            for (int i = 0; i < cycle; i++) {
+                reader.readSE();
+            }
+        }
+        reader.readUE(); // max_num_ref_frames
+        reader.readBits(1); // gaps_in_frame_num_value_allowed_flag
+        int widthInMbs = reader.readUE() + 1;
+        int heightInMapUnits = reader.readUE() + 1;
+        int frameMbsOnly = reader.readBits(1);
+        if (frameMbsOnly == 0) {
+            reader.readBits(1); // mb_adaptive_frame_field_flag
+        }
+        reader.readBits(1); // direct_8x8_inference_flag
+        int cropLeft = 0, cropRight = 0, cropTop = 0, cropBottom = 0;
+        if (reader.readBits(1) == 1) {
+            cropLeft = reader.readUE();
+            cropRight = reader.readUE();
+            cropTop = reader.readUE();
+            cropBottom = reader.readUE();
+        }
+        int cropUnitX = chromaFormatIdc == 0 || chromaFormatIdc == 3 ? 1 : 2;
+        int cropUnitY = (chromaFormatIdc == 1 ? 2 : 1) * (2 - frameMbsOnly);
+        int width = widthInMbs * 16 - (cropLeft + cropRight) * cropUnitX;
+        int height = (2 - frameMbsOnly) * heightInMapUnits * 16 - (cropTop + cropBottom) * cropUnitY;
+        return new int[]{width, height};
+    }
+
+    private static void skipScalingList(BitReader reader, int size) {
+        int lastScale = 8;
+        int nextScale = 8;
+        for (int j = 0; j < size; j++) {
+            if (nextScale != 0) {
+                nextScale = (lastScale + reader.readSE() + 256) % 256;
+            }
+            lastScale = nextScale == 0 ? lastScale : nextScale;
+        }
+    }
+
+    /**
+     * 按位读取RBSP，自动跳过防竞争字节（00 00 03中的03）
+     */
+    static class BitReader {
+        private final byte[] mData;
+        private final int mEnd;
+        private int mPos;
+        private int mBit = 0;
+        private int mZeros = 0;
+
+        BitReader(byte[] data, int offset, int end) {
+            mData = data;
+            mPos = offset;
+            mEnd = end;
+        }
+
+        int readBits(int n) {
+            int value = 0;
+            for (int i = 0; i < n; i++) {
+                value = (value << 1) | readBit();
+            }
+            return value;
+        }
+
+        private int readBit() {
+            if (mBit == 0) {
+                if (mPos >= mEnd) {
+                    throw new IllegalArgumentException("read past the end of RBSP");
+                }
+                if (mZeros >= 2 && mData[mPos] == 3) {
+                    mPos++;
+                    mZeros = 0;
+                }
+                mZeros = mData[mPos] == 0 ? mZeros + 1 : 0;
+            }
+            int bit = (mData[mPos] >> (7 - mBit)) & 1;
+            if (++mBit == 8) {
+                mBit = 0;
+                mPos++;
+            }
+            return bit;
+        }
+
+        int readUE() {
+            int zeros = 0;
+            while (readBit() == 0) {
+                zeros++;
+            }
+            return (1 << zeros) - 1 + readBits(zeros);
+        }
+
+        int readSE() {
+            int value = readUE();
+            return (value & 1) == 1 ? (value + 1) / 2 : -(value / 2);
+        }
+    }
+}
@@ -0,0 +1,598 @@
+package com.example.mycam;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * 设备上的HTTP服务器，浏览器不需要转码服务就可以直接观看：
+ * GET / 返回一个用MediaSource播放的页面，GET /stream.mp4 以chunked编码持续输出fragmented MP4。
+ * 所有连接在一个NIO线程中处理。每一帧只封装一次，fragment（连同chunk的头尾）写在{@link FramePool}的缓冲里，
+ * 按引用计数分给所有的客户端；新客户端先收到init segment和当前GOP的fragment。
+ * 有客户端时才订阅{@link FrameDispatcher}，发送不过来的客户端会被断开。
+ * 没有任何认证，绑定的地址由调用者决定，默认只应监听本机回环地址。
+ */
+public class HttpStreamServer implements FrameConsumer {
+    private static final String TAG = "HttpStreamServer";
+    // fragment前面预留的chunk头空间：8位十六进制长度 + \r\n
+    private static final int CHUNK_HEADROOM = 10;
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+    // 客户端未发送的fragment超过这个数就断开
+    private static final int MAX_PENDING = 90;
+    private static final int MAX_CACHED_FRAGMENTS = 300;
+    private static final int MAX_REQUEST_SIZE = 4096;
+
+    /**
+     * 回调在服务器线程中执行
+     */
+    public interface Listener {
+        /**
+         * 第一个客户端开始播放或者最后一个客户端断开。fMP4不写composition time offset，播放期间编码器不能输出B帧
+         */
+        void onStreamingChanged(boolean streaming);
+    }
+
+    private final InetAddress mAddress;
+    private final int mPort;
+    private final FrameDispatcher mDispatcher;
+    private final int mMode;
+    private final FramePool mFragmentPool = new FramePool(64 * 1024, 64);
+    private final ConcurrentLinkedQueue<EncodedFrame> mIncoming = new ConcurrentLinkedQueue<>();
+    private final ArrayList<Client> mClients = new ArrayList<>();
+    // 从最近一个关键帧开始的fragment，给新客户端使用。MSE只能从IDR开始解码，intra refresh的恢复点不能作为起点
+    private final ArrayList<EncodedFrame> mGopFragments = new ArrayList<>();
+    // 编码器输出恢复点（intra refresh）时没有周期性的IDR：缓存溢出后不请求关键帧，等新客户端连接时再请求
+    private boolean mRecoveryPoints = false;
+    private Fmp4Muxer mMuxer;
+    private EncodedFrame mInitSegment;
+    private boolean mSubscribed = false;
+    private volatile int mMaxPending = 0;
+    private volatile Listener mListener;
+
+    private volatile boolean mRunning = false;
+    private Selector mSelector;
+    private ServerSocketChannel mServerChannel;
+    private Thread mThread;
+
+    /**
+     * @param address 监听的地址，null表示所有网卡
+     * @param mode    {@link Fmp4Muxer#MODE_FRAME}延迟最低，{@link Fmp4Muxer#MODE_GOP}开销最小
+     */
+    public HttpStreamServer(InetAddress address, int port, FrameDispatcher dispatcher, int mode) {
+        this.mAddress = address;
+        this.mPort = port;
+        this.mDispatcher = dispatcher;
+        this.mMode = mode;
+    }
+
+    public void start() throws IOException {
+        if (mRunning) {
+            return;
+        }
+        mSelector = Selector.open();
+        mServerChannel = ServerSocketChannel.open();
+        mServerChannel.socket().setReuseAddress(true);
+        mServerChannel.socket().bind(new InetSocketAddress(mAddress, mPort));
+        mServerChannel.configureBlocking(false);
+        mServerChannel.register(mSelector, SelectionKey.OP_ACCEPT);
+        mRunning = true;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "HttpStreamServer");
+        mThread.start();
+        Log.i(TAG, "start: listening on " + (mAddress != null ? mAddress.getHostAddress() : "*") + ":" + mPort);
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public void stop() {
+        mRunning = false;
+        if (mSelector != null) {
+            mSelector.wakeup();
+        }
+        if (mThread != null) {
+            try {
+                mThread.join(1000);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            mThread = null;
+        }
+    }
+
+    public int getClientCount() {
+        synchronized (mClients) {
+            return mClients.size();
+        }
+    }
+
+    @Override
+    public void offer(EncodedFrame frame, boolean burst) {
+        mIncoming.add(frame);
+        Selector selector = mSelector;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return mIncoming.size() + mMaxPending;
+    }
+
+    @Override
+    public void clear() {
+        EncodedFrame frame;
+        while ((frame = mIncoming.poll()) != null) {
+            frame.release();
+        }
+    }
+
+    private void loop() {
+        try {
+            while (mRunning) {
+                mSelector.select();
+                Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Client client = (Client) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            read(client);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            flush(client);
+                        }
+                    } catch (IOException e) {
+                        Log.w(TAG, "client " + client.mName + " error: " + e.getMessage());
+                        close(client);
+                    }
+                }
+                muxIncoming();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            shutdown();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = mServerChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        Client client = new Client(channel);
+        client.mKey = channel.register(mSelector, SelectionKey.OP_READ, client);
+        synchronized (mClients) {
+            mClients.add(client);
+        }
+        Log.i(TAG, "accept: " + client.mName);
+    }
+
+    private void read(Client client) throws IOException {
+        ByteBuffer request = client.mRequest;
+        int n = client.mChannel.read(request);
+        if (n < 0) {
+            close(client);
+            return;
+        }
+        if (client.mStreaming || client.mResponded) {
+            // 已经在回复了，之后收到的数据直接丢弃
+            request.clear();
+            return;
+        }
+        String head = new String(request.array(), 0, request.position(), "ISO-8859-1");
+        if (!head.contains("\r\n\r\n")) {
+            if (!request.hasRemaining()) {
+                respond(client, "431 Request Header Fields Too Large", "text/plain", "request too large\n");
+            }
+            return;
+        }
+        client.mResponded = true;
+        String[] requestLine = head.substring(0, head.indexOf("\r\n")).split(" ");
+        String path = requestLine.length > 1 ? requestLine[1] : "";
+        int query = path.indexOf('?');
+        if (query >= 0) {
+            path = path.substring(0, query);
+        }
+        Log.i(TAG, "request from " + client.mName + ": " + requestLine[0] + " " + path);
+        if (!"GET".equals(requestLine[0])) {
+            respond(client, "405 Method Not Allowed", "text/plain", "method not allowed\n");
+        } else if ("/".equals(path) || "/index.html".equals(path)) {
+            respond(client, "200 OK", "text/html; charset=utf-8", buildIndexPage());
+        } else if ("/stream.mp4".equals(path)) {
+            startStreaming(client);
+        } else {
+            respond(client, "404 Not Found", "text/plain", "not found\n");
+        }
+    }
+
+    /**
+     * 回复一个完整的响应后关闭连接
+     */
+    private void respond(Client client, String status, String contentType, String body) throws IOException {
+        byte[] content = body.getBytes("UTF-8");
+        String header = "HTTP/1.1 " + status + "\r\n"
+                + "Content-Type: " + contentType + "\r\n"
+                + "Content-Length: " + content.length + "\r\n"
+                + "Cache-Control: no-cache\r\n"
+                + "Connection: close\r\n\r\n";
+        byte[] headerBytes = header.getBytes("ISO-8859-1");
+        byte[] response = new byte[headerBytes.length + content.length];
+        System.arraycopy(headerBytes, 0, response, 0, headerBytes.length);
+        System.arraycopy(content, 0, response, headerBytes.length, content.length);
+        client.mResponded = true;
+        client.mCloseWhenDone = true;
+        client.enqueue(new EncodedFrame(FrameHeader.TYPE_VIDEO, response, response.length, 0, 0, 0, 0));
+        flush(client);
+    }
+
+    private void startStreaming(Client client) throws IOException {
+        String header = "HTTP/1.1 200 OK\r\n"
+                + "Content-Type: video/mp4\r\n"
+                + "Transfer-Encoding: chunked\r\n"
+                + "Cache-Control: no-cache, no-store\r\n"
+                + "Access-Control-Allow-Origin: *\r\n"
+                + "Connection: keep-alive\r\n\r\n";
+        byte[] headerBytes = header.getBytes("ISO-8859-1");
+        client.enqueue(new EncodedFrame(FrameHeader.TYPE_VIDEO, headerBytes, headerBytes.length, 0, 0, 0, 0));
+        client.mStreaming = true;
+        if (mInitSegment != null) {
+            client.enqueue(mInitSegment.retain());
+            for (EncodedFrame fragment : mGopFragments) {
+                client.enqueue(fragment.retain());
+            }
+        }
+        if (!mSubscribed) {
+            // 重新开始封装，缓存为空时dispatcher会请求关键帧
+            mMuxer = new Fmp4Muxer(mMode);
+            mSubscribed = true;
+            notifyStreaming(true);
+            mDispatcher.subscribe(this);
+        }
+        if (mGopFragments.isEmpty()) {
+            // dispatcher的缓存可能从恢复点开始，或者fragment缓存已经溢出，muxer要等到IDR才能输出
+            mDispatcher.requestKeyFrame(0);
+        }
+        flush(client);
+    }
+
+    /**
+     * 把收到的帧封装成fragment并分给所有正在播放的客户端
+     */
+    private void muxIncoming() {
+        EncodedFrame frame;
+        int maxPending = 0;
+        while ((frame = mIncoming.poll()) != null) {
+            // fMP4只有一个视频轨道，多路相机时只输出主相机
+            if (frame.type != FrameHeader.TYPE_VIDEO || frame.streamId != 0 || mMuxer == null) {
+                frame.release();
+                continue;
+            }
+            if (frame.prefix != null && !mMuxer.isSameConfig(frame.prefix)) {
+                // SPS/PPS变化（分辨率切换）：先输出旧参数下的样本，再发送新的init segment
+                EncodedFrame last = mFragmentPool.acquire(CHUNK_HEADROOM + mMuxer.getMaxFragmentSize(0) + 2);
+                ByteBuffer out = last.byteBuffer();
+                out.position(CHUNK_HEADROOM);
+                publish(last, mMuxer.flush(out), mMuxer.isLastFragmentSync());
+                if (mMuxer == null) {
+                    // 最后一个客户端在发送时断开了
+                    frame.release();
+                    continue;
+                }
+                if (mMuxer.configure(frame.prefix)) {
+                    buildInitSegment();
+                }
+            }
+            EncodedFrame fragment = mFragmentPool.acquire(CHUNK_HEADROOM + mMuxer.getMaxFragmentSize(frame.length) + 2);
+            ByteBuffer out = fragment.byteBuffer();
+            out.position(CHUNK_HEADROOM);
+            int size = mMuxer.addFrame(frame, out);
+            if (frame.isKeyFrame()) {
+                mRecoveryPoints = false;
+            } else if (frame.isRecoveryPoint()) {
+                mRecoveryPoints = true;
+            }
+            frame.release();
+            publish(fragment, size, mMuxer.isLastFragmentSync());
+        }
+        synchronized (mClients) {
+            for (Client client : mClients) {
+                maxPending = Math.max(maxPending, client.mPending.size());
+            }
+        }
+        mMaxPending = maxPending;
+    }
+
+    /**
+     * 给fragment加上chunk的头尾，放入GOP缓存并分给客户端，最后释放自己的引用
+     */
+    private void publish(EncodedFrame fragment, int size, boolean key) {
+        if (size <= 0) {
+            fragment.release();
+            return;
+        }
+        fragment.offset = writeChunkHeader(fragment.data, CHUNK_HEADROOM, size);
+        fragment.data[CHUNK_HEADROOM + size] = '\r';
+        fragment.data[CHUNK_HEADROOM + size + 1] = '\n';
+        fragment.length = CHUNK_HEADROOM + size + 2 - fragment.offset;
+        if (key) {
+            fragment.flags |= FrameHeader.FLAG_KEY_FRAME;
+            clearGopFragments();
+            mGopFragments.add(fragment.retain());
+        } else if (mGopFragments.size() >= MAX_CACHED_FRAGMENTS) {
+            // GOP太长：丢掉缓存，新客户端从下一个关键帧开始，不能只缓存GOP的前半段
+            Log.w(TAG, "publish: GOP cache overflow, " + mGopFragments.size() + " fragments");
+            clearGopFragments();
+            if (!mRecoveryPoints) {
+                mDispatcher.requestKeyFrame(0);
+            }
+        } else if (!mGopFragments.isEmpty()) {
+            mGopFragments.add(fragment.retain());
+        }
+        // 在锁内遍历，出错的客户端记下来，遍历结束后再关闭（close会修改mClients）
+        ArrayList<Client> failed = null;
+        synchronized (mClients) {
+            for (int i = 0; i < mClients.size(); i++) {
+                Client client = mClients.get(i);
+                if (!client.mStreaming) {
+                    continue;
+                }
+                if (client.mPending.size() >= MAX_PENDING) {
+                    Log.w(TAG, "client " + client.mName + " too slow, pending " + client.mPending.size());
+                    if (failed == null) {
+                        failed = new ArrayList<>();
+                    }
+                    failed.add(client);
+                    continue;
+                }
+                client.enqueue(fragment.retain());
+                try {
+                    flush(client);
+                } catch (IOException e) {
+                    Log.w(TAG, "client " + client.mName + " error: " + e.getMessage());
+                    if (failed == null) {
+                        failed = new ArrayList<>();
+                    }
+                    failed.add(client);
+                }
+            }
+        }
+        if (failed != null) {
+            for (Client client : failed) {
+                close(client);
+            }
+        }
+        fragment.release();
+    }
+
+    private void buildInitSegment() {
+        if (mInitSegment != null) {
+            mInitSegment.release();
+        }
+        EncodedFrame init = mFragmentPool.acquire(CHUNK_HEADROOM + mMuxer.getInitSegmentSize() + 2);
+        ByteBuffer out = init.byteBuffer();
+        out.position(CHUNK_HEADROOM);
+        mMuxer.writeInitSegment(out);
+        int size = out.position() - CHUNK_HEADROOM;
+        init.offset = writeChunkHeader(init.data, CHUNK_HEADROOM, size);
+        init.data[CHUNK_HEADROOM + size] = '\r';
+        init.data[CHUNK_HEADROOM + size + 1] = '\n';
+        init.length = CHUNK_HEADROOM + size + 2 - init.offset;
+        init.flags = FrameHeader.FLAG_CODEC_CONFIG;
+        mInitSegment = init;
+        clearGopFragments();
+        Log.i(TAG, "init segment: " + mMuxer.getWidth() + "x" + mMuxer.getHeight() + " " + mMuxer.getCodecString()
+                + " " + size + " bytes");
+        // 已经在播放的客户端也需要新的init segment，MSE允许在流中间再次追加
+        synchronized (mClients) {
+            for (Client client : mClients) {
+                if (client.mStreaming) {
+                    client.enqueue(init.retain());
+                }
+            }
+        }
+    }
+
+    /**
+     * 在data[end]之前写入十六进制的chunk长度和\r\n
+     *
+     * @return chunk头的起始位置
+     */
+    private static int writeChunkHeader(byte[] data, int end, int size) {
+        int pos = end;
+        data[--pos] = '\n';
+        data[--pos] = '\r';
+        do {
+            data[--pos] = HEX[size & 0xF];
+            size >>>= 4;
+        } while (size != 0);
+        return pos;
+    }
+
+    private void flush(Client client) throws IOException {
+        while (!client.mPending.isEmpty()) {
+            EncodedFrame head = client.mPending.peek();
+            ByteBuffer buffer = head.byteBuffer();
+            buffer.limit(head.offset + head.length);
+            buffer.position(head.offset + client.mWritten);
+            client.mWritten += client.mChannel.write(buffer);
+            if (client.mWritten < head.length) {
+                // socket缓冲区满了，等可写时再继续
+                client.mKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            client.mPending.poll().release();
+            client.mWritten = 0;
+        }
+        if (client.mCloseWhenDone) {
+            close(client);
+        } else if (client.mKey.isValid()) {
+            client.mKey.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private void close(Client client) {
+        boolean removed;
+        boolean streaming = false;
+        synchronized (mClients) {
+            removed = mClients.remove(client);
+            for (Client other : mClients) {
+                streaming |= other.mStreaming;
+            }
+        }
+        if (!removed) {
+            return;
+        }
+        client.mKey.cancel();
+        try {
+            client.mChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        EncodedFrame frame;
+        while ((frame = client.mPending.poll()) != null) {
+            frame.release();
+        }
+        Log.i(TAG, "close: " + client.mName);
+        if (!streaming && mSubscribed) {
+            unsubscribe();
+        }
+    }
+
+    private void notifyStreaming(boolean streaming) {
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onStreamingChanged(streaming);
+        }
+    }
+
+    private void unsubscribe() {
+        mSubscribed = false;
+        mDispatcher.unsubscribe(this);
+        notifyStreaming(false);
+        clearGopFragments();
+        if (mInitSegment != null) {
+            mInitSegment.release();
+            mInitSegment = null;
+        }
+        mMuxer = null;
+    }
+
+    private void clearGopFragments() {
+        for (EncodedFrame fragment : mGopFragments) {
+            fragment.release();
+        }
+        mGopFragments.clear();
+    }
+
+    private void shutdown() {
+        ArrayList<Client> clients;
+        synchronized (mClients) {
+            clients = new ArrayList<>(mClients);
+        }
+        for (Client client : clients) {
+            close(client);
+        }
+        if (mSubscribed) {
+            unsubscribe();
+        }
+        clear();
+        try {
+            mServerChannel.close();
+            mSelector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        Log.i(TAG, "shutdown");
+    }
+
+    private String buildIndexPage() {
+        String codec = mMuxer != null && mMuxer.isConfigured() ? mMuxer.getCodecString() : "avc1.42e01f";
+        return "<!DOCTYPE html>\n<html><head><meta charset=\"utf-8\"><title>MyCam</title>\n"
+                + "<style>body{margin:0;background:#000}video{width:100%;height:100vh}</style></head>\n"
+                + "<body><video id=\"v\" autoplay muted playsinline controls></video>\n<script>\n"
+                + "var v = document.getElementById('v');\n"
+                + "var ms = new MediaSource();\n"
+                + "v.src = URL.createObjectURL(ms);\n"
+                + "ms.addEventListener('sourceopen', function () {\n"
+                + "  var sb = ms.addSourceBuffer('video/mp4; codecs=\"" + codec + "\"');\n"
+                + "  var queue = [];\n"
+                + "  function pump() {\n"
+                + "    if (!sb.updating && queue.length > 0) sb.appendBuffer(queue.shift());\n"
+                + "  }\n"
+                + "  sb.addEventListener('updateend', function () {\n"
+                + "    var b = v.buffered;\n"
+                + "    if (b.length > 0) {\n"
+                + "      var end = b.end(b.length - 1);\n"
+                + "      // 落后太多时跳到最新的位置\n"
+                + "      if (v.currentTime < b.start(0) || end - v.currentTime > 1.0) v.currentTime = Math.max(b.start(0), end - 0.1);\n"
+                + "      if (end - b.start(0) > 30 && !sb.updating) { sb.remove(0, end - 10); return; }\n"
+                + "    }\n"
+                + "    pump();\n"
+                + "  });\n"
+                + "  fetch('/stream.mp4').then(function (response) {\n"
+                + "    var reader = response.body.getReader();\n"
+                + "    function read() {\n"
+                + "      return reader.read().then(function (result) {\n"
+                + "        if (result.done) return;\n"
+                + "        queue.push(result.value);\n"
+                + "        pump();\n"
+                + "        return read();\n"
+                + "      });\n"
+                + "    }\n"
+                + "    return read();\n"
+                + "  });\n"
+                + "});\n"
+                + "</script></body></html>\n";
+    }
+
+    private static class Client {
+        final SocketChannel mChannel;
+        final String mName;
+        final ByteBuffer mRequest = ByteBuffer.allocate(MAX_REQUEST_SIZE);
+        // 待发送的数据，队首已经发送了mWritten个字节
+        final ArrayDeque<EncodedFrame> mPending = new ArrayDeque<>();
+        int mWritten = 0;
+        SelectionKey mKey;
+        boolean mResponded = false;
+        boolean mStreaming = false;
+        boolean mCloseWhenDone = false;
+
+        Client(SocketChannel channel) {
+            this.mChannel = channel;
+            this.mName = String.valueOf(channel.socket().getRemoteSocketAddress());
+        }
+
+        void enqueue(EncodedFrame frame) {
+            mPending.add(frame);
+        }
+    }
+}
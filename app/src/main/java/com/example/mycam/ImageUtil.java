@@ -11,6 +11,13 @@ public class ImageUtil {
     public static final int YUV420SP = 1;
     public static final int NV21 = 2;
     private static final String TAG = "ImageUtil";
+    //Chroma row scratch reused by each converting thread (main camera, second camera)
+    private static final ThreadLocal<byte[][]> sChromaRows = new ThreadLocal<byte[][]>() {
+        @Override
+        protected byte[][] initialValue() {
+            return new byte[2][0];
+        }
+    };
 
     public static byte[] getBytesFromImageAsType(Image image, int type) {
         try {
@@ -109,6 +116,101 @@ public class ImageUtil {
         return null;
     }
 
+    /**
+     * Same as getBytesFromImageAsType(Image, int) but writes into a caller owned buffer of at least
+     * width * height * 3 / 2 bytes, reading the planes in place with bulk row copies, so nothing is allocated per frame.
+     * The image is not closed.
+     *
+     * @return false if the buffer is too small or the planes could not be read
+     */
+    public static boolean getBytesFromImageAsType(Image image, int type, byte[] yuvBytes) {
+        try {
+            final Image.Plane[] planes = image.getPlanes();
+            int width = image.getWidth();
+            int height = image.getHeight();
+            if (yuvBytes.length < width * height * 3 / 2) {
+                return false;
+            }
+
+            //Y rows, skip the padding at the end of each row
+            ByteBuffer yBuffer = planes[0].getBuffer();
+            int rowStride = planes[0].getRowStride();
+            int dstIndex = 0;
+            for (int j = 0; j < height; j++) {
+                yBuffer.position(j * rowStride);
+                yBuffer.get(yuvBytes, dstIndex, width);
+                dstIndex += width;
+            }
+
+            ByteBuffer uBuffer = planes[1].getBuffer();
+            ByteBuffer vBuffer = planes[2].getBuffer();
+            int uPixelStride = planes[1].getPixelStride();
+            int uRowStride = planes[1].getRowStride();
+            int vPixelStride = planes[2].getPixelStride();
+            int vRowStride = planes[2].getRowStride();
+            int chromaWidth = width / 2;
+            int chromaHeight = height / 2;
+            //Read each chroma row in one bulk get (including the bytes between pixel strides) instead of ByteBuffer.get(int) per sample
+            int uRowLength = (chromaWidth - 1) * uPixelStride + 1;
+            int vRowLength = (chromaWidth - 1) * vPixelStride + 1;
+            byte[][] rows = sChromaRows.get();
+            if (rows[0].length < uRowLength || rows[1].length < vRowLength) {
+                rows[0] = new byte[Math.max(rows[0].length, uRowLength)];
+                rows[1] = new byte[Math.max(rows[1].length, vRowLength)];
+            }
+            byte[] uRow = rows[0];
+            byte[] vRow = rows[1];
+            int uIndex = dstIndex;
+            int vIndex = dstIndex + chromaWidth * chromaHeight;
+            for (int j = 0; j < chromaHeight; j++) {
+                uBuffer.position(j * uRowStride);
+                vBuffer.position(j * vRowStride);
+                if (type == YUV420P && uPixelStride == 1 && vPixelStride == 1) {
+                    //Planar source and output, copy the rows straight into place
+                    uBuffer.get(yuvBytes, uIndex, chromaWidth);
+                    vBuffer.get(yuvBytes, vIndex, chromaWidth);
+                    uIndex += chromaWidth;
+                    vIndex += chromaWidth;
+                    continue;
+                }
+                if (type == YUV420SP && uPixelStride == 2 && vPixelStride == 2) {
+                    //Common semi-planar source: the U row lands on the even bytes, then fill V into the odd ones
+                    uBuffer.get(yuvBytes, dstIndex, uRowLength);
+                    vBuffer.get(vRow, 0, vRowLength);
+                    for (int k = 0; k < chromaWidth; k++) {
+                        yuvBytes[dstIndex + 2 * k + 1] = vRow[2 * k];
+                    }
+                    dstIndex += width;
+                    continue;
+                }
+                uBuffer.get(uRow, 0, uRowLength);
+                vBuffer.get(vRow, 0, vRowLength);
+                for (int k = 0; k < chromaWidth; k++) {
+                    byte u = uRow[k * uPixelStride];
+                    byte v = vRow[k * vPixelStride];
+                    switch (type) {
+                        case YUV420P:
+                            yuvBytes[uIndex++] = u;
+                            yuvBytes[vIndex++] = v;
+                            break;
+                        case YUV420SP:
+                            yuvBytes[dstIndex++] = u;
+                            yuvBytes[dstIndex++] = v;
+                            break;
+                        case NV21:
+                            yuvBytes[dstIndex++] = v;
+                            yuvBytes[dstIndex++] = u;
+                            break;
+                    }
+                }
+            }
+            return true;
+        } catch (final Exception e) {
+            Log.e(TAG, e.toString());
+        }
+        return false;
+    }
+
     public static byte[] getBytesFromImageAsType(Image image) {
         try {
             int w = image.getWidth();
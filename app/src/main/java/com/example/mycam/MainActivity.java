@@ -6,10 +6,14 @@ import androidx.core.content.ContextCompat;
 
 import android.Manifest;
 import android.app.AlertDialog;
+import android.content.ComponentName;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.IBinder;
 import android.provider.Settings;
 import android.util.Log;
 import android.view.Menu;
@@ -21,27 +25,14 @@ import android.widget.Button;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import java.io.DataOutputStream;
-import java.io.IOException;
-import java.io.OutputStream;
-import java.net.Socket;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
-
+/**
+ * 界面：采集、编码和发送都在{@link StreamingService}中，这里只负责权限、按钮和可选的预览。
+ * 退到后台时去掉预览并解绑，服务继续推流。
+ */
 public class MainActivity extends AppCompatActivity {
     private final String TAG = "MainActivity";
     private TextureView mTextureView;
-    private Camera2Wrapper mCamera2Wrapper;
-    private AvcEncoder mAvcEncoder;
-    private ExecutorService threadPool = null;
-    private Socket socket;
-    private int mWidth = 1280;
-    private int mHeight = 720;
-    private int mFrameRate = 30;
-    private int mQP = 0;
-    private int mBitrate = 2500000;
+    private StreamingService mService;
 
     private Button myBtn01 = null; // 按钮btn_connect
     private Button myBtn02 = null; // 按钮btn_trans
@@ -50,16 +41,39 @@ public class MainActivity extends AppCompatActivity {
     private static String serverIP = "192.168.123.20";
     private static final int serverPort = 6010;
 
-    private boolean isSending = false; // 是否在发送视频中
-    private boolean isConnecting = false; // 是否在连接中
     private boolean isTransmitting = false;
-    private long mFrames = 0;
-    private byte[] mH264Data = new byte[mWidth * mHeight * 3];
 
-    private DataOutputStream dos;
-    Thread socketThread = null;
-    BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>();
-    private long totalSize = 0;
+    private final ServiceConnection mConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            mService = ((StreamingService.LocalBinder) binder).getService();
+            mService.setListener(mServiceListener);
+            isTransmitting = mService.isTransmitting();
+            myBtn01.setText(isTransmitting ? "结束传输" : "开始传输");
+            // 预览以较低的分辨率和帧率附加到服务中的相机上
+            mService.getCamera().initTexture(mTextureView);
+            Log.i(TAG, "onServiceConnected");
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            mService = null;
+        }
+    };
+
+    // 服务的回调已经在主线程中
+    private final StreamingService.Listener mServiceListener = new StreamingService.Listener() {
+        @Override
+        public void onTransmitStateChanged(boolean transmitting) {
+            isTransmitting = transmitting;
+            myBtn01.setText(transmitting ? "结束传输" : "开始传输");
+        }
+
+        @Override
+        public void onMessage(String message) {
+            displayToast(message);
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -76,20 +90,21 @@ public class MainActivity extends AppCompatActivity {
                 Manifest.permission.INTERNET,
                 Manifest.permission.RECORD_AUDIO,
                 Manifest.permission.WRITE_EXTERNAL_STORAGE,
-                Manifest.permission.READ_EXTERNAL_STORAGE};
+                Manifest.permission.READ_EXTERNAL_STORAGE,
+                Manifest.permission.POST_NOTIFICATIONS};
         // Android 6.0相机动态权限检查
         if (ContextCompat.checkSelfPermission(this, Manifest.permission.CAMERA) != PackageManager.PERMISSION_GRANTED) {
             ActivityCompat.requestPermissions(this, permissions, 1);
         }
-        //创建Camera2Wrapper对象
         mTextureView = findViewById(R.id.preview_view);
-        mCamera2Wrapper = new Camera2Wrapper(this);
-        mCamera2Wrapper.initTexture(mTextureView);
-        //创建初始的编码器mAvcEncoder
-        mAvcEncoder = new AvcEncoder(mWidth, mHeight, mFrameRate, mQP, mBitrate);
 
-        //创建一个线程池，用于socket的使用与释放
-        threadPool = Executors.newFixedThreadPool(100);
+        // 前台服务拥有相机和编码器，Activity关闭后继续运行
+        Intent intent = new Intent(this, StreamingService.class);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            startForegroundService(intent);
+        } else {
+            startService(intent);
+        }
 
         myBtn01 = findViewById(R.id.btn_connect);
         myBtn02 = findViewById(R.id.btn_trans);
@@ -98,55 +113,36 @@ public class MainActivity extends AppCompatActivity {
         myBtn03.setOnClickListener(new Button.OnClickListener() {
             @Override
             public void onClick(View v) {
-                mCamera2Wrapper.switchCamera();
-                displayToast("摄像头切换完成！");
+                if (mService != null) {
+                    mService.switchCamera();
+                }
             }
         });
-
-        // 获得输入框的输入
-        myEdit01 = findViewById(R.id.input_IP);
-        // 打印输入框的输入
-        Log.i(TAG, "初始输入框的内容: " + myEdit01.getText().toString() + "   serverIP: " + serverIP);
-
-        mCamera2Wrapper.setImageDataListener(new Camera2Wrapper.ImageDataListener() {
+        myBtn03.setOnLongClickListener(new View.OnLongClickListener() {
             @Override
-            public void OnImageDataListener(byte[] data) {
-                //Log.d(TAG, "OnImageDataListener start!");
-                if (isTransmitting && mAvcEncoder != null){
-                    ++mFrames;
-                    int ret = mAvcEncoder.offerEncoder(data, mH264Data);
-                    if (ret > 0) {
-                        byte[] sendBuf = new byte[ret];
-                        System.arraycopy(mH264Data, 0, sendBuf, 0, ret);
-                        queue.add(sendBuf);
-                        Log.i(TAG, "队列长度: " + queue.size());
-                    }
-                    Log.d(TAG, "OnImageDataListener: mFrames = " + mFrames + "  ret = " + ret + "  totalSize = " + totalSize);
+            public boolean onLongClick(View v) {
+                if (mService != null) {
+                    mService.toggleSecondCamera();
                 }
-                //Log.d(TAG, "OnImageDataListener end!");
+                return true;
             }
         });
 
+        // 获得输入框的输入
+        myEdit01 = findViewById(R.id.input_IP);
+        // 打印输入框的输入
+        Log.i(TAG, "初始输入框的内容: " + myEdit01.getText().toString() + "   serverIP: " + serverIP);
 
         myBtn01.setOnClickListener(new Button.OnClickListener() {
             @Override
             public void onClick(View v) {
+                if (mService == null) {
+                    return;
+                }
                 if (isTransmitting){
                     isTransmitting = false;
+                    mService.disconnect();
                     myBtn01.setText("开始传输");
-                    try {
-                        if (socket != null && !socket.isClosed()) {
-                            socket.close();
-                        }
-                        socket = null;
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                    if (socketThread != null && socketThread.isAlive()) {
-                        Log.i(TAG, "socketThread " + socketThread.getName() + socketThread.getId() + " is alive!");
-                        socketThread.interrupt();
-                    }
-                    socketThread = null;
                     displayToast("连接断开，传输终止!");
                     Log.i(TAG, "myBtn01 停止传输: " + serverIP + ":" + serverPort);
                 }
@@ -162,65 +158,7 @@ public class MainActivity extends AppCompatActivity {
                         Log.w(TAG, "输入框输入的IP: " + inputIP + "serverIP: " + serverIP);
                         return;
                     }
-
-                    if (socketThread != null && socketThread.isAlive()) {
-                        socketThread.interrupt();
-                    }
-                    socketThread = null;
-                    socketThread = new Thread(new Runnable() {
-                        @Override
-                        public void run() {
-                            try {
-                                socket = new Socket(serverIP, serverPort);
-                                dos = new DataOutputStream(socket.getOutputStream());
-                                isTransmitting = true;
-                                //输出缓冲区大小
-                                Log.i(TAG, "SendBufferSize(): " + socket.getSendBufferSize() + " ReceiveBufferSize(): " + socket.getReceiveBufferSize());
-                                Log.i(TAG, "myBtn01 连接成功: " + serverIP + ":" + serverPort);
-                            } catch (IOException e) {
-                                e.printStackTrace();
-                            }
-                            runOnUiThread(new Runnable() {
-                                @Override
-                                public void run() {
-                                    if (socket == null || socket.isClosed()) {
-                                        displayToast("连接失败，请重试!");
-                                        myBtn01.setText("开始传输");
-                                    } else {
-                                        displayToast("连接成功,开始传输!");
-                                        isTransmitting = true;
-                                        myBtn01.setText("结束传输");
-                                    }
-                                }
-                            });
-
-                            while (isTransmitting) {
-                                if (!queue.isEmpty()) {
-                                    byte[] imageData = queue.poll();
-                                    try {
-                                        assert imageData != null;
-                                        //获得当前时间
-                                        long startTime = System.currentTimeMillis();
-                                        dos.writeInt(imageData.length);
-                                        Log.d(TAG, "视频大小发送时间: " + (System.currentTimeMillis() - startTime));
-                                        dos.flush();
-                                        // 发送视频流数据
-                                        dos.write(imageData);
-                                        Log.d(TAG, "视频流发送时间: " + (System.currentTimeMillis() - startTime));
-                                        dos.flush();
-                                        long endTime = System.currentTimeMillis();
-                                        Log.i(TAG, "队列长度: " + queue.size() + " H264帧大小: " + imageData.length + " 总耗时: " + (endTime - startTime) + "ms");
-                                        totalSize += imageData.length;
-                                        Log.d(TAG, "totalSize:" + totalSize);
-                                    } catch (IOException e) {
-                                        e.printStackTrace();
-                                    }
-                                }
-                            }
-                            queue.clear();
-                        }
-                    }, "VideoTransThread");
-                    socketThread.start();
+                    mService.connect(serverIP);
                 }
             } // 创建监听
         });
@@ -228,14 +166,44 @@ public class MainActivity extends AppCompatActivity {
         myBtn02.setOnClickListener(new Button.OnClickListener() {
             @Override
             public void onClick(View v) {
-                changeConfig(1280, 720, 0, 20);
-                displayToast("配置切换完成！");
+                if (mService != null) {
+                    mService.changeConfig(1280, 720, 0, 20);
+                    displayToast("配置切换完成！");
+                }
             } // 创建监听
         });
 
 
     }
 
+    @Override
+    public void onRequestPermissionsResult(int requestCode, String[] permissions, int[] grantResults) {
+        super.onRequestPermissionsResult(requestCode, permissions, grantResults);
+        // 服务启动时可能还没有相机权限
+        if (mService != null && ContextCompat.checkSelfPermission(this, Manifest.permission.CAMERA)
+                == PackageManager.PERMISSION_GRANTED) {
+            mService.getCamera().openCamera();
+        }
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        bindService(new Intent(this, StreamingService.class), mConnection, BIND_AUTO_CREATE);
+    }
+
+    @Override
+    protected void onStop() {
+        // 退到后台后不再需要预览，服务只输出编码用的ImageReader
+        if (mService != null) {
+            mService.getCamera().detachPreview();
+            mService.setListener(null);
+            mService = null;
+        }
+        unbindService(mConnection);
+        super.onStop();
+    }
+
     // 检查IP地址是否合法
     private boolean checkValidIP(String inputIP) {
 /**
@@ -263,25 +231,6 @@ public class MainActivity extends AppCompatActivity {
         //Looper.loop();
     }
 
-    /**
-     * 改变相机和编码器的参数
-     */
-    public void changeConfig(int width, int height, int qp, int frameRate) {
-        // TODO: 改变相机的各项参数
-        mWidth = width;
-        mHeight = height;
-        mFrameRate = frameRate;
-        mQP = qp;
-        //mBitrate = mWidth * mHeight * mFrameRate;
-        mCamera2Wrapper.closeCamera();
-        mCamera2Wrapper.SetCameraParams(width, height, frameRate);
-        mAvcEncoder.close();
-        mAvcEncoder = null;
-        mAvcEncoder = new AvcEncoder(width, height, frameRate, qp, mBitrate);
-        mCamera2Wrapper.openCamera();
-    }
-
-
     /**
      * 创建菜单
      */
@@ -289,6 +238,11 @@ public class MainActivity extends AppCompatActivity {
         menu.add(0, 0, 0, "系统设置");
         menu.add(0, 1, 1, "关于程序");
         menu.add(0, 2, 2, "退出程序");
+        menu.add(0, 3, 3, "录制/停止录制原始帧");
+        menu.add(0, 4, 4, "发送/停止发送分析缩略图");
+        menu.add(0, 5, 5, "切换TCP/UDP传输");
+        menu.add(0, 6, 6, "局域网浏览器访问 开/关");
+        menu.add(0, 7, 7, "重放/停止重放原始帧");
         return super.onCreateOptionsMenu(menu);
     }
 
@@ -325,10 +279,48 @@ public class MainActivity extends AppCompatActivity {
             break;
             case 2://退出程序
             {
+                stopService(new Intent(this, StreamingService.class));
                 //杀掉线程强制退出
                 android.os.Process.killProcess(android.os.Process.myPid());
             }
             break;
+            case 3://录制原始帧，用于在PC上用TraceReplayer重放
+            {
+                if (mService != null) {
+                    mService.toggleTrace();
+                }
+            }
+            break;
+            case 4://发送缩略图，服务器上的模型不需要解码视频
+            {
+                if (mService != null) {
+                    mService.toggleThumbnails();
+                }
+            }
+            break;
+            case 5://UDP+FEC传输，丢包的Wi-Fi上延迟更稳定，下次连接时生效
+            {
+                if (mService != null) {
+                    boolean useUdp = !mService.isUseUdp();
+                    mService.setUseUdp(useUdp, true);
+                    displayToast((useUdp ? "UDP+FEC" : "TCP") + "传输，重新连接后生效");
+                }
+            }
+            break;
+            case 6://HTTP服务器没有认证，默认只允许本机（adb forward）访问
+            {
+                if (mService != null) {
+                    mService.setHttpServerOnLan(!mService.isHttpServerOnLan());
+                }
+            }
+            break;
+            case 7://用最近录制的原始帧代替相机，在设备上做可重复的性能测试
+            {
+                if (mService != null) {
+                    mService.toggleReplay();
+                }
+            }
+            break;
         }
         return true;
     }
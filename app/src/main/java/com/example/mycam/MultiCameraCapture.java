@@ -0,0 +1,447 @@
+package com.example.mycam;
+
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.util.Range;
+import android.util.Size;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 同时打开多个相机（例如前后摄像头），每个相机有自己的分辨率、帧率和编码器，输出的帧用EncodedFrame.streamId区分，
+ * 交给同一个FrameListener，再由{@link FrameDispatcher}在同一个连接上复用发送。
+ * 只打开CameraManager.getConcurrentCameraIds()中声明可以同时使用的组合（Android 11+），
+ * 这种组合只保证不超过720p的YUV输出。
+ * 所有相机共用一个回调线程和一个取帧/编码线程，编码器共用一个{@link FramePool}，内存占用不随相机个数无限增长。
+ */
+public class MultiCameraCapture {
+    private static final String TAG = "MultiCameraCapture";
+
+    /**
+     * 一路视频流的配置
+     */
+    public static class StreamConfig {
+        public final String cameraId;
+        public final int streamId;
+        public final int width;
+        public final int height;
+        public final int frameRate;
+        public final int bitrate;
+
+        public StreamConfig(String cameraId, int streamId, int width, int height, int frameRate, int bitrate) {
+            this.cameraId = cameraId;
+            this.streamId = streamId;
+            this.width = width;
+            this.height = height;
+            this.frameRate = frameRate;
+            this.bitrate = bitrate;
+        }
+
+        @Override
+        public String toString() {
+            return "camera " + cameraId + " stream " + streamId + " " + width + "x" + height + "@" + frameRate
+                    + " " + bitrate / 1000 + "kbps";
+        }
+    }
+
+    private final Context mContext;
+    private final FramePool mFramePool;
+    private volatile GopConfig mGopConfig;
+    private final AvcEncoder.FrameListener mListener;
+    private volatile AvcEncoder.SeiProvider mSeiProvider;
+    // 相机和会话的回调
+    private final HandlerThread mCameraThread;
+    private final Handler mCameraHandler;
+    // 所有相机的取帧、格式转换和编码
+    private final HandlerThread mFrameThread;
+    private final Handler mFrameHandler;
+    private final ArrayList<Stream> mStreams = new ArrayList<>();
+    // 下游是否需要帧，没有时Image取出后直接关闭，不转换也不编码
+    private volatile boolean mDemand = true;
+    // 时间戳时钟源为SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME的视频流，每一位对应一个streamId
+    private volatile int mRealtimeStreams = 0;
+
+    /**
+     * @param pool     所有编码器共用的输出缓冲池
+     * @param listener 在取帧线程中回调，frame.streamId为StreamConfig.streamId
+     */
+    public MultiCameraCapture(Context context, FramePool pool, GopConfig gop, AvcEncoder.FrameListener listener) {
+        this.mContext = context;
+        this.mFramePool = pool;
+        this.mGopConfig = gop;
+        this.mListener = listener;
+        mCameraThread = new HandlerThread("multi-camera");
+        mCameraThread.start();
+        mCameraHandler = new Handler(mCameraThread.getLooper());
+        mFrameThread = new HandlerThread("multi-camera-frames");
+        mFrameThread.start();
+        mFrameHandler = new Handler(mFrameThread.getLooper());
+    }
+
+    /**
+     * @return 可以同时打开的相机组合，Android 11以下或者不支持时为空
+     */
+    public static List<Set<String>> getConcurrentCameraIds(Context context) {
+        ArrayList<Set<String>> combinations = new ArrayList<>();
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.R) {
+            return combinations;
+        }
+        CameraManager cameraManager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        try {
+            combinations.addAll(cameraManager.getConcurrentCameraIds());
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+        }
+        return combinations;
+    }
+
+    /**
+     * @return cameraIds中的相机是否可以同时打开
+     */
+    public static boolean isConcurrentSupported(Context context, Collection<String> cameraIds) {
+        for (Set<String> combination : getConcurrentCameraIds(context)) {
+            if (combination.containsAll(cameraIds)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param facing CameraCharacteristics.LENS_FACING_*
+     * @return 第一个朝向为facing的相机，没有时返回null
+     */
+    public static String findCameraId(Context context, int facing) {
+        CameraManager cameraManager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        try {
+            for (String id : cameraManager.getCameraIdList()) {
+                Integer lensFacing = cameraManager.getCameraCharacteristics(id).get(CameraCharacteristics.LENS_FACING);
+                if (lensFacing != null && lensFacing == facing) {
+                    return id;
+                }
+            }
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * 打开configs中的所有相机并开始编码
+     *
+     * @param openCameraIds 其他地方已经打开的相机（例如{@link Camera2Wrapper}的预览相机），一起检查能否同时使用
+     * @return 组合不被支持时返回false，不打开任何相机
+     */
+    public synchronized boolean start(StreamConfig[] configs, Collection<String> openCameraIds) {
+        if (!mStreams.isEmpty()) {
+            stop();
+        }
+        Set<String> cameraIds = new HashSet<>(openCameraIds);
+        for (StreamConfig config : configs) {
+            cameraIds.add(config.cameraId);
+        }
+        if (!isConcurrentSupported(mContext, cameraIds)) {
+            Log.w(TAG, "start: cameras " + cameraIds + " can not be opened together, supported: "
+                    + getConcurrentCameraIds(mContext));
+            return false;
+        }
+        for (StreamConfig config : configs) {
+            Stream stream = new Stream(config);
+            mStreams.add(stream);
+            stream.open();
+        }
+        return true;
+    }
+
+    public synchronized void stop() {
+        for (Stream stream : mStreams) {
+            stream.close();
+        }
+        mStreams.clear();
+    }
+
+    public synchronized boolean isRunning() {
+        return !mStreams.isEmpty();
+    }
+
+    /**
+     * 让某一路视频流尽快输出关键帧
+     */
+    public synchronized void requestKeyFrame(int streamId) {
+        for (Stream stream : mStreams) {
+            if (stream.mConfig.streamId == streamId) {
+                stream.requestKeyFrame();
+            }
+        }
+    }
+
+    /**
+     * @return 这一路视频流的时间戳是否为elapsedRealtimeNanos()，否则为nanoTime()
+     */
+    public boolean isTimestampRealtime(int streamId) {
+        return (mRealtimeStreams & (1 << streamId)) != 0;
+    }
+
+    /**
+     * 设置之后打开的视频流的GOP结构，正在运行的视频流不受影响
+     */
+    public void setGopConfig(GopConfig gop) {
+        mGopConfig = gop;
+    }
+
+    /**
+     * 设置之后打开的视频流在每一帧前插入的SEI，frame.streamId区分是哪一路；null表示不插入
+     */
+    public void setSeiProvider(AvcEncoder.SeiProvider provider) {
+        mSeiProvider = provider;
+    }
+
+    /**
+     * 设置下游是否需要帧，例如有没有接收端
+     */
+    public void setDemand(boolean demand) {
+        mDemand = demand;
+    }
+
+    public void release() {
+        stop();
+        mCameraThread.quitSafely();
+        mFrameThread.quitSafely();
+    }
+
+    //从YUV_420_888支持的尺寸中选择面积最接近的
+    private Size chooseSize(String cameraId, int width, int height) {
+        CameraManager cameraManager = (CameraManager) mContext.getSystemService(Context.CAMERA_SERVICE);
+        Size best = new Size(width, height);
+        try {
+            StreamConfigurationMap map = cameraManager.getCameraCharacteristics(cameraId)
+                    .get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+            Size[] sizes = map != null ? map.getOutputSizes(ImageFormat.YUV_420_888) : null;
+            if (sizes == null || sizes.length == 0) {
+                return best;
+            }
+            long target = (long) width * height;
+            long minDiff = Long.MAX_VALUE;
+            for (Size size : sizes) {
+                long diff = Math.abs((long) size.getWidth() * size.getHeight() - target);
+                if (diff < minDiff) {
+                    best = size;
+                    minDiff = diff;
+                }
+            }
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+        }
+        return best;
+    }
+
+    //从相机支持的帧率范围中选择上限不低于frameRate且最接近的，再优先选择下限高的；多出来的帧由FrameDecimator抽掉
+    private Range<Integer> chooseFpsRange(String cameraId, int frameRate) {
+        CameraManager cameraManager = (CameraManager) mContext.getSystemService(Context.CAMERA_SERVICE);
+        Range<Integer> best = null;
+        try {
+            Range<Integer>[] ranges = cameraManager.getCameraCharacteristics(cameraId)
+                    .get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+            if (ranges != null) {
+                for (Range<Integer> range : ranges) {
+                    if (best == null || isBetterFpsRange(range, best, frameRate)) {
+                        best = range;
+                    }
+                }
+            }
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+        }
+        return best != null ? best : new Range<>(frameRate, frameRate);
+    }
+
+    private static boolean isBetterFpsRange(Range<Integer> range, Range<Integer> best, int frameRate) {
+        boolean enough = range.getUpper() >= frameRate;
+        boolean bestEnough = best.getUpper() >= frameRate;
+        if (enough != bestEnough) {
+            return enough;
+        }
+        if (!range.getUpper().equals(best.getUpper())) {
+            // 都够时选上限低的，都不够时选上限高的
+            return enough ? range.getUpper() < best.getUpper() : range.getUpper() > best.getUpper();
+        }
+        return range.getLower() > best.getLower();
+    }
+
+    private boolean isTimestampRealtime(String cameraId) {
+        CameraManager cameraManager = (CameraManager) mContext.getSystemService(Context.CAMERA_SERVICE);
+        try {
+            Integer source = cameraManager.getCameraCharacteristics(cameraId)
+                    .get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+            return source != null && source == CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME;
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    /**
+     * 一个相机：ImageReader -> NV12 -> 编码器
+     */
+    private class Stream implements ImageReader.OnImageAvailableListener {
+        private final StreamConfig mConfig;
+        private Size mSize;
+        private Range<Integer> mFpsRange;
+        private ImageReader mImageReader;
+        private AvcEncoder mEncoder;
+        private byte[] mNv12;
+        private volatile CameraDevice mCameraDevice;
+        private CameraCaptureSession mSession;
+        private volatile boolean mClosed = false;
+        // 并发模式下相机不一定支持配置的帧率，在转换之前抽帧
+        private final FrameDecimator mDecimator = new FrameDecimator();
+
+        Stream(StreamConfig config) {
+            this.mConfig = config;
+            mDecimator.setFrameRate(config.frameRate);
+        }
+
+        void open() {
+            mSize = chooseSize(mConfig.cameraId, mConfig.width, mConfig.height);
+            mFpsRange = chooseFpsRange(mConfig.cameraId, mConfig.frameRate);
+            boolean realtime = isTimestampRealtime(mConfig.cameraId);
+            // open()只在synchronized的start()中调用
+            int bit = 1 << mConfig.streamId;
+            mRealtimeStreams = realtime ? mRealtimeStreams | bit : mRealtimeStreams & ~bit;
+            Log.i(TAG, "open " + mConfig + " size->" + mSize + " fps->" + mFpsRange
+                    + " timestamp realtime->" + realtime);
+            mNv12 = new byte[mSize.getWidth() * mSize.getHeight() * 3 / 2];
+            mEncoder = new AvcEncoder(mSize.getWidth(), mSize.getHeight(), mConfig.frameRate, 0, mConfig.bitrate,
+                    mGopConfig, mFramePool, mConfig.streamId);
+            mEncoder.setSeiProvider(mSeiProvider);
+            mImageReader = ImageReader.newInstance(mSize.getWidth(), mSize.getHeight(), ImageFormat.YUV_420_888, 2);
+            mImageReader.setOnImageAvailableListener(this, mFrameHandler);
+            CameraManager cameraManager = (CameraManager) mContext.getSystemService(Context.CAMERA_SERVICE);
+            try {
+                cameraManager.openCamera(mConfig.cameraId, mStateCallback, mCameraHandler);
+            } catch (CameraAccessException | SecurityException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private final CameraDevice.StateCallback mStateCallback = new CameraDevice.StateCallback() {
+            @Override
+            public void onOpened(@NonNull CameraDevice camera) {
+                Log.i(TAG, "onOpened: camera " + mConfig.cameraId);
+                if (mClosed) {
+                    camera.close();
+                    return;
+                }
+                mCameraDevice = camera;
+                try {
+                    camera.createCaptureSession(Arrays.asList(mImageReader.getSurface()), mSessionCallback, mCameraHandler);
+                } catch (CameraAccessException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            @Override
+            public void onDisconnected(@NonNull CameraDevice camera) {
+                Log.e(TAG, "onDisconnected: camera " + mConfig.cameraId);
+                camera.close();
+                mCameraDevice = null;
+            }
+
+            @Override
+            public void onError(@NonNull CameraDevice camera, int error) {
+                Log.e(TAG, "onError: camera " + mConfig.cameraId + " error:" + error);
+                camera.close();
+                mCameraDevice = null;
+            }
+        };
+
+        private final CameraCaptureSession.StateCallback mSessionCallback = new CameraCaptureSession.StateCallback() {
+            @Override
+            public void onConfigured(CameraCaptureSession session) {
+                CameraDevice camera = mCameraDevice;
+                if (camera == null || mClosed) {
+                    return;
+                }
+                mSession = session;
+                try {
+                    CaptureRequest.Builder builder = camera.createCaptureRequest(CameraDevice.TEMPLATE_RECORD);
+                    builder.addTarget(mImageReader.getSurface());
+                    builder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_ON);
+                    builder.set(CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_VIDEO);
+                    builder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, mFpsRange);
+                    session.setRepeatingRequest(builder.build(), null, mCameraHandler);
+                } catch (CameraAccessException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            @Override
+            public void onConfigureFailed(CameraCaptureSession session) {
+                Log.e(TAG, "onConfigureFailed: camera " + mConfig.cameraId);
+            }
+        };
+
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            Image image = reader.acquireNextImage();
+            if (image == null) {
+                return;
+            }
+            long timestamp = image.getTimestamp();
+            if (!mDemand || !mDecimator.accept(timestamp)) {
+                image.close();
+                return;
+            }
+            boolean converted = ImageUtil.getBytesFromImageAsType(image, ImageUtil.YUV420SP, mNv12);
+            image.close();
+            if (converted && !mClosed) {
+                mEncoder.offerEncoder(mNv12, timestamp / 1000, mListener);
+            }
+        }
+
+        void requestKeyFrame() {
+            AvcEncoder encoder = mEncoder;
+            if (encoder != null) {
+                encoder.requestKeyFrame();
+            }
+        }
+
+        void close() {
+            Log.i(TAG, "close " + mConfig);
+            mClosed = true;
+            final CameraDevice camera = mCameraDevice;
+            mCameraDevice = null;
+            if (camera != null) {
+                camera.close();
+            }
+            // 取帧线程中可能还有没处理完的Image，在它之后关闭ImageReader和编码器
+            mFrameHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mImageReader.close();
+                    mEncoder.close();
+                }
+            });
+        }
+    }
+}
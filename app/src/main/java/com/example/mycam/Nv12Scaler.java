@@ -0,0 +1,381 @@
+package com.example.mycam;
+
+import java.util.concurrent.Executor;
+
+/**
+ * NV12缩小，输入是{@link ImageUtil}转换出的NV12（Y平面后面是交错的UV平面），可以先裁剪出一个区域。
+ * 三种核，逐像素的运算都是整数定点：
+ * <ul>
+ * <li>KERNEL_BOX：每个输出像素取所在位置附近 floor(缩放比) x floor(缩放比) 个像素的平均，乘以预先算好的倒数，最快</li>
+ * <li>KERNEL_BILINEAR：按像素中心对齐的双线性插值，8位权重，缩放比大于2时会有混叠</li>
+ * <li>KERNEL_AREA：按覆盖面积加权平均，边缘的像素按覆盖的比例计入，12位权重，质量最好</li>
+ * </ul>
+ * 坐标和权重表在构造时算好，{@link #scale}和{@link #scaleLuma}不分配内存。
+ * 可以用{@link #setParallelism}把输出按行分成几个条带，在线程池中并行缩放。
+ * 同一个Scaler不能同时在多个线程中调用scale。
+ */
+public class Nv12Scaler {
+    public static final int KERNEL_BOX = 0;
+    public static final int KERNEL_BILINEAR = 1;
+    public static final int KERNEL_AREA = 2;
+
+    private static final int BILINEAR_BITS = 8;
+    private static final int BILINEAR_ONE = 1 << BILINEAR_BITS;
+    private static final int AREA_BITS = 12;
+    private static final int AREA_ONE = 1 << AREA_BITS;
+    // 纵向累加后右移的位数，保证横向再乘12位权重时不溢出int
+    private static final int AREA_ROW_SHIFT = 4;
+    private static final int BOX_RECIPROCAL_BITS = 16;
+
+    /**
+     * 一个方向上每个输出坐标用到的源像素：从start开始的count个，
+     * 权重从weights[weightOffset]开始（AREA），或者frac为与下一个像素插值的权重（BILINEAR）
+     */
+    private static class Axis {
+        final int[] start;
+        final int[] count;
+        final int[] weightOffset;
+        final int[] weights;
+
+        Axis(int[] start, int[] count, int[] weightOffset, int[] weights) {
+            this.start = start;
+            this.count = count;
+            this.weightOffset = weightOffset;
+            this.weights = weights;
+        }
+    }
+
+    private final int mSrcWidth;
+    private final int mSrcHeight;
+    private final int mCropX;
+    private final int mCropY;
+    private final int mCropWidth;
+    private final int mCropHeight;
+    private final int mDstWidth;
+    private final int mDstHeight;
+    private final int mKernel;
+    private final Axis mLumaX;
+    private final Axis mLumaY;
+    private final Axis mChromaX;
+    private final Axis mChromaY;
+    // BOX：1 / (横向个数 * 纵向个数)，亮度和色度各一个
+    private final int mLumaReciprocal;
+    private final int mChromaReciprocal;
+
+    private Executor mExecutor;
+    private StripeTask[] mStripes;
+    private int mPendingStripes;
+
+    public Nv12Scaler(int srcWidth, int srcHeight, int dstWidth, int dstHeight, int kernel) {
+        this(srcWidth, srcHeight, 0, 0, srcWidth, srcHeight, dstWidth, dstHeight, kernel);
+    }
+
+    /**
+     * @param cropX      裁剪区域，x、y、宽、高都必须是偶数，输出宽高也必须是偶数
+     * @param dstWidth   输出宽度，不能大于裁剪宽度（只缩小）
+     */
+    public Nv12Scaler(int srcWidth, int srcHeight, int cropX, int cropY, int cropWidth, int cropHeight,
+                      int dstWidth, int dstHeight, int kernel) {
+        if (((cropX | cropY | cropWidth | cropHeight | dstWidth | dstHeight) & 1) != 0
+                || cropX < 0 || cropY < 0 || cropX + cropWidth > srcWidth || cropY + cropHeight > srcHeight
+                || dstWidth <= 0 || dstHeight <= 0 || dstWidth > cropWidth || dstHeight > cropHeight) {
+            throw new IllegalArgumentException("bad scale " + cropWidth + "x" + cropHeight + "+" + cropX + "+" + cropY
+                    + " of " + srcWidth + "x" + srcHeight + " to " + dstWidth + "x" + dstHeight);
+        }
+        this.mSrcWidth = srcWidth;
+        this.mSrcHeight = srcHeight;
+        this.mCropX = cropX;
+        this.mCropY = cropY;
+        this.mCropWidth = cropWidth;
+        this.mCropHeight = cropHeight;
+        this.mDstWidth = dstWidth;
+        this.mDstHeight = dstHeight;
+        this.mKernel = kernel;
+        mLumaX = createAxis(cropWidth, dstWidth, kernel);
+        mLumaY = createAxis(cropHeight, dstHeight, kernel);
+        mChromaX = createAxis(cropWidth / 2, dstWidth / 2, kernel);
+        mChromaY = createAxis(cropHeight / 2, dstHeight / 2, kernel);
+        mLumaReciprocal = reciprocal(mLumaX.count[0] * mLumaY.count[0]);
+        mChromaReciprocal = reciprocal(mChromaX.count[0] * mChromaY.count[0]);
+        setParallelism(null, 1);
+    }
+
+    /**
+     * 与目标宽高比相同、居中的最大裁剪区域
+     *
+     * @return x, y, width, height，都是偶数
+     */
+    public static int[] centerCrop(int srcWidth, int srcHeight, int dstWidth, int dstHeight) {
+        int width = srcWidth;
+        int height = srcHeight;
+        if ((long) srcWidth * dstHeight > (long) srcHeight * dstWidth) {
+            width = (int) ((long) srcHeight * dstWidth / dstHeight);
+        } else {
+            height = (int) ((long) srcWidth * dstHeight / dstWidth);
+        }
+        width &= ~1;
+        height &= ~1;
+        return new int[]{((srcWidth - width) / 2) & ~1, ((srcHeight - height) / 2) & ~1, width, height};
+    }
+
+    /**
+     * 把输出按行分成stripes个条带，其中stripes - 1个交给executor，一个在调用线程中执行
+     *
+     * @param executor 为null或者stripes <= 1时在调用线程中完成
+     */
+    public void setParallelism(Executor executor, int stripes) {
+        stripes = Math.max(1, Math.min(stripes, mDstHeight / 2));
+        mExecutor = stripes > 1 ? executor : null;
+        if (mExecutor == null) {
+            stripes = 1;
+        }
+        mStripes = new StripeTask[stripes];
+        for (int i = 0; i < stripes; i++) {
+            mStripes[i] = new StripeTask(i, stripes);
+        }
+    }
+
+    public int getWidth() {
+        return mDstWidth;
+    }
+
+    public int getHeight() {
+        return mDstHeight;
+    }
+
+    public int getKernel() {
+        return mKernel;
+    }
+
+    /**
+     * 缩放整个NV12帧
+     *
+     * @param dst 至少getWidth() * getHeight() * 3 / 2字节
+     */
+    public void scale(byte[] src, byte[] dst, int dstOffset) {
+        run(src, dst, dstOffset, true);
+    }
+
+    /**
+     * 只缩放Y平面，输出灰度图
+     *
+     * @param dst 至少getWidth() * getHeight()字节
+     */
+    public void scaleLuma(byte[] src, byte[] dst, int dstOffset) {
+        run(src, dst, dstOffset, false);
+    }
+
+    private void run(byte[] src, byte[] dst, int dstOffset, boolean chroma) {
+        if (src.length < mSrcWidth * mSrcHeight * 3 / 2
+                || dst.length - dstOffset < mDstWidth * mDstHeight * (chroma ? 3 : 2) / 2) {
+            throw new IllegalArgumentException("buffer too small");
+        }
+        StripeTask[] stripes = mStripes;
+        if (stripes.length == 1) {
+            stripes[0].scale(src, dst, dstOffset, chroma);
+            return;
+        }
+        synchronized (this) {
+            mPendingStripes = stripes.length - 1;
+        }
+        for (int i = 1; i < stripes.length; i++) {
+            stripes[i].prepare(src, dst, dstOffset, chroma);
+            mExecutor.execute(stripes[i]);
+        }
+        stripes[0].scale(src, dst, dstOffset, chroma);
+        // 其他条带还在写dst，被中断也要等它们完成
+        boolean interrupted = false;
+        synchronized (this) {
+            while (mPendingStripes > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private synchronized void onStripeDone() {
+        if (--mPendingStripes == 0) {
+            notifyAll();
+        }
+    }
+
+    private class StripeTask implements Runnable {
+        private final int mIndex;
+        private final int mCount;
+        // AREA/BOX纵向累加的一行，色度时宽度为 裁剪宽度/2 * 2
+        private final int[] mRow;
+        private byte[] mSrc;
+        private byte[] mDst;
+        private int mDstOffset;
+        private boolean mChroma;
+
+        StripeTask(int index, int count) {
+            this.mIndex = index;
+            this.mCount = count;
+            this.mRow = new int[mCropWidth];
+        }
+
+        void prepare(byte[] src, byte[] dst, int dstOffset, boolean chroma) {
+            mSrc = src;
+            mDst = dst;
+            mDstOffset = dstOffset;
+            mChroma = chroma;
+        }
+
+        @Override
+        public void run() {
+            try {
+                scale(mSrc, mDst, mDstOffset, mChroma);
+            } finally {
+                mSrc = null;
+                mDst = null;
+                onStripeDone();
+            }
+        }
+
+        void scale(byte[] src, byte[] dst, int dstOffset, boolean chroma) {
+            int yBegin = mDstHeight * mIndex / mCount;
+            int yEnd = mDstHeight * (mIndex + 1) / mCount;
+            scalePlane(src, mCropY * mSrcWidth + mCropX, mSrcWidth, 1, mLumaX, mLumaY, mLumaReciprocal,
+                    dst, dstOffset, mDstWidth, yBegin, yEnd, mRow);
+            if (chroma) {
+                int srcChroma = mSrcWidth * mSrcHeight + mCropY / 2 * mSrcWidth + mCropX;
+                int dstChroma = dstOffset + mDstWidth * mDstHeight;
+                // 色度行数是亮度的一半，条带边界除以2向上取整，保证每个色度行只属于一个条带
+                scalePlane(src, srcChroma, mSrcWidth, 2, mChromaX, mChromaY, mChromaReciprocal,
+                        dst, dstChroma, mDstWidth, (yBegin + 1) / 2, (yEnd + 1) / 2, mRow);
+            }
+        }
+    }
+
+    /**
+     * 缩放一个平面的[yBegin, yEnd)行，channels为2时是交错的UV，两个通道分别计算
+     */
+    private void scalePlane(byte[] src, int srcOffset, int srcStride, int channels, Axis xAxis, Axis yAxis,
+                            int reciprocal, byte[] dst, int dstOffset, int dstStride, int yBegin, int yEnd,
+                            int[] row) {
+        int dstWidth = xAxis.start.length;
+        if (mKernel == KERNEL_BILINEAR) {
+            for (int y = yBegin; y < yEnd; y++) {
+                int top = srcOffset + yAxis.start[y] * srcStride;
+                int bottom = top + yAxis.count[y] * srcStride;
+                int fy = yAxis.weights[y];
+                int out = dstOffset + y * dstStride;
+                for (int x = 0; x < dstWidth; x++) {
+                    int left = xAxis.start[x] * channels;
+                    int right = left + xAxis.count[x] * channels;
+                    int fx = xAxis.weights[x];
+                    for (int c = 0; c < channels; c++) {
+                        int t = (src[top + left + c] & 0xFF) * (BILINEAR_ONE - fx) + (src[top + right + c] & 0xFF) * fx;
+                        int b = (src[bottom + left + c] & 0xFF) * (BILINEAR_ONE - fx) + (src[bottom + right + c] & 0xFF) * fx;
+                        dst[out++] = (byte) ((t * (BILINEAR_ONE - fy) + b * fy + (1 << (2 * BILINEAR_BITS - 1)))
+                                >> (2 * BILINEAR_BITS));
+                    }
+                }
+            }
+            return;
+        }
+        boolean area = mKernel == KERNEL_AREA;
+        for (int y = yBegin; y < yEnd; y++) {
+            // 先纵向累加到row，再横向累加
+            int rows = yAxis.count[y];
+            int first = srcOffset + yAxis.start[y] * srcStride;
+            int columns = (xAxis.start[dstWidth - 1] + xAxis.count[dstWidth - 1]) * channels;
+            int from = xAxis.start[0] * channels;
+            for (int i = from; i < columns; i++) {
+                row[i] = 0;
+            }
+            for (int j = 0; j < rows; j++) {
+                int line = first + j * srcStride;
+                int w = area ? yAxis.weights[yAxis.weightOffset[y] + j] : 1;
+                for (int i = from; i < columns; i++) {
+                    row[i] += (src[line + i] & 0xFF) * w;
+                }
+            }
+            int out = dstOffset + y * dstStride;
+            for (int x = 0; x < dstWidth; x++) {
+                int start = xAxis.start[x] * channels;
+                int count = xAxis.count[x];
+                for (int c = 0; c < channels; c++) {
+                    int sum = 0;
+                    if (area) {
+                        int weight = xAxis.weightOffset[x];
+                        for (int i = 0; i < count; i++) {
+                            sum += (row[start + i * channels + c] >> AREA_ROW_SHIFT) * xAxis.weights[weight + i];
+                        }
+                        dst[out++] = (byte) ((sum + (1 << (2 * AREA_BITS - AREA_ROW_SHIFT - 1)))
+                                >> (2 * AREA_BITS - AREA_ROW_SHIFT));
+                    } else {
+                        for (int i = 0; i < count; i++) {
+                            sum += row[start + i * channels + c];
+                        }
+                        dst[out++] = (byte) ((sum * reciprocal + (1 << (BOX_RECIPROCAL_BITS - 1)))
+                                >> BOX_RECIPROCAL_BITS);
+                    }
+                }
+            }
+        }
+    }
+
+    private static int reciprocal(int count) {
+        return ((1 << BOX_RECIPROCAL_BITS) + count / 2) / count;
+    }
+
+    private static Axis createAxis(int srcLength, int dstLength, int kernel) {
+        int[] start = new int[dstLength];
+        int[] count = new int[dstLength];
+        if (kernel == KERNEL_BILINEAR) {
+            // count为到下一个插值像素的距离（0或1），weights为下一个像素的权重
+            int[] frac = new int[dstLength];
+            long step = ((long) srcLength << 16) / dstLength;
+            long max = (long) (srcLength - 1) << 16;
+            for (int i = 0; i < dstLength; i++) {
+                long position = Math.max(0, Math.min(max, i * step + step / 2 - (1 << 15)));
+                start[i] = (int) (position >> 16);
+                count[i] = start[i] < srcLength - 1 ? 1 : 0;
+                frac[i] = (int) ((position >> (16 - BILINEAR_BITS)) & (BILINEAR_ONE - 1));
+            }
+            return new Axis(start, count, null, frac);
+        } else if (kernel == KERNEL_BOX) {
+            int size = srcLength / dstLength;
+            for (int i = 0; i < dstLength; i++) {
+                // 取输出像素所覆盖区域中间的size个像素
+                int center = (int) (((2L * i + 1) * srcLength) / (2L * dstLength));
+                start[i] = Math.max(0, Math.min(srcLength - size, center - size / 2));
+                count[i] = size;
+            }
+            return new Axis(start, count, null, null);
+        } else if (kernel == KERNEL_AREA) {
+            int[] weightOffset = new int[dstLength];
+            int maxCount = (srcLength + dstLength - 1) / dstLength + 1;
+            int[] weights = new int[dstLength * maxCount];
+            int used = 0;
+            for (int i = 0; i < dstLength; i++) {
+                // 源坐标中覆盖的区间[begin, end)，以1/dstLength为单位，避免浮点
+                long begin = (long) i * srcLength;
+                long end = begin + srcLength;
+                int first = (int) (begin / dstLength);
+                int last = (int) ((end - 1) / dstLength);
+                start[i] = first;
+                count[i] = last - first + 1;
+                weightOffset[i] = used;
+                int assigned = 0;
+                for (int j = first; j <= last; j++) {
+                    // 对累计覆盖长度取整再相减，权重之和正好是AREA_ONE
+                    long covered = Math.min(end, (long) (j + 1) * dstLength) - begin;
+                    int w = (int) ((covered * AREA_ONE + srcLength / 2) / srcLength) - assigned;
+                    weights[used++] = w;
+                    assigned += w;
+                }
+            }
+            return new Axis(start, count, weightOffset, weights);
+        }
+        throw new IllegalArgumentException("unknown kernel " + kernel);
+    }
+}
@@ -0,0 +1,244 @@
+package com.example.mycam;
+
+import java.nio.charset.Charset;
+
+/**
+ * 随H264码流一起传递的每帧元数据，写成 user_data_unregistered（payloadType 5）SEI NAL，
+ * 放在视频帧的slice前面，经过任何转发或录制原始H264的环节都不会和帧分开。
+ * SEI的负载（转义之前，大端序）：
+ * <pre>
+ *  0  uuid               16字节  UUID，区分其他软件写的SEI
+ * 16  version            byte
+ * 17  flags              byte    保留
+ * 18  wallClockMs        long    采集时的系统时间
+ * 26  sensorTimestampNs  long    Image.getTimestamp()
+ * 34  motionScore        int     运动量，含义由上层决定
+ * 38  deviceIdLength     byte
+ * 39  deviceId           UTF-8，不超过MAX_DEVICE_ID字节
+ * </pre>
+ * 写入和解析都不分配内存：{@link #write}直接写到目标数组中，{@link #parse}直接从码流中读取，边读边去掉防竞争字节。
+ */
+public class SeiMessage {
+    public static final int VERSION = 1;
+    public static final int MAX_DEVICE_ID = 32;
+    public static final int PAYLOAD_TYPE_USER_DATA_UNREGISTERED = 5;
+    private static final int FIXED_PAYLOAD_SIZE = 39;
+    /**
+     * 一个SEI NAL（含4字节起始码）的最大长度，最坏情况下每两个字节加一个防竞争字节
+     */
+    public static final int MAX_SIZE = 4 + 1 + 2 + (FIXED_PAYLOAD_SIZE + MAX_DEVICE_ID) * 3 / 2 + 1;
+    public static final byte[] UUID = {
+            (byte) 0x4d, (byte) 0x79, (byte) 0x43, (byte) 0x61, (byte) 0x6d, (byte) 0x53, (byte) 0x45, (byte) 0x49,
+            (byte) 0x8f, (byte) 0x2a, (byte) 0x51, (byte) 0xd6, (byte) 0x0b, (byte) 0x7e, (byte) 0x93, (byte) 0x1c};
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public int version = VERSION;
+    public long wallClockMs;
+    public long sensorTimestampNs;
+    public int motionScore;
+    private final byte[] mDeviceId = new byte[MAX_DEVICE_ID];
+    private int mDeviceIdLength = 0;
+
+    // 写入时的状态：连续0的个数
+    private int mZeros;
+    // 解析时的状态
+    private byte[] mSrc;
+    private int mPos;
+    private int mEnd;
+
+    public void setDeviceId(String deviceId) {
+        byte[] bytes = deviceId.getBytes(UTF_8);
+        mDeviceIdLength = Math.min(bytes.length, MAX_DEVICE_ID);
+        System.arraycopy(bytes, 0, mDeviceId, 0, mDeviceIdLength);
+    }
+
+    /**
+     * 会分配一个String，只在需要时调用
+     */
+    public String getDeviceId() {
+        return new String(mDeviceId, 0, mDeviceIdLength, UTF_8);
+    }
+
+    /**
+     * 写出完整的SEI NAL（00 00 00 01 起始码、NAL头、SEI消息和rbsp_trailing_bits）
+     *
+     * @param dst 至少有MAX_SIZE字节的空间
+     * @return 写入的长度
+     */
+    public int write(byte[] dst, int offset) {
+        int pos = offset;
+        dst[pos++] = 0;
+        dst[pos++] = 0;
+        dst[pos++] = 0;
+        dst[pos++] = 1;
+        dst[pos++] = H264Util.NAL_SEI;
+        dst[pos++] = PAYLOAD_TYPE_USER_DATA_UNREGISTERED;
+        // 负载小于255字节，payloadSize只需要一个字节
+        dst[pos++] = (byte) (FIXED_PAYLOAD_SIZE + mDeviceIdLength);
+        mZeros = 0;
+        for (byte b : UUID) {
+            pos = putEscaped(dst, pos, b);
+        }
+        pos = putEscaped(dst, pos, version);
+        pos = putEscaped(dst, pos, 0);
+        pos = putLong(dst, pos, wallClockMs);
+        pos = putLong(dst, pos, sensorTimestampNs);
+        pos = putInt(dst, pos, motionScore);
+        pos = putEscaped(dst, pos, mDeviceIdLength);
+        for (int i = 0; i < mDeviceIdLength; i++) {
+            pos = putEscaped(dst, pos, mDeviceId[i]);
+        }
+        // rbsp_trailing_bits，同时保证NAL不以0结尾
+        dst[pos++] = (byte) 0x80;
+        return pos - offset;
+    }
+
+    private int putEscaped(byte[] dst, int pos, int value) {
+        int b = value & 0xFF;
+        if (mZeros >= 2 && b <= 3) {
+            dst[pos++] = 3;
+            mZeros = 0;
+        }
+        dst[pos++] = (byte) b;
+        mZeros = b == 0 ? mZeros + 1 : 0;
+        return pos;
+    }
+
+    private int putInt(byte[] dst, int pos, int value) {
+        pos = putEscaped(dst, pos, value >> 24);
+        pos = putEscaped(dst, pos, value >> 16);
+        pos = putEscaped(dst, pos, value >> 8);
+        return putEscaped(dst, pos, value);
+    }
+
+    private int putLong(byte[] dst, int pos, long value) {
+        pos = putInt(dst, pos, (int) (value >> 32));
+        return putInt(dst, pos, (int) value);
+    }
+
+    /**
+     * 在一帧Annex-B码流中查找本软件写的SEI并读出元数据，遇到第一个slice就停止
+     *
+     * @return 是否找到
+     */
+    public boolean parse(byte[] data, int offset, int length) {
+        int end = offset + length;
+        int start = H264Util.findStartCode(data, offset, end);
+        while (start < end) {
+            int nalStart = start + 3;
+            int next = H264Util.findStartCode(data, nalStart, end);
+            if (nalStart < end) {
+                int type = data[nalStart] & 0x1F;
+                if (type == H264Util.NAL_SLICE || type == H264Util.NAL_IDR) {
+                    return false;
+                }
+                if (type == H264Util.NAL_SEI && parseSei(data, nalStart + 1, next)) {
+                    return true;
+                }
+            }
+            start = next;
+        }
+        return false;
+    }
+
+    /**
+     * 解析一个SEI NAL中的所有消息（不含NAL头）
+     */
+    private boolean parseSei(byte[] data, int offset, int end) {
+        mSrc = data;
+        mPos = offset;
+        mEnd = end;
+        mZeros = 0;
+        // 至少还有一个消息头和rbsp_trailing_bits
+        while (mEnd - mPos > 2) {
+            int payloadType = readSeiValue();
+            int payloadSize = readSeiValue();
+            if (payloadType < 0 || payloadSize < 0) {
+                return false;
+            }
+            if (payloadType == PAYLOAD_TYPE_USER_DATA_UNREGISTERED && payloadSize >= FIXED_PAYLOAD_SIZE
+                    && matchUuid()) {
+                return readFields(payloadSize);
+            }
+            for (int i = 0; i < payloadSize; i++) {
+                if (readByte() < 0) {
+                    return false;
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean matchUuid() {
+        for (byte b : UUID) {
+            if (readByte() != (b & 0xFF)) {
+                // 消息已经读了一部分，不能再按其他消息继续解析
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean readFields(int payloadSize) {
+        int version = readByte();
+        readByte(); // flags
+        long wallClockMs = readLong();
+        long sensorTimestampNs = readLong();
+        int motionScore = readInt();
+        int deviceIdLength = readByte();
+        if (version < 0 || deviceIdLength < 0 || deviceIdLength > MAX_DEVICE_ID
+                || FIXED_PAYLOAD_SIZE + deviceIdLength > payloadSize) {
+            return false;
+        }
+        for (int i = 0; i < deviceIdLength; i++) {
+            int b = readByte();
+            if (b < 0) {
+                return false;
+            }
+            mDeviceId[i] = (byte) b;
+        }
+        this.version = version;
+        this.wallClockMs = wallClockMs;
+        this.sensorTimestampNs = sensorTimestampNs;
+        this.motionScore = motionScore;
+        this.mDeviceIdLength = deviceIdLength;
+        return true;
+    }
+
+    /**
+     * 读一个去掉防竞争字节后的字节，数据不够时返回-1
+     */
+    private int readByte() {
+        if (mPos >= mEnd) {
+            return -1;
+        }
+        int b = mSrc[mPos++] & 0xFF;
+        if (mZeros >= 2 && b == 3) {
+            mZeros = 0;
+            if (mPos >= mEnd) {
+                return -1;
+            }
+            b = mSrc[mPos++] & 0xFF;
+        }
+        mZeros = b == 0 ? mZeros + 1 : 0;
+        return b;
+    }
+
+    private int readInt() {
+        return readByte() << 24 | readByte() << 16 | readByte() << 8 | readByte();
+    }
+
+    private long readLong() {
+        return (long) readInt() << 32 | (readInt() & 0xFFFFFFFFL);
+    }
+
+    // payloadType和payloadSize：若干个0xFF加上最后一个字节
+    private int readSeiValue() {
+        int value = 0;
+        int b;
+        while ((b = readByte()) == 0xFF) {
+            value += 255;
+        }
+        return b < 0 ? -1 : value + b;
+    }
+}
@@ -0,0 +1,56 @@
+package com.example.mycam;
+
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+/**
+ * 连接建立后的协议协商：
+ * 新的接收端在accept之后先发送 magic(int) + version(byte) + 3字节保留，
+ * 手机端回复同样格式的hello，其中version为双方都支持的最高版本，版本4起后面跟着设备标识（writeUTF），
+ * 之后每一帧都带{@link FrameHeader}。
+ * 旧的接收端不会发送任何数据，等待超时后退回到旧格式（4字节长度 + H264），手机端也不会发送hello。
+ */
+public class StreamHandshake {
+    private static final String TAG = "StreamHandshake";
+    public static final int LEGACY = 0;
+    public static final int HELLO_SIZE = 8;
+
+    /**
+     * @param deviceId 设备标识，接收端用它区分录像目录，换了IP也不变
+     * @return 协商后的协议版本，旧的接收端返回LEGACY
+     */
+    public static int negotiate(Socket socket, int timeoutMs, String deviceId) throws IOException {
+        int oldTimeout = socket.getSoTimeout();
+        int version = LEGACY;
+        try {
+            socket.setSoTimeout(timeoutMs);
+            DataInputStream dis = new DataInputStream(socket.getInputStream());
+            if (dis.readInt() == FrameHeader.MAGIC) {
+                int serverVersion = dis.readUnsignedByte();
+                dis.skipBytes(3);
+                version = Math.min(serverVersion, FrameHeader.VERSION);
+            }
+        } catch (SocketTimeoutException e) {
+            Log.i(TAG, "no hello from receiver in " + timeoutMs + "ms, use legacy format");
+        } finally {
+            socket.setSoTimeout(oldTimeout);
+        }
+        if (version > LEGACY) {
+            DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+            dos.writeInt(FrameHeader.MAGIC);
+            dos.writeByte(version);
+            dos.write(new byte[3]);
+            if (version >= FrameHeader.VERSION_DEVICE_ID) {
+                dos.writeUTF(deviceId);
+            }
+            dos.flush();
+        }
+        Log.i(TAG, "negotiate version = " + version);
+        return version;
+    }
+}
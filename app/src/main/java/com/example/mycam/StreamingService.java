@@ -0,0 +1,830 @@
+package com.example.mycam;
+
+import androidx.core.app.NotificationCompat;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Intent;
+import android.content.pm.ServiceInfo;
+import android.hardware.camera2.CameraCharacteristics;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.provider.Settings;
+import android.util.Log;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 前台服务：拥有相机、编码器和发送的整条流水线，不需要预览surface，Activity退到后台或者关闭屏幕后继续推流。
+ * Activity通过{@link LocalBinder}绑定，把TextureView交给{@link Camera2Wrapper#initTexture}作为可选的低帧率预览，
+ * 并通过{@link Listener}接收传输状态和提示信息。
+ */
+public class StreamingService extends Service {
+    private static final String TAG = "StreamingService";
+    private static final String CHANNEL_ID = "streaming";
+    private static final int NOTIFICATION_ID = 1;
+
+    /**
+     * 回调都在主线程中执行
+     */
+    public interface Listener {
+        void onTransmitStateChanged(boolean transmitting);
+
+        void onMessage(String message);
+    }
+
+    public class LocalBinder extends Binder {
+        public StreamingService getService() {
+            return StreamingService.this;
+        }
+    }
+
+    private final IBinder mBinder = new LocalBinder();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private Listener mListener;
+
+    private Camera2Wrapper mCamera2Wrapper;
+    // 只在相机线程中创建、替换和关闭，其他线程只调用requestKeyFrame()/setBitrate()
+    private volatile AvcEncoder mAvcEncoder;
+    private ExecutorService threadPool = null;
+    private Socket socket;
+    private int mWidth = 1280;
+    private int mHeight = 720;
+    private int mFrameRate = 30;
+    private int mQP = 0;
+    private int mBitrate = 2500000;
+    // GOP结构：默认每秒一个IDR；设置intraRefreshPeriod后用帧内刷新代替周期性IDR，降低码率尖峰。用changeConfig()修改
+    private GopConfig mGopConfig = new GopConfig();
+
+    private String serverIP = "192.168.123.20";
+    private static final int serverPort = 6010;
+
+    private volatile boolean isTransmitting = false;
+    private long mFrames = 0;
+    // 每一路视频流各自的帧序号
+    private final int[] mSequences = new int[FrameDispatcher.MAX_STREAMS];
+    // 等待接收端hello的时间，超时则使用旧的 4字节长度 + H264 格式
+    private static final int HANDSHAKE_TIMEOUT_MS = 500;
+    // 是否在帧头中带上CRC32校验
+    private boolean mChecksum = false;
+    // 使用UDP代替TCP发送（同样的帧格式），在丢包的Wi-Fi上用FEC代替重传，避免重传带来的延迟尖峰
+    private volatile boolean mUseUdp = false;
+    private volatile boolean mUdpFec = true;
+
+    private DataOutputStream dos;
+    private FrameWriter mFrameWriter;
+    private Thread socketThread = null;
+    // 缓存当前GOP并把编码后的帧分发给各个接收端
+    private FrameDispatcher mDispatcher;
+    // 当前TCP连接的发送队列
+    private FrameSubscriber mSubscriber;
+    // 新接收端的缓存GOP按几倍速发送，0表示不限速
+    private float mBurstSpeed = 0;
+    // 主相机和第二路相机的编码线程都会累加
+    private final AtomicLong totalSize = new AtomicLong();
+    // 根据发热、电量和处理耗时自动调整档位
+    private ThermalGovernor mGovernor;
+    // 浏览器直接访问 http://手机IP:8080/ 观看。服务器没有认证，默认只监听回环地址（adb forward tcp:8080 tcp:8080），
+    // setHttpServerOnLan(true)后才对局域网开放
+    private static final int HTTP_PORT = 8080;
+    private HttpStreamServer mHttpServer;
+    private volatile boolean mHttpOnLan = false;
+    // 有浏览器在播放fMP4时，主编码器临时不输出B帧
+    private volatile boolean mFmp4Streaming = false;
+    // 所有编码器共用的输出缓冲池
+    private final FramePool mFramePool = new FramePool(1280 * 720 / 32, 96);
+    // 同时打开另一个摄像头，作为第二路视频流
+    private static final int SECOND_STREAM_ID = 1;
+    private MultiCameraCapture mMultiCamera;
+    // 原始帧trace文件的大小上限，720p约700帧
+    private static final long TRACE_MAX_BYTES = 1024L * 1024 * 1024;
+    private File mTraceFile;
+    // 在每一帧前插入SEI，带上采集时间、传感器时间戳和设备名，经过转发和录制也不会和帧分开
+    private boolean mSeiEnabled = true;
+    // 粗略的运动量：每一路视频流P帧大小的指数平均，突然变大说明画面在动。每一路只在自己的编码线程中访问
+    private final long[] mMeanPFrameBytes = new long[FrameDispatcher.MAX_STREAMS];
+    // 与接收端同步时钟，把每一帧的采集时间映射到接收端时钟，用于多个相机之间的对齐和延迟统计
+    private static final int CLOCK_SYNC_PORT = serverPort + 1;
+    // 传感器时间戳可能是elapsedRealtimeNanos()也可能是nanoTime()，每个时钟源一个估计器，按帧所属相机选择
+    private final ClockEstimator mRealtimeClock = new ClockEstimator();
+    private final ClockEstimator mMonotonicClock = new ClockEstimator();
+    private ClockSync mClockSync;
+    // 分析用缩略图，默认每秒5帧224x224灰度图，条带并行缩放
+    private static final int THUMBNAIL_SIZE = 224;
+    private static final int THUMBNAIL_FRAME_RATE = 5;
+    private static final int THUMBNAIL_STRIPES = 2;
+    private ThumbnailTap mThumbnailTap;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        Log.i(TAG, "onCreate! ");
+        startForegroundNotification();
+
+        mCamera2Wrapper = new Camera2Wrapper(this);
+        //创建初始的编码器mAvcEncoder，相机选择的实际尺寸不同时在第一帧重建
+        mAvcEncoder = createEncoder(mWidth, mHeight);
+
+        mGovernor = new ThermalGovernor(this, new ThermalGovernor.Level[]{
+                new ThermalGovernor.Level(mWidth, mHeight, mFrameRate, mBitrate),
+                new ThermalGovernor.Level(mWidth, mHeight, 24, mBitrate * 4 / 5),
+                new ThermalGovernor.Level(mWidth, mHeight, 15, mBitrate / 2),
+                new ThermalGovernor.Level(960, 540, 15, mBitrate / 3),
+                new ThermalGovernor.Level(640, 360, 15, mBitrate / 5),
+        }, new ThermalGovernor.Listener() {
+            @Override
+            public void onLevelChanged(final ThermalGovernor.Level from, final ThermalGovernor.Level to, String reason) {
+                mCamera2Wrapper.runOnCameraThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        applyLevel(from, to);
+                    }
+                });
+            }
+        });
+
+        mDispatcher = new FrameDispatcher(mFrameRate * mGopConfig.maxCachedSeconds,
+                mBitrate / 8 * mGopConfig.maxCachedSeconds, new Runnable() {
+            @Override
+            public void run() {
+                AvcEncoder encoder = mAvcEncoder;
+                if (encoder != null) {
+                    encoder.requestKeyFrame();
+                }
+            }
+        });
+
+        mMultiCamera = new MultiCameraCapture(this, mFramePool, mGopConfig, mEncodedFrameListener);
+        if (mSeiEnabled) {
+            mMultiCamera.setSeiProvider(mSeiProvider);
+        }
+        mDispatcher.setKeyFrameRequester(SECOND_STREAM_ID, new Runnable() {
+            @Override
+            public void run() {
+                mMultiCamera.requestKeyFrame(SECOND_STREAM_ID);
+            }
+        });
+
+        // 没有接收端时相机只归还Image，不做转换和编码
+        mDispatcher.setDemandListener(new FrameDispatcher.DemandListener() {
+            @Override
+            public void onDemandChanged(boolean hasSubscribers) {
+                Log.i(TAG, "onDemandChanged: " + hasSubscribers + ", skipped " + mCamera2Wrapper.getSkippedFrames());
+                mCamera2Wrapper.setDemand(hasSubscribers);
+                mMultiCamera.setDemand(hasSubscribers);
+            }
+        });
+
+        startHttpServer();
+
+        //创建一个线程池，用于socket的使用与释放
+        threadPool = Executors.newFixedThreadPool(100);
+
+        mThumbnailTap = new ThumbnailTap(0, mThumbnailListener);
+        mThumbnailTap.configure(THUMBNAIL_SIZE, THUMBNAIL_SIZE, ThumbnailTap.FORMAT_LUMA, Nv12Scaler.KERNEL_AREA,
+                THUMBNAIL_FRAME_RATE);
+        mThumbnailTap.setParallelism(threadPool, THUMBNAIL_STRIPES);
+
+        mCamera2Wrapper.setImageDataListener(new Camera2Wrapper.ImageDataListener() {
+            @Override
+            public void OnImageDataListener(byte[] data, long timestamp) {
+                // 相机实际输出的尺寸，可能与请求的mWidth x mHeight不同
+                int width = mCamera2Wrapper.getFrameWidth();
+                int height = mCamera2Wrapper.getFrameHeight();
+                if (mDispatcher.hasSubscribers()) {
+                    mThumbnailTap.offer(data, width, height, timestamp);
+                }
+                // 有TCP接收端或者浏览器在观看时才编码
+                AvcEncoder encoder = mAvcEncoder;
+                if (mDispatcher.hasSubscribers() && encoder != null){
+                    if (!encoder.matchesSize(width, height)) {
+                        // 在相机线程中重建，编码器只在这个线程中送帧和替换
+                        Log.w(TAG, "OnImageDataListener: requested " + mWidth + "x" + mHeight
+                                + ", camera outputs " + width + "x" + height + ", recreate encoder");
+                        encoder.close();
+                        encoder = createEncoder(width, height);
+                        mAvcEncoder = encoder;
+                    }
+                    ++mFrames;
+                    long encodeStart = System.nanoTime();
+                    int ret = encoder.offerEncoder(data, timestamp / 1000, mEncodedFrameListener);
+                    mGovernor.reportStageTime(ThermalGovernor.STAGE_CONVERT, mCamera2Wrapper.getLastConvertNanos());
+                    mGovernor.reportStageTime(ThermalGovernor.STAGE_ENCODE, System.nanoTime() - encodeStart);
+                    Log.d(TAG, "OnImageDataListener: mFrames = " + mFrames + "  ret = " + ret + "  totalSize = " + totalSize.get());
+                }
+            }
+        });
+        // 没有相机权限时等Activity申请到权限后调用openCamera()
+        mCamera2Wrapper.openCamera();
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        return START_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mBinder;
+    }
+
+    @Override
+    public void onDestroy() {
+        Log.i(TAG, "onDestroy");
+        disconnect();
+        if (mHttpServer != null) {
+            mHttpServer.stop();
+            mHttpServer = null;
+        }
+        mMultiCamera.release();
+        mThumbnailTap.setEnabled(false);
+        if (mCamera2Wrapper.isTracing()) {
+            mCamera2Wrapper.stopTrace();
+        }
+        // 相机线程退出前先处理完已经提交的回调，再关闭编码器
+        mCamera2Wrapper.runOnCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                if (mAvcEncoder != null) {
+                    mAvcEncoder.close();
+                    mAvcEncoder = null;
+                }
+            }
+        });
+        mCamera2Wrapper.release();
+        mGovernor.release();
+        // 缩略图的条带也在这个线程池中执行，相机关闭后不会再有新的任务
+        threadPool.shutdownNow();
+        super.onDestroy();
+    }
+
+    private void startForegroundNotification() {
+        NotificationManager manager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            manager.createNotificationChannel(new NotificationChannel(CHANNEL_ID, "推流",
+                    NotificationManager.IMPORTANCE_LOW));
+        }
+        PendingIntent contentIntent = PendingIntent.getActivity(this, 0, new Intent(this, MainActivity.class),
+                PendingIntent.FLAG_IMMUTABLE);
+        Notification notification = new NotificationCompat.Builder(this, CHANNEL_ID)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText("正在后台采集和发送视频")
+                .setSmallIcon(R.mipmap.ic_launcher)
+                .setContentIntent(contentIntent)
+                .setOngoing(true)
+                .setPriority(NotificationCompat.PRIORITY_LOW)
+                .build();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            startForeground(NOTIFICATION_ID, notification, ServiceInfo.FOREGROUND_SERVICE_TYPE_CAMERA);
+        } else {
+            startForeground(NOTIFICATION_ID, notification);
+        }
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public Camera2Wrapper getCamera() {
+        return mCamera2Wrapper;
+    }
+
+    public boolean isTransmitting() {
+        return isTransmitting;
+    }
+
+    private void notifyState(final boolean transmitting) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mListener != null) {
+                    mListener.onTransmitStateChanged(transmitting);
+                }
+            }
+        });
+    }
+
+    private void notifyMessage(final String message) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mListener != null) {
+                    mListener.onMessage(message);
+                }
+            }
+        });
+    }
+
+    /**
+     * 连接接收端并开始传输
+     */
+    public void connect(String ip) {
+        serverIP = ip;
+        if (socketThread != null && socketThread.isAlive()) {
+            socketThread.interrupt();
+        }
+        socketThread = null;
+        startClockSync();
+        socketThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                if (mUseUdp) {
+                    runUdpTransport();
+                    return;
+                }
+                try {
+                    socket = new Socket(serverIP, serverPort);
+                    dos = new DataOutputStream(socket.getOutputStream());
+                    int version = StreamHandshake.negotiate(socket, HANDSHAKE_TIMEOUT_MS, getDeviceId());
+                    mFrameWriter = new FrameWriter(dos, version, mChecksum);
+                    if (version > StreamHandshake.LEGACY) {
+                        threadPool.execute(new ControlChannel(socket.getInputStream(), mControlListener));
+                    }
+                    // 新的接收端先收到缓存的GOP，缓存为空时会请求编码器输出关键帧
+                    mSubscriber = new FrameSubscriber("tcp " + serverIP, mFrameWriter, mBurstSpeed);
+                    mDispatcher.subscribe(mSubscriber);
+                    isTransmitting = true;
+                    //输出缓冲区大小
+                    Log.i(TAG, "SendBufferSize(): " + socket.getSendBufferSize() + " ReceiveBufferSize(): " + socket.getReceiveBufferSize());
+                    Log.i(TAG, "connect 连接成功: " + serverIP + ":" + serverPort);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                if (socket == null || socket.isClosed()) {
+                    notifyMessage("连接失败，请重试!");
+                    notifyState(false);
+                } else {
+                    notifyMessage("连接成功,开始传输!");
+                    mGovernor.start();
+                    notifyState(true);
+                }
+
+                FrameSubscriber subscriber = mSubscriber;
+                while (isTransmitting && subscriber != null) {
+                    try {
+                        //获得当前时间
+                        long startTime = System.currentTimeMillis();
+                        // 发送帧头（或旧格式的长度）和视频流数据
+                        if (subscriber.sendNext(100)) {
+                            long endTime = System.currentTimeMillis();
+                            Log.i(TAG, "队列长度: " + subscriber.getQueueDepth() + " 总耗时: " + (endTime - startTime) + "ms");
+                        }
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+                if (subscriber != null) {
+                    mDispatcher.unsubscribe(subscriber);
+                }
+                // 没有接收端后编码器不再输出，缓存的GOP已经过时
+                if (!mDispatcher.hasSubscribers()) {
+                    mDispatcher.clearCache();
+                }
+            }
+        }, "VideoTransThread");
+        socketThread.start();
+    }
+
+    /**
+     * 停止传输并断开连接
+     */
+    public void disconnect() {
+        isTransmitting = false;
+        mGovernor.stop();
+        try {
+            if (socket != null && !socket.isClosed()) {
+                socket.close();
+            }
+            socket = null;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (socketThread != null && socketThread.isAlive()) {
+            Log.i(TAG, "socketThread " + socketThread.getName() + socketThread.getId() + " is alive!");
+            socketThread.interrupt();
+        }
+        socketThread = null;
+        stopClockSync();
+        Log.i(TAG, "disconnect 停止传输: " + serverIP + ":" + serverPort);
+    }
+
+    // 换了接收端时之前的样本不再有效
+    private void startClockSync() {
+        stopClockSync();
+        mRealtimeClock.reset();
+        mMonotonicClock.reset();
+        mClockSync = new ClockSync(serverIP, CLOCK_SYNC_PORT, mRealtimeClock, mMonotonicClock);
+        mClockSync.start();
+    }
+
+    /**
+     * 帧所属相机的时间戳时钟源对应的估计器，相机切换后自动跟随
+     */
+    private ClockEstimator clockFor(int streamId) {
+        return isTimestampRealtime(streamId) ? mRealtimeClock : mMonotonicClock;
+    }
+
+    // 传感器时间戳的时钟源：SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME时与elapsedRealtimeNanos()相同，否则是nanoTime()
+    private boolean isTimestampRealtime(int streamId) {
+        return streamId == 0 ? mCamera2Wrapper.isTimestampRealtime() : mMultiCamera.isTimestampRealtime(streamId);
+    }
+
+    private void stopClockSync() {
+        if (mClockSync != null) {
+            mClockSync.stop();
+            mClockSync = null;
+        }
+    }
+
+    /**
+     * 在发送线程中通过UDP发送，直到停止传输
+     */
+    private void runUdpTransport() {
+        UdpTransport transport = null;
+        FrameSubscriber subscriber = null;
+        try {
+            transport = new UdpTransport(serverIP, serverPort, mUdpFec, mChecksum);
+            subscriber = new FrameSubscriber("udp " + serverIP, transport.getFrameWriter(), mBurstSpeed);
+            mSubscriber = subscriber;
+            mDispatcher.subscribe(subscriber);
+            isTransmitting = true;
+            Log.i(TAG, "runUdpTransport: " + serverIP + ":" + serverPort + " fec = " + mUdpFec);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (subscriber != null) {
+            notifyMessage("开始UDP传输!");
+            mGovernor.start();
+            notifyState(true);
+        } else {
+            notifyMessage("连接失败，请重试!");
+            notifyState(false);
+        }
+        while (isTransmitting && subscriber != null) {
+            try {
+                subscriber.sendNext(100);
+            } catch (IOException e) {
+                // UDP发送失败（例如网络切换）不结束传输
+                e.printStackTrace();
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        if (subscriber != null) {
+            mDispatcher.unsubscribe(subscriber);
+            if (!mDispatcher.hasSubscribers()) {
+                mDispatcher.clearCache();
+            }
+        }
+        if (transport != null) {
+            FecEncoder fec = transport.getFecEncoder();
+            Log.i(TAG, "runUdpTransport: " + fec.getMediaPackets() + " media packets, "
+                    + fec.getParityPackets() + " parity packets");
+            transport.close();
+        }
+    }
+
+    // 编码器输出的帧，分发给各个接收端后释放自己的引用
+    private final AvcEncoder.FrameListener mEncodedFrameListener = new AvcEncoder.FrameListener() {
+        @Override
+        public void onEncodedFrame(EncodedFrame frame) {
+            frame.sequence = mSequences[frame.streamId]++;
+            clockFor(frame.streamId).stamp(frame);
+            totalSize.addAndGet(frame.getPayloadLength());
+            mDispatcher.dispatch(frame);
+            frame.release();
+            mGovernor.reportQueueDepth(mDispatcher.getMaxQueueDepth());
+        }
+    };
+
+    // 缩略图有自己的sequence，不经过编码器，只映射时钟后分发
+    private final AvcEncoder.FrameListener mThumbnailListener = new AvcEncoder.FrameListener() {
+        @Override
+        public void onEncodedFrame(EncodedFrame frame) {
+            clockFor(frame.streamId).stamp(frame);
+            mDispatcher.dispatch(frame);
+            frame.release();
+        }
+    };
+
+    // 接收端通过控制通道发来的请求
+    private final ControlChannel.Listener mControlListener = new ControlChannel.Listener() {
+        @Override
+        public void onStillRequest(final int requestId, long timestamp, final int format, int quality, int[] crop) {
+            Log.i(TAG, "onStillRequest: id = " + requestId + " timestamp = " + timestamp + " format = " + format);
+            FrameWriter writer = mFrameWriter;
+            if (writer == null || writer.getVersion() < FrameHeader.VERSION_STREAMS) {
+                // 回复会被FrameWriter过滤掉，不必取帧和编码
+                Log.w(TAG, "onStillRequest: receiver version does not support stills");
+                return;
+            }
+            mCamera2Wrapper.requestStill(timestamp, format, quality, crop, new Camera2Wrapper.StillCallback() {
+                @Override
+                public void onStill(long timestamp, EncodedFrame still) {
+                    // 找不到时回复一个空的静态图，接收端据此知道请求失败
+                    if (still == null) {
+                        still = new EncodedFrame(format, new byte[0], 0, requestId, timestamp, 0, 0);
+                    }
+                    still.sequence = requestId;
+                    FrameSubscriber subscriber = mSubscriber;
+                    if (subscriber != null) {
+                        mDispatcher.dispatchTo(subscriber, still);
+                    }
+                    still.release();
+                }
+            });
+        }
+
+        @Override
+        public void onKeyFrameRequest() {
+            Log.i(TAG, "onKeyFrameRequest");
+            // 命令不带streamId，所有正在输出的视频流都尽快输出关键帧
+            mDispatcher.requestKeyFrame(0);
+            mDispatcher.requestKeyFrame(SECOND_STREAM_ID);
+        }
+    };
+
+    /**
+     * 改变相机和编码器的参数，GOP结构不变，在相机线程中执行
+     */
+    public void changeConfig(int width, int height, int qp, int frameRate) {
+        changeConfig(width, height, qp, frameRate, null);
+    }
+
+    /**
+     * 改变相机和编码器的参数以及GOP结构，在相机线程中执行
+     *
+     * @param gop 新的GOP结构，调用后不要再修改；null表示不变
+     */
+    public void changeConfig(final int width, final int height, final int qp, final int frameRate, final GopConfig gop) {
+        mCamera2Wrapper.runOnCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                reconfigure(width, height, qp, frameRate, gop != null ? gop : mGopConfig);
+            }
+        });
+    }
+
+    /**
+     * 重启相机并重建编码器，只在相机线程中调用：与图像回调串行，回调不会拿到正在关闭的编码器
+     */
+    private void reconfigure(int width, int height, int qp, int frameRate, GopConfig gop) {
+        Log.i(TAG, "reconfigure: " + width + "x" + height + "@" + frameRate + " qp " + qp + " " + gop);
+        mWidth = width;
+        mHeight = height;
+        mFrameRate = frameRate;
+        mQP = qp;
+        mGopConfig = gop;
+        // 第二路相机下次打开时使用新的GOP结构
+        mMultiCamera.setGopConfig(gop);
+        mDispatcher.setCacheLimits(frameRate * gop.maxCachedSeconds, mBitrate / 8 * gop.maxCachedSeconds);
+        mCamera2Wrapper.closeCamera();
+        mCamera2Wrapper.SetCameraParams(width, height, frameRate);
+        if (mAvcEncoder != null) {
+            mAvcEncoder.close();
+        }
+        mAvcEncoder = createEncoder(width, height);
+        mCamera2Wrapper.openCamera();
+    }
+
+    /**
+     * 发给接收端的设备标识：型号 + ANDROID_ID，同型号的多台手机也能区分，重新连接或者换了IP也不变。
+     * hello和SEI中使用同一个标识（UDP上只有SEI），型号过长时截短，保证SEI中放得下
+     */
+    private String getDeviceId() {
+        String androidId = Settings.Secure.getString(getContentResolver(), Settings.Secure.ANDROID_ID);
+        String suffix = androidId != null ? "-" + androidId : "";
+        String model = Build.MODEL;
+        int maxModel = Math.max(0, SeiMessage.MAX_DEVICE_ID - suffix.length());
+        if (model.length() > maxModel) {
+            model = model.substring(0, maxModel);
+        }
+        return model + suffix;
+    }
+
+    private AvcEncoder createEncoder(int width, int height) {
+        GopConfig gop = mFmp4Streaming && mGopConfig.maxBFrames > 0 ? mGopConfig.withMaxBFrames(0) : mGopConfig;
+        AvcEncoder encoder = new AvcEncoder(width, height, mFrameRate, mQP, mBitrate, gop, mFramePool, 0);
+        if (mSeiEnabled) {
+            encoder.setSeiProvider(mSeiProvider);
+        }
+        return encoder;
+    }
+
+    private final AvcEncoder.SeiProvider mSeiProvider = new AvcEncoder.SeiProvider() {
+        @Override
+        public boolean onSei(EncodedFrame frame, SeiMessage message) {
+            // 每个编码器的第一帧
+            if (message.sensorTimestampNs == 0) {
+                message.setDeviceId(getDeviceId());
+            }
+            long nowNs = isTimestampRealtime(frame.streamId) ? SystemClock.elapsedRealtimeNanos() : System.nanoTime();
+            message.wallClockMs = System.currentTimeMillis() - (nowNs - frame.captureTimeNs) / 1000000;
+            message.sensorTimestampNs = frame.captureTimeNs;
+            if (!frame.isKeyFrame()) {
+                long mean = mMeanPFrameBytes[frame.streamId];
+                // 第一个P帧直接作为平均值，否则从0开始要几十帧才能收敛，这期间运动量一直偏高
+                mean = mean > 0 ? mean + (frame.length - mean) / 16 : frame.length;
+                mMeanPFrameBytes[frame.streamId] = mean;
+                message.motionScore = mean > 0 ? (int) (frame.length * 100 / mean) : 100;
+            }
+            return true;
+        }
+    };
+
+    /**
+     * 切换前后摄像头，第二路相机可能正是要切换到的那一个，先关闭它
+     */
+    public void switchCamera() {
+        if (mMultiCamera.isRunning()) {
+            toggleSecondCamera();
+        }
+        mCamera2Wrapper.switchCamera();
+        notifyMessage("摄像头切换完成！");
+    }
+
+    /**
+     * 同时打开与主相机朝向相反的摄像头，作为第二路视频流；已经打开时关闭它
+     */
+    public void toggleSecondCamera() {
+        if (mMultiCamera.isRunning()) {
+            mMultiCamera.stop();
+            mDispatcher.clearCache(SECOND_STREAM_ID);
+            notifyMessage("已关闭第二路摄像头");
+            return;
+        }
+        String primaryId = mCamera2Wrapper.getCameraId();
+        String frontId = MultiCameraCapture.findCameraId(this, CameraCharacteristics.LENS_FACING_FRONT);
+        String backId = MultiCameraCapture.findCameraId(this, CameraCharacteristics.LENS_FACING_BACK);
+        String secondId = primaryId.equals(frontId) ? backId : frontId;
+        if (secondId == null) {
+            notifyMessage("没有找到第二个摄像头");
+            return;
+        }
+        MultiCameraCapture.StreamConfig config = new MultiCameraCapture.StreamConfig(secondId, SECOND_STREAM_ID,
+                640, 480, 15, mBitrate / 3);
+        if (mMultiCamera.start(new MultiCameraCapture.StreamConfig[]{config}, Collections.singletonList(primaryId))) {
+            notifyMessage("已打开第二路摄像头");
+        } else {
+            notifyMessage("设备不支持同时打开前后摄像头");
+        }
+    }
+
+    /**
+     * 开始或停止录制原始帧，用于在PC上或者用{@link #toggleReplay}在设备上重放
+     */
+    public void toggleTrace() {
+        if (mCamera2Wrapper.isTracing()) {
+            mCamera2Wrapper.stopTrace();
+            notifyMessage("原始帧已保存: " + mTraceFile);
+        } else {
+            mTraceFile = new File(getExternalFilesDir(null), "trace-" + System.currentTimeMillis() + ".mctr");
+            mCamera2Wrapper.startTrace(mTraceFile, TRACE_MAX_BYTES);
+            notifyMessage("开始录制原始帧");
+        }
+    }
+
+    /**
+     * 开始或停止在设备上循环重放最近录制的trace，代替相机的帧，用于可重复的性能测试
+     */
+    public void toggleReplay() {
+        if (mCamera2Wrapper.isReplaying()) {
+            mCamera2Wrapper.stopReplay();
+            notifyMessage("已停止重放，重新打开相机");
+            return;
+        }
+        File latest = null;
+        File[] files = getExternalFilesDir(null).listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().startsWith("trace-") && file.getName().endsWith(".mctr")
+                        && (latest == null || file.lastModified() > latest.lastModified())) {
+                    latest = file;
+                }
+            }
+        }
+        if (latest == null) {
+            notifyMessage("没有录制的原始帧");
+            return;
+        }
+        if (mCamera2Wrapper.isTracing()) {
+            mCamera2Wrapper.stopTrace();
+        }
+        mCamera2Wrapper.startReplay(latest, Integer.MAX_VALUE);
+        notifyMessage("开始重放: " + latest.getName());
+    }
+
+    /**
+     * 让局域网内的浏览器可以访问HTTP服务器（没有认证），false时只监听回环地址
+     */
+    public void setHttpServerOnLan(boolean onLan) {
+        if (mHttpOnLan == onLan) {
+            return;
+        }
+        mHttpOnLan = onLan;
+        if (mHttpServer != null) {
+            mHttpServer.stop();
+        }
+        startHttpServer();
+        notifyMessage(onLan ? "HTTP服务器已对局域网开放" : "HTTP服务器只允许本机访问");
+    }
+
+    public boolean isHttpServerOnLan() {
+        return mHttpOnLan;
+    }
+
+    private void startHttpServer() {
+        mHttpServer = new HttpStreamServer(mHttpOnLan ? null : InetAddress.getLoopbackAddress(), HTTP_PORT,
+                mDispatcher, Fmp4Muxer.MODE_FRAME);
+        mHttpServer.setListener(new HttpStreamServer.Listener() {
+            @Override
+            public void onStreamingChanged(final boolean streaming) {
+                mCamera2Wrapper.runOnCameraThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        setFmp4Streaming(streaming);
+                    }
+                });
+            }
+        });
+        try {
+            mHttpServer.start();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Fmp4Muxer不写composition time offset：配置了B帧时，浏览器播放期间用不带B帧的参数重建主编码器，
+     * 最后一个浏览器断开后恢复。在相机线程中调用
+     */
+    private void setFmp4Streaming(boolean streaming) {
+        if (mFmp4Streaming == streaming) {
+            return;
+        }
+        mFmp4Streaming = streaming;
+        if (mGopConfig.maxBFrames == 0 || mAvcEncoder == null) {
+            return;
+        }
+        Log.i(TAG, "setFmp4Streaming: " + streaming + ", maxBFrames " + (streaming ? 0 : mGopConfig.maxBFrames));
+        mAvcEncoder.close();
+        // 新编码器的第一帧是IDR，Fmp4Muxer从这里开始
+        mAvcEncoder = createEncoder(mWidth, mHeight);
+    }
+
+    /**
+     * 在TCP和UDP+FEC之间切换，下一次connect()时生效；接收端需要用UdpStreamReceiver在同一个端口上接收
+     */
+    public void setUseUdp(boolean useUdp, boolean fec) {
+        mUseUdp = useUdp;
+        mUdpFec = fec;
+        Log.i(TAG, "setUseUdp: " + useUdp + " fec = " + fec);
+    }
+
+    public boolean isUseUdp() {
+        return mUseUdp;
+    }
+
+    /**
+     * 开始或停止发送分析用的缩略图
+     */
+    public void toggleThumbnails() {
+        mThumbnailTap.setEnabled(!mThumbnailTap.isEnabled());
+        notifyMessage(mThumbnailTap.isEnabled() ? "开始发送缩略图" : "已停止发送缩略图");
+    }
+
+    /**
+     * 应用温控档位：分辨率不变时只修改相机帧率和编码器码率，不重启相机和编码器。在相机线程中调用
+     */
+    private void applyLevel(ThermalGovernor.Level from, ThermalGovernor.Level to) {
+        mBitrate = to.bitrate;
+        if (from.sameSize(to) && mCamera2Wrapper.SetCameraParams(to.width, to.height, to.frameRate)) {
+            mFrameRate = to.frameRate;
+            // 相机不一定支持这个帧率（AE帧率范围），按时间戳抽帧保证编码器的输入帧率
+            mCamera2Wrapper.setOutputFrameRate(to.frameRate);
+            AvcEncoder encoder = mAvcEncoder;
+            if (encoder != null) {
+                encoder.setBitrate(to.bitrate);
+            }
+        } else {
+            reconfigure(to.width, to.height, mQP, to.frameRate, mGopConfig);
+        }
+    }
+}
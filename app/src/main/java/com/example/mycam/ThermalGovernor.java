@@ -0,0 +1,229 @@
+package com.example.mycam;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.PowerManager;
+import android.util.Log;
+
+/**
+ * 根据温控状态、电池电量/温度、每一级处理耗时和发送队列长度，逐级调整采集和编码的档位（分辨率、帧率、码率）。
+ * 降档快、升档慢，并且降档和升档使用不同的阈值，避免在两个档位之间来回切换。
+ * 每一次换档都会通过Listener通知调用者去修改相机和编码器，并记录一条日志。
+ */
+public class ThermalGovernor {
+    private static final String TAG = "ThermalGovernor";
+
+    public static final int STAGE_CONVERT = 0;
+    public static final int STAGE_ENCODE = 1;
+    private static final int STAGE_COUNT = 2;
+
+    // 每隔多久评估一次
+    private static final long EVALUATE_INTERVAL_MS = 2000;
+    // 持续有压力多久后降一档
+    private static final long STEP_DOWN_HOLD_MS = 6000;
+    // 持续空闲多久后升一档
+    private static final long STEP_UP_HOLD_MS = 60000;
+    // 降档阈值
+    private static final float HOT_TEMPERATURE = 45.0f;
+    private static final float BUSY_RATIO = 0.8f;
+    private static final int BUSY_QUEUE = 15;
+    private static final int LOW_BATTERY = 15;
+    // 升档阈值
+    private static final float COOL_TEMPERATURE = 40.0f;
+    private static final float IDLE_RATIO = 0.5f;
+    private static final int IDLE_QUEUE = 3;
+
+    /**
+     * 一个档位
+     */
+    public static class Level {
+        public final int width;
+        public final int height;
+        public final int frameRate;
+        public final int bitrate;
+
+        public Level(int width, int height, int frameRate, int bitrate) {
+            this.width = width;
+            this.height = height;
+            this.frameRate = frameRate;
+            this.bitrate = bitrate;
+        }
+
+        public boolean sameSize(Level other) {
+            return width == other.width && height == other.height;
+        }
+
+        @Override
+        public String toString() {
+            return width + "x" + height + "@" + frameRate + " " + bitrate / 1000 + "kbps";
+        }
+    }
+
+    public interface Listener {
+        /**
+         * 在governor线程中回调，调用者负责把新档位应用到相机和编码器
+         */
+        void onLevelChanged(Level from, Level to, String reason);
+    }
+
+    private final Context mContext;
+    private final Level[] mLevels;
+    private final Listener mListener;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private int mLevel = 0;
+    private long mPressureSince = 0;
+    private long mIdleSince = 0;
+
+    // 每一级处理耗时的指数平均（纳秒）
+    private final long[] mStageNanos = new long[STAGE_COUNT];
+    private volatile int mQueueDepth = 0;
+
+    private final Runnable mEvaluateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            evaluate();
+            mHandler.postDelayed(this, EVALUATE_INTERVAL_MS);
+        }
+    };
+
+    /**
+     * @param levels 从高到低排列的档位，levels[0]为初始档位
+     */
+    public ThermalGovernor(Context context, Level[] levels, Listener listener) {
+        this.mContext = context;
+        this.mLevels = levels;
+        this.mListener = listener;
+        mThread = new HandlerThread("governor");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    public void start() {
+        mHandler.removeCallbacks(mEvaluateRunnable);
+        mHandler.postDelayed(mEvaluateRunnable, EVALUATE_INTERVAL_MS);
+    }
+
+    public void stop() {
+        mHandler.removeCallbacks(mEvaluateRunnable);
+    }
+
+    public void release() {
+        stop();
+        mThread.quitSafely();
+    }
+
+    public Level getLevel() {
+        return mLevels[mLevel];
+    }
+
+    /**
+     * 记录某一级处理一帧的耗时，可在任意线程调用
+     */
+    public void reportStageTime(int stage, long nanos) {
+        synchronized (mStageNanos) {
+            long old = mStageNanos[stage];
+            mStageNanos[stage] = old == 0 ? nanos : old + (nanos - old) / 8;
+        }
+    }
+
+    public void reportQueueDepth(int depth) {
+        mQueueDepth = depth;
+    }
+
+    private int getThermalStatus() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            PowerManager powerManager = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
+            if (powerManager != null) {
+                return powerManager.getCurrentThermalStatus();
+            }
+        }
+        return PowerManager.THERMAL_STATUS_NONE;
+    }
+
+    private void evaluate() {
+        Level level = mLevels[mLevel];
+        int thermal = getThermalStatus();
+        // ACTION_BATTERY_CHANGED是粘性广播，不需要真正注册receiver
+        Intent battery = mContext.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        int batteryPercent = 100;
+        float temperature = 0;
+        boolean plugged = true;
+        if (battery != null) {
+            int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, 100);
+            batteryPercent = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, scale) * 100 / Math.max(1, scale);
+            temperature = battery.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, 0) / 10.0f;
+            plugged = battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+        }
+        long busyNanos;
+        synchronized (mStageNanos) {
+            busyNanos = mStageNanos[STAGE_CONVERT] + mStageNanos[STAGE_ENCODE];
+        }
+        float busyRatio = busyNanos / (1e9f / level.frameRate);
+        int queueDepth = mQueueDepth;
+
+        String pressure = null;
+        if (thermal >= PowerManager.THERMAL_STATUS_SEVERE) {
+            pressure = "thermal status " + thermal;
+        } else if (temperature >= HOT_TEMPERATURE) {
+            pressure = "battery temperature " + temperature;
+        } else if (!plugged && batteryPercent <= LOW_BATTERY) {
+            pressure = "battery level " + batteryPercent + "%";
+        } else if (busyRatio >= BUSY_RATIO) {
+            pressure = "frame time " + busyNanos / 1000 + "us busy " + busyRatio;
+        } else if (queueDepth >= BUSY_QUEUE) {
+            pressure = "queue depth " + queueDepth;
+        }
+        boolean idle = thermal <= PowerManager.THERMAL_STATUS_LIGHT
+                && temperature < COOL_TEMPERATURE
+                && (plugged || batteryPercent > LOW_BATTERY * 2)
+                && busyRatio < IDLE_RATIO
+                && queueDepth <= IDLE_QUEUE;
+        Log.d(TAG, "evaluate: level = " + level + " thermal = " + thermal + " battery = " + batteryPercent
+                + "% " + temperature + "C busy = " + busyRatio + " queue = " + queueDepth);
+
+        long now = System.currentTimeMillis();
+        if (pressure != null) {
+            mIdleSince = 0;
+            if (mPressureSince == 0) {
+                mPressureSince = now;
+            }
+            if (now - mPressureSince >= STEP_DOWN_HOLD_MS && mLevel < mLevels.length - 1) {
+                step(mLevel + 1, pressure);
+                mPressureSince = now;
+            }
+        } else if (idle) {
+            mPressureSince = 0;
+            if (mIdleSince == 0) {
+                mIdleSince = now;
+            }
+            if (now - mIdleSince >= STEP_UP_HOLD_MS && mLevel > 0) {
+                step(mLevel - 1, "idle for " + (now - mIdleSince) / 1000 + "s");
+                mIdleSince = now;
+            }
+        } else {
+            // 介于两个阈值之间，保持当前档位
+            mPressureSince = 0;
+            mIdleSince = 0;
+        }
+    }
+
+    private void step(int to, String reason) {
+        Level from = mLevels[mLevel];
+        String direction = to > mLevel ? "down" : "up";
+        mLevel = to;
+        // 新档位下的耗时需要重新统计
+        synchronized (mStageNanos) {
+            for (int i = 0; i < STAGE_COUNT; i++) {
+                mStageNanos[i] = 0;
+            }
+        }
+        Log.i(TAG, "event: step " + direction + " from " + from + " to " + mLevels[to] + " reason: " + reason);
+        mListener.onLevelChanged(from, mLevels[to], reason);
+    }
+}
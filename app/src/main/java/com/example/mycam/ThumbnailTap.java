@@ -0,0 +1,135 @@
+package com.example.mycam;
+
+import android.util.Log;
+
+import java.util.concurrent.Executor;
+
+/**
+ * 分析用的缩略图：从相机回调的NV12帧按设定的帧率缩小（例如224x224，居中裁剪成目标宽高比），
+ * 作为{@link FrameHeader#TYPE_THUMBNAIL}帧与视频一起发给接收端，服务器上的小模型不需要解码H264。
+ * payload以 width, height, format（各4字节，大端序）开头，后面是FORMAT_LUMA的Y平面或者FORMAT_NV12的整帧。
+ * {@link #offer}只在相机的回调线程中调用，其他方法可以在任意线程调用，配置在下一帧生效。
+ */
+public class ThumbnailTap {
+    private static final String TAG = "ThumbnailTap";
+    public static final int FORMAT_LUMA = 0;
+    public static final int FORMAT_NV12 = 1;
+    public static final int PREFIX_SIZE = 12;
+    private static final int POOL_SIZE = 4;
+
+    private final int mStreamId;
+    private final AvcEncoder.FrameListener mListener;
+    private final FrameDecimator mDecimator = new FrameDecimator();
+    private volatile boolean mEnabled = false;
+    private volatile int mWidth = 224;
+    private volatile int mHeight = 224;
+    private volatile int mFormat = FORMAT_LUMA;
+    private volatile int mKernel = Nv12Scaler.KERNEL_AREA;
+    private volatile Executor mExecutor;
+    private volatile int mStripes = 1;
+    // 配置变了，下一帧重新创建Scaler
+    private volatile boolean mReconfigure = true;
+
+    // 以下只在回调线程中使用
+    private Nv12Scaler mScaler;
+    private int mSrcWidth;
+    private int mSrcHeight;
+    private FramePool mPool;
+    private int mSequence = 0;
+
+    /**
+     * @param listener 收到缩小后的帧，listener负责释放
+     */
+    public ThumbnailTap(int streamId, AvcEncoder.FrameListener listener) {
+        this.mStreamId = streamId;
+        this.mListener = listener;
+    }
+
+    /**
+     * @param width     缩略图宽度，偶数
+     * @param height    缩略图高度，偶数
+     * @param format    FORMAT_LUMA或FORMAT_NV12
+     * @param kernel    Nv12Scaler.KERNEL_*
+     * @param frameRate 缩略图的帧率，0表示与相机回调相同
+     */
+    public void configure(int width, int height, int format, int kernel, int frameRate) {
+        mWidth = width;
+        mHeight = height;
+        mFormat = format;
+        mKernel = kernel;
+        mDecimator.setFrameRate(frameRate);
+        mReconfigure = true;
+    }
+
+    /**
+     * 按行分成stripes个条带并行缩放，executor为null时在回调线程中完成
+     */
+    public void setParallelism(Executor executor, int stripes) {
+        mExecutor = executor;
+        mStripes = stripes;
+        mReconfigure = true;
+    }
+
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * @param nv12      相机回调的NV12数据，只在调用期间读取
+     * @param timestamp 传感器时间戳，单位纳秒
+     */
+    public void offer(byte[] nv12, int width, int height, long timestamp) {
+        if (!mEnabled || !mDecimator.accept(timestamp)) {
+            return;
+        }
+        if (mScaler == null || mReconfigure || width != mSrcWidth || height != mSrcHeight) {
+            mReconfigure = false;
+            mSrcWidth = width;
+            mSrcHeight = height;
+            int[] crop = Nv12Scaler.centerCrop(width, height, mWidth, mHeight);
+            try {
+                mScaler = new Nv12Scaler(width, height, crop[0], crop[1], crop[2], crop[3], mWidth, mHeight, mKernel);
+            } catch (IllegalArgumentException e) {
+                Log.e(TAG, e.getMessage());
+                mScaler = null;
+                mEnabled = false;
+                return;
+            }
+            mScaler.setParallelism(mExecutor, mStripes);
+            mPool = new FramePool(PREFIX_SIZE + mWidth * mHeight * 3 / 2, POOL_SIZE);
+            Log.i(TAG, "offer: " + width + "x" + height + " crop " + crop[2] + "x" + crop[3] + " -> "
+                    + mWidth + "x" + mHeight + " kernel " + mKernel + " format " + mFormat);
+        }
+        Nv12Scaler scaler = mScaler;
+        int format = mFormat;
+        int pixels = scaler.getWidth() * scaler.getHeight();
+        int size = PREFIX_SIZE + (format == FORMAT_NV12 ? pixels * 3 / 2 : pixels);
+        EncodedFrame frame = mPool.acquire(size);
+        frame.type = FrameHeader.TYPE_THUMBNAIL;
+        frame.streamId = mStreamId;
+        frame.sequence = mSequence++;
+        frame.captureTimeNs = timestamp;
+        frame.ptsUs = timestamp / 1000;
+        frame.length = size;
+        putInt(frame.data, 0, scaler.getWidth());
+        putInt(frame.data, 4, scaler.getHeight());
+        putInt(frame.data, 8, format);
+        if (format == FORMAT_NV12) {
+            scaler.scale(nv12, frame.data, PREFIX_SIZE);
+        } else {
+            scaler.scaleLuma(nv12, frame.data, PREFIX_SIZE);
+        }
+        mListener.onEncodedFrame(frame);
+    }
+
+    private static void putInt(byte[] b, int offset, int value) {
+        b[offset] = (byte) (value >> 24);
+        b[offset + 1] = (byte) (value >> 16);
+        b[offset + 2] = (byte) (value >> 8);
+        b[offset + 3] = (byte) value;
+    }
+}
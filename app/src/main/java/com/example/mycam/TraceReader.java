@@ -0,0 +1,149 @@
+package com.example.mycam;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 读取{@link TraceRecorder}写的trace文件。文件以只读方式分段映射，按帧号随机读取。
+ * 没有索引（录制时异常退出）时顺序扫描帧记录重建索引，最后一个不完整的记录会被忽略。
+ */
+public class TraceReader {
+    // 每次映射的最大大小
+    private static final long WINDOW_SIZE = 256L * 1024 * 1024;
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final long mFileSize;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mFormat;
+    private long[] mTimestamps;
+    private long[] mOffsets;
+    private int mFrameCount;
+    private MappedByteBuffer mWindow;
+    private long mWindowStart;
+
+    public TraceReader(File file) throws IOException {
+        mFile = new RandomAccessFile(file, "r");
+        mChannel = mFile.getChannel();
+        mFileSize = mChannel.size();
+        ByteBuffer header = ByteBuffer.allocate(TraceRecorder.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        mChannel.read(header, 0);
+        header.flip();
+        if (header.remaining() < TraceRecorder.HEADER_SIZE || header.getInt() != TraceRecorder.MAGIC) {
+            mFile.close();
+            throw new IOException("not a trace file: " + file);
+        }
+        int version = header.getInt();
+        if (version != TraceRecorder.VERSION) {
+            mFile.close();
+            throw new IOException("unsupported trace version " + version);
+        }
+        mWidth = header.getInt();
+        mHeight = header.getInt();
+        mFormat = header.getInt();
+        int frameCount = header.getInt();
+        long indexOffset = header.getLong();
+        if (indexOffset > 0 && indexOffset + (long) frameCount * TraceRecorder.INDEX_ENTRY_SIZE <= mFileSize) {
+            readIndex(frameCount, indexOffset);
+        } else {
+            scan();
+        }
+    }
+
+    private void readIndex(int frameCount, long indexOffset) throws IOException {
+        ByteBuffer index = ByteBuffer.allocate(frameCount * TraceRecorder.INDEX_ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        while (index.hasRemaining() && mChannel.read(index, indexOffset + index.position()) > 0) {
+            // 读满为止
+        }
+        index.flip();
+        mTimestamps = new long[frameCount];
+        mOffsets = new long[frameCount];
+        for (int i = 0; i < frameCount; i++) {
+            mTimestamps[i] = index.getLong();
+            mOffsets[i] = index.getLong();
+        }
+        mFrameCount = frameCount;
+    }
+
+    private void scan() throws IOException {
+        int recordSize = TraceRecorder.RECORD_HEADER_SIZE + getFrameSize();
+        int capacity = (int) Math.max(0, (mFileSize - TraceRecorder.HEADER_SIZE) / recordSize);
+        mTimestamps = new long[capacity];
+        mOffsets = new long[capacity];
+        ByteBuffer recordHeader = ByteBuffer.allocate(TraceRecorder.RECORD_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        long position = TraceRecorder.HEADER_SIZE;
+        int count = 0;
+        while (count < capacity) {
+            recordHeader.clear();
+            mChannel.read(recordHeader, position);
+            recordHeader.flip();
+            long timestamp = recordHeader.getLong();
+            int length = recordHeader.getInt();
+            // 映射区域中没有写过的部分全是0
+            if (length != getFrameSize()) {
+                break;
+            }
+            mTimestamps[count] = timestamp;
+            mOffsets[count] = position;
+            count++;
+            position += recordSize;
+        }
+        mFrameCount = count;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @return 帧的格式，目前只有ImageUtil.YUV420SP(NV12)
+     */
+    public int getFormat() {
+        return mFormat;
+    }
+
+    public int getFrameSize() {
+        return mWidth * mHeight * 3 / 2;
+    }
+
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    public long getTimestamp(int frame) {
+        return mTimestamps[frame];
+    }
+
+    /**
+     * 把第frame帧复制到dst
+     *
+     * @return 这一帧的传感器时间戳
+     */
+    public long readFrame(int frame, byte[] dst) throws IOException {
+        long offset = mOffsets[frame] + TraceRecorder.RECORD_HEADER_SIZE;
+        int size = getFrameSize();
+        if (mWindow == null || offset < mWindowStart || offset + size > mWindowStart + mWindow.capacity()) {
+            mWindowStart = offset;
+            mWindow = mChannel.map(FileChannel.MapMode.READ_ONLY, offset,
+                    Math.min(Math.max(WINDOW_SIZE, size), mFileSize - offset));
+        }
+        mWindow.position((int) (offset - mWindowStart));
+        mWindow.get(dst, 0, size);
+        return mTimestamps[frame];
+    }
+
+    public void close() throws IOException {
+        mWindow = null;
+        mFile.close();
+    }
+}
@@ -0,0 +1,144 @@
+package com.example.mycam;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 把相机转换后的NV12帧连同传感器时间戳追加到内存映射的trace文件中，用于在PC上复现现场的性能问题。
+ * 文件格式（小端序）：
+ * <pre>
+ * 文件头 HEADER_SIZE字节：
+ *  0  magic        int   'MCTR'
+ *  4  version      int
+ *  8  width        int
+ * 12  height       int
+ * 16  format       int   ImageUtil.YUV420SP
+ * 20  frameCount   int   close()时写入，异常退出时为0
+ * 24  indexOffset  long  索引的位置，异常退出时为0
+ * 帧记录：timestampNs(long) + length(int) + reserved(int) + NV12数据
+ * 索引：每帧 timestampNs(long) + 帧记录的位置(long)
+ * </pre>
+ * 没有索引的文件（录制时进程被杀）可以由{@link TraceReader}顺序扫描帧记录恢复。
+ * 写入只是一次内存复制，映射区域用完后再映射下一段，不在采集线程做系统调用级别的write。
+ */
+public class TraceRecorder {
+    public static final int MAGIC = 0x5254434D;
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 64;
+    public static final int RECORD_HEADER_SIZE = 16;
+    public static final int INDEX_ENTRY_SIZE = 16;
+    // 每次映射的大小
+    private static final long REGION_SIZE = 64L * 1024 * 1024;
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mFrameSize;
+    private final long mMaxBytes;
+    private MappedByteBuffer mRegion;
+    private long mRegionStart;
+    private long mPosition = HEADER_SIZE;
+    // 索引先保存在内存中，每帧16字节
+    private ByteBuffer mIndex = ByteBuffer.allocate(INDEX_ENTRY_SIZE * 1024).order(ByteOrder.LITTLE_ENDIAN);
+    private int mFrameCount = 0;
+    private int mDroppedFrames = 0;
+    private boolean mClosed = false;
+
+    /**
+     * @param maxBytes 文件最大字节数，超过后不再记录新的帧
+     */
+    public TraceRecorder(File file, int width, int height, long maxBytes) throws IOException {
+        mFile = new RandomAccessFile(file, "rw");
+        mFile.setLength(0);
+        mChannel = mFile.getChannel();
+        mWidth = width;
+        mHeight = height;
+        mFrameSize = width * height * 3 / 2;
+        mMaxBytes = maxBytes;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height).putInt(ImageUtil.YUV420SP);
+        header.clear();
+        mChannel.write(header, 0);
+    }
+
+    public boolean matches(int width, int height) {
+        return mWidth == width && mHeight == height;
+    }
+
+    /**
+     * 追加一帧，只能在一个线程中调用
+     *
+     * @param nv12 长度不小于 width * height * 3 / 2
+     * @return 是否记录了这一帧，文件已满或已关闭时返回false
+     */
+    public synchronized boolean record(byte[] nv12, long timestampNs) throws IOException {
+        int recordSize = RECORD_HEADER_SIZE + mFrameSize;
+        if (mClosed || mPosition + recordSize + (long) (mFrameCount + 1) * INDEX_ENTRY_SIZE > mMaxBytes) {
+            mDroppedFrames++;
+            return false;
+        }
+        if (mRegion == null || mPosition + recordSize > mRegionStart + mRegion.capacity()) {
+            mRegionStart = mPosition;
+            mRegion = mChannel.map(FileChannel.MapMode.READ_WRITE, mRegionStart, Math.max(REGION_SIZE, recordSize));
+            mRegion.order(ByteOrder.LITTLE_ENDIAN);
+        }
+        mRegion.position((int) (mPosition - mRegionStart));
+        mRegion.putLong(timestampNs);
+        mRegion.putInt(mFrameSize);
+        mRegion.putInt(0);
+        mRegion.put(nv12, 0, mFrameSize);
+
+        if (!mIndex.hasRemaining()) {
+            ByteBuffer bigger = ByteBuffer.allocate(mIndex.capacity() * 2).order(ByteOrder.LITTLE_ENDIAN);
+            mIndex.flip();
+            bigger.put(mIndex);
+            mIndex = bigger;
+        }
+        mIndex.putLong(timestampNs);
+        mIndex.putLong(mPosition);
+        mPosition += recordSize;
+        mFrameCount++;
+        return true;
+    }
+
+    public synchronized int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * 文件满了之后没有记录的帧数
+     */
+    public synchronized int getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    /**
+     * 写入索引和帧数，把文件截断到实际大小
+     */
+    public synchronized void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        if (mRegion != null) {
+            mRegion.force();
+            mRegion = null;
+        }
+        long indexOffset = mPosition;
+        mIndex.flip();
+        mChannel.write(mIndex, indexOffset);
+        ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(mFrameCount).putLong(indexOffset);
+        header.flip();
+        mChannel.write(header, 20);
+        mChannel.truncate(indexOffset + (long) mFrameCount * INDEX_ENTRY_SIZE);
+        mChannel.force(true);
+        mFile.close();
+    }
+}
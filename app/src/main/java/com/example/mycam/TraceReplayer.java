@@ -0,0 +1,105 @@
+package com.example.mycam;
+
+import java.io.IOException;
+
+/**
+ * 把{@link TraceReader}中的帧按原来的时间间隔（MODE_REALTIME）或者尽可能快（MODE_FAST）地
+ * 交给{@link Camera2Wrapper.ImageDataListener}，与相机回调的数据和时间戳完全相同，
+ * 可以在PC的JVM上重放现场录制的帧来测试编码之后的发送流程（见TraceReplayPipelineTest），或者在设备上代替相机做可重复的性能测试（{@link Camera2Wrapper#startReplay}）。
+ * 多次循环时时间戳依次后移，保证PTS单调递增。
+ */
+public class TraceReplayer {
+    public static final int MODE_REALTIME = 0;
+    public static final int MODE_FAST = 1;
+
+    private final TraceReader mReader;
+    private final byte[] mFrame;
+    private volatile boolean mStopped = false;
+    private int mFrames = 0;
+    private long mElapsedNs = 0;
+    private long mListenerNs = 0;
+    private long mMaxLateNs = 0;
+
+    public TraceReplayer(TraceReader reader) {
+        this.mReader = reader;
+        this.mFrame = new byte[reader.getFrameSize()];
+    }
+
+    /**
+     * 在当前线程中重放，直到loops次循环结束或者stop()
+     *
+     * @param speed MODE_REALTIME时的播放倍速
+     * @return 送出的帧数
+     */
+    public int replay(Camera2Wrapper.ImageDataListener listener, int mode, float speed, int loops)
+            throws IOException, InterruptedException {
+        int count = mReader.getFrameCount();
+        mStopped = false;
+        mFrames = 0;
+        mListenerNs = 0;
+        mMaxLateNs = 0;
+        if (count == 0) {
+            return 0;
+        }
+        long first = mReader.getTimestamp(0);
+        long last = mReader.getTimestamp(count - 1);
+        long period = count > 1 ? (last - first) / (count - 1) : 33333333L;
+        long loopDuration = last - first + period;
+        long start = System.nanoTime();
+        for (int loop = 0; loop < loops && !mStopped; loop++) {
+            for (int i = 0; i < count && !mStopped; i++) {
+                long timestamp = mReader.readFrame(i, mFrame);
+                long mediaTime = timestamp - first + loop * loopDuration;
+                if (mode == MODE_REALTIME) {
+                    long due = start + (long) (mediaTime / speed);
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                    } else {
+                        mMaxLateNs = Math.max(mMaxLateNs, -wait);
+                    }
+                }
+                long callStart = System.nanoTime();
+                listener.OnImageDataListener(mFrame, first + mediaTime);
+                mListenerNs += System.nanoTime() - callStart;
+                mFrames++;
+            }
+        }
+        mElapsedNs = System.nanoTime() - start;
+        return mFrames;
+    }
+
+    public void stop() {
+        mStopped = true;
+    }
+
+    public int getFrames() {
+        return mFrames;
+    }
+
+    public long getElapsedNs() {
+        return mElapsedNs;
+    }
+
+    /**
+     * 回调的平均耗时（纳秒），即被测流程处理一帧的时间
+     */
+    public long getMeanListenerNs() {
+        return mFrames > 0 ? mListenerNs / mFrames : 0;
+    }
+
+    /**
+     * MODE_REALTIME时最多比原来的时间晚了多少（纳秒），说明被测流程跟不上原始帧率
+     */
+    public long getMaxLateNs() {
+        return mMaxLateNs;
+    }
+
+    @Override
+    public String toString() {
+        double seconds = mElapsedNs / 1e9;
+        return mFrames + " frames in " + String.format("%.2f", seconds) + "s ("
+                + String.format("%.1f", seconds > 0 ? mFrames / seconds : 0) + " fps), listener "
+                + getMeanListenerNs() / 1000 + "us/frame, max late " + mMaxLateNs / 1000000 + "ms";
+    }
+}
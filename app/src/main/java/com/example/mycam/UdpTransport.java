@@ -0,0 +1,159 @@
+package com.example.mycam;
+
+import android.util.Log;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+
+/**
+ * UDP发送通道：{@link FrameWriter}写出的字节流（与TCP相同的FrameHeader + H264）被切成不超过MTU的包，
+ * 每一帧从一个新包开始（FecEncoder.FLAG_FRAME_START），经{@link FecEncoder}加上校验包后发送。
+ * 接收端（receiver模块的UdpStreamReceiver）恢复丢包，并定期把统计发回同一个端口，这里据此调整FEC的分组大小。
+ */
+public class UdpTransport {
+    private static final String TAG = "UdpTransport";
+    // 丢包率的指数平均权重
+    private static final float LOSS_WEIGHT = 0.25f;
+
+    private final DatagramSocket mSocket;
+    private final DatagramPacket mSendPacket;
+    private final FecEncoder mEncoder;
+    private final FrameWriter mWriter;
+    private final Thread mFeedbackThread;
+    private volatile boolean mClosed = false;
+    private float mLossRate = 0;
+    private long mLastExpected = 0;
+    private long mLastRawLost = 0;
+
+    /**
+     * @param fec 是否发送校验包
+     */
+    public UdpTransport(String host, int port, boolean fec, boolean checksum) throws SocketException {
+        mSocket = new DatagramSocket();
+        mSocket.connect(new InetSocketAddress(host, port));
+        mSendPacket = new DatagramPacket(new byte[0], 0);
+        mEncoder = new FecEncoder(new FecEncoder.PacketSink() {
+            @Override
+            public void onPacket(byte[] packet, int length) throws IOException {
+                mSendPacket.setData(packet, 0, length);
+                mSocket.send(mSendPacket);
+            }
+        }, fec ? FecEncoder.groupSizeForLoss(0) : 0);
+        mWriter = new FrameWriter(new DataOutputStream(new PacketOutputStream()), FrameHeader.VERSION, checksum);
+        final boolean adaptive = fec;
+        mFeedbackThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                receiveFeedback(adaptive);
+            }
+        }, "UdpFeedback");
+        mFeedbackThread.start();
+    }
+
+    /**
+     * 与TCP一样交给{@link FrameSubscriber}使用，只能在一个线程中写
+     */
+    public FrameWriter getFrameWriter() {
+        return mWriter;
+    }
+
+    public FecEncoder getFecEncoder() {
+        return mEncoder;
+    }
+
+    public void close() {
+        mClosed = true;
+        mSocket.close();
+    }
+
+    private void receiveFeedback(boolean adaptive) {
+        byte[] buffer = new byte[FecEncoder.FEEDBACK_SIZE];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        while (!mClosed) {
+            try {
+                mSocket.receive(packet);
+            } catch (IOException e) {
+                if (!mClosed) {
+                    e.printStackTrace();
+                }
+                return;
+            }
+            if (packet.getLength() < FecEncoder.FEEDBACK_SIZE || buffer[0] != FecEncoder.TYPE_FEEDBACK) {
+                continue;
+            }
+            long expected = FecEncoder.getInt(buffer, FecEncoder.HEADER_SIZE) & 0xFFFFFFFFL;
+            long received = FecEncoder.getInt(buffer, FecEncoder.HEADER_SIZE + 4) & 0xFFFFFFFFL;
+            long recovered = FecEncoder.getInt(buffer, FecEncoder.HEADER_SIZE + 8) & 0xFFFFFFFFL;
+            long lost = FecEncoder.getInt(buffer, FecEncoder.HEADER_SIZE + 12) & 0xFFFFFFFFL;
+            long rawLost = expected - received;
+            if (expected > mLastExpected) {
+                float loss = (float) (rawLost - mLastRawLost) / (expected - mLastExpected);
+                mLossRate += (loss - mLossRate) * LOSS_WEIGHT;
+            }
+            mLastExpected = expected;
+            mLastRawLost = rawLost;
+            if (adaptive) {
+                int groupSize = FecEncoder.groupSizeForLoss(mLossRate);
+                if (groupSize != mEncoder.getGroupSize()) {
+                    Log.i(TAG, "loss " + mLossRate + ", fec group size " + mEncoder.getGroupSize() + " -> " + groupSize);
+                    mEncoder.setGroupSize(groupSize);
+                }
+            }
+            Log.d(TAG, "feedback: expected " + expected + " raw lost " + rawLost + " recovered " + recovered
+                    + " lost " + lost + " recovery " + (rawLost > 0 ? recovered * 100 / rawLost : 100)
+                    + "%, overhead " + (int) (mEncoder.getOverhead() * 100) + "%");
+        }
+    }
+
+    /**
+     * 把写入的字节切成媒体包，flush()时（FrameWriter每写完一帧）发出不满的包并结束校验分组
+     */
+    private class PacketOutputStream extends OutputStream {
+        private final byte[] mPayload = new byte[FecEncoder.MAX_PAYLOAD];
+        private int mLength = 0;
+        private boolean mFrameStart = true;
+
+        @Override
+        public void write(int b) throws IOException {
+            mPayload[mLength++] = (byte) b;
+            if (mLength == mPayload.length) {
+                sendPacket();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = Math.min(len, mPayload.length - mLength);
+                System.arraycopy(b, off, mPayload, mLength, n);
+                mLength += n;
+                off += n;
+                len -= n;
+                if (mLength == mPayload.length) {
+                    sendPacket();
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (mLength > 0) {
+                sendPacket();
+            }
+            // 一帧写完，校验分组不跨帧
+            mEncoder.endFrame();
+            mFrameStart = true;
+        }
+
+        private void sendPacket() throws IOException {
+            mEncoder.send(mPayload, 0, mLength, mFrameStart ? FecEncoder.FLAG_FRAME_START : 0);
+            mLength = 0;
+            mFrameStart = false;
+        }
+    }
+}
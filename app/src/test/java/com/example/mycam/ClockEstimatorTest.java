@@ -0,0 +1,90 @@
+package com.example.mycam;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ClockEstimatorTest {
+    private static final long OFFSET_NS = 1600000000000000000L;
+
+    // 接收端时钟 = 手机时钟 * (1 + drift) + OFFSET_NS
+    private static long server(long localNs, double drift) {
+        return localNs + (long) (localNs * drift) + OFFSET_NS;
+    }
+
+    /**
+     * 每隔intervalNs一次请求，单程延迟为minDelayNs加上随机的排队延迟，两个方向各自独立
+     */
+    private static void feed(ClockEstimator estimator, double drift, int samples, long intervalNs,
+                             long minDelayNs, long jitterNs, long seed) {
+        Random random = new Random(seed);
+        long t0 = 1000000000L;
+        for (int i = 0; i < samples; i++) {
+            long up = minDelayNs + (long) (random.nextDouble() * random.nextDouble() * jitterNs);
+            long down = minDelayNs + (long) (random.nextDouble() * random.nextDouble() * jitterNs);
+            long t1 = server(t0 + up, drift);
+            long t2 = t1 + 50000;
+            long t3 = t0 + up + 50000 + down;
+            assertTrue(estimator.addSample(t0, t1, t2, t3));
+            t0 += intervalNs;
+        }
+    }
+
+    @Test
+    public void notSynchronized_leavesFrameUnstamped() {
+        ClockEstimator estimator = new ClockEstimator();
+        assertFalse(estimator.isSynchronized());
+        assertEquals(0, estimator.toServerTime(123456789L));
+        assertEquals(-1, estimator.getErrorNs());
+        EncodedFrame frame = new EncodedFrame(FrameHeader.TYPE_VIDEO, new byte[16], 16, 0, 123456789L, 0, 0);
+        estimator.stamp(frame);
+        assertEquals(0, frame.serverTimeNs);
+    }
+
+    @Test
+    public void rejectsNegativeRoundTrip() {
+        ClockEstimator estimator = new ClockEstimator();
+        assertFalse(estimator.addSample(1000, 5000, 9000, 2000));
+        assertFalse(estimator.isSynchronized());
+    }
+
+    @Test
+    public void constantOffset_withinErrorBound() {
+        ClockEstimator estimator = new ClockEstimator();
+        feed(estimator, 0, 20, 200000000L, 2000000L, 30000000L, 1);
+        assertTrue(estimator.isSynchronized());
+        long local = 5000000000L;
+        long error = Math.abs(estimator.toServerTime(local) - server(local, 0));
+        assertTrue("error " + error, error <= estimator.getErrorNs());
+        // 排队延迟最大30ms，只用RTT小的样本后误差上限远小于此
+        assertTrue("bound " + estimator.getErrorNs(), estimator.getErrorNs() < 10000000L);
+    }
+
+    @Test
+    public void drift_isTrackedOverMinutes() {
+        ClockEstimator estimator = new ClockEstimator();
+        double drift = 40e-6;
+        feed(estimator, drift, 200, 1000000000L, 1000000L, 5000000L, 2);
+        assertEquals(40, estimator.getDriftPpm(), 10);
+        // 不拟合漂移的话，40ppm在离参考点一两分钟时误差达到几ms
+        long local = 1000000000L + 205 * 1000000000L;
+        long error = Math.abs(estimator.toServerTime(local) - server(local, drift));
+        assertTrue("error " + error, error < 300000L);
+        assertTrue("error " + error + " bound " + estimator.getErrorNs(), error <= estimator.getErrorNs());
+
+        EncodedFrame frame = new EncodedFrame(FrameHeader.TYPE_VIDEO, new byte[16], 16, 0, local, 0, 0);
+        estimator.stamp(frame);
+        assertEquals(estimator.toServerTime(local), frame.serverTimeNs);
+        assertEquals(estimator.getErrorNs() / 1000, frame.clockErrorUs);
+    }
+
+    @Test
+    public void reset_discardsSamples() {
+        ClockEstimator estimator = new ClockEstimator();
+        feed(estimator, 0, 5, 200000000L, 2000000L, 0, 3);
+        estimator.reset();
+        assertFalse(estimator.isSynchronized());
+    }
+}
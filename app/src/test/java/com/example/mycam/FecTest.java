@@ -0,0 +1,114 @@
+package com.example.mycam;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * 只检查发送端的包格式，恢复丢包在receiver模块的FecDecoderTest中测试
+ */
+public class FecTest {
+    private final ArrayList<byte[]> mSent = new ArrayList<>();
+
+    private final FecEncoder.PacketSink mSink = new FecEncoder.PacketSink() {
+        @Override
+        public void onPacket(byte[] packet, int length) {
+            mSent.add(Arrays.copyOf(packet, length));
+        }
+    };
+
+    private static byte[] payload(int i) {
+        byte[] payload = new byte[10 + i * 7 % 50];
+        for (int j = 0; j < payload.length; j++) {
+            payload[j] = (byte) (i * 31 + j);
+        }
+        return payload;
+    }
+
+    private void sendPackets(FecEncoder encoder, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            byte[] payload = payload(i);
+            encoder.send(payload, 0, payload.length, i % 4 == 0 ? FecEncoder.FLAG_FRAME_START : 0);
+        }
+    }
+
+    private static int length(byte[] packet) {
+        return (packet[12] & 0xFF) << 8 | (packet[13] & 0xFF);
+    }
+
+    @Test
+    public void parityIsXorOfGroup() throws IOException {
+        FecEncoder encoder = new FecEncoder(mSink, 4);
+        sendPackets(encoder, 40);
+        // 每组4个媒体包 + 1个校验包
+        assertEquals(50, mSent.size());
+        assertEquals(0.25f, encoder.getOverhead(), 0.001);
+        for (int group = 0; group < 10; group++) {
+            byte[] parity = mSent.get(group * 5 + 4);
+            assertEquals(FecEncoder.TYPE_PARITY, parity[0]);
+            assertEquals(4, parity[1]);
+            assertEquals(4, parity[2]);
+            assertEquals(group * 4, FecEncoder.getInt(parity, 8));
+            byte[] xor = new byte[parity.length - FecEncoder.HEADER_SIZE];
+            int lengthXor = 0;
+            int flagsXor = 0;
+            for (int i = 0; i < 4; i++) {
+                byte[] media = mSent.get(group * 5 + i);
+                assertEquals(FecEncoder.TYPE_MEDIA, media[0]);
+                assertEquals(i, media[2]);
+                assertEquals(group * 4 + i, FecEncoder.getInt(media, 4));
+                assertEquals(group * 4, FecEncoder.getInt(media, 8));
+                assertArrayEquals(payload(group * 4 + i), Arrays.copyOfRange(media, FecEncoder.HEADER_SIZE, media.length));
+                for (int j = FecEncoder.HEADER_SIZE; j < media.length; j++) {
+                    xor[j - FecEncoder.HEADER_SIZE] ^= media[j];
+                }
+                lengthXor ^= length(media);
+                flagsXor ^= media[3];
+            }
+            assertArrayEquals(xor, Arrays.copyOfRange(parity, FecEncoder.HEADER_SIZE, parity.length));
+            assertEquals(lengthXor, length(parity));
+            assertEquals(flagsXor, parity[3]);
+        }
+    }
+
+    @Test
+    public void endFrame_closesPartialGroup() throws IOException {
+        FecEncoder encoder = new FecEncoder(mSink, 4);
+        sendPackets(encoder, 6);
+        encoder.endFrame();
+        // 4 + 校验 + 2 + 校验（实际2个包）
+        assertEquals(8, mSent.size());
+        byte[] parity = mSent.get(7);
+        assertEquals(FecEncoder.TYPE_PARITY, parity[0]);
+        assertEquals(2, parity[1]);
+        assertEquals(2, parity[2]);
+        assertEquals(4, FecEncoder.getInt(parity, 8));
+        assertEquals(length(mSent.get(5)) ^ length(mSent.get(6)), length(parity));
+        // 媒体包上仍是计划的groupSize
+        assertEquals(4, mSent.get(6)[1]);
+        // 组已经结束，再次endFrame不发送
+        encoder.endFrame();
+        assertEquals(8, mSent.size());
+        sendPackets(encoder, 1);
+        assertEquals(6, FecEncoder.getInt(mSent.get(8), 8));
+    }
+
+    @Test
+    public void sendsNoParityWhenDisabled() throws IOException {
+        FecEncoder encoder = new FecEncoder(mSink, 0);
+        sendPackets(encoder, 10);
+        assertEquals(10, mSent.size());
+        assertEquals(0, encoder.getParityPackets());
+    }
+
+    @Test
+    public void groupSizeShrinksWithLoss() {
+        assertEquals(20, FecEncoder.groupSizeForLoss(0));
+        assertTrue(FecEncoder.groupSizeForLoss(0.03f) < FecEncoder.groupSizeForLoss(0.015f));
+        assertEquals(2, FecEncoder.groupSizeForLoss(0.3f));
+    }
+}
@@ -0,0 +1,137 @@
+package com.example.mycam;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class Fmp4MuxerTest {
+    // Baseline 640x480的SPS和一个PPS，带4字节起始码
+    private static final byte[] CONFIG = {
+            0, 0, 0, 1, 0x67, 0x42, (byte) 0xc0, 0x1e, (byte) 0xda, 0x02, (byte) 0x80, (byte) 0xf6, 0x40,
+            0, 0, 0, 1, 0x68, (byte) 0xce, 0x38, (byte) 0x80};
+
+    private static EncodedFrame frame(boolean key, long ptsUs, byte[] payload) {
+        byte[] data = new byte[payload.length + 4];
+        data[3] = 1;
+        System.arraycopy(payload, 0, data, 4, payload.length);
+        EncodedFrame frame = new EncodedFrame(FrameHeader.TYPE_VIDEO, data, data.length, 0, 0, ptsUs,
+                key ? FrameHeader.FLAG_KEY_FRAME : 0);
+        frame.prefix = key ? CONFIG : null;
+        return frame;
+    }
+
+    private static String type(ByteBuffer buffer, int boxStart) {
+        return new String(buffer.array(), boxStart + 4, 4);
+    }
+
+    @Test
+    public void parsesSpsSize() {
+        int[] size = H264Util.parseSpsSize(CONFIG, 4, 9);
+        assertEquals(640, size[0]);
+        assertEquals(480, size[1]);
+    }
+
+    @Test
+    public void writesInitSegment() {
+        Fmp4Muxer muxer = new Fmp4Muxer(Fmp4Muxer.MODE_FRAME);
+        assertTrue(muxer.configure(CONFIG));
+        assertFalse(muxer.configure(CONFIG.clone()));
+        assertEquals("avc1.42c01e", muxer.getCodecString());
+
+        ByteBuffer out = ByteBuffer.allocate(muxer.getInitSegmentSize());
+        muxer.writeInitSegment(out);
+        assertEquals("ftyp", type(out, 0));
+        int moov = out.getInt(0);
+        assertEquals("moov", type(out, moov));
+        assertEquals(out.position(), moov + out.getInt(moov));
+    }
+
+    @Test
+    public void writesOneFragmentPerFrame() {
+        Fmp4Muxer muxer = new Fmp4Muxer(Fmp4Muxer.MODE_FRAME);
+        muxer.configure(CONFIG);
+        ByteBuffer out = ByteBuffer.allocate(1024);
+
+        assertEquals(0, muxer.addFrame(frame(false, 0, new byte[]{0x41, 1, 2}), out));
+        int size = muxer.addFrame(frame(true, 1000, new byte[]{0x65, 1, 2, 3}), out);
+        assertEquals(size, out.position());
+        assertEquals("moof", type(out, 0));
+        int moofSize = out.getInt(0);
+        assertEquals("mdat", type(out, moofSize));
+        // mdat中是长度前缀的NAL，SPS/PPS不在其中
+        assertEquals(8 + 4 + 4, out.getInt(moofSize));
+        assertEquals(4, out.getInt(moofSize + 8));
+        assertEquals(0x65, out.get(moofSize + 12));
+        assertEquals(moofSize + 8 + 4 + 4, size);
+
+        // trun是moof的最后一个box：data_offset指向mdat的数据
+        int trun = moofSize - (8 + 4 + 4 + 4 + 12);
+        assertEquals("trun", type(out, trun));
+        assertEquals(1, out.getInt(trun + 12));
+        assertEquals(moofSize + 8, out.getInt(trun + 16));
+        assertEquals(0x02000000, out.getInt(trun + 28));
+
+        out.clear();
+        size = muxer.addFrame(frame(false, 34333, new byte[]{0x41, 5}), out);
+        assertEquals("moof", type(out, 0));
+        assertEquals(size, out.position());
+    }
+
+    @Test
+    public void writesOneFragmentPerGop() {
+        Fmp4Muxer muxer = new Fmp4Muxer(Fmp4Muxer.MODE_GOP);
+        muxer.configure(CONFIG);
+        ByteBuffer out = ByteBuffer.allocate(4096);
+        assertEquals(0, muxer.addFrame(frame(true, 0, new byte[]{0x65, 1}), out));
+        assertEquals(0, muxer.addFrame(frame(false, 33333, new byte[]{0x41, 2}), out));
+        assertEquals(0, muxer.addFrame(frame(false, 66666, new byte[]{0x41, 3}), out));
+        int size = muxer.addFrame(frame(true, 100000, new byte[]{0x65, 4}), out);
+        assertTrue(size > 0);
+        int moofSize = out.getInt(0);
+        // 3个样本，每个4字节长度 + 2字节
+        assertEquals(8 + 3 * 6, out.getInt(moofSize));
+        assertTrue(muxer.flush(out) > 0);
+        assertEquals(0, muxer.flush(out));
+    }
+
+    @Test
+    public void recoveryPoint_isNotSyncSample() {
+        Fmp4Muxer muxer = new Fmp4Muxer(Fmp4Muxer.MODE_GOP);
+        muxer.configure(CONFIG);
+        ByteBuffer out = ByteBuffer.allocate(4096);
+        // 恢复点不是IDR，不能作为开始
+        EncodedFrame recovery = frame(false, 0, new byte[]{0x41, 1});
+        recovery.flags |= FrameHeader.FLAG_RECOVERY_POINT;
+        assertEquals(0, muxer.addFrame(recovery, out));
+        assertEquals(0, muxer.addFrame(frame(true, 33333, new byte[]{0x65, 2}), out));
+        assertEquals(0, muxer.addFrame(frame(false, 66666, new byte[]{0x41, 3}), out));
+        // 下一个恢复点处分段，恢复点作为非同步样本开始新的fragment
+        EncodedFrame next = frame(false, 100000, new byte[]{0x41, 4});
+        next.flags |= FrameHeader.FLAG_RECOVERY_POINT;
+        assertTrue(muxer.addFrame(next, out) > 0);
+        assertTrue(muxer.isLastFragmentSync());
+        out.clear();
+        assertTrue(muxer.flush(out) > 0);
+        assertFalse(muxer.isLastFragmentSync());
+        int moofSize = out.getInt(0);
+        int trun = moofSize - (8 + 4 + 4 + 4 + 12);
+        assertEquals("trun", type(out, trun));
+        assertEquals(0x01010000, out.getInt(trun + 28));
+    }
+
+    @Test
+    public void reorderedFrame_waitsForNextKeyFrame() {
+        Fmp4Muxer muxer = new Fmp4Muxer(Fmp4Muxer.MODE_FRAME);
+        muxer.configure(CONFIG);
+        ByteBuffer out = ByteBuffer.allocate(4096);
+        assertTrue(muxer.addFrame(frame(true, 0, new byte[]{0x65, 1}), out) > 0);
+        assertTrue(muxer.addFrame(frame(false, 100000, new byte[]{0x41, 2}), out) > 0);
+        // B帧的PTS比前一帧小，没有composition time offset无法表示
+        assertEquals(0, muxer.addFrame(frame(false, 33333, new byte[]{0x01, 3}), out));
+        assertEquals(0, muxer.addFrame(frame(false, 200000, new byte[]{0x41, 4}), out));
+        assertTrue(muxer.addFrame(frame(true, 233333, new byte[]{0x65, 5}), out) > 0);
+        assertTrue(muxer.addFrame(frame(false, 266666, new byte[]{0x41, 6}), out) > 0);
+    }
+}
@@ -0,0 +1,63 @@
+package com.example.mycam;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FrameDecimatorTest {
+    private static final long FRAME_30FPS = 33333333L;
+
+    // 30fps的相机时间戳，带有±2ms的抖动
+    private static long timestamp(int i) {
+        return 1000000000L + i * FRAME_30FPS + (i % 3 - 1) * 2000000L;
+    }
+
+    private static int countAccepted(FrameDecimator decimator, int frames) {
+        int accepted = 0;
+        for (int i = 0; i < frames; i++) {
+            if (decimator.accept(timestamp(i))) {
+                accepted++;
+            }
+        }
+        return accepted;
+    }
+
+    @Test
+    public void passesEverythingWithoutTarget() {
+        assertEquals(300, countAccepted(new FrameDecimator(), 300));
+    }
+
+    @Test
+    public void decimatesEvenly() {
+        FrameDecimator decimator = new FrameDecimator();
+        decimator.setFrameRate(15);
+        for (int i = 0; i < 300; i++) {
+            assertEquals(i % 2 == 0, decimator.accept(timestamp(i)));
+        }
+    }
+
+    @Test
+    public void keepsAverageRateForNonDivisorTargets() {
+        FrameDecimator decimator = new FrameDecimator();
+        decimator.setFrameRate(20);
+        assertEquals(200, countAccepted(decimator, 300));
+        decimator = new FrameDecimator();
+        decimator.setFrameRate(25);
+        assertEquals(250, countAccepted(decimator, 300), 1);
+        decimator = new FrameDecimator();
+        decimator.setFrameRate(30);
+        assertEquals(300, countAccepted(decimator, 300));
+    }
+
+    @Test
+    public void realignsAfterGap() {
+        FrameDecimator decimator = new FrameDecimator();
+        decimator.setFrameRate(10);
+        assertTrue(decimator.accept(timestamp(0)));
+        // 相机停了5秒，恢复后的第一帧立即输出，不会为了追赶连续输出
+        assertTrue(decimator.accept(timestamp(150)));
+        assertFalse(decimator.accept(timestamp(151)));
+        assertFalse(decimator.accept(timestamp(152)));
+        assertTrue(decimator.accept(timestamp(153)));
+    }
+}
@@ -0,0 +1,113 @@
+package com.example.mycam;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class FrameHeaderTest {
+    @Test
+    public void writeThenRead_roundTrips() {
+        FrameHeader header = new FrameHeader();
+        header.flags = FrameHeader.FLAG_KEY_FRAME | FrameHeader.FLAG_CODEC_CONFIG;
+        header.streamId = 1;
+        header.sequence = 42;
+        header.captureTimeNs = 123456789012L;
+        header.ptsUs = 123456789L;
+        header.payloadLength = 1000;
+        header.checksum = 0xCAFEBABE;
+        header.serverTimeNs = 987654321098L;
+        header.clockErrorUs = 350;
+        ByteBuffer buffer = ByteBuffer.allocate(FrameHeader.SIZE);
+        header.writeTo(buffer);
+        assertEquals(FrameHeader.SIZE, buffer.position());
+
+        buffer.flip();
+        FrameHeader read = new FrameHeader();
+        assertTrue(read.readFrom(buffer));
+        assertTrue(read.isKeyFrame());
+        assertTrue(read.hasCodecConfig());
+        assertFalse(read.hasChecksum());
+        assertEquals(1, read.streamId);
+        assertEquals(42, read.sequence);
+        assertEquals(123456789012L, read.captureTimeNs);
+        assertEquals(123456789L, read.ptsUs);
+        assertEquals(1000, read.payloadLength);
+        assertEquals(0xCAFEBABE, read.checksum);
+        assertEquals(987654321098L, read.serverTimeNs);
+        assertEquals(350, read.clockErrorUs);
+    }
+
+    @Test
+    public void version1_omitsServerTime() {
+        FrameHeader header = new FrameHeader();
+        header.version = 1;
+        header.sequence = 7;
+        header.payloadLength = 500;
+        header.serverTimeNs = 987654321098L;
+        ByteBuffer buffer = ByteBuffer.allocate(FrameHeader.SIZE);
+        header.writeTo(buffer);
+        assertEquals(FrameHeader.SIZE_V1, buffer.position());
+
+        buffer.flip();
+        FrameHeader read = new FrameHeader();
+        read.serverTimeNs = 1;
+        assertTrue(read.readFrom(buffer));
+        assertEquals(1, read.version);
+        assertEquals(7, read.sequence);
+        assertEquals(500, read.payloadLength);
+        assertEquals(0, read.serverTimeNs);
+        assertEquals(0, buffer.remaining());
+    }
+
+    @Test
+    public void readFrom_rejectsLegacyLengthPrefix() {
+        ByteBuffer buffer = ByteBuffer.allocate(FrameHeader.SIZE);
+        buffer.putInt(4096);
+        buffer.rewind();
+        assertFalse(new FrameHeader().readFrom(buffer));
+    }
+
+    @Test
+    public void version2_streamIdIsReserved() {
+        FrameHeader header = new FrameHeader();
+        header.version = 2;
+        header.streamId = 1;
+        ByteBuffer buffer = ByteBuffer.allocate(FrameHeader.SIZE);
+        header.writeTo(buffer);
+        assertEquals(0, buffer.get(7));
+
+        buffer.put(7, (byte) 1);
+        buffer.flip();
+        FrameHeader read = new FrameHeader();
+        assertTrue(read.readFrom(buffer));
+        assertEquals(0, read.streamId);
+    }
+
+    @Test
+    public void writer_olderVersionsOnlyGetPrimaryVideo() throws IOException {
+        for (int version = StreamHandshake.LEGACY; version <= FrameHeader.VERSION; version++) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            FrameWriter writer = new FrameWriter(new DataOutputStream(bytes), version, false);
+            EncodedFrame video = new EncodedFrame(FrameHeader.TYPE_VIDEO, new byte[10], 10, 0, 0, 0, 0);
+            EncodedFrame second = new EncodedFrame(FrameHeader.TYPE_VIDEO, new byte[10], 10, 0, 0, 0, 0);
+            second.streamId = 1;
+            EncodedFrame thumbnail = new EncodedFrame(FrameHeader.TYPE_THUMBNAIL, new byte[10], 10, 0, 0, 0, 0);
+            EncodedFrame still = new EncodedFrame(FrameHeader.TYPE_STILL_JPEG, new byte[10], 10, 0, 0, 0, 0);
+            writer.write(video);
+            int primary = bytes.size();
+            writer.write(second);
+            writer.write(thumbnail);
+            writer.write(still);
+            if (version < FrameHeader.VERSION_STREAMS) {
+                assertEquals("version " + version, primary, bytes.size());
+            } else {
+                assertEquals("version " + version, primary * 4, bytes.size());
+            }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.example.mycam;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FramePoolTest {
+    @Test
+    public void lastReleaseReturnsBufferToPool() {
+        FramePool pool = new FramePool(1024, 4);
+        EncodedFrame frame = pool.acquire(100);
+        frame.retain();
+        frame.release();
+        assertEquals(0, pool.getFreeCount());
+        frame.release();
+        assertEquals(1, pool.getFreeCount());
+        assertSame(frame, pool.acquire(100));
+        assertEquals(1, pool.getAllocatedCount());
+    }
+
+    @Test
+    public void acquireGrowsSmallBuffer() {
+        FramePool pool = new FramePool(16, 4);
+        EncodedFrame frame = pool.acquire(8);
+        frame.prefix = new byte[4];
+        frame.release();
+        EncodedFrame reused = pool.acquire(64);
+        assertSame(frame, reused);
+        assertTrue(reused.data.length >= 64);
+        assertNull(reused.prefix);
+    }
+
+    @Test
+    public void poolKeepsAtMostMaxPooled() {
+        FramePool pool = new FramePool(16, 1);
+        EncodedFrame a = pool.acquire(8);
+        EncodedFrame b = pool.acquire(8);
+        a.release();
+        b.release();
+        assertEquals(1, pool.getFreeCount());
+        assertEquals(1, pool.getAllocatedCount());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void doubleReleaseThrows() {
+        EncodedFrame frame = new FramePool(16, 1).acquire(8);
+        frame.release();
+        frame.release();
+    }
+}
@@ -0,0 +1,50 @@
+package com.example.mycam;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FrameRingTest {
+    private static void fill(byte[] frame, int value) {
+        for (int i = 0; i < frame.length; i++) {
+            frame[i] = (byte) (value + i);
+        }
+    }
+
+    @Test
+    public void copyFrame_findsNearestTimestamp() {
+        FrameRing ring = new FrameRing(3, 4, 4);
+        for (int i = 0; i < 3; i++) {
+            fill(ring.beginWrite(), i * 10);
+            ring.endWrite(1000 * (i + 1));
+        }
+        byte[] dst = new byte[4 * 4 * 3 / 2];
+        assertEquals(2000, ring.copyFrame(2100, 500, null, dst, FrameRing.LAYOUT_NV12));
+        assertEquals(10, dst[0]);
+        assertEquals(FrameRing.INVALID_TIMESTAMP, ring.copyFrame(5000, 500, null, dst, FrameRing.LAYOUT_NV12));
+    }
+
+    @Test
+    public void copyFrame_evictsOldestSlot() {
+        FrameRing ring = new FrameRing(2, 4, 4);
+        for (int i = 0; i < 3; i++) {
+            ring.beginWrite();
+            ring.endWrite(1000 * (i + 1));
+        }
+        byte[] dst = new byte[4 * 4 * 3 / 2];
+        assertEquals(FrameRing.INVALID_TIMESTAMP, ring.copyFrame(1000, 0, null, dst, FrameRing.LAYOUT_NV12));
+        assertEquals(3000, ring.copyFrame(3000, 0, null, dst, FrameRing.LAYOUT_NV12));
+    }
+
+    @Test
+    public void copyFrame_cropsAndSwapsChroma() {
+        FrameRing ring = new FrameRing(1, 4, 4);
+        fill(ring.beginWrite(), 0);
+        ring.endWrite(1000);
+        int[] crop = {2, 2, 2, 2};
+        byte[] dst = new byte[2 * 2 * 3 / 2];
+        assertEquals(1000, ring.copyFrame(1000, 0, crop, dst, FrameRing.LAYOUT_NV21));
+        // Y: rows 2,3 columns 2,3
+        assertArrayEquals(new byte[]{10, 11, 14, 15, 23, 22}, dst);
+    }
+}
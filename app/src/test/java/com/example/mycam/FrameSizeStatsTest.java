@@ -0,0 +1,25 @@
+package com.example.mycam;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FrameSizeStatsTest {
+    @Test
+    public void percentilesAndPeak() {
+        FrameSizeStats stats = new FrameSizeStats();
+        for (int i = 0; i < 99; i++) {
+            stats.record(5000, false);
+        }
+        stats.record(60000, true);
+        assertEquals(100, stats.getCount());
+        assertEquals(60000, stats.getPeak());
+        assertEquals((99 * 5000 + 60000) / 100, stats.getMean());
+        assertEquals(5 * 1024, stats.getPercentile(95));
+        assertEquals(60000, stats.getPercentile(100));
+
+        stats.reset();
+        assertEquals(0, stats.getCount());
+        assertEquals(0, stats.getPercentile(99));
+    }
+}
@@ -0,0 +1,96 @@
+package com.example.mycam;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class GopCacheTest {
+    private final FramePool mPool = new FramePool(16, 16);
+    private int mKeyFrameRequests = 0;
+
+    private EncodedFrame frame(boolean key, int size) {
+        EncodedFrame frame = mPool.acquire(size);
+        frame.length = size;
+        frame.flags = key ? FrameHeader.FLAG_KEY_FRAME : 0;
+        return frame;
+    }
+
+    private EncodedFrame recoveryPoint(int size) {
+        EncodedFrame frame = frame(false, size);
+        frame.flags = FrameHeader.FLAG_RECOVERY_POINT | FrameHeader.FLAG_CODEC_CONFIG;
+        return frame;
+    }
+
+    private GopCache newCache(int maxFrames, int maxBytes) {
+        return new GopCache(maxFrames, maxBytes, new Runnable() {
+            @Override
+            public void run() {
+                mKeyFrameRequests++;
+            }
+        });
+    }
+
+    @Test
+    public void keepsFramesFromLastKeyFrame() {
+        GopCache cache = newCache(10, 1000);
+        EncodedFrame orphan = frame(false, 10);
+        cache.add(orphan);
+        assertFalse(cache.hasKeyFrame());
+
+        EncodedFrame key1 = frame(true, 10);
+        cache.add(key1);
+        cache.add(frame(false, 10));
+        assertEquals(2, cache.size());
+
+        cache.add(frame(true, 20));
+        assertEquals(1, cache.size());
+        assertEquals(20, cache.getBytes());
+        // 第一个GOP的关键帧已经被缓存释放，只剩调用者的引用
+        key1.release();
+        assertTrue(mPool.getFreeCount() >= 1);
+    }
+
+    @Test
+    public void overflowClearsAndRequestsKeyFrame() {
+        GopCache cache = newCache(2, 1000);
+        cache.add(frame(true, 10));
+        cache.add(frame(false, 10));
+        cache.add(frame(false, 10));
+        assertEquals(0, cache.size());
+        assertEquals(1, mKeyFrameRequests);
+    }
+
+    @Test
+    public void intraRefresh_overflowWaitsForRecoveryPoint() {
+        GopCache cache = newCache(4, 1000);
+        cache.add(frame(true, 10));
+        cache.add(frame(false, 10));
+        cache.add(recoveryPoint(10));
+        cache.add(frame(false, 10));
+        assertEquals(4, cache.size());
+        // 超过上限时清空，但不请求IDR
+        cache.add(frame(false, 10));
+        assertEquals(0, cache.size());
+        assertEquals(0, mKeyFrameRequests);
+        assertTrue(cache.hasRecoveryPoints());
+        cache.add(frame(false, 10));
+        assertFalse(cache.hasKeyFrame());
+        // 从下一个恢复点重新开始缓存
+        cache.add(recoveryPoint(10));
+        cache.add(frame(false, 10));
+        assertEquals(2, cache.size());
+        assertEquals(0, mKeyFrameRequests);
+    }
+
+    @Test
+    public void recoveryPoint_startsEmptyCache() {
+        GopCache cache = newCache(10, 1000);
+        cache.add(frame(false, 10));
+        cache.add(recoveryPoint(10));
+        cache.add(frame(false, 10));
+        assertEquals(2, cache.size());
+        // 新的IDR之后回到周期性关键帧模式
+        cache.add(frame(true, 10));
+        assertFalse(cache.hasRecoveryPoints());
+    }
+}
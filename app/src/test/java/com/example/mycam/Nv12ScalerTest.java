@@ -0,0 +1,162 @@
+package com.example.mycam;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class Nv12ScalerTest {
+    private static final int[] KERNELS = {Nv12Scaler.KERNEL_BOX, Nv12Scaler.KERNEL_BILINEAR, Nv12Scaler.KERNEL_AREA};
+
+    private static byte[] randomFrame(int width, int height, long seed) {
+        byte[] frame = new byte[width * height * 3 / 2];
+        new Random(seed).nextBytes(frame);
+        return frame;
+    }
+
+    // 按覆盖面积加权的浮点参考实现，一个平面，channels为2时是交错的UV
+    private static double areaReference(byte[] src, int offset, int stride, int channels, int c,
+                                        int srcWidth, int srcHeight, int dstWidth, int dstHeight, int x, int y) {
+        double sx = (double) srcWidth / dstWidth;
+        double sy = (double) srcHeight / dstHeight;
+        double sum = 0;
+        for (int j = (int) (y * sy); j < Math.ceil((y + 1) * sy); j++) {
+            double wy = Math.min((y + 1) * sy, j + 1) - Math.max(y * sy, j);
+            for (int i = (int) (x * sx); i < Math.ceil((x + 1) * sx); i++) {
+                double wx = Math.min((x + 1) * sx, i + 1) - Math.max(x * sx, i);
+                sum += wx * wy * (src[offset + j * stride + i * channels + c] & 0xFF);
+            }
+        }
+        return sum / (sx * sy);
+    }
+
+    @Test
+    public void constantFrame_staysConstant() {
+        byte[] src = new byte[1280 * 720 * 3 / 2];
+        Arrays.fill(src, 0, 1280 * 720, (byte) 200);
+        for (int i = 1280 * 720; i < src.length; i += 2) {
+            src[i] = (byte) 90;
+            src[i + 1] = (byte) 160;
+        }
+        for (int kernel : KERNELS) {
+            Nv12Scaler scaler = new Nv12Scaler(1280, 720, 224, 126, kernel);
+            byte[] dst = new byte[224 * 126 * 3 / 2];
+            scaler.scale(src, dst, 0);
+            for (int i = 0; i < 224 * 126; i++) {
+                assertEquals("kernel " + kernel, 200, dst[i] & 0xFF);
+            }
+            for (int i = 224 * 126; i < dst.length; i += 2) {
+                assertEquals("kernel " + kernel, 90, dst[i] & 0xFF);
+                assertEquals("kernel " + kernel, 160, dst[i + 1] & 0xFF);
+            }
+        }
+    }
+
+    @Test
+    public void area_matchesReference() {
+        int srcWidth = 1280;
+        int srcHeight = 720;
+        int dstWidth = 224;
+        int dstHeight = 126;
+        byte[] src = randomFrame(srcWidth, srcHeight, 1);
+        byte[] dst = new byte[dstWidth * dstHeight * 3 / 2];
+        new Nv12Scaler(srcWidth, srcHeight, dstWidth, dstHeight, Nv12Scaler.KERNEL_AREA).scale(src, dst, 0);
+        for (int y = 0; y < dstHeight; y++) {
+            for (int x = 0; x < dstWidth; x++) {
+                double expected = areaReference(src, 0, srcWidth, 1, 0, srcWidth, srcHeight, dstWidth, dstHeight, x, y);
+                assertEquals(expected, dst[y * dstWidth + x] & 0xFF, 1.0);
+            }
+        }
+        int chroma = srcWidth * srcHeight;
+        for (int y = 0; y < dstHeight / 2; y++) {
+            for (int x = 0; x < dstWidth / 2; x++) {
+                for (int c = 0; c < 2; c++) {
+                    double expected = areaReference(src, chroma, srcWidth, 2, c, srcWidth / 2, srcHeight / 2,
+                            dstWidth / 2, dstHeight / 2, x, y);
+                    assertEquals(expected, dst[dstWidth * dstHeight + y * dstWidth + x * 2 + c] & 0xFF, 1.0);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void box_equalsAreaOnIntegerRatio() {
+        byte[] src = randomFrame(640, 480, 2);
+        byte[] box = new byte[160 * 120 * 3 / 2];
+        byte[] area = new byte[box.length];
+        new Nv12Scaler(640, 480, 160, 120, Nv12Scaler.KERNEL_BOX).scale(src, box, 0);
+        new Nv12Scaler(640, 480, 160, 120, Nv12Scaler.KERNEL_AREA).scale(src, area, 0);
+        for (int i = 0; i < box.length; i++) {
+            assertEquals(area[i] & 0xFF, box[i] & 0xFF, 1);
+        }
+    }
+
+    @Test
+    public void bilinear_halvesByAveragingPairs() {
+        // 2倍缩小时像素中心正好在两个源像素中间
+        byte[] src = randomFrame(64, 32, 3);
+        byte[] dst = new byte[32 * 16 * 3 / 2];
+        new Nv12Scaler(64, 32, 32, 16, Nv12Scaler.KERNEL_BILINEAR).scale(src, dst, 0);
+        for (int y = 0; y < 16; y++) {
+            for (int x = 0; x < 32; x++) {
+                double expected = ((src[2 * y * 64 + 2 * x] & 0xFF) + (src[2 * y * 64 + 2 * x + 1] & 0xFF)
+                        + (src[(2 * y + 1) * 64 + 2 * x] & 0xFF) + (src[(2 * y + 1) * 64 + 2 * x + 1] & 0xFF)) / 4.0;
+                assertEquals(expected, dst[y * 32 + x] & 0xFF, 1.0);
+            }
+        }
+    }
+
+    @Test
+    public void crop_selectsRegion() {
+        int[] crop = Nv12Scaler.centerCrop(1280, 720, 224, 224);
+        assertArrayEquals(new int[]{280, 0, 720, 720}, crop);
+        // 裁剪区域内外亮度不同，输出只能看到区域内
+        byte[] src = new byte[1280 * 720 * 3 / 2];
+        for (int y = 0; y < 720; y++) {
+            for (int x = 0; x < 1280; x++) {
+                src[y * 1280 + x] = (byte) (x >= 280 && x < 1000 ? 100 : 250);
+            }
+        }
+        byte[] dst = new byte[8 + 224 * 224];
+        new Nv12Scaler(1280, 720, crop[0], crop[1], crop[2], crop[3], 224, 224, Nv12Scaler.KERNEL_AREA)
+                .scaleLuma(src, dst, 8);
+        for (int i = 0; i < 8; i++) {
+            assertEquals(0, dst[i]);
+        }
+        for (int i = 8; i < dst.length; i++) {
+            assertEquals(100, dst[i] & 0xFF);
+        }
+    }
+
+    @Test
+    public void stripes_matchSingleThread() throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            byte[] src = randomFrame(1280, 720, 4);
+            for (int kernel : KERNELS) {
+                Nv12Scaler single = new Nv12Scaler(1280, 720, 226, 130, kernel);
+                Nv12Scaler striped = new Nv12Scaler(1280, 720, 226, 130, kernel);
+                striped.setParallelism(executor, 4);
+                byte[] expected = new byte[226 * 130 * 3 / 2];
+                byte[] actual = new byte[expected.length];
+                single.scale(src, expected, 0);
+                for (int i = 0; i < 3; i++) {
+                    Arrays.fill(actual, (byte) 0);
+                    striped.scale(src, actual, 0);
+                    assertArrayEquals("kernel " + kernel, expected, actual);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOddSize() {
+        new Nv12Scaler(1280, 720, 225, 224, Nv12Scaler.KERNEL_AREA);
+    }
+}
@@ -0,0 +1,73 @@
+package com.example.mycam;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SeiMessageTest {
+    private static final byte[] SLICE = {0, 0, 0, 1, 0x65, (byte) 0x88, (byte) 0x84, 0x00, 0x33};
+
+    private static SeiMessage message() {
+        SeiMessage message = new SeiMessage();
+        // 大量的0会产生防竞争字节
+        message.wallClockMs = 0x0000000100000002L;
+        message.sensorTimestampNs = 123456789012345L;
+        message.motionScore = 3;
+        message.setDeviceId("Pixel 7");
+        return message;
+    }
+
+    @Test
+    public void writeThenParse_roundTrips() {
+        byte[] frame = new byte[SeiMessage.MAX_SIZE + SLICE.length];
+        int length = message().write(frame, 0);
+        assertTrue(length <= SeiMessage.MAX_SIZE);
+        System.arraycopy(SLICE, 0, frame, length, SLICE.length);
+
+        SeiMessage read = new SeiMessage();
+        assertTrue(read.parse(frame, 0, length + SLICE.length));
+        assertEquals(0x0000000100000002L, read.wallClockMs);
+        assertEquals(123456789012345L, read.sensorTimestampNs);
+        assertEquals(3, read.motionScore);
+        assertEquals("Pixel 7", read.getDeviceId());
+    }
+
+    @Test
+    public void write_insertsEmulationPrevention() {
+        byte[] sei = new byte[SeiMessage.MAX_SIZE];
+        int length = message().write(sei, 0);
+        // 起始码之后只能出现转义后的 00 00 03，不能出现 00 00 00/01/02
+        for (int i = 4; i + 2 < length; i++) {
+            assertFalse(sei[i] == 0 && sei[i + 1] == 0 && (sei[i + 2] & 0xFF) <= 2);
+        }
+        final int[] nals = new int[1];
+        H264Util.forEachNal(sei, 0, length, new H264Util.NalVisitor() {
+            @Override
+            public void onNal(byte[] data, int offset, int length, int type) {
+                assertEquals(H264Util.NAL_SEI, type);
+                nals[0]++;
+            }
+        });
+        assertEquals(1, nals[0]);
+    }
+
+    @Test
+    public void parse_skipsOtherSeiAndStopsAtSlice() {
+        // 其他软件的SEI（payloadType 6）之后才是我们的消息
+        byte[] other = {0, 0, 0, 1, 0x06, 0x06, 0x02, 0x11, 0x22, (byte) 0x80};
+        byte[] frame = new byte[other.length + SeiMessage.MAX_SIZE + SLICE.length];
+        System.arraycopy(other, 0, frame, 0, other.length);
+        int length = other.length + message().write(frame, other.length);
+        System.arraycopy(SLICE, 0, frame, length, SLICE.length);
+        SeiMessage read = new SeiMessage();
+        assertTrue(read.parse(frame, 0, length + SLICE.length));
+        assertEquals(123456789012345L, read.sensorTimestampNs);
+
+        // slice之后的SEI不属于这一帧
+        byte[] late = new byte[SLICE.length + SeiMessage.MAX_SIZE];
+        System.arraycopy(SLICE, 0, late, 0, SLICE.length);
+        int lateLength = SLICE.length + message().write(late, SLICE.length);
+        assertFalse(new SeiMessage().parse(late, 0, lateLength));
+        assertFalse(new SeiMessage().parse(SLICE, 0, SLICE.length));
+    }
+}
@@ -0,0 +1,124 @@
+package com.example.mycam;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * 在JVM上把录制的帧经过编码之后的发送流程：
+ * TraceReplayer -> 假的编码器 -> FrameDispatcher(GOP缓存) -> FrameSubscriber -> FrameWriter -> 字节流，
+ * 再按帧头解析回来检查每一帧。
+ */
+public class TraceReplayPipelineTest {
+    private static final int WIDTH = 32;
+    private static final int HEIGHT = 16;
+    private static final int FRAMES = 40;
+    private static final int GOP = 10;
+    private static final long FIRST_NS = 1000000000L;
+    private static final long PERIOD_NS = 33333333L;
+    private static final byte[] CONFIG = {0, 0, 0, 1, 0x67, 0x42, 0, 0x1e, 0, 0, 0, 1, 0x68, (byte) 0xce};
+
+    /**
+     * 代替AvcEncoder：每帧输出一个NAL，内容是NV12的前几个字节，每GOP帧一个带SPS/PPS的关键帧
+     */
+    private static class StubEncoder implements Camera2Wrapper.ImageDataListener {
+        private final FramePool mPool = new FramePool(64, FRAMES);
+        private final FrameDispatcher mDispatcher;
+        private int mSequence = 0;
+
+        StubEncoder(FrameDispatcher dispatcher) {
+            this.mDispatcher = dispatcher;
+        }
+
+        @Override
+        public void OnImageDataListener(byte[] data, long timestamp) {
+            boolean key = mSequence % GOP == 0;
+            EncodedFrame frame = mPool.acquire(12);
+            frame.type = FrameHeader.TYPE_VIDEO;
+            frame.length = 12;
+            frame.data[0] = 0;
+            frame.data[1] = 0;
+            frame.data[2] = 0;
+            frame.data[3] = 1;
+            frame.data[4] = (byte) (key ? 0x65 : 0x41);
+            System.arraycopy(data, 0, frame.data, 5, 7);
+            frame.prefix = key ? CONFIG : null;
+            frame.flags = key ? FrameHeader.FLAG_KEY_FRAME | FrameHeader.FLAG_CODEC_CONFIG : 0;
+            frame.sequence = mSequence++;
+            frame.captureTimeNs = timestamp;
+            frame.ptsUs = timestamp / 1000;
+            mDispatcher.dispatch(frame);
+            frame.release();
+        }
+    }
+
+    private static File record() throws Exception {
+        File file = File.createTempFile("trace", ".mctr");
+        file.deleteOnExit();
+        TraceRecorder recorder = new TraceRecorder(file, WIDTH, HEIGHT, 1L << 30);
+        byte[] nv12 = new byte[WIDTH * HEIGHT * 3 / 2];
+        for (int i = 0; i < FRAMES; i++) {
+            for (int j = 0; j < nv12.length; j++) {
+                nv12[j] = (byte) (i * 3 + j);
+            }
+            assertTrue(recorder.record(nv12, FIRST_NS + i * PERIOD_NS));
+        }
+        recorder.close();
+        return file;
+    }
+
+    @Test
+    public void replay_sendsEveryFrameFromFirstCachedKeyFrame() throws Exception {
+        TraceReader reader = new TraceReader(record());
+        final FrameDispatcher dispatcher = new FrameDispatcher(100, 1 << 20, null);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final FrameSubscriber subscriber = new FrameSubscriber("test",
+                new FrameWriter(new DataOutputStream(bytes), FrameHeader.VERSION, true), 0);
+        final StubEncoder encoder = new StubEncoder(dispatcher);
+        // 重放到一半时订阅，先收到缓存的GOP
+        final int subscribeAt = GOP + GOP / 2;
+        TraceReplayer replayer = new TraceReplayer(reader);
+        int frames = replayer.replay(new Camera2Wrapper.ImageDataListener() {
+            private int mCount = 0;
+
+            @Override
+            public void OnImageDataListener(byte[] data, long timestamp) {
+                if (mCount++ == subscribeAt) {
+                    dispatcher.subscribe(subscriber);
+                }
+                encoder.OnImageDataListener(data, timestamp);
+            }
+        }, TraceReplayer.MODE_FAST, 1, 1);
+        assertEquals(FRAMES, frames);
+        while (subscriber.sendNext(0)) {
+            // 发送队列中的所有帧
+        }
+        reader.close();
+
+        ByteBuffer stream = ByteBuffer.wrap(bytes.toByteArray());
+        FrameHeader header = new FrameHeader();
+        int expected = GOP;
+        while (stream.hasRemaining()) {
+            assertTrue(header.readFrom(stream));
+            assertEquals(expected, header.sequence);
+            assertEquals(FIRST_NS + expected * PERIOD_NS, header.captureTimeNs);
+            assertEquals(expected % GOP == 0, header.isKeyFrame());
+            byte[] payload = new byte[header.payloadLength];
+            stream.get(payload);
+            assertEquals(header.checksum, FrameHeader.crc32(payload, 0, payload.length));
+            int nal = header.hasCodecConfig() ? CONFIG.length : 0;
+            assertEquals((byte) (expected * 3), payload[nal + 5]);
+            expected++;
+        }
+        assertEquals(FRAMES, expected);
+        assertTrue(subscriber.getTimeToFirstPictureNs() >= 0);
+        // 发送完以后只剩GOP缓存持有的帧
+        dispatcher.clearCache();
+        assertEquals(encoder.mPool.getAllocatedCount(), encoder.mPool.getFreeCount());
+    }
+}
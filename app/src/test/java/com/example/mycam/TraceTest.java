@@ -0,0 +1,91 @@
+package com.example.mycam;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+public class TraceTest {
+    private static final int WIDTH = 16;
+    private static final int HEIGHT = 8;
+
+    private static byte[] frame(int value) {
+        byte[] nv12 = new byte[WIDTH * HEIGHT * 3 / 2];
+        for (int i = 0; i < nv12.length; i++) {
+            nv12[i] = (byte) (value + i);
+        }
+        return nv12;
+    }
+
+    private static File record(int frames, boolean close) throws Exception {
+        File file = File.createTempFile("trace", ".mctr");
+        file.deleteOnExit();
+        TraceRecorder recorder = new TraceRecorder(file, WIDTH, HEIGHT, 1L << 30);
+        for (int i = 0; i < frames; i++) {
+            assertTrue(recorder.record(frame(i), 1000000000L + i * 33333333L));
+        }
+        assertEquals(frames, recorder.getFrameCount());
+        if (close) {
+            recorder.close();
+        }
+        return file;
+    }
+
+    @Test
+    public void recordThenRead() throws Exception {
+        TraceReader reader = new TraceReader(record(5, true));
+        assertEquals(WIDTH, reader.getWidth());
+        assertEquals(HEIGHT, reader.getHeight());
+        assertEquals(5, reader.getFrameCount());
+        byte[] dst = new byte[reader.getFrameSize()];
+        assertEquals(1000000000L + 3 * 33333333L, reader.readFrame(3, dst));
+        assertArrayEquals(frame(3), dst);
+        reader.close();
+    }
+
+    @Test
+    public void recoversFramesWithoutIndex() throws Exception {
+        TraceReader reader = new TraceReader(record(4, false));
+        assertEquals(4, reader.getFrameCount());
+        byte[] dst = new byte[reader.getFrameSize()];
+        reader.readFrame(0, dst);
+        assertArrayEquals(frame(0), dst);
+        reader.close();
+    }
+
+    @Test
+    public void stopsAtMaxBytes() throws Exception {
+        File file = File.createTempFile("trace", ".mctr");
+        file.deleteOnExit();
+        int recordSize = TraceRecorder.RECORD_HEADER_SIZE + WIDTH * HEIGHT * 3 / 2 + TraceRecorder.INDEX_ENTRY_SIZE;
+        TraceRecorder recorder = new TraceRecorder(file, WIDTH, HEIGHT, TraceRecorder.HEADER_SIZE + recordSize * 2);
+        assertTrue(recorder.record(frame(0), 0));
+        assertTrue(recorder.record(frame(1), 1));
+        assertFalse(recorder.record(frame(2), 2));
+        assertEquals(1, recorder.getDroppedFrames());
+        recorder.close();
+        assertEquals(TraceRecorder.HEADER_SIZE + recordSize * 2, file.length());
+    }
+
+    @Test
+    public void replayLoopsWithIncreasingTimestamps() throws Exception {
+        TraceReader reader = new TraceReader(record(3, true));
+        final ArrayList<Long> timestamps = new ArrayList<>();
+        TraceReplayer replayer = new TraceReplayer(reader);
+        int frames = replayer.replay(new Camera2Wrapper.ImageDataListener() {
+            @Override
+            public void OnImageDataListener(byte[] data, long timestamp) {
+                timestamps.add(timestamp);
+            }
+        }, TraceReplayer.MODE_FAST, 1, 2);
+        assertEquals(6, frames);
+        assertEquals(1000000000L, (long) timestamps.get(0));
+        assertEquals(1000000000L + 3 * 33333333L, (long) timestamps.get(3));
+        for (int i = 1; i < timestamps.size(); i++) {
+            assertTrue(timestamps.get(i) > timestamps.get(i - 1));
+        }
+        reader.close();
+    }
+}
@@ -0,0 +1,30 @@
+plugins {
+    id("application")
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_1_8
+    targetCompatibility = JavaVersion.VERSION_1_8
+}
+
+// 源码中有中文注释，不依赖平台默认编码
+tasks.withType<JavaCompile> {
+    options.encoding = "UTF-8"
+}
+
+application {
+    mainClass.set("com.example.mycam.receiver.StreamReceiver")
+}
+
+dependencies {
+    testImplementation("junit:junit:4.13.2")
+}
+
+// 写入吞吐和seek延迟：./gradlew :receiver:benchmark
+tasks.register<JavaExec>("benchmark") {
+    group = "verification"
+    description = "Measures archive write throughput per core and seek latency"
+    classpath = sourceSets["main"].runtimeClasspath
+    mainClass.set("com.example.mycam.receiver.ArchiveBenchmark")
+    jvmArgs("-Xmx512m")
+}
@@ -0,0 +1,122 @@
+package com.example.mycam.receiver;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 录像的基准测试：
+ * 1、每个线程写一个相机，线程数从1到CPU核数，输出总吞吐和每核吞吐；
+ * 2、在写好的录像中随机按时间查找关键帧，输出延迟分布。
+ * 用法：ArchiveBenchmark [dir] [secondsPerCamera]，或者 ./gradlew :receiver:benchmark
+ */
+public class ArchiveBenchmark {
+    private static final int FRAME_RATE = 30;
+    private static final int GOP = 30;
+    // 2.5Mbps的720p码流：关键帧约40KB，P帧约8KB
+    private static final int KEY_FRAME_SIZE = 40 * 1024;
+    private static final int FRAME_SIZE = 8 * 1024;
+    private static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+    private static final int SEEKS = 100000;
+
+    public static void main(String[] args) throws Exception {
+        File dir = new File(args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir"), "archive-benchmark");
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 600;
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.println("cores " + cores + ", " + seconds + "s of 720p per camera, segment "
+                + SEGMENT_SIZE / 1024 / 1024 + "MB");
+        for (int threads = 1; threads <= cores; threads *= 2) {
+            deleteRecursively(dir);
+            benchmarkWrite(dir, threads, seconds);
+        }
+        deleteRecursively(dir);
+        CameraArchive archive = benchmarkWrite(dir, 1, seconds * 6);
+        benchmarkSeek(archive);
+        deleteRecursively(dir);
+    }
+
+    private static CameraArchive benchmarkWrite(File dir, int threads, final int seconds) throws Exception {
+        final CameraArchive[] archives = new CameraArchive[threads];
+        final AtomicLong bytes = new AtomicLong();
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            archives[i] = new CameraArchive(new File(dir, "camera-" + i), SEGMENT_SIZE);
+            final CameraArchive archive = archives[i];
+            workers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        bytes.addAndGet(writeFrames(archive, seconds * FRAME_RATE));
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+        }
+        long start = System.nanoTime();
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        double mbPerSecond = bytes.get() / 1048576.0 / (elapsed / 1e9);
+        double framesPerSecond = (double) threads * seconds * FRAME_RATE / (elapsed / 1e9);
+        System.out.printf("write: %d threads, %.0f MB/s, %.0f MB/s per core, %.0f frames/s per core%n",
+                threads, mbPerSecond, mbPerSecond / threads, framesPerSecond / threads);
+        for (CameraArchive archive : archives) {
+            archive.close();
+        }
+        return archives[0];
+    }
+
+    private static long writeFrames(CameraArchive archive, int frames) throws IOException {
+        byte[] frame = new byte[KEY_FRAME_SIZE];
+        new Random(1).nextBytes(frame);
+        long bytes = 0;
+        long frameIntervalUs = 1000000 / FRAME_RATE;
+        for (int i = 0; i < frames; i++) {
+            boolean keyFrame = i % GOP == 0;
+            int length = keyFrame ? KEY_FRAME_SIZE : FRAME_SIZE;
+            archive.append(i * frameIntervalUs, keyFrame, frame, 0, length);
+            bytes += length;
+        }
+        return bytes;
+    }
+
+    private static void benchmarkSeek(CameraArchive archive) {
+        long first = archive.getFirstTimestampUs();
+        long span = archive.getLastTimestampUs() - first;
+        Random random = new Random(2);
+        long[] latencies = new long[SEEKS];
+        long found = 0;
+        for (int i = 0; i < SEEKS; i++) {
+            long target = first + (long) (random.nextDouble() * span);
+            long start = System.nanoTime();
+            CameraArchive.Position position = archive.seek(target);
+            latencies[i] = System.nanoTime() - start;
+            if (position != null) {
+                found++;
+            }
+        }
+        Arrays.sort(latencies);
+        System.out.printf("seek: %d segments, %d/%d found, p50 %dns, p99 %dns, max %dns%n",
+                archive.getSegmentCount(), found, SEEKS, latencies[SEEKS / 2], latencies[SEEKS * 99 / 100],
+                latencies[SEEKS - 1]);
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        if (file.exists() && !file.delete()) {
+            System.err.println("can not delete " + file);
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package com.example.mycam.receiver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * 一个相机的一段录像：固定大小的内存映射文件（.seg）加上同样映射的关键帧索引（.idx）。
+ * 文件在创建时一次性设置为固定大小并整体映射，写入只是内存拷贝；没有写到的部分在大多数文件系统上是空洞，不占磁盘。
+ * 段文件（大端序）：
+ * <pre>
+ *  0  magic            int   'MCAR'
+ *  4  version          int
+ *  8  capacity         long  文件大小
+ * 16  firstTimestampUs long
+ * 24  lastTimestampUs  long
+ * 32  writePosition    long  已经完整写入的记录的结尾，崩溃后从这里恢复
+ * 40  frameCount       int
+ * 44  reserved
+ * 64  记录：length int, flags int, timestampUs long, H264数据
+ * </pre>
+ * 索引文件：magic int, count int, 8字节保留，然后每个关键帧一项 timestampUs long, 记录的位置 long，
+ * 时间戳递增，按时间查找是二分查找。
+ * 只有一个线程写，其他线程可以同时查找和导出已经提交的部分。
+ */
+public class ArchiveSegment {
+    public static final int MAGIC = 0x4D434152;
+    public static final int INDEX_MAGIC = 0x4D434958;
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 64;
+    public static final int RECORD_HEADER_SIZE = 16;
+    public static final int INDEX_HEADER_SIZE = 16;
+    public static final int INDEX_ENTRY_SIZE = 16;
+    public static final int FLAG_KEY_FRAME = 0x01;
+    // 每多少字节预留一个索引项
+    private static final int BYTES_PER_INDEX_ENTRY = 16 * 1024;
+
+    private final File mFile;
+    private final File mIndexFile;
+    private final long mStartTimestampUs;
+    private final MappedByteBuffer mData;
+    // 写线程用来批量写入数据的视图，避免每帧创建
+    private final ByteBuffer mWriteBuffer;
+    private final MappedByteBuffer mIndex;
+    private final int mIndexCapacity;
+    private final boolean mWritable;
+    // 写线程修改，读线程通过volatile看到已经写完的记录
+    private volatile long mWritePosition;
+    private volatile int mKeyFrames;
+    private volatile long mLastTimestampUs;
+    private long mFirstTimestampUs;
+    private int mFrameCount;
+
+    private ArchiveSegment(File file, long startTimestampUs, MappedByteBuffer data, MappedByteBuffer index,
+                           boolean writable) {
+        this.mFile = file;
+        this.mIndexFile = indexFile(file);
+        this.mStartTimestampUs = startTimestampUs;
+        this.mData = data;
+        this.mWriteBuffer = data.duplicate();
+        this.mIndex = index;
+        this.mIndexCapacity = (index.capacity() - INDEX_HEADER_SIZE) / INDEX_ENTRY_SIZE;
+        this.mWritable = writable;
+    }
+
+    static File indexFile(File segmentFile) {
+        String name = segmentFile.getName();
+        return new File(segmentFile.getParentFile(), name.substring(0, name.length() - 4) + ".idx");
+    }
+
+    /**
+     * 创建一个新的段，文件名为起始时间戳
+     *
+     * @param capacity 段文件大小，不超过1GB
+     */
+    public static ArchiveSegment create(File dir, long startTimestampUs, int capacity) throws IOException {
+        if (capacity <= HEADER_SIZE + RECORD_HEADER_SIZE || capacity > 1 << 30) {
+            throw new IllegalArgumentException("bad segment capacity " + capacity);
+        }
+        File file = new File(dir, String.format("%016d.seg", startTimestampUs));
+        int indexSize = INDEX_HEADER_SIZE + Math.max(256, capacity / BYTES_PER_INDEX_ENTRY) * INDEX_ENTRY_SIZE;
+        MappedByteBuffer data = map(file, capacity, FileChannel.MapMode.READ_WRITE);
+        MappedByteBuffer index = map(indexFile(file), indexSize, FileChannel.MapMode.READ_WRITE);
+        data.putInt(0, MAGIC);
+        data.putInt(4, VERSION);
+        data.putLong(8, capacity);
+        data.putLong(32, HEADER_SIZE);
+        index.putInt(0, INDEX_MAGIC);
+        index.putInt(4, 0);
+        ArchiveSegment segment = new ArchiveSegment(file, startTimestampUs, data, index, true);
+        segment.mWritePosition = HEADER_SIZE;
+        return segment;
+    }
+
+    /**
+     * 打开已有的段（只读），例如接收端重启后；只认已经提交的记录
+     */
+    public static ArchiveSegment open(File file) throws IOException {
+        MappedByteBuffer data = map(file, -1, FileChannel.MapMode.READ_ONLY);
+        MappedByteBuffer index = map(indexFile(file), -1, FileChannel.MapMode.READ_ONLY);
+        if (data.capacity() < HEADER_SIZE || data.getInt(0) != MAGIC || data.getInt(4) != VERSION
+                || index.capacity() < INDEX_HEADER_SIZE || index.getInt(0) != INDEX_MAGIC) {
+            throw new IOException("not an archive segment: " + file);
+        }
+        String name = file.getName();
+        ArchiveSegment segment = new ArchiveSegment(file, Long.parseLong(name.substring(0, name.length() - 4)),
+                data, index, false);
+        segment.mWritePosition = Math.min(data.getLong(32), data.capacity());
+        segment.mFirstTimestampUs = data.getLong(16);
+        segment.mLastTimestampUs = data.getLong(24);
+        segment.mFrameCount = data.getInt(40);
+        // 索引项先于写入位置更新，崩溃时可能多出一项指向没有提交的记录
+        int keyFrames = Math.min(index.getInt(4), segment.mIndexCapacity);
+        while (keyFrames > 0
+                && index.getLong(INDEX_HEADER_SIZE + (keyFrames - 1) * INDEX_ENTRY_SIZE + 8) >= segment.mWritePosition) {
+            keyFrames--;
+        }
+        segment.mKeyFrames = keyFrames;
+        return segment;
+    }
+
+    private static MappedByteBuffer map(File file, long size, FileChannel.MapMode mode) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw");
+        try {
+            if (size >= 0) {
+                raf.setLength(size);
+            }
+            // 映射在文件关闭后仍然有效
+            return raf.getChannel().map(mode, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @return 这一帧能否放进这一段（数据和索引都要有空间）
+     */
+    public boolean canAppend(int length, boolean keyFrame) {
+        return mWritable && mWritePosition + RECORD_HEADER_SIZE + length <= mData.capacity()
+                && (!keyFrame || mKeyFrames < mIndexCapacity);
+    }
+
+    /**
+     * 追加一帧，时间戳必须不小于上一帧；调用前先用canAppend()检查
+     */
+    public void append(long timestampUs, boolean keyFrame, byte[] data, int offset, int length) {
+        int position = (int) mWritePosition;
+        mData.putInt(position, length);
+        mData.putInt(position + 4, keyFrame ? FLAG_KEY_FRAME : 0);
+        mData.putLong(position + 8, timestampUs);
+        mWriteBuffer.position(position + RECORD_HEADER_SIZE);
+        mWriteBuffer.put(data, offset, length);
+        if (keyFrame) {
+            // 条目先写好，记录写完后才增加个数
+            int entry = INDEX_HEADER_SIZE + mKeyFrames * INDEX_ENTRY_SIZE;
+            mIndex.putLong(entry, timestampUs);
+            mIndex.putLong(entry + 8, position);
+        }
+        if (mFrameCount == 0) {
+            mFirstTimestampUs = timestampUs;
+            mData.putLong(16, timestampUs);
+        }
+        mFrameCount++;
+        mLastTimestampUs = timestampUs;
+        mData.putLong(24, timestampUs);
+        mData.putInt(40, mFrameCount);
+        // 最后更新写入位置，崩溃时最多丢掉正在写的这一帧
+        mWritePosition = position + RECORD_HEADER_SIZE + length;
+        mData.putLong(32, mWritePosition);
+        // 索引在记录之后发布：读线程通过索引找到的关键帧一定在mWritePosition之内
+        if (keyFrame) {
+            mIndex.putInt(4, mKeyFrames + 1);
+            mKeyFrames++;
+        }
+    }
+
+    /**
+     * 把数据刷到磁盘，例如段写满时
+     */
+    public void force() {
+        if (mWritable) {
+            mData.force();
+            mIndex.force();
+        }
+    }
+
+    /**
+     * @return 时间戳不大于timestampUs的最后一个关键帧的记录位置，没有时返回-1
+     */
+    public long findKeyFrame(long timestampUs) {
+        int low = 0;
+        int high = mKeyFrames - 1;
+        long found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int entry = INDEX_HEADER_SIZE + mid * INDEX_ENTRY_SIZE;
+            if (mIndex.getLong(entry) <= timestampUs) {
+                found = mIndex.getLong(entry + 8);
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return 第一个关键帧的记录位置，没有时返回-1
+     */
+    public long firstKeyFrame() {
+        return mKeyFrames > 0 ? mIndex.getLong(INDEX_HEADER_SIZE + 8) : -1;
+    }
+
+    /**
+     * 从position处的记录开始，把时间戳不大于toUs的帧的H264数据写到out，不解码也不复制到堆上
+     *
+     * @return 写出的字节数
+     */
+    public long export(long position, long toUs, WritableByteChannel out) throws IOException {
+        long end = mWritePosition;
+        long bytes = 0;
+        ByteBuffer src = mData.duplicate();
+        while (position < end) {
+            int p = (int) position;
+            int length = mData.getInt(p);
+            if (mData.getLong(p + 8) > toUs) {
+                break;
+            }
+            src.limit(p + RECORD_HEADER_SIZE + length);
+            src.position(p + RECORD_HEADER_SIZE);
+            while (src.hasRemaining()) {
+                out.write(src);
+            }
+            bytes += length;
+            position = p + RECORD_HEADER_SIZE + length;
+        }
+        return bytes;
+    }
+
+    /**
+     * 删除段文件和索引，调用后不能再使用
+     */
+    public boolean delete() {
+        boolean deleted = mFile.delete();
+        return mIndexFile.delete() && deleted;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * 段的起始时间戳（文件名），不大于第一帧的时间戳
+     */
+    public long getStartTimestampUs() {
+        return mStartTimestampUs;
+    }
+
+    public long getFirstTimestampUs() {
+        return mFirstTimestampUs;
+    }
+
+    public long getLastTimestampUs() {
+        return mLastTimestampUs;
+    }
+
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    public int getKeyFrameCount() {
+        return mKeyFrames;
+    }
+
+    /**
+     * 已经写入的字节数（含文件头）
+     */
+    public long getSize() {
+        return mWritePosition;
+    }
+
+    public boolean isWritable() {
+        return mWritable;
+    }
+}
@@ -0,0 +1,255 @@
+package com.example.mycam.receiver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * 一个相机的录像：目录中按起始时间排列的{@link ArchiveSegment}，写满一段后换下一段。
+ * 按时间查找先在段的起始时间中二分，再在段的关键帧索引中二分，是O(log n)；
+ * 导出从不晚于起始时间的关键帧开始，直接输出原始H264，不需要解码。
+ * 保留策略以段为单位删除最旧的段。写入和查找可以在不同线程中进行。
+ */
+public class CameraArchive {
+    // 超过这个间隔的时间戳跳变不作为帧间隔
+    private static final long MAX_INTERVAL_US = 1000000;
+    private final File mDir;
+    private final int mSegmentSize;
+    // 按起始时间递增，最后一个是正在写的段
+    private final ArrayList<ArchiveSegment> mSegments = new ArrayList<>();
+    private ArchiveSegment mCurrent;
+    private long mLastTimestampUs = Long.MIN_VALUE;
+    // 时钟回拨后加在时间戳上的偏移：之后的帧整体平移到上一帧之后，帧间隔不变，录像时间线保持递增
+    private long mTimestampOffsetUs = 0;
+    private long mLastIntervalUs = 1;
+    // 当前段中还没有关键帧时，直到下一个关键帧之前的帧都无法解码，不写入
+    private boolean mWaitKeyFrame = true;
+    private long mDroppedFrames = 0;
+
+    /**
+     * 打开相机的录像目录，已有的段以只读方式加入，新的数据写到新的段
+     *
+     * @param segmentSize 每一段的文件大小
+     */
+    public CameraArchive(File dir, int segmentSize) throws IOException {
+        this.mDir = dir;
+        this.mSegmentSize = segmentSize;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("can not create " + dir);
+        }
+        File[] files = dir.listFiles();
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                if (!file.getName().endsWith(".seg")) {
+                    continue;
+                }
+                try {
+                    ArchiveSegment segment = ArchiveSegment.open(file);
+                    if (segment.getFrameCount() > 0) {
+                        mSegments.add(segment);
+                        mLastTimestampUs = Math.max(mLastTimestampUs, segment.getLastTimestampUs());
+                    }
+                } catch (IOException | NumberFormatException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * 追加一帧。时间戳早于上一帧（发送端时钟回拨或者重连后时钟不同）时，从这一帧开始的时间戳都加上一个偏移，
+     * 接在上一帧之后，保证段内和段之间都是递增的，并且回拨之后的帧间隔不变
+     *
+     * @return 是否写入；一段中第一个关键帧之前的帧不写入
+     */
+    public synchronized boolean append(long timestampUs, boolean keyFrame, byte[] data, int offset, int length)
+            throws IOException {
+        timestampUs += mTimestampOffsetUs;
+        if (mLastTimestampUs != Long.MIN_VALUE && timestampUs < mLastTimestampUs) {
+            mTimestampOffsetUs += mLastTimestampUs + mLastIntervalUs - timestampUs;
+            timestampUs = mLastTimestampUs + mLastIntervalUs;
+        }
+        if (ArchiveSegment.HEADER_SIZE + ArchiveSegment.RECORD_HEADER_SIZE + length > mSegmentSize) {
+            mDroppedFrames++;
+            return false;
+        }
+        // 只在关键帧处换段，每一段都从关键帧开始，可以单独解码和删除；剩余空间不到1/8时提前换段，给这个GOP留出空间
+        if (keyFrame && (mCurrent == null || !mCurrent.canAppend(length + mSegmentSize / 8, true))) {
+            roll(timestampUs);
+        }
+        if (mCurrent == null || (mWaitKeyFrame && !keyFrame) || !mCurrent.canAppend(length, keyFrame)) {
+            // GOP太长写满了一段时，丢到下一个关键帧
+            mWaitKeyFrame = true;
+            mDroppedFrames++;
+            return false;
+        }
+        mWaitKeyFrame = false;
+        mCurrent.append(timestampUs, keyFrame, data, offset, length);
+        if (mLastTimestampUs != Long.MIN_VALUE && timestampUs - mLastTimestampUs > 0
+                && timestampUs - mLastTimestampUs < MAX_INTERVAL_US) {
+            mLastIntervalUs = timestampUs - mLastTimestampUs;
+        }
+        mLastTimestampUs = timestampUs;
+        return true;
+    }
+
+    private void roll(long timestampUs) throws IOException {
+        if (mCurrent != null) {
+            mCurrent.force();
+        }
+        long start = timestampUs;
+        // 同一微秒内连续换段时文件名不能重复
+        if (!mSegments.isEmpty() && start <= mSegments.get(mSegments.size() - 1).getStartTimestampUs()) {
+            start = mSegments.get(mSegments.size() - 1).getStartTimestampUs() + 1;
+        }
+        mCurrent = ArchiveSegment.create(mDir, start, mSegmentSize);
+        mSegments.add(mCurrent);
+    }
+
+    /**
+     * 查找不晚于timestampUs的最后一个关键帧；timestampUs早于所有录像时返回最早的关键帧
+     *
+     * @return 段和段内位置，没有录像时返回null
+     */
+    public synchronized Position seek(long timestampUs) {
+        int low = 0;
+        int high = mSegments.size() - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (mSegments.get(mid).getStartTimestampUs() <= timestampUs) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        for (int i = found; i >= 0; i--) {
+            long position = mSegments.get(i).findKeyFrame(timestampUs);
+            if (position >= 0) {
+                return new Position(mSegments.get(i), position);
+            }
+        }
+        for (ArchiveSegment segment : mSegments) {
+            long position = segment.firstKeyFrame();
+            if (position >= 0) {
+                return new Position(segment, position);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 把[fromUs, toUs]的录像以原始H264写到out，从不晚于fromUs的关键帧开始，解码器可以直接播放
+     *
+     * @return 导出的字节数
+     */
+    public long export(long fromUs, long toUs, WritableByteChannel out) throws IOException {
+        ArrayList<ArchiveSegment> segments;
+        Position start;
+        synchronized (this) {
+            start = seek(fromUs);
+            if (start == null) {
+                return 0;
+            }
+            segments = new ArrayList<>(mSegments);
+        }
+        long bytes = 0;
+        long position = start.position;
+        for (int i = segments.indexOf(start.segment); i < segments.size(); i++) {
+            ArchiveSegment segment = segments.get(i);
+            bytes += segment.export(position, toUs, out);
+            if (segment.getLastTimestampUs() > toUs) {
+                break;
+            }
+            position = ArchiveSegment.HEADER_SIZE;
+        }
+        return bytes;
+    }
+
+    /**
+     * 以段为单位删除最旧的录像，正在写的段不删除
+     *
+     * @param maxAgeUs 最后一帧早于（最新时间 - maxAgeUs）的段被删除，0表示不限
+     * @param maxBytes 所有段的总大小上限，0表示不限
+     * @return 删除的段数
+     */
+    public synchronized int applyRetention(long maxAgeUs, long maxBytes) {
+        long total = 0;
+        for (ArchiveSegment segment : mSegments) {
+            total += segment.getSize();
+        }
+        int deleted = 0;
+        while (mSegments.size() > 1 && mSegments.get(0) != mCurrent) {
+            ArchiveSegment oldest = mSegments.get(0);
+            boolean tooOld = maxAgeUs > 0 && oldest.getLastTimestampUs() < mLastTimestampUs - maxAgeUs;
+            boolean tooBig = maxBytes > 0 && total > maxBytes;
+            if (!tooOld && !tooBig) {
+                break;
+            }
+            mSegments.remove(0);
+            total -= oldest.getSize();
+            if (!oldest.delete()) {
+                System.err.println("applyRetention: can not delete " + oldest.getFile());
+            }
+            deleted++;
+        }
+        return deleted;
+    }
+
+    /**
+     * 把正在写的段刷到磁盘，之后的帧写到新的段
+     */
+    public synchronized void close() {
+        if (mCurrent != null) {
+            mCurrent.force();
+            mCurrent = null;
+        }
+        mWaitKeyFrame = true;
+        // 下一个连接的时间戳重新判断是否需要偏移
+        mTimestampOffsetUs = 0;
+    }
+
+    public synchronized int getSegmentCount() {
+        return mSegments.size();
+    }
+
+    public synchronized long getFirstTimestampUs() {
+        return mSegments.isEmpty() ? Long.MIN_VALUE : mSegments.get(0).getFirstTimestampUs();
+    }
+
+    public synchronized long getLastTimestampUs() {
+        return mLastTimestampUs;
+    }
+
+    /**
+     * @return 是否在等关键帧：新连接或者一段写满之后，直到下一个IDR之前的帧都不写入
+     */
+    public synchronized boolean isWaitingForKeyFrame() {
+        return mWaitKeyFrame;
+    }
+
+    public synchronized long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    public File getDir() {
+        return mDir;
+    }
+
+    /**
+     * 录像中的一个位置：一个关键帧记录
+     */
+    public static class Position {
+        public final ArchiveSegment segment;
+        public final long position;
+
+        Position(ArchiveSegment segment, long position) {
+            this.segment = segment;
+            this.position = position;
+        }
+    }
+}
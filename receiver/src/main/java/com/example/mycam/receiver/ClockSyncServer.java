@@ -0,0 +1,64 @@
+package com.example.mycam.receiver;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.nio.ByteBuffer;
+
+/**
+ * 回复手机端的时钟同步请求，与app中ClockSync的格式相同：收到请求后填上收到时间t1和回复时间t2原样发回。
+ * 所有手机都同步到{@link #nowNs()}这一个时钟，不同相机的帧可以按serverTimeNs直接对齐。
+ */
+public class ClockSyncServer implements Runnable {
+    public static final int MAGIC = 0x4D43434B;
+    public static final int PACKET_SIZE = 32;
+    public static final int TYPE_REQUEST = 0;
+    public static final int TYPE_RESPONSE = 1;
+
+    // 启动时的系统时间加上nanoTime的增量：单调、不受系统时间调整影响，又和录像使用的系统时间接近
+    private static final long ANCHOR_WALL_NS = System.currentTimeMillis() * 1000000L;
+    private static final long ANCHOR_NANO = System.nanoTime();
+
+    private final DatagramSocket mSocket;
+
+    public ClockSyncServer(int port) throws IOException {
+        mSocket = new DatagramSocket(port);
+    }
+
+    /**
+     * @return 接收端的时钟，纳秒
+     */
+    public static long nowNs() {
+        return ANCHOR_WALL_NS + (System.nanoTime() - ANCHOR_NANO);
+    }
+
+    @Override
+    public void run() {
+        byte[] bytes = new byte[PACKET_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        DatagramPacket packet = new DatagramPacket(bytes, bytes.length);
+        while (!mSocket.isClosed()) {
+            try {
+                packet.setLength(bytes.length);
+                mSocket.receive(packet);
+                long t1 = nowNs();
+                buffer.clear();
+                if (packet.getLength() < PACKET_SIZE || buffer.getInt() != MAGIC || buffer.get() != TYPE_REQUEST) {
+                    continue;
+                }
+                buffer.put(4, (byte) TYPE_RESPONSE);
+                buffer.putLong(16, t1);
+                buffer.putLong(24, nowNs());
+                mSocket.send(packet);
+            } catch (IOException e) {
+                if (!mSocket.isClosed()) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    public void close() {
+        mSocket.close();
+    }
+}
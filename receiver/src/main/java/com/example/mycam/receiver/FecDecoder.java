@@ -0,0 +1,330 @@
+package com.example.mycam.receiver;
+
+/**
+ * 手机端FecEncoder的对应部分。每个UDP包有16字节的包头（大端序）：
+ * type(byte) groupSize(byte) index(byte) flags(byte) sequence(int) groupBase(int) length(short) 2字节保留，
+ * 每groupSize个媒体包后面跟一个异或校验包（index == groupSize，length和flags也是异或值）。
+ * 分组不跨帧，帧尾不满的一组提前结束：媒体包上是计划的groupSize，校验包上是实际的个数。
+ * 收到校验包或者后一组的包时把组缩小到实际的大小。
+ * 缓存最近的若干组包，一组中只丢一个包并且收到了校验包时把它恢复出来，
+ * 然后按序号顺序交给Listener。缺失的包在后面收到了REORDER_WINDOW个包之后仍然无法恢复，就报告丢失并跳过。
+ * 所有缓冲在构造时分配。统计的原始丢包、恢复和最终丢失的包数通过{@link #writeFeedback}反馈给发送端，
+ * 发送端据此调整分组大小。
+ */
+public class FecDecoder {
+    public static final int HEADER_SIZE = 16;
+    public static final int MAX_PACKET_SIZE = 1400;
+    public static final int MAX_PAYLOAD = MAX_PACKET_SIZE - HEADER_SIZE;
+    public static final int MAX_GROUP_SIZE = 20;
+    public static final int TYPE_MEDIA = 0;
+    public static final int TYPE_PARITY = 1;
+    public static final int TYPE_FEEDBACK = 2;
+    // 一帧的第一个包
+    public static final int FLAG_FRAME_START = 0x01;
+    // 乱序等待的包数，超过后认为缺失的包已经丢失
+    private static final int REORDER_WINDOW = 2 * MAX_GROUP_SIZE + 2;
+    private static final int GROUP_SLOTS = 32;
+    public static final int FEEDBACK_SIZE = HEADER_SIZE + 16;
+
+    public interface Listener {
+        /**
+         * 按序号顺序回调每一个收到或恢复的媒体包，data在回调返回后会被复用
+         *
+         * @param flags FLAG_*
+         */
+        void onPacket(byte[] data, int offset, int length, int flags);
+
+        /**
+         * 序号为sequence的包无法恢复，下一个FLAG_FRAME_START之前的数据都不完整
+         */
+        void onLoss(int sequence);
+    }
+
+    private static class Group {
+        boolean active;
+        int base;
+        int size;
+        final byte[][] packets = new byte[MAX_GROUP_SIZE][MAX_PAYLOAD];
+        final int[] lengths = new int[MAX_GROUP_SIZE];
+        final int[] flags = new int[MAX_GROUP_SIZE];
+        final boolean[] present = new boolean[MAX_GROUP_SIZE];
+        int presentCount;
+        final byte[] parity = new byte[MAX_PAYLOAD];
+        boolean hasParity;
+        int parityLength;
+        int lengthXor;
+        int flagsXor;
+
+        void reset(int base, int size) {
+            this.active = true;
+            this.base = base;
+            this.size = size;
+            for (int i = 0; i < size; i++) {
+                present[i] = false;
+            }
+            presentCount = 0;
+            hasParity = false;
+        }
+
+        boolean contains(int sequence) {
+            return active && sequence - base >= 0 && sequence - base < size;
+        }
+    }
+
+    private final Listener mListener;
+    private final Group[] mGroups = new Group[GROUP_SLOTS];
+    private boolean mStarted = false;
+    private int mNextSequence;
+    private int mHighestSequence;
+    private long mDelivered = 0;
+    private long mRecovered = 0;
+    private long mLost = 0;
+    private long mParityPackets = 0;
+
+    public FecDecoder(Listener listener) {
+        this.mListener = listener;
+        for (int i = 0; i < GROUP_SLOTS; i++) {
+            mGroups[i] = new Group();
+        }
+    }
+
+    /**
+     * 处理一个收到的UDP包
+     *
+     * @return 是否是有效的媒体包或校验包
+     */
+    public boolean receive(byte[] packet, int offset, int length) {
+        if (length < HEADER_SIZE || length > MAX_PACKET_SIZE) {
+            return false;
+        }
+        int type = packet[offset];
+        int size = packet[offset + 1] & 0xFF;
+        int index = packet[offset + 2] & 0xFF;
+        int flags = packet[offset + 3] & 0xFF;
+        int sequence = getInt(packet, offset + 4);
+        int base = getInt(packet, offset + 8);
+        int payloadLength = (packet[offset + 12] & 0xFF) << 8 | (packet[offset + 13] & 0xFF);
+        int dataLength = length - HEADER_SIZE;
+        if ((type != TYPE_MEDIA && type != TYPE_PARITY)
+                || size < 1 || size > MAX_GROUP_SIZE || index > size
+                || (type == TYPE_MEDIA && (index == size || dataLength != payloadLength))) {
+            return false;
+        }
+        if (!mStarted) {
+            mStarted = true;
+            mNextSequence = base;
+            mHighestSequence = base;
+        }
+        if (base + size - mNextSequence <= 0 || (type == TYPE_MEDIA && sequence - mNextSequence < 0)) {
+            // 这一组或者这个包已经交付或者跳过了
+            return true;
+        }
+        Group group = findGroup(base);
+        if (group == null) {
+            group = allocateGroup(base, size);
+            if (group == null) {
+                return true;
+            }
+            trimGroups(group);
+        } else if (type == TYPE_PARITY && size < group.size) {
+            // 提前结束的组
+            group.size = size;
+        }
+        if (type == TYPE_MEDIA) {
+            if (!group.present[index]) {
+                System.arraycopy(packet, offset + HEADER_SIZE, group.packets[index], 0, dataLength);
+                group.lengths[index] = dataLength;
+                group.flags[index] = flags;
+                group.present[index] = true;
+                group.presentCount++;
+            }
+            if (sequence - mHighestSequence > 0) {
+                mHighestSequence = sequence;
+            }
+        } else {
+            if (!group.hasParity) {
+                System.arraycopy(packet, offset + HEADER_SIZE, group.parity, 0, dataLength);
+                group.parityLength = dataLength;
+                group.lengthXor = payloadLength;
+                group.flagsXor = flags;
+                group.hasParity = true;
+                mParityPackets++;
+            }
+            if (base + size - 1 - mHighestSequence > 0) {
+                mHighestSequence = base + size - 1;
+            }
+        }
+        deliver();
+        return true;
+    }
+
+    private Group findGroup(int base) {
+        for (Group group : mGroups) {
+            if (group.active && group.base == base) {
+                return group;
+            }
+        }
+        return null;
+    }
+
+    private Group allocateGroup(int base, int size) {
+        for (Group group : mGroups) {
+            if (!group.active || group.base + group.size - mNextSequence <= 0) {
+                group.reset(base, size);
+                return group;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 新的组和前后的组有重叠时，前面的组一定是提前结束的（校验包丢了或者还没到），缩小到后一组的起点
+     */
+    private void trimGroups(Group group) {
+        for (Group other : mGroups) {
+            if (other == group || !other.active) {
+                continue;
+            }
+            if (group.base - other.base > 0 && group.base - other.base < other.size) {
+                other.size = group.base - other.base;
+            } else if (other.base - group.base > 0 && other.base - group.base < group.size) {
+                group.size = other.base - group.base;
+            }
+        }
+    }
+
+    private void deliver() {
+        while (true) {
+            Group group = null;
+            for (Group candidate : mGroups) {
+                if (candidate.contains(mNextSequence)) {
+                    group = candidate;
+                    break;
+                }
+            }
+            if (group != null) {
+                int index = mNextSequence - group.base;
+                if (!group.present[index]) {
+                    recover(group);
+                }
+                if (group.present[index]) {
+                    mListener.onPacket(group.packets[index], 0, group.lengths[index], group.flags[index]);
+                    mDelivered++;
+                    advance(group);
+                    continue;
+                }
+            }
+            if (mHighestSequence - mNextSequence > REORDER_WINDOW) {
+                mListener.onLoss(mNextSequence);
+                mLost++;
+                advance(group);
+                continue;
+            }
+            return;
+        }
+    }
+
+    private void advance(Group group) {
+        mNextSequence++;
+        if (group != null && group.base + group.size - mNextSequence <= 0) {
+            group.active = false;
+        }
+    }
+
+    /**
+     * 组中只缺一个包并且有校验包时，用其他包和校验包异或出缺失的包
+     */
+    private void recover(Group group) {
+        if (!group.hasParity || group.presentCount != group.size - 1) {
+            return;
+        }
+        int missing = 0;
+        while (group.present[missing]) {
+            missing++;
+        }
+        byte[] out = group.packets[missing];
+        System.arraycopy(group.parity, 0, out, 0, group.parityLength);
+        int length = group.lengthXor;
+        int flags = group.flagsXor;
+        for (int i = 0; i < group.size; i++) {
+            if (i == missing) {
+                continue;
+            }
+            byte[] packet = group.packets[i];
+            for (int j = 0; j < group.lengths[i]; j++) {
+                out[j] ^= packet[j];
+            }
+            length ^= group.lengths[i];
+            flags ^= group.flags[i];
+        }
+        if (length > group.parityLength) {
+            return;
+        }
+        group.lengths[missing] = length;
+        group.flags[missing] = flags;
+        group.present[missing] = true;
+        group.presentCount++;
+        mRecovered++;
+    }
+
+    public long getDelivered() {
+        return mDelivered;
+    }
+
+    public long getRecovered() {
+        return mRecovered;
+    }
+
+    public long getLost() {
+        return mLost;
+    }
+
+    /**
+     * @return 原始丢包中被恢复的比例
+     */
+    public float getRecoveryRate() {
+        long missing = mRecovered + mLost;
+        return missing > 0 ? (float) mRecovered / missing : 1;
+    }
+
+    /**
+     * 写入发给发送端的反馈包：累计的 期望包数、收到包数、恢复包数、丢失包数
+     *
+     * @return 包长度
+     */
+    public int writeFeedback(byte[] packet) {
+        writeHeader(packet, TYPE_FEEDBACK, 0, 0, 0, mNextSequence, 0, 16);
+        long expected = mDelivered + mLost;
+        putInt(packet, HEADER_SIZE, (int) expected);
+        putInt(packet, HEADER_SIZE + 4, (int) (expected - mRecovered - mLost));
+        putInt(packet, HEADER_SIZE + 8, (int) mRecovered);
+        putInt(packet, HEADER_SIZE + 12, (int) mLost);
+        return FEEDBACK_SIZE;
+    }
+
+    private static void writeHeader(byte[] packet, int type, int groupSize, int index, int flags, int sequence,
+                                    int groupBase, int length) {
+        packet[0] = (byte) type;
+        packet[1] = (byte) groupSize;
+        packet[2] = (byte) index;
+        packet[3] = (byte) flags;
+        putInt(packet, 4, sequence);
+        putInt(packet, 8, groupBase);
+        packet[12] = (byte) (length >> 8);
+        packet[13] = (byte) length;
+        packet[14] = 0;
+        packet[15] = 0;
+    }
+
+    static void putInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >> 24);
+        data[offset + 1] = (byte) (value >> 16);
+        data[offset + 2] = (byte) (value >> 8);
+        data[offset + 3] = (byte) value;
+    }
+
+    static int getInt(byte[] data, int offset) {
+        return (data[offset] & 0xFF) << 24 | (data[offset + 1] & 0xFF) << 16
+                | (data[offset + 2] & 0xFF) << 8 | (data[offset + 3] & 0xFF);
+    }
+}
@@ -0,0 +1,184 @@
+package com.example.mycam.receiver;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * 读取手机端发来的帧，与app中FrameHeader/StreamHandshake的格式相同：
+ * 协商后每一帧为帧头（大端序，版本1为36字节，版本2为48字节，多了映射到接收端时钟的采集时间）加H264数据；
+ * 版本3起帧头的第7字节是streamId，并且会收到缩略图等非视频帧，更早的版本只有主相机的视频帧；
+ * 版本4起手机的hello后面跟着设备标识（writeUTF），帧头与版本3相同；
+ * 旧版本的手机直接发送 4字节长度 + H264。
+ * 帧数据读到一个复用的缓冲中，下一次{@link #next}之前有效。
+ */
+public class FrameReader {
+    public static final int MAGIC = 0x4D43414D;
+    public static final int VERSION = 4;
+    public static final int VERSION_STREAMS = 3;
+    public static final int VERSION_DEVICE_ID = 4;
+    public static final int LEGACY = 0;
+    public static final int HEADER_SIZE_V1 = 36;
+    public static final int HEADER_SIZE = 48;
+    public static final int HELLO_SIZE = 8;
+    public static final int TYPE_VIDEO = 0;
+    /**
+     * 分析用缩略图，payload以 width, height, format（各4字节）开头，format为THUMBNAIL_LUMA或THUMBNAIL_NV12
+     */
+    public static final int TYPE_THUMBNAIL = 3;
+    public static final int THUMBNAIL_PREFIX_SIZE = 12;
+    public static final int THUMBNAIL_LUMA = 0;
+    public static final int THUMBNAIL_NV12 = 1;
+    public static final int FLAG_KEY_FRAME = 0x01;
+    // 帧内刷新的恢复点，带SPS/PPS的P帧
+    public static final int FLAG_RECOVERY_POINT = 0x08;
+    /**
+     * 接收端通过同一个TCP连接发给手机的命令号，与app中ControlChannel相同，只在协商出新协议时使用
+     */
+    public static final int CMD_KEY_FRAME = 2;
+    private static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+    private static final int NAL_IDR = 5;
+
+    private final DataInputStream mInput;
+    private int mVersion = -1;
+    // 旧格式时hello位置读到的是第一帧的长度
+    private int mPendingLength = -1;
+    private final byte[] mHeader = new byte[HEADER_SIZE - 4];
+
+    /**
+     * 手机在hello中发来的设备标识，版本4以前为null
+     */
+    public String deviceId;
+    public int type;
+    public int flags;
+    public int streamId;
+    public int sequence;
+    public long captureTimeNs;
+    public long ptsUs;
+    /**
+     * 手机映射到{@link ClockSyncServer#nowNs()}时钟的采集时间和误差上限，没有同步时为0
+     */
+    public long serverTimeNs;
+    public int clockErrorUs;
+    public byte[] data = new byte[256 * 1024];
+    public int length;
+
+    public FrameReader(DataInputStream input) {
+        this.mInput = input;
+    }
+
+    /**
+     * 读取手机端的hello（接收端的hello需要在这之前发出），旧版本的手机没有hello
+     *
+     * @return 协商后的版本，旧格式为LEGACY
+     */
+    public int readHello() throws IOException {
+        int first = mInput.readInt();
+        if (first == MAGIC) {
+            mVersion = mInput.readUnsignedByte();
+            mInput.skipBytes(3);
+            if (mVersion >= VERSION_DEVICE_ID) {
+                deviceId = mInput.readUTF();
+            }
+        } else {
+            mVersion = LEGACY;
+            mPendingLength = first;
+        }
+        return mVersion;
+    }
+
+    /**
+     * 读取下一帧
+     *
+     * @return 连接正常关闭时返回false
+     */
+    public boolean next() throws IOException {
+        try {
+            if (mVersion == LEGACY) {
+                int frameLength = mPendingLength >= 0 ? mPendingLength : mInput.readInt();
+                mPendingLength = -1;
+                readPayload(frameLength);
+                type = TYPE_VIDEO;
+                flags = isIdr(data, length) ? FLAG_KEY_FRAME : 0;
+                streamId = 0;
+                sequence++;
+                captureTimeNs = 0;
+                ptsUs = 0;
+                serverTimeNs = 0;
+                clockErrorUs = 0;
+                return true;
+            }
+            int magic = mInput.readInt();
+            mInput.readFully(mHeader, 0, HEADER_SIZE_V1 - 4);
+            if (magic != MAGIC) {
+                throw new IOException("bad frame magic " + Integer.toHexString(magic));
+            }
+            // 每一帧的帧头都带着版本号
+            if ((mHeader[0] & 0xFF) >= 2) {
+                mInput.readFully(mHeader, HEADER_SIZE_V1 - 4, HEADER_SIZE - HEADER_SIZE_V1);
+                serverTimeNs = (long) getInt(mHeader, 32) << 32 | (getInt(mHeader, 36) & 0xFFFFFFFFL);
+                clockErrorUs = getInt(mHeader, 40);
+            } else {
+                serverTimeNs = 0;
+                clockErrorUs = 0;
+            }
+            type = mHeader[1] & 0xFF;
+            flags = mHeader[2] & 0xFF;
+            streamId = (mHeader[0] & 0xFF) >= VERSION_STREAMS ? mHeader[3] & 0xFF : 0;
+            sequence = getInt(mHeader, 4);
+            captureTimeNs = (long) getInt(mHeader, 8) << 32 | (getInt(mHeader, 12) & 0xFFFFFFFFL);
+            ptsUs = (long) getInt(mHeader, 16) << 32 | (getInt(mHeader, 20) & 0xFFFFFFFFL);
+            readPayload(getInt(mHeader, 24));
+            return true;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    private void readPayload(int frameLength) throws IOException {
+        if (frameLength < 0 || frameLength > MAX_FRAME_SIZE) {
+            throw new IOException("bad frame length " + frameLength);
+        }
+        if (data.length < frameLength) {
+            data = new byte[frameLength + frameLength / 4];
+        }
+        mInput.readFully(data, 0, frameLength);
+        length = frameLength;
+    }
+
+    /**
+     * 缩略图payload开头的第index个int（0为宽，1为高，2为格式）
+     */
+    public int getThumbnailInt(int index) {
+        return getInt(data, index * 4);
+    }
+
+    public boolean isKeyFrame() {
+        return (flags & FLAG_KEY_FRAME) != 0;
+    }
+
+    public boolean isRecoveryPoint() {
+        return (flags & FLAG_RECOVERY_POINT) != 0;
+    }
+
+    private static int getInt(byte[] b, int offset) {
+        return (b[offset] & 0xFF) << 24 | (b[offset + 1] & 0xFF) << 16 | (b[offset + 2] & 0xFF) << 8
+                | (b[offset + 3] & 0xFF);
+    }
+
+    // 旧格式没有帧头，从码流中找IDR slice
+    private static boolean isIdr(byte[] data, int length) {
+        for (int i = 0; i + 3 < length; i++) {
+            if (data[i] == 0 && data[i + 1] == 0 && data[i + 2] == 1) {
+                int type = data[i + 3] & 0x1F;
+                if (type == NAL_IDR) {
+                    return true;
+                } else if (type == 1) {
+                    return false;
+                }
+                i += 2;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,187 @@
+package com.example.mycam.receiver;
+
+import java.nio.charset.Charset;
+
+/**
+ * 解析手机端（app中的SeiMessage）插在每一帧slice前面的 user_data_unregistered（payloadType 5）SEI，格式相同：
+ * <pre>
+ *  0  uuid               16字节  UUID，区分其他软件写的SEI
+ * 16  version            byte
+ * 17  flags              byte    保留
+ * 18  wallClockMs        long    采集时手机的系统时间
+ * 26  sensorTimestampNs  long    Image.getTimestamp()
+ * 34  motionScore        int     P帧大小相对平均值的百分比，100为平均，越大画面变化越多
+ * 38  deviceIdLength     byte
+ * 39  deviceId           UTF-8，不超过MAX_DEVICE_ID字节
+ * </pre>
+ * UDP和旧版本的连接上没有hello中的设备标识，只能从SEI中得到。解析不分配内存，边读边去掉防竞争字节。
+ */
+public class SeiMessage {
+    public static final int MAX_DEVICE_ID = 32;
+    public static final int PAYLOAD_TYPE_USER_DATA_UNREGISTERED = 5;
+    private static final int NAL_SLICE = 1;
+    private static final int NAL_IDR = 5;
+    private static final int NAL_SEI = 6;
+    private static final int FIXED_PAYLOAD_SIZE = 39;
+    public static final byte[] UUID = {
+            (byte) 0x4d, (byte) 0x79, (byte) 0x43, (byte) 0x61, (byte) 0x6d, (byte) 0x53, (byte) 0x45, (byte) 0x49,
+            (byte) 0x8f, (byte) 0x2a, (byte) 0x51, (byte) 0xd6, (byte) 0x0b, (byte) 0x7e, (byte) 0x93, (byte) 0x1c};
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public int version;
+    public long wallClockMs;
+    public long sensorTimestampNs;
+    public int motionScore;
+    private final byte[] mDeviceId = new byte[MAX_DEVICE_ID];
+    private int mDeviceIdLength = 0;
+
+    private byte[] mSrc;
+    private int mPos;
+    private int mEnd;
+    // 连续0的个数
+    private int mZeros;
+
+    /**
+     * 会分配一个String，只在需要时调用；手机没有写设备标识时为空字符串
+     */
+    public String getDeviceId() {
+        return new String(mDeviceId, 0, mDeviceIdLength, UTF_8);
+    }
+
+    /**
+     * 在一帧Annex-B码流中查找手机写的SEI并读出元数据，遇到第一个slice就停止
+     *
+     * @return 是否找到，没有找到时字段保持上一次的值
+     */
+    public boolean parse(byte[] data, int offset, int length) {
+        int end = offset + length;
+        int start = findStartCode(data, offset, end);
+        while (start < end) {
+            int nalStart = start + 3;
+            int next = findStartCode(data, nalStart, end);
+            if (nalStart < end) {
+                int type = data[nalStart] & 0x1F;
+                if (type == NAL_SLICE || type == NAL_IDR) {
+                    return false;
+                }
+                if (type == NAL_SEI && parseSei(data, nalStart + 1, next)) {
+                    return true;
+                }
+            }
+            start = next;
+        }
+        return false;
+    }
+
+    private static int findStartCode(byte[] data, int from, int end) {
+        for (int i = from; i + 2 < end; i++) {
+            if ((data[i + 2] & 0xFF) > 1) {
+                i += 2;
+            } else if (data[i] == 0 && data[i + 1] == 0 && data[i + 2] == 1) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * 解析一个SEI NAL中的所有消息（不含NAL头）
+     */
+    private boolean parseSei(byte[] data, int offset, int end) {
+        mSrc = data;
+        mPos = offset;
+        mEnd = end;
+        mZeros = 0;
+        // 至少还有一个消息头和rbsp_trailing_bits
+        while (mEnd - mPos > 2) {
+            int payloadType = readSeiValue();
+            int payloadSize = readSeiValue();
+            if (payloadType < 0 || payloadSize < 0) {
+                return false;
+            }
+            if (payloadType == PAYLOAD_TYPE_USER_DATA_UNREGISTERED && payloadSize >= FIXED_PAYLOAD_SIZE
+                    && matchUuid()) {
+                return readFields(payloadSize);
+            }
+            for (int i = 0; i < payloadSize; i++) {
+                if (readByte() < 0) {
+                    return false;
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean matchUuid() {
+        for (byte b : UUID) {
+            if (readByte() != (b & 0xFF)) {
+                // 消息已经读了一部分，不能再按其他消息继续解析
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean readFields(int payloadSize) {
+        int version = readByte();
+        readByte(); // flags
+        long wallClockMs = readLong();
+        long sensorTimestampNs = readLong();
+        int motionScore = readInt();
+        int deviceIdLength = readByte();
+        if (version < 0 || deviceIdLength < 0 || deviceIdLength > MAX_DEVICE_ID
+                || FIXED_PAYLOAD_SIZE + deviceIdLength > payloadSize) {
+            return false;
+        }
+        for (int i = 0; i < deviceIdLength; i++) {
+            int b = readByte();
+            if (b < 0) {
+                return false;
+            }
+            mDeviceId[i] = (byte) b;
+        }
+        this.version = version;
+        this.wallClockMs = wallClockMs;
+        this.sensorTimestampNs = sensorTimestampNs;
+        this.motionScore = motionScore;
+        this.mDeviceIdLength = deviceIdLength;
+        return true;
+    }
+
+    /**
+     * 读一个去掉防竞争字节后的字节，数据不够时返回-1
+     */
+    private int readByte() {
+        if (mPos >= mEnd) {
+            return -1;
+        }
+        int b = mSrc[mPos++] & 0xFF;
+        if (mZeros >= 2 && b == 3) {
+            mZeros = 0;
+            if (mPos >= mEnd) {
+                return -1;
+            }
+            b = mSrc[mPos++] & 0xFF;
+        }
+        mZeros = b == 0 ? mZeros + 1 : 0;
+        return b;
+    }
+
+    private int readInt() {
+        return readByte() << 24 | readByte() << 16 | readByte() << 8 | readByte();
+    }
+
+    private long readLong() {
+        return (long) readInt() << 32 | (readInt() & 0xFFFFFFFFL);
+    }
+
+    // payloadType和payloadSize：若干个0xFF加上最后一个字节
+    private int readSeiValue() {
+        int value = 0;
+        int b;
+        while ((b = readByte()) == 0xFF) {
+            value += 255;
+        }
+        return b < 0 ? -1 : value + b;
+    }
+}
@@ -0,0 +1,232 @@
+package com.example.mycam.receiver;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 接收端：监听手机端的TCP连接（以及同一端口上的UDP，见{@link UdpStreamReceiver}），
+ * 把每个相机（手机在hello中发来的设备标识 + streamId；旧版本和UDP上没有hello，用第一个视频帧{@link SeiMessage}中的设备标识，
+ * 都没有时用手机地址）的视频流写到各自的{@link CameraArchive}。
+ * 分析用缩略图不录像，交给{@link ThumbnailListener}，例如直接送给服务器上的模型。
+ * 在port + 1上回复手机的时钟同步请求，同步后的帧按映射到接收端时钟的采集时间录像，各个相机在同一个时间轴上。
+ * 用法：StreamReceiver [port] [archiveDir] [segmentMB] [retentionHours]
+ */
+public class StreamReceiver {
+    private static final long RETENTION_CHECK_SECONDS = 60;
+    // 每隔多少帧输出一次采集到接收的延迟
+    private static final int LATENCY_LOG_FRAMES = 300;
+    // 录像在等关键帧时向手机请求IDR的最小间隔
+    private static final long KEY_FRAME_REQUEST_INTERVAL_NS = 1000000000L;
+
+    private final File mRoot;
+    private final int mSegmentSize;
+    private final long mRetentionUs;
+    private final HashMap<String, CameraArchive> mArchives = new HashMap<>();
+    private final ExecutorService mThreadPool = Executors.newCachedThreadPool();
+    private final ScheduledExecutorService mRetentionExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    private volatile ThumbnailListener mThumbnailListener;
+
+    public interface ThumbnailListener {
+        /**
+         * 在连接的接收线程中调用，data在返回后会被下一帧覆盖
+         *
+         * @param timestampUs 映射到接收端时钟的采集时间，还没有同步时为接收时间
+         * @param format      FrameReader.THUMBNAIL_LUMA或THUMBNAIL_NV12
+         */
+        void onThumbnail(String cameraId, long timestampUs, int width, int height, int format,
+                         byte[] data, int offset, int length);
+    }
+
+    public StreamReceiver(File root, int segmentSize, long retentionUs) {
+        this.mRoot = root;
+        this.mSegmentSize = segmentSize;
+        this.mRetentionUs = retentionUs;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 6010;
+        File root = new File(args.length > 1 ? args[1] : "archive");
+        int segmentMb = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+        long retentionHours = args.length > 3 ? Long.parseLong(args[3]) : 24;
+        new StreamReceiver(root, segmentMb * 1024 * 1024, retentionHours * 3600L * 1000000L).serve(port);
+    }
+
+    public void serve(int port) throws IOException {
+        mRetentionExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                applyRetention();
+            }
+        }, RETENTION_CHECK_SECONDS, RETENTION_CHECK_SECONDS, TimeUnit.SECONDS);
+        mThreadPool.execute(new ClockSyncServer(port + 1));
+        // 手机选择UDP+FEC传输时发到同一个端口号
+        mThreadPool.execute(new UdpStreamReceiver(this, port, mThreadPool));
+        ServerSocket server = new ServerSocket(port);
+        System.out.println("listening on " + port + ", archive " + mRoot.getAbsolutePath());
+        while (true) {
+            final Socket socket = server.accept();
+            mThreadPool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    handle(socket);
+                }
+            });
+        }
+    }
+
+    public void setThumbnailListener(ThumbnailListener listener) {
+        mThumbnailListener = listener;
+    }
+
+    /**
+     * 相机的录像，第一次用到时打开
+     */
+    public CameraArchive getArchive(String cameraId) throws IOException {
+        synchronized (mArchives) {
+            CameraArchive archive = mArchives.get(cameraId);
+            if (archive == null) {
+                archive = new CameraArchive(new File(mRoot, cameraId), mSegmentSize);
+                mArchives.put(cameraId, archive);
+            }
+            return archive;
+        }
+    }
+
+    private void applyRetention() {
+        synchronized (mArchives) {
+            for (CameraArchive archive : mArchives.values()) {
+                int deleted = archive.applyRetention(mRetentionUs, 0);
+                if (deleted > 0) {
+                    System.out.println("retention: deleted " + deleted + " segments of " + archive.getDir());
+                }
+            }
+        }
+    }
+
+    private void handle(Socket socket) {
+        String address = socket.getInetAddress().getHostAddress();
+        try {
+            socket.setTcpNoDelay(true);
+            DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+            output.writeInt(FrameReader.MAGIC);
+            output.writeByte(FrameReader.VERSION);
+            output.write(new byte[3]);
+            output.flush();
+            receive(address, new FrameReader(new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream(), 256 * 1024))), output);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * 设备标识用作目录名，只保留字母、数字、'_'和'-'
+     */
+    static String cameraName(String deviceId, String address) {
+        String name = deviceId.replaceAll("[^A-Za-z0-9_-]", "_");
+        return name.isEmpty() ? address : name;
+    }
+
+    /**
+     * 输出采集到接收的延迟，以及SEI中的运动量。还没有同步时钟时用手机的系统时间粗略估计延迟（两边都用NTP校时时才准确）
+     */
+    private static void logFrame(String camera, FrameReader reader, SeiMessage sei) {
+        StringBuilder line = new StringBuilder(camera);
+        if (reader.serverTimeNs != 0) {
+            line.append(" latency ").append((ClockSyncServer.nowNs() - reader.serverTimeNs) / 1000)
+                    .append("us ± ").append(reader.clockErrorUs).append("us");
+        } else if (sei != null) {
+            line.append(" wall clock latency ").append(System.currentTimeMillis() - sei.wallClockMs).append("ms");
+        }
+        if (sei != null) {
+            line.append(" motion ").append(sei.motionScore);
+        }
+        System.out.println(line);
+    }
+
+    /**
+     * 读取一个手机的帧直到连接关闭，TCP连接和{@link UdpStreamReceiver}恢复出的帧流都经过这里
+     *
+     * @param control 发给手机的命令，UDP上为null
+     */
+    void receive(String address, FrameReader reader, DataOutputStream control) throws IOException {
+        CameraArchive[] archives = new CameraArchive[256];
+        SeiMessage sei = new SeiMessage();
+        long lastKeyFrameRequestNs = 0;
+        try {
+            int version = reader.readHello();
+            if (version == FrameReader.LEGACY) {
+                control = null;
+            }
+            // 设备标识不随IP变化，DHCP重新分配地址或者两台手机交换地址时录像也不会混在一起
+            String camera = reader.deviceId != null ? cameraName(reader.deviceId, address) : null;
+            System.out.println("connected " + address + " version " + version
+                    + " camera " + (camera != null ? camera : "from SEI"));
+            while (reader.next()) {
+                if (camera == null && reader.type == FrameReader.TYPE_VIDEO) {
+                    // 没有hello中的设备标识，从第一个视频帧的SEI中取，手机没有插入SEI时按地址区分
+                    camera = sei.parse(reader.data, 0, reader.length) ? cameraName(sei.getDeviceId(), address) : address;
+                    System.out.println(address + " camera " + camera);
+                }
+                if (reader.type == FrameReader.TYPE_THUMBNAIL) {
+                    ThumbnailListener listener = mThumbnailListener;
+                    if (listener != null && reader.length >= FrameReader.THUMBNAIL_PREFIX_SIZE) {
+                        long timestampNs = reader.serverTimeNs != 0 ? reader.serverTimeNs : ClockSyncServer.nowNs();
+                        String name = camera != null ? camera : address;
+                        listener.onThumbnail(name + "-" + reader.streamId, timestampNs / 1000,
+                                reader.getThumbnailInt(0), reader.getThumbnailInt(1), reader.getThumbnailInt(2),
+                                reader.data, FrameReader.THUMBNAIL_PREFIX_SIZE,
+                                reader.length - FrameReader.THUMBNAIL_PREFIX_SIZE);
+                    }
+                    continue;
+                }
+                if (reader.type != FrameReader.TYPE_VIDEO) {
+                    continue;
+                }
+                CameraArchive archive = archives[reader.streamId];
+                if (archive == null) {
+                    archive = archives[reader.streamId] = getArchive(camera + "-" + reader.streamId);
+                }
+                // 各个手机的传感器时间戳不在同一个时钟上，用映射到接收端时钟的采集时间，还没有同步时用接收时间
+                long timestampNs = reader.serverTimeNs != 0 ? reader.serverTimeNs : ClockSyncServer.nowNs();
+                // 只有IDR能作为分段、查找和导出的起点，帧内刷新的恢复点从它开始解码会花屏
+                if (!archive.append(timestampNs / 1000, reader.isKeyFrame(), reader.data, 0, reader.length)
+                        && archive.isWaitingForKeyFrame() && control != null
+                        && System.nanoTime() - lastKeyFrameRequestNs > KEY_FRAME_REQUEST_INTERVAL_NS) {
+                    // 帧内刷新时手机不会周期性地输出IDR，按需请求
+                    lastKeyFrameRequestNs = System.nanoTime();
+                    control.writeByte(FrameReader.CMD_KEY_FRAME);
+                    control.flush();
+                }
+                if (reader.sequence % LATENCY_LOG_FRAMES == 0) {
+                    logFrame(camera + "-" + reader.streamId, reader,
+                            sei.parse(reader.data, 0, reader.length) ? sei : null);
+                }
+            }
+        } finally {
+            for (CameraArchive archive : archives) {
+                if (archive != null) {
+                    archive.close();
+                }
+            }
+            System.out.println("disconnected " + address);
+        }
+    }
+}
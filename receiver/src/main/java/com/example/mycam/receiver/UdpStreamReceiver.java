@@ -0,0 +1,373 @@
+package com.example.mycam.receiver;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * 接收手机端UdpTransport发来的帧（手机上选择UDP传输时使用）：每个手机（源地址）一个{@link FecDecoder}恢复丢包，
+ * 按FLAG_FRAME_START把包拼回 帧头 + H264，只有完整的帧才交给{@link StreamReceiver}录像，缺包的帧整帧丢弃。
+ * 所有手机共用一个接收线程，每个手机的帧经过各自的{@link FrameQueue}交给自己的录像线程，一个手机录像跟不上时不影响其他手机。
+ * 每隔FEEDBACK_INTERVAL_MS把FecDecoder的统计发回手机，手机据此调整FEC的分组大小。
+ * UDP没有握手，手机使用自己的最新版本帧头，每一帧的帧头都带着版本号。
+ */
+public class UdpStreamReceiver implements Runnable {
+    private static final int FEEDBACK_INTERVAL_MS = 1000;
+    // 这么久没有收到包就认为手机已经停止发送，关闭它的录像
+    private static final long SESSION_TIMEOUT_MS = 10000;
+    // 每个手机排队等待录像的帧数，约4秒
+    private static final int QUEUE_FRAMES = 120;
+    private static final int MAX_FRAME_SIZE = FrameReader.HEADER_SIZE + 16 * 1024 * 1024;
+
+    private final StreamReceiver mReceiver;
+    private final DatagramSocket mSocket;
+    private final Executor mExecutor;
+    private final HashMap<SocketAddress, Session> mSessions = new HashMap<>();
+
+    /**
+     * @param executor 每个手机的帧在其中一个线程里录像
+     */
+    public UdpStreamReceiver(StreamReceiver receiver, int port, Executor executor) throws IOException {
+        this.mReceiver = receiver;
+        this.mSocket = new DatagramSocket(port);
+        this.mExecutor = executor;
+    }
+
+    /**
+     * 把一个手机的媒体包拼成完整的帧写到out，中间丢了包的帧丢弃
+     */
+    static class Frames implements FecDecoder.Listener {
+        private final OutputStream mOutput;
+        private byte[] mFrame = new byte[256 * 1024];
+        private int mLength = 0;
+        // 当前帧已经不完整（或者已经写出），等下一个FLAG_FRAME_START
+        private boolean mSkipping = true;
+        private long mFrames = 0;
+        private long mDropped = 0;
+        private IOException mError;
+
+        Frames(OutputStream output) {
+            this.mOutput = output;
+        }
+
+        @Override
+        public void onPacket(byte[] data, int offset, int length, int flags) {
+            if ((flags & FecDecoder.FLAG_FRAME_START) != 0) {
+                if (!mSkipping && mLength > 0) {
+                    mDropped++;
+                }
+                mLength = 0;
+                mSkipping = false;
+            }
+            if (mSkipping || mError != null) {
+                return;
+            }
+            if (mLength + length > MAX_FRAME_SIZE) {
+                mDropped++;
+                mSkipping = true;
+                return;
+            }
+            if (mLength + length > mFrame.length) {
+                byte[] bigger = new byte[Math.min(MAX_FRAME_SIZE, (mLength + length) * 2)];
+                System.arraycopy(mFrame, 0, bigger, 0, mLength);
+                mFrame = bigger;
+            }
+            System.arraycopy(data, offset, mFrame, mLength, length);
+            mLength += length;
+            int frameSize = frameSize();
+            if (frameSize < 0) {
+                // 不是帧头，这一帧之后的数据无法对齐
+                mDropped++;
+                mSkipping = true;
+            } else if (frameSize > 0 && mLength >= frameSize) {
+                try {
+                    mOutput.write(mFrame, 0, frameSize);
+                    mOutput.flush();
+                    mFrames++;
+                } catch (IOException e) {
+                    mError = e;
+                }
+                mSkipping = true;
+            }
+        }
+
+        @Override
+        public void onLoss(int sequence) {
+            if (!mSkipping) {
+                mDropped++;
+            }
+            mSkipping = true;
+        }
+
+        /**
+         * @return 帧头 + payload的长度，帧头还没收全时返回0，帧头无效时返回-1
+         */
+        private int frameSize() {
+            if (mLength < FrameReader.HEADER_SIZE_V1) {
+                return 0;
+            }
+            if (FecDecoder.getInt(mFrame, 0) != FrameReader.MAGIC) {
+                return -1;
+            }
+            int headerSize = (mFrame[4] & 0xFF) >= 2 ? FrameReader.HEADER_SIZE : FrameReader.HEADER_SIZE_V1;
+            if (mLength < headerSize) {
+                return 0;
+            }
+            int payloadLength = FecDecoder.getInt(mFrame, 28);
+            if (payloadLength < 0 || payloadLength > MAX_FRAME_SIZE - headerSize) {
+                return -1;
+            }
+            return headerSize + payloadLength;
+        }
+
+        long getFrames() {
+            return mFrames;
+        }
+
+        long getDropped() {
+            return mDropped;
+        }
+
+        IOException getError() {
+            return mError;
+        }
+    }
+
+    /**
+     * 把一个手机的完整帧从接收线程交给它的录像线程。写入不阻塞：队列满时丢掉这一帧，
+     * 之后的帧依赖它无法解码，一直丢到下一个关键帧。录像线程从{@link #input}读，读到的字节流与TCP上相同。
+     */
+    static class FrameQueue extends OutputStream {
+        private static final byte[] EOF = new byte[0];
+        // 帧头中flags的位置
+        private static final int FLAGS_OFFSET = 6;
+        private final ArrayBlockingQueue<byte[]> mQueue;
+        private volatile boolean mReaderClosed = false;
+        private boolean mWaitKeyFrame = false;
+        private long mDropped = 0;
+
+        FrameQueue(int capacity, byte[] hello) {
+            mQueue = new ArrayBlockingQueue<>(capacity + 2);
+            mQueue.add(hello);
+        }
+
+        final InputStream input = new InputStream() {
+            private byte[] mCurrent;
+            private int mPosition;
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                while (mCurrent == null || mPosition == mCurrent.length) {
+                    if (mCurrent == EOF) {
+                        return -1;
+                    }
+                    try {
+                        mCurrent = mQueue.take();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                    mPosition = 0;
+                }
+                int n = Math.min(len, mCurrent.length - mPosition);
+                System.arraycopy(mCurrent, mPosition, b, off, n);
+                mPosition += n;
+                return n;
+            }
+
+            @Override
+            public void close() {
+                mReaderClosed = true;
+                mQueue.clear();
+            }
+        };
+
+        /**
+         * 写入一个完整的帧（帧头 + payload）
+         */
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (mReaderClosed) {
+                throw new IOException("reader closed");
+            }
+            boolean keyFrame = (b[off + FLAGS_OFFSET] & FrameReader.FLAG_KEY_FRAME) != 0;
+            if (mWaitKeyFrame && !keyFrame) {
+                mDropped++;
+                return;
+            }
+            // 留一个位置给EOF，close()总能放进去
+            if (mQueue.remainingCapacity() <= 1) {
+                mWaitKeyFrame = true;
+                mDropped++;
+                return;
+            }
+            mWaitKeyFrame = false;
+            mQueue.add(Arrays.copyOfRange(b, off, off + len));
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            throw new IOException("only whole frames can be queued");
+        }
+
+        /**
+         * 读端读完已经排队的帧后得到EOF
+         */
+        @Override
+        public void close() {
+            mQueue.offer(EOF);
+        }
+
+        long getDropped() {
+            return mDropped;
+        }
+    }
+
+    private static class Session {
+        final String address;
+        final FrameQueue queue;
+        final Frames frames;
+        final FecDecoder decoder;
+        long lastPacketMs;
+
+        Session(String address, FrameQueue queue) {
+            this.address = address;
+            this.queue = queue;
+            this.frames = new Frames(queue);
+            this.decoder = new FecDecoder(frames);
+        }
+    }
+
+    @Override
+    public void run() {
+        byte[] buffer = new byte[FecDecoder.MAX_PACKET_SIZE];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        byte[] feedback = new byte[FecDecoder.FEEDBACK_SIZE];
+        DatagramPacket feedbackPacket = new DatagramPacket(feedback, feedback.length);
+        long lastFeedbackMs = System.currentTimeMillis();
+        try {
+            mSocket.setSoTimeout(FEEDBACK_INTERVAL_MS);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        System.out.println("listening on udp " + mSocket.getLocalPort());
+        while (!mSocket.isClosed()) {
+            try {
+                packet.setLength(buffer.length);
+                mSocket.receive(packet);
+                Session session = getSession(packet.getSocketAddress());
+                session.lastPacketMs = System.currentTimeMillis();
+                session.decoder.receive(buffer, 0, packet.getLength());
+                if (session.frames.getError() != null) {
+                    // 录像线程已经结束
+                    closeSession(packet.getSocketAddress());
+                }
+            } catch (SocketTimeoutException e) {
+                // 没有包时也要定期反馈和清理
+            } catch (IOException e) {
+                if (!mSocket.isClosed()) {
+                    e.printStackTrace();
+                }
+            }
+            long now = System.currentTimeMillis();
+            if (now - lastFeedbackMs >= FEEDBACK_INTERVAL_MS) {
+                lastFeedbackMs = now;
+                sendFeedback(feedbackPacket, now);
+            }
+        }
+    }
+
+    private Session getSession(SocketAddress address) {
+        Session session = mSessions.get(address);
+        if (session != null) {
+            return session;
+        }
+        final String host = ((InetSocketAddress) address).getAddress().getHostAddress();
+        // FrameReader从hello开始读，UDP上没有hello，这里代替手机写一个。没有设备标识，按地址区分
+        byte[] hello = new byte[FrameReader.HELLO_SIZE];
+        FecDecoder.putInt(hello, 0, FrameReader.MAGIC);
+        hello[4] = (byte) FrameReader.VERSION_STREAMS;
+        final FrameQueue queue = new FrameQueue(QUEUE_FRAMES, hello);
+        final InputStream input = queue.input;
+        session = new Session(host, queue);
+        mSessions.put(address, session);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mReceiver.receive(host, new FrameReader(new DataInputStream(input)), null);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } finally {
+                    try {
+                        input.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        });
+        return session;
+    }
+
+    private void sendFeedback(DatagramPacket packet, long now) {
+        Iterator<Map.Entry<SocketAddress, Session>> iterator = mSessions.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<SocketAddress, Session> entry = iterator.next();
+            Session session = entry.getValue();
+            if (now - session.lastPacketMs > SESSION_TIMEOUT_MS) {
+                iterator.remove();
+                close(session);
+                continue;
+            }
+            packet.setLength(session.decoder.writeFeedback(packet.getData()));
+            packet.setSocketAddress(entry.getKey());
+            try {
+                mSocket.send(packet);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void closeSession(SocketAddress address) {
+        Session session = mSessions.remove(address);
+        if (session != null) {
+            close(session);
+        }
+    }
+
+    private void close(Session session) {
+        System.out.println("udp " + session.address + ": " + session.frames.getFrames() + " frames, "
+                + session.frames.getDropped() + " incomplete, " + session.queue.getDropped()
+                + " dropped in queue, recovered " + session.decoder.getRecovered()
+                + " lost " + session.decoder.getLost() + " packets");
+        // 读端读完剩下的帧后得到EOF，关闭录像
+        session.queue.close();
+    }
+
+    public void close() {
+        mSocket.close();
+    }
+}
@@ -0,0 +1,139 @@
+package com.example.mycam.receiver;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class CameraArchiveTest {
+    private static final int SEGMENT_SIZE = 64 * 1024;
+    private static final int GOP = 10;
+    private static final int FRAME_SIZE = 1000;
+    private File mDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = Files.createTempDirectory("archive").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    private static byte[] frame(int i) {
+        byte[] frame = new byte[FRAME_SIZE];
+        frame[0] = (byte) (i >> 8);
+        frame[1] = (byte) i;
+        return frame;
+    }
+
+    // 每帧10ms，每GOP帧一个关键帧
+    private static CameraArchive write(File dir, int frames) throws IOException {
+        CameraArchive archive = new CameraArchive(dir, SEGMENT_SIZE);
+        for (int i = 0; i < frames; i++) {
+            assertTrue(archive.append(i * 10000L, i % GOP == 0, frame(i), 0, FRAME_SIZE));
+        }
+        return archive;
+    }
+
+    private static int frameNumber(byte[] data, int offset) {
+        return (data[offset] & 0xFF) << 8 | (data[offset + 1] & 0xFF);
+    }
+
+    @Test
+    public void rollsSegmentsAtKeyFrames() throws IOException {
+        CameraArchive archive = write(mDir, 500);
+        assertTrue(archive.getSegmentCount() > 5);
+        assertEquals(0, archive.getDroppedFrames());
+        assertEquals(0, archive.getFirstTimestampUs());
+        assertEquals(499 * 10000L, archive.getLastTimestampUs());
+    }
+
+    @Test
+    public void seekFindsPrecedingKeyFrame() throws IOException {
+        CameraArchive archive = write(mDir, 500);
+        // 第237帧之前的关键帧是第230帧
+        CameraArchive.Position position = archive.seek(237 * 10000L + 5);
+        assertNotNull(position);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        archive.export(237 * 10000L, 237 * 10000L, Channels.newChannel(out));
+        byte[] bytes = out.toByteArray();
+        assertEquals(8 * FRAME_SIZE, bytes.length);
+        assertEquals(230, frameNumber(bytes, 0));
+        assertEquals(237, frameNumber(bytes, 7 * FRAME_SIZE));
+        // 早于所有录像时从第一个关键帧开始
+        assertNotNull(archive.seek(-1));
+    }
+
+    @Test
+    public void exportSpansSegments() throws IOException {
+        CameraArchive archive = write(mDir, 500);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long bytes = archive.export(100 * 10000L, 399 * 10000L, Channels.newChannel(out));
+        assertEquals(300 * FRAME_SIZE, bytes);
+        byte[] data = out.toByteArray();
+        for (int i = 0; i < 300; i++) {
+            assertEquals(100 + i, frameNumber(data, i * FRAME_SIZE));
+        }
+    }
+
+    @Test
+    public void retentionDeletesWholeSegments() throws IOException {
+        CameraArchive archive = write(mDir, 500);
+        int segments = archive.getSegmentCount();
+        int deleted = archive.applyRetention(1000000L, 0);
+        assertTrue(deleted > 0);
+        assertEquals(segments - deleted, archive.getSegmentCount());
+        assertEquals(2 * (segments - deleted), mDir.listFiles().length);
+        // 剩下的录像从一个关键帧开始，并且覆盖了保留时间
+        assertEquals(0, archive.getFirstTimestampUs() % (GOP * 10000L));
+        assertTrue(archive.getFirstTimestampUs() <= 499 * 10000L - 1000000L);
+    }
+
+    @Test
+    public void reopensCommittedSegments() throws IOException {
+        CameraArchive archive = write(mDir, 300);
+        archive.close();
+        CameraArchive reopened = new CameraArchive(mDir, SEGMENT_SIZE);
+        assertEquals(archive.getSegmentCount(), reopened.getSegmentCount());
+        assertEquals(299 * 10000L, reopened.getLastTimestampUs());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        reopened.export(150 * 10000L, 155 * 10000L, Channels.newChannel(out));
+        assertEquals(150, frameNumber(out.toByteArray(), 0));
+        // 新的帧写到新的段，并且从关键帧开始
+        assertFalse(reopened.append(300 * 10000L, false, frame(300), 0, FRAME_SIZE));
+        assertTrue(reopened.isWaitingForKeyFrame());
+        assertTrue(reopened.append(301 * 10000L, true, frame(301), 0, FRAME_SIZE));
+        assertFalse(reopened.isWaitingForKeyFrame());
+        assertEquals(archive.getSegmentCount() + 1, reopened.getSegmentCount());
+    }
+
+    @Test
+    public void clockStepBack_keepsFrameSpacing() throws IOException {
+        CameraArchive archive = write(mDir, 100);
+        // 发送端时钟回拨了5秒
+        long back = 990000L - 5000000L;
+        for (int i = 0; i < 20; i++) {
+            assertTrue(archive.append(back + i * 10000L, i % GOP == 0, frame(100 + i), 0, FRAME_SIZE));
+        }
+        // 接在上一帧之后，帧间隔仍是10ms，而不是都停在最后一个时间戳上
+        assertEquals(119 * 10000L, archive.getLastTimestampUs());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        archive.export(110 * 10000L, 110 * 10000L, Channels.newChannel(out));
+        assertEquals(110, frameNumber(out.toByteArray(), 0));
+    }
+}
@@ -0,0 +1,209 @@
+package com.example.mycam.receiver;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class FecDecoderTest {
+    private final ArrayList<byte[]> mSent = new ArrayList<>();
+    private final ArrayList<byte[]> mDelivered = new ArrayList<>();
+    private final ArrayList<Integer> mDeliveredFlags = new ArrayList<>();
+    private final ArrayList<Integer> mLost = new ArrayList<>();
+
+    private final FecDecoder mDecoder = new FecDecoder(new FecDecoder.Listener() {
+        @Override
+        public void onPacket(byte[] data, int offset, int length, int flags) {
+            mDelivered.add(Arrays.copyOfRange(data, offset, offset + length));
+            mDeliveredFlags.add(flags);
+        }
+
+        @Override
+        public void onLoss(int sequence) {
+            mLost.add(sequence);
+        }
+    });
+
+    private static byte[] payload(int i) {
+        byte[] payload = new byte[10 + i * 7 % 50];
+        for (int j = 0; j < payload.length; j++) {
+            payload[j] = (byte) (i * 31 + j);
+        }
+        return payload;
+    }
+
+    private static byte[] packet(int type, int groupSize, int index, int flags, int sequence, int base,
+                                 int length, byte[] payload, int payloadLength) {
+        byte[] packet = new byte[FecDecoder.HEADER_SIZE + payloadLength];
+        packet[0] = (byte) type;
+        packet[1] = (byte) groupSize;
+        packet[2] = (byte) index;
+        packet[3] = (byte) flags;
+        FecDecoder.putInt(packet, 4, sequence);
+        FecDecoder.putInt(packet, 8, base);
+        packet[12] = (byte) (length >> 8);
+        packet[13] = (byte) length;
+        System.arraycopy(payload, 0, packet, FecDecoder.HEADER_SIZE, payloadLength);
+        return packet;
+    }
+
+    /**
+     * 与手机端FecEncoder相同：每groupSize个媒体包后面跟一个异或校验包，每4个包一帧
+     */
+    private void sendPackets(int count, int groupSize) {
+        byte[] parity = new byte[FecDecoder.MAX_PAYLOAD];
+        int parityLength = 0;
+        int lengthXor = 0;
+        int flagsXor = 0;
+        int index = 0;
+        for (int i = 0; i < count; i++) {
+            byte[] payload = payload(i);
+            int flags = i % 4 == 0 ? FecDecoder.FLAG_FRAME_START : 0;
+            mSent.add(packet(FecDecoder.TYPE_MEDIA, groupSize, index, flags, i, i - index,
+                    payload.length, payload, payload.length));
+            for (int j = 0; j < payload.length; j++) {
+                parity[j] ^= payload[j];
+            }
+            parityLength = Math.max(parityLength, payload.length);
+            lengthXor ^= payload.length;
+            flagsXor ^= flags;
+            if (++index == groupSize) {
+                int base = i + 1 - groupSize;
+                mSent.add(packet(FecDecoder.TYPE_PARITY, groupSize, groupSize, flagsXor, base, base,
+                        lengthXor, parity, parityLength));
+                Arrays.fill(parity, (byte) 0);
+                parityLength = 0;
+                lengthXor = 0;
+                flagsXor = 0;
+                index = 0;
+            }
+        }
+    }
+
+    /**
+     * 与手机端FecEncoder的endFrame()相同：一帧有framePackets[i]个包，帧尾不满的组用实际的包数发送校验包
+     */
+    private void sendFrames(int[] framePackets, int groupSize) {
+        byte[] parity = new byte[FecDecoder.MAX_PAYLOAD];
+        int parityLength = 0;
+        int lengthXor = 0;
+        int flagsXor = 0;
+        int index = 0;
+        int sequence = 0;
+        for (int frame : framePackets) {
+            for (int i = 0; i < frame; i++, sequence++) {
+                byte[] payload = payload(sequence);
+                int flags = i == 0 ? FecDecoder.FLAG_FRAME_START : 0;
+                mSent.add(packet(FecDecoder.TYPE_MEDIA, groupSize, index, flags, sequence, sequence - index,
+                        payload.length, payload, payload.length));
+                for (int j = 0; j < payload.length; j++) {
+                    parity[j] ^= payload[j];
+                }
+                parityLength = Math.max(parityLength, payload.length);
+                lengthXor ^= payload.length;
+                flagsXor ^= flags;
+                if (++index == groupSize || i == frame - 1) {
+                    int base = sequence + 1 - index;
+                    mSent.add(packet(FecDecoder.TYPE_PARITY, index, index, flagsXor, base, base,
+                            lengthXor, parity, parityLength));
+                    Arrays.fill(parity, (byte) 0);
+                    parityLength = 0;
+                    lengthXor = 0;
+                    flagsXor = 0;
+                    index = 0;
+                }
+            }
+        }
+    }
+
+    private static boolean isParity(byte[] packet) {
+        return packet[0] == FecDecoder.TYPE_PARITY;
+    }
+
+    private void receive(int packet) {
+        byte[] data = mSent.get(packet);
+        assertTrue(mDecoder.receive(data, 0, data.length));
+    }
+
+    @Test
+    public void recoversOneLossPerGroup() {
+        sendPackets(40, 4);
+        assertEquals(50, mSent.size());
+        for (int i = 0; i < mSent.size(); i++) {
+            // 每组丢第二个包，第一组丢校验包
+            if (i < 5 ? i != 4 : i % 5 != 1) {
+                receive(i);
+            }
+        }
+        assertEquals(0, mLost.size());
+        assertEquals(40, mDelivered.size());
+        for (int i = 0; i < 40; i++) {
+            assertArrayEquals(payload(i), mDelivered.get(i));
+            assertEquals(i % 4 == 0 ? FecDecoder.FLAG_FRAME_START : 0, (int) mDeliveredFlags.get(i));
+        }
+        assertEquals(9, mDecoder.getRecovered());
+        assertEquals(1.0f, mDecoder.getRecoveryRate(), 0.001);
+    }
+
+    @Test
+    public void reordersAndReportsUnrecoverableLoss() {
+        sendPackets(60, 2);
+        // 第一组只收到了校验包，两个媒体包都丢了；第二组乱序到达
+        receive(2);
+        receive(5);
+        receive(4);
+        receive(3);
+        for (int i = 6; i < mSent.size(); i++) {
+            receive(i);
+        }
+        assertEquals(Arrays.asList(0, 1), mLost);
+        assertEquals(58, mDelivered.size());
+        assertArrayEquals(payload(2), mDelivered.get(0));
+        assertArrayEquals(payload(3), mDelivered.get(1));
+
+        byte[] feedback = new byte[FecDecoder.FEEDBACK_SIZE];
+        assertEquals(FecDecoder.FEEDBACK_SIZE, mDecoder.writeFeedback(feedback));
+        assertEquals(FecDecoder.TYPE_FEEDBACK, feedback[0]);
+        assertEquals(60, FecDecoder.getInt(feedback, FecDecoder.HEADER_SIZE));
+        assertEquals(2, FecDecoder.getInt(feedback, FecDecoder.HEADER_SIZE + 12));
+    }
+
+    @Test
+    public void recoversLossInShortenedGroups() {
+        // 4个包一组，帧尾的组只有1到3个包
+        int[] frames = {5, 1, 3, 4, 7, 2};
+        sendFrames(frames, 4);
+        // 丢掉每一组的第一个媒体包
+        boolean groupStart = true;
+        for (int i = 0; i < mSent.size(); i++) {
+            if (!groupStart) {
+                receive(i);
+            }
+            groupStart = isParity(mSent.get(i));
+        }
+        assertEquals(0, mLost.size());
+        assertEquals(22, mDelivered.size());
+        for (int i = 0; i < 22; i++) {
+            assertArrayEquals(payload(i), mDelivered.get(i));
+        }
+        assertEquals(8, mDecoder.getRecovered());
+    }
+
+    @Test
+    public void shortenedGroupWithoutParity_isTrimmedByNextGroup() {
+        int[] frames = {2, 2, 6};
+        sendFrames(frames, 4);
+        // 前两帧的校验包都丢了，媒体包上是计划的groupSize 4，靠后一组的groupBase确定实际大小
+        for (int i = 0; i < mSent.size(); i++) {
+            if (i != 2 && i != 5) {
+                receive(i);
+            }
+        }
+        assertEquals(0, mLost.size());
+        assertEquals(10, mDelivered.size());
+        assertEquals(FecDecoder.FLAG_FRAME_START, (int) mDeliveredFlags.get(2));
+        assertArrayEquals(payload(9), mDelivered.get(9));
+    }
+}
@@ -0,0 +1,83 @@
+package com.example.mycam.receiver;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class SeiMessageTest {
+    private static final byte[] SLICE = {0, 0, 0, 1, 0x65, (byte) 0x88, (byte) 0x84, 0x00, 0x33};
+
+    /**
+     * 与手机端SeiMessage.write()相同：起始码 + NAL头 + 消息头 + 转义后的负载 + rbsp_trailing_bits
+     */
+    private static byte[] sei(long wallClockMs, long sensorTimestampNs, int motionScore, String deviceId)
+            throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(payload);
+        out.write(SeiMessage.UUID);
+        out.writeByte(1);
+        out.writeByte(0);
+        out.writeLong(wallClockMs);
+        out.writeLong(sensorTimestampNs);
+        out.writeInt(motionScore);
+        byte[] id = deviceId.getBytes("UTF-8");
+        out.writeByte(id.length);
+        out.write(id);
+        byte[] raw = payload.toByteArray();
+
+        ByteArrayOutputStream nal = new ByteArrayOutputStream();
+        nal.write(new byte[]{0, 0, 0, 1, 0x06, SeiMessage.PAYLOAD_TYPE_USER_DATA_UNREGISTERED, (byte) raw.length});
+        int zeros = 0;
+        for (byte b : raw) {
+            if (zeros >= 2 && (b & 0xFF) <= 3) {
+                nal.write(3);
+                zeros = 0;
+            }
+            nal.write(b);
+            zeros = b == 0 ? zeros + 1 : 0;
+        }
+        nal.write(0x80);
+        return nal.toByteArray();
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void parse_readsFieldsAndRemovesEmulationPrevention() throws IOException {
+        // 大量的0会产生防竞争字节
+        byte[] frame = concat(sei(0x0000000100000002L, 123456789012345L, 3, "Pixel 7-0123456789abcdef"), SLICE);
+        SeiMessage sei = new SeiMessage();
+        assertTrue(sei.parse(frame, 0, frame.length));
+        assertEquals(1, sei.version);
+        assertEquals(0x0000000100000002L, sei.wallClockMs);
+        assertEquals(123456789012345L, sei.sensorTimestampNs);
+        assertEquals(3, sei.motionScore);
+        assertEquals("Pixel 7-0123456789abcdef", sei.getDeviceId());
+    }
+
+    @Test
+    public void parse_skipsOtherSeiAndStopsAtSlice() throws IOException {
+        // 其他软件的SEI（payloadType 6）之后才是手机的消息
+        byte[] other = {0, 0, 0, 1, 0x06, 0x06, 0x02, 0x11, 0x22, (byte) 0x80};
+        byte[] frame = concat(other, sei(1, 2, 250, "cam"), SLICE);
+        SeiMessage sei = new SeiMessage();
+        assertTrue(sei.parse(frame, 0, frame.length));
+        assertEquals(250, sei.motionScore);
+        assertEquals("cam", sei.getDeviceId());
+
+        // slice之后的SEI不属于这一帧
+        byte[] late = concat(SLICE, sei(1, 2, 3, "cam"));
+        assertFalse(new SeiMessage().parse(late, 0, late.length));
+        assertFalse(new SeiMessage().parse(SLICE, 0, SLICE.length));
+    }
+}
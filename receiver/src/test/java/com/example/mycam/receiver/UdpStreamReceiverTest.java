@@ -0,0 +1,114 @@
+package com.example.mycam.receiver;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class UdpStreamReceiverTest {
+    private static final int PACKET = 100;
+
+    // 版本3的帧头 + payload，与手机端FrameWriter写出的格式相同
+    private static byte[] frame(int sequence, int payloadLength) {
+        byte[] frame = new byte[FrameReader.HEADER_SIZE + payloadLength];
+        FecDecoder.putInt(frame, 0, FrameReader.MAGIC);
+        frame[4] = (byte) FrameReader.VERSION;
+        FecDecoder.putInt(frame, 8, sequence);
+        FecDecoder.putInt(frame, 28, payloadLength);
+        for (int i = 0; i < payloadLength; i++) {
+            frame[FrameReader.HEADER_SIZE + i] = (byte) (sequence + i);
+        }
+        return frame;
+    }
+
+    /**
+     * 与UdpTransport一样按PACKET切包，每一帧从新包开始
+     */
+    private static void send(UdpStreamReceiver.Frames frames, byte[] frame, int lostPacket) {
+        for (int offset = 0, index = 0; offset < frame.length; offset += PACKET, index++) {
+            if (index == lostPacket) {
+                frames.onLoss(index);
+                continue;
+            }
+            frames.onPacket(frame, offset, Math.min(PACKET, frame.length - offset),
+                    offset == 0 ? FecDecoder.FLAG_FRAME_START : 0);
+        }
+    }
+
+    @Test
+    public void completeFrames_passThrough() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        UdpStreamReceiver.Frames frames = new UdpStreamReceiver.Frames(out);
+        send(frames, frame(0, 10), -1);
+        send(frames, frame(1, 1000), -1);
+        // 第二帧中间丢了一个包，整帧丢弃
+        send(frames, frame(2, 500), 2);
+        send(frames, frame(3, 52), -1);
+        assertEquals(3, frames.getFrames());
+        assertEquals(1, frames.getDropped());
+
+        byte[] hello = new byte[FrameReader.HELLO_SIZE];
+        FecDecoder.putInt(hello, 0, FrameReader.MAGIC);
+        hello[4] = (byte) FrameReader.VERSION_STREAMS;
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(hello);
+        stream.write(out.toByteArray());
+        FrameReader reader = new FrameReader(new DataInputStream(new ByteArrayInputStream(stream.toByteArray())));
+        assertEquals(FrameReader.VERSION_STREAMS, reader.readHello());
+        int[] expected = {0, 1, 3};
+        int[] lengths = {10, 1000, 52};
+        for (int i = 0; i < expected.length; i++) {
+            assertTrue(reader.next());
+            assertEquals(expected[i], reader.sequence);
+            assertEquals(lengths[i], reader.length);
+            assertEquals((byte) (expected[i] + lengths[i] - 1), reader.data[lengths[i] - 1]);
+        }
+        assertFalse(reader.next());
+    }
+
+    @Test
+    public void lostFrameStart_skipsUntilNextFrame() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        UdpStreamReceiver.Frames frames = new UdpStreamReceiver.Frames(out);
+        send(frames, frame(0, 300), 0);
+        send(frames, frame(1, 300), -1);
+        assertEquals(1, frames.getFrames());
+        assertEquals(frame(1, 300).length, out.size());
+    }
+
+    @Test
+    public void fullQueue_dropsUntilKeyFrame() throws IOException {
+        byte[] hello = new byte[FrameReader.HELLO_SIZE];
+        FecDecoder.putInt(hello, 0, FrameReader.MAGIC);
+        hello[4] = (byte) FrameReader.VERSION_STREAMS;
+        UdpStreamReceiver.FrameQueue queue = new UdpStreamReceiver.FrameQueue(2, hello);
+        // 没有人读，写入也不阻塞
+        for (int i = 0; i < 5; i++) {
+            byte[] frame = frame(i, 20);
+            queue.write(frame, 0, frame.length);
+        }
+        assertEquals(3, queue.getDropped());
+        FrameReader reader = new FrameReader(new DataInputStream(queue.input));
+        assertEquals(FrameReader.VERSION_STREAMS, reader.readHello());
+        assertTrue(reader.next());
+        assertEquals(0, reader.sequence);
+        assertTrue(reader.next());
+        assertEquals(1, reader.sequence);
+
+        // 腾出位置后P帧仍然丢弃，直到关键帧
+        byte[] frame = frame(5, 20);
+        queue.write(frame, 0, frame.length);
+        frame = frame(6, 20);
+        frame[6] = (byte) FrameReader.FLAG_KEY_FRAME;
+        queue.write(frame, 0, frame.length);
+        queue.close();
+        assertEquals(4, queue.getDropped());
+        assertTrue(reader.next());
+        assertEquals(6, reader.sequence);
+        assertFalse(reader.next());
+    }
+}
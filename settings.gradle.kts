@@ -15,4 +15,5 @@ dependencyResolutionManagement {
 
 rootProject.name = "MyCam"
 include(":app")
+include(":receiver")
  
\ No newline at end of file